@@ -94,10 +94,10 @@ public class CreateTreePlugin extends AbstractPlugin {
         net.maizegenetics.pal.tree.Tree theTree;
         List<Datum> results = new ArrayList<Datum>();
         if (isNJ) {
-            theTree = new net.maizegenetics.pal.tree.NeighborJoiningTree(adm);
+            theTree = new net.maizegenetics.pal.tree.FastNeighborJoiningTree(adm);
             results.add(new Datum("Tree:" + input.getName(), theTree, "NJ Tree"));
         } else {
-            theTree = new net.maizegenetics.pal.tree.UPGMATree(adm);
+            theTree = new net.maizegenetics.pal.tree.FastUPGMATree(adm);
             results.add(new Datum("Tree:" + input.getName(), theTree, "UPGMA Tree"));
         }
         if (isSaveMatrix) {
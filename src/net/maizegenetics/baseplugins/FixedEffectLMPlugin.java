@@ -44,8 +44,8 @@ import net.maizegenetics.jGLiM.dm.ModelEffectUtils;
 import net.maizegenetics.jGLiM.dm.SweepFastLinearModel;
 import net.maizegenetics.jGLiM.dm.SweepFastNestedModel;
 import net.maizegenetics.matrixalgebra.Matrix.DoubleMatrix;
-import net.maizegenetics.matrixalgebra.Matrix.DoubleMatrixFactory;
 import net.maizegenetics.pal.alignment.GeneticMap;
+import net.maizegenetics.pal.alignment.MarkerCodes;
 import net.maizegenetics.pal.alignment.MarkerPhenotype;
 import net.maizegenetics.pal.alignment.MarkerPhenotypeAdapter;
 import net.maizegenetics.pal.alignment.MarkerPhenotypeAdapterUtils;
@@ -74,6 +74,7 @@ public class FixedEffectLMPlugin extends AbstractPlugin {
     private int numberOfPermutations = 1000;
     private double[][] minP;
     private Random randomizer = new Random();
+    private int numThreads = Runtime.getRuntime().availableProcessors();
 
     public FixedEffectLMPlugin(Frame parentFrame, boolean isInteractive) {
         super(parentFrame, isInteractive);
@@ -271,246 +272,187 @@ public class FixedEffectLMPlugin extends AbstractPlugin {
             ArrayList<double[]> covariateList = MarkerPhenotypeAdapterUtils.getCovariateList(theAdapter, ph, missing);
 
             //if permutation analysis has been requested, generate a set of permuted data
-            double[][] permutedData = null;
+            PermutationTestEngine permutationEngine = null;
             if (permute) {
-                permutedData = permuteData(phenotypeData, missing, factorList, covariateList, theAdapter);
+                permutationEngine = new PermutationTestEngine(permuteData(phenotypeData, missing, factorList, covariateList, theAdapter), numThreads);
             }
 
-            //cycle through the markers
-            for (int m = 0; m < numberOfMarkers; m++) {
-                Object[] markerData = theAdapter.getMarkerValue(ph, m);
-                boolean[] finalMissing = new boolean[missing.length];
-                System.arraycopy(missing, 0, finalMissing, 0, missing.length);
-                MarkerPhenotypeAdapterUtils.updateMissing(finalMissing, theAdapter.getMissingMarkers(ph, m));
+            try {
+                //cycle through the markers
+                for (int m = 0; m < numberOfMarkers; m++) {
+                    MarkerCodes markerCodes = theAdapter.getMarkerCodes(ph, m);
+                    boolean[] finalMissing = new boolean[missing.length];
+                    System.arraycopy(missing, 0, finalMissing, 0, missing.length);
+                    MarkerPhenotypeAdapterUtils.updateMissing(finalMissing, markerCodes.getMissing());
 
-                //identify the rows with no missing data
-                int[] nonmissingRows = MarkerPhenotypeAdapterUtils.getNonMissingIndex(finalMissing);
+                    //identify the rows with no missing data
+                    int[] nonmissingRows = MarkerPhenotypeAdapterUtils.getNonMissingIndex(finalMissing);
 
-                //number of observations in this data set
-                int numberOfObs = nonmissingRows.length;
+                    //number of observations in this data set
+                    int numberOfObs = nonmissingRows.length;
 
-                //the phenotype data
-                double[] y = new double[numberOfObs];
-                for (int i = 0; i < numberOfObs; i++) {
-                    y[i] = phenotypeData[nonmissingRows[i]];
-                }
+                    //the phenotype data
+                    double[] y = new double[numberOfObs];
+                    for (int i = 0; i < numberOfObs; i++) {
+                        y[i] = phenotypeData[nonmissingRows[i]];
+                    }
 
-                //keep track of X matrix columns, so that the position of marker effect estimates in beta can be determined
-                int firstMarkerAlleleEstimate = 1; //for the mean
-
-                //first, add the mean to the model
-                ArrayList<ModelEffect> modelEffects = new ArrayList<ModelEffect>();
-                FactorModelEffect meanEffect = new FactorModelEffect(new int[numberOfObs], false);
-                meanEffect.setID("mean");
-                modelEffects.add(meanEffect);
-
-                //add factors
-                if (numberOfFactors > 0) {
-                    for (int f = 0; f < numberOfFactors; f++) {
-                        String[] afactor = factorList.get(f);
-                        String[] factorLabels = new String[numberOfObs];
-                        for (int i = 0; i < numberOfObs; i++) {
-                            factorLabels[i] = afactor[nonmissingRows[i]];
+                    //keep track of X matrix columns, so that the position of marker effect estimates in beta can be determined
+                    int firstMarkerAlleleEstimate = 1; //for the mean
+
+                    //first, add the mean to the model
+                    ArrayList<ModelEffect> modelEffects = new ArrayList<ModelEffect>();
+                    FactorModelEffect meanEffect = new FactorModelEffect(new int[numberOfObs], false);
+                    meanEffect.setID("mean");
+                    modelEffects.add(meanEffect);
+
+                    //add factors
+                    if (numberOfFactors > 0) {
+                        for (int f = 0; f < numberOfFactors; f++) {
+                            String[] afactor = factorList.get(f);
+                            String[] factorLabels = new String[numberOfObs];
+                            for (int i = 0; i < numberOfObs; i++) {
+                                factorLabels[i] = afactor[nonmissingRows[i]];
+                            }
+                            FactorModelEffect fme = new FactorModelEffect(ModelEffectUtils.getIntegerLevels(factorLabels), true, theAdapter.getFactorName(f));
+                            modelEffects.add(fme);
+                            firstMarkerAlleleEstimate += fme.getNumberOfLevels() - 1;
                         }
-                        FactorModelEffect fme = new FactorModelEffect(ModelEffectUtils.getIntegerLevels(factorLabels), true, theAdapter.getFactorName(f));
-                        modelEffects.add(fme);
-                        firstMarkerAlleleEstimate += fme.getNumberOfLevels() - 1;
                     }
-                }
 
-                //add covariates
-                if (numberOfCovariates > 0) {
-                    for (int c = 0; c < numberOfCovariates; c++) {
-                        double[] covar = new double[numberOfObs];
-                        double[] covariateData = covariateList.get(c);
-                        for (int i = 0; i < numberOfObs; i++) {
-                            covar[i] = covariateData[nonmissingRows[i]];
+                    //add covariates
+                    if (numberOfCovariates > 0) {
+                        for (int c = 0; c < numberOfCovariates; c++) {
+                            double[] covar = new double[numberOfObs];
+                            double[] covariateData = covariateList.get(c);
+                            for (int i = 0; i < numberOfObs; i++) {
+                                covar[i] = covariateData[nonmissingRows[i]];
+                            }
+                            modelEffects.add(new CovariateModelEffect(covar, theAdapter.getCovariateName(c)));
+                            firstMarkerAlleleEstimate++;
                         }
-                        modelEffects.add(new CovariateModelEffect(covar, theAdapter.getCovariateName(c)));
-                        firstMarkerAlleleEstimate++;
                     }
-                }
 
-                //add marker
-                ModelEffect markerEffect;
-                boolean markerIsDiscrete = theAdapter.isMarkerDiscrete(m);
-                ArrayList<Object> alleleNames = new ArrayList<Object>();
-
-                if (markerIsDiscrete) {
-                    Object[] markers = new Object[numberOfObs];
-                    for (int i = 0; i < numberOfObs; i++) {
-                        markers[i] = markerData[nonmissingRows[i]];
-                    }
+                    //add marker
+                    ModelEffect markerEffect;
+                    boolean markerIsDiscrete = markerCodes.isDiscrete();
+                    ArrayList<Object> alleleNames = new ArrayList<Object>();
 
-                    int[] markerLevels = ModelEffectUtils.getIntegerLevels(markers, alleleNames);
-                    markerEffect = new FactorModelEffect(markerLevels, true, theAdapter.getMarkerName(m));
-                    hasAlleleNames = true;
-                } else {
-                    double[] markerdbl = new double[numberOfObs];
-                    for (int i = 0; i < numberOfObs; i++) {
-                        markerdbl[i] = ((Double) markerData[nonmissingRows[i]]).doubleValue();
+                    if (markerIsDiscrete) {
+                        int[] markerLevels = markerCodes.getLevels(nonmissingRows, alleleNames);
+                        markerEffect = new FactorModelEffect(markerLevels, true, theAdapter.getMarkerName(m));
+                        hasAlleleNames = true;
+                    } else {
+                        double[] markerdbl = markerCodes.getValues(nonmissingRows);
+                        markerEffect = new CovariateModelEffect(markerdbl, theAdapter.getMarkerName(m));
                     }
-                    markerEffect = new CovariateModelEffect(markerdbl, theAdapter.getMarkerName(m));
-                }
 
-                int[] alleleCounts = markerEffect.getLevelCounts();
-
-                modelEffects.add(markerEffect);
-                int markerEffectNumber = modelEffects.size() - 1;
-
-                //if taxa are replicated, add taxa:marker to use as error term
-                //if the full list has duplicates, check to see if it still has
-                Identifier[] taxaSublist = new Identifier[numberOfObs];
-                Identifier[] taxa = theAdapter.getTaxa(ph);
-                for (int i = 0; i < numberOfObs; i++) {
-                    taxaSublist[i] = taxa[nonmissingRows[i]];
-                }
-                boolean areTaxaReplicated = containsDuplicates(taxaSublist);
-
-                double[] markerSSdf = null, errorSSdf = null, modelSSdf = null;
-                double F, p;
-                double[] beta = null;
-                if (areTaxaReplicated && markerIsDiscrete) {
-                    ModelEffect taxaEffect = new FactorModelEffect(ModelEffectUtils.getIntegerLevels(taxaSublist), true);
-                    modelEffects.add(taxaEffect);
-                    SweepFastNestedModel sfnm = new SweepFastNestedModel(modelEffects, y);
-                    double[] taxaSSdf = sfnm.getTaxaInMarkerSSdf();
-                    double[] residualSSdf = sfnm.getErrorSSdf();
-                    markerSSdf = sfnm.getMarkerSSdf();
-                    errorSSdf = sfnm.getErrorSSdf();
-                    modelSSdf = sfnm.getModelcfmSSdf();
-                    F = markerSSdf[0] / markerSSdf[1] / taxaSSdf[0] * taxaSSdf[1];
-                    try {
-                        p = LinearModelUtils.Ftest(F, markerSSdf[1], taxaSSdf[1]);
-                    } catch (Exception e) {
-                        p = Double.NaN;
-                    }
-                    beta = sfnm.getBeta();
-                    int markerdf = (int) markerSSdf[1];
-                    if (permute && markerdf > 0) {
-                        updatePermutationPValues(ph, permutedData, nonMissingIndex(missing, finalMissing), getXfromModelEffects(modelEffects), sfnm.getInverseOfXtX(), markerdf);
-                    }
-                } else {
-                    SweepFastLinearModel sflm = new SweepFastLinearModel(modelEffects, y);
-                    modelSSdf = sflm.getModelcfmSSdf();
-                    markerSSdf = sflm.getMarginalSSdf(markerEffectNumber);
-                    errorSSdf = sflm.getResidualSSdf();
-                    F = markerSSdf[0] / markerSSdf[1] / errorSSdf[0] * errorSSdf[1];
-                    try {
-                        p = LinearModelUtils.Ftest(F, markerSSdf[1], errorSSdf[1]);
-                    } catch (Exception e) {
-                        p = Double.NaN;
-                    }
-                    beta = sflm.getBeta();
+                    int[] alleleCounts = markerEffect.getLevelCounts();
 
-                    int markerdf = (int) markerSSdf[1];
-                    if (permute && markerdf > 0) {
-                        updatePermutationPValues(ph, permutedData, nonMissingIndex(missing, finalMissing), getXfromModelEffects(modelEffects), sflm.getInverseOfXtX(), markerdf);
-                    }
-                }
+                    modelEffects.add(markerEffect);
+                    int markerEffectNumber = modelEffects.size() - 1;
 
-                if (!filterOutput || p < maxp) {
-                    String traitname = theAdapter.getPhenotypeName(ph);
-                    if (traitname == null) {
-                        traitname = blank;
-                    }
-                    String marker = theAdapter.getMarkerName(m);
-                    if (marker == null) {
-                        marker = blank;
+                    //if taxa are replicated, add taxa:marker to use as error term
+                    //if the full list has duplicates, check to see if it still has
+                    Identifier[] taxaSublist = new Identifier[numberOfObs];
+                    Identifier[] taxa = theAdapter.getTaxa(ph);
+                    for (int i = 0; i < numberOfObs; i++) {
+                        taxaSublist[i] = taxa[nonmissingRows[i]];
                     }
-                    String locus = theAdapter.getLocusName(m);
-                    Integer site = new Integer(theAdapter.getLocusPosition(m));
-                    String chrname = "";
-                    Double chrpos = Double.NaN;
-                    if (hasMap) {
-                        int ndx = -1;
-                        ndx = myMap.getMarkerIndex(marker);
-                        if (ndx > -1) {
-                            chrname = myMap.getChromosome(ndx);
-                            chrpos = myMap.getGeneticPosition(ndx);
+                    boolean areTaxaReplicated = containsDuplicates(taxaSublist);
+
+                    double[] markerSSdf = null, errorSSdf = null, modelSSdf = null;
+                    double F, p;
+                    double[] beta = null;
+                    if (areTaxaReplicated && markerIsDiscrete) {
+                        ModelEffect taxaEffect = new FactorModelEffect(ModelEffectUtils.getIntegerLevels(taxaSublist), true);
+                        modelEffects.add(taxaEffect);
+                        SweepFastNestedModel sfnm = new SweepFastNestedModel(modelEffects, y);
+                        double[] taxaSSdf = sfnm.getTaxaInMarkerSSdf();
+                        double[] residualSSdf = sfnm.getErrorSSdf();
+                        markerSSdf = sfnm.getMarkerSSdf();
+                        errorSSdf = sfnm.getErrorSSdf();
+                        modelSSdf = sfnm.getModelcfmSSdf();
+                        F = markerSSdf[0] / markerSSdf[1] / taxaSSdf[0] * taxaSSdf[1];
+                        try {
+                            p = LinearModelUtils.Ftest(F, markerSSdf[1], taxaSSdf[1]);
+                        } catch (Exception e) {
+                            p = Double.NaN;
                         }
-                    }
-
-                    Object[] result = new Object[16];
-                    int col = 0;
-                    result[col++] = traitname;
-                    result[col++] = marker;
-                    result[col++] = locus;
-                    result[col++] = site;
-                    result[col++] = chrname;
-                    result[col++] = chrpos;
-                    result[col++] = new Double(F);
-                    result[col++] = new Double(p);
-                    result[col++] = Double.NaN; //placeholder for permutation p value
-                    result[col++] = new Double(markerSSdf[0] / (modelSSdf[0] + errorSSdf[0]));
-                    result[col++] = new Double(markerSSdf[1]);
-                    result[col++] = new Double(markerSSdf[0] / markerSSdf[1]);
-                    result[col++] = new Double(errorSSdf[1]);
-                    result[col++] = new Double(errorSSdf[0] / errorSSdf[1]);
-                    result[col++] = new Double(modelSSdf[1]);
-                    result[col++] = new Double(modelSSdf[0] / modelSSdf[1]);
-
-                    if (writeOutputToFile) {
-                        StringBuilder sb = new StringBuilder();
-                        sb.append(result[0]);
-                        for (int i = 1; i < 16; i++) {
-                            sb.append("\t").append(result[i]);
+                        beta = sfnm.getBeta();
+                        int markerdf = (int) markerSSdf[1];
+                        if (permute && markerdf > 0) {
+                            permutationEngine.testMarker(nonMissingIndex(missing, finalMissing), modelEffects, sfnm.getInverseOfXtX(), markerdf);
                         }
+                    } else {
+                        SweepFastLinearModel sflm = new SweepFastLinearModel(modelEffects, y);
+                        modelSSdf = sflm.getModelcfmSSdf();
+                        markerSSdf = sflm.getMarginalSSdf(markerEffectNumber);
+                        errorSSdf = sflm.getResidualSSdf();
+                        F = markerSSdf[0] / markerSSdf[1] / errorSSdf[0] * errorSSdf[1];
                         try {
-                            ftestWriter.write(sb.toString());
-                            ftestWriter.newLine();
-                        } catch (IOException e) {
-                            myLogger.error("Failed to write output to ftest file. Ending prematurely");
-                            try {
-                                ftestWriter.flush();
-                                BLUEWriter.flush();
-                            } catch (Exception e1) {
-                            }
-                            myLogger.error(e);
-                            return null;
+                            p = LinearModelUtils.Ftest(F, markerSSdf[1], errorSSdf[1]);
+                        } catch (Exception e) {
+                            p = Double.NaN;
                         }
-                    } else {
-                        markerTestResults.add(result);
-                    }
+                        beta = sflm.getBeta();
 
-                    //output allele estimates
-                    //{"Trait", "Marker", "Locus", "Locus.Postion", "Chr", "Chr.pos", "Allele", "Estimate"}
-                    int numberOfMarkerAlleles = alleleNames.size();
-                    if (numberOfMarkerAlleles == 0) {
-                        numberOfMarkerAlleles++;
+                        int markerdf = (int) markerSSdf[1];
+                        if (permute && markerdf > 0) {
+                            permutationEngine.testMarker(nonMissingIndex(missing, finalMissing), modelEffects, sflm.getInverseOfXtX(), markerdf);
+                        }
                     }
 
-                    for (int i = 0; i < numberOfMarkerAlleles; i++) {
-                        result = new Object[9];
-                        result[0] = traitname;
-                        result[1] = marker;
-                        result[2] = new Integer(alleleCounts[i]);
-                        result[3] = locus;
-                        result[4] = site;
-                        result[5] = chrname;
-                        result[6] = chrpos;
-
-                        if (numberOfMarkerAlleles == 1) {
-                            result[7] = "";
-                        } else {
-                            result[7] = alleleNames.get(i);
+                    if (!filterOutput || p < maxp) {
+                        String traitname = theAdapter.getPhenotypeName(ph);
+                        if (traitname == null) {
+                            traitname = blank;
                         }
-
-                        if (i == numberOfMarkerAlleles - 1) {
-                            result[8] = 0.0;
-                        } else {
-                            result[8] = beta[firstMarkerAlleleEstimate + i];
+                        String marker = theAdapter.getMarkerName(m);
+                        if (marker == null) {
+                            marker = blank;
+                        }
+                        String locus = theAdapter.getLocusName(m);
+                        Integer site = new Integer(theAdapter.getLocusPosition(m));
+                        String chrname = "";
+                        Double chrpos = Double.NaN;
+                        if (hasMap) {
+                            int ndx = -1;
+                            ndx = myMap.getMarkerIndex(marker);
+                            if (ndx > -1) {
+                                chrname = myMap.getChromosome(ndx);
+                                chrpos = myMap.getGeneticPosition(ndx);
+                            }
                         }
 
+                        Object[] result = new Object[16];
+                        int col = 0;
+                        result[col++] = traitname;
+                        result[col++] = marker;
+                        result[col++] = locus;
+                        result[col++] = site;
+                        result[col++] = chrname;
+                        result[col++] = chrpos;
+                        result[col++] = new Double(F);
+                        result[col++] = new Double(p);
+                        result[col++] = Double.NaN; //placeholder for permutation p value
+                        result[col++] = new Double(markerSSdf[0] / (modelSSdf[0] + errorSSdf[0]));
+                        result[col++] = new Double(markerSSdf[1]);
+                        result[col++] = new Double(markerSSdf[0] / markerSSdf[1]);
+                        result[col++] = new Double(errorSSdf[1]);
+                        result[col++] = new Double(errorSSdf[0] / errorSSdf[1]);
+                        result[col++] = new Double(modelSSdf[1]);
+                        result[col++] = new Double(modelSSdf[0] / modelSSdf[1]);
+
                         if (writeOutputToFile) {
                             StringBuilder sb = new StringBuilder();
                             sb.append(result[0]);
-                            for (int j = 1; j < 9; j++) {
-                                sb.append("\t").append(result[j]);
+                            for (int i = 1; i < 16; i++) {
+                                sb.append("\t").append(result[i]);
                             }
                             try {
-                                BLUEWriter.write(sb.toString());
-                                BLUEWriter.newLine();
+                                ftestWriter.write(sb.toString());
+                                ftestWriter.newLine();
                             } catch (IOException e) {
                                 myLogger.error("Failed to write output to ftest file. Ending prematurely");
                                 try {
@@ -522,16 +464,77 @@ public class FixedEffectLMPlugin extends AbstractPlugin {
                                 return null;
                             }
                         } else {
-                            alleleEstimateResults.add(result);
+                            markerTestResults.add(result);
+                        }
+
+                        //output allele estimates
+                        //{"Trait", "Marker", "Locus", "Locus.Postion", "Chr", "Chr.pos", "Allele", "Estimate"}
+                        int numberOfMarkerAlleles = alleleNames.size();
+                        if (numberOfMarkerAlleles == 0) {
+                            numberOfMarkerAlleles++;
+                        }
+
+                        for (int i = 0; i < numberOfMarkerAlleles; i++) {
+                            result = new Object[9];
+                            result[0] = traitname;
+                            result[1] = marker;
+                            result[2] = new Integer(alleleCounts[i]);
+                            result[3] = locus;
+                            result[4] = site;
+                            result[5] = chrname;
+                            result[6] = chrpos;
+
+                            if (numberOfMarkerAlleles == 1) {
+                                result[7] = "";
+                            } else {
+                                result[7] = alleleNames.get(i);
+                            }
+
+                            if (i == numberOfMarkerAlleles - 1) {
+                                result[8] = 0.0;
+                            } else {
+                                result[8] = beta[firstMarkerAlleleEstimate + i];
+                            }
+
+                            if (writeOutputToFile) {
+                                StringBuilder sb = new StringBuilder();
+                                sb.append(result[0]);
+                                for (int j = 1; j < 9; j++) {
+                                    sb.append("\t").append(result[j]);
+                                }
+                                try {
+                                    BLUEWriter.write(sb.toString());
+                                    BLUEWriter.newLine();
+                                } catch (IOException e) {
+                                    myLogger.error("Failed to write output to ftest file. Ending prematurely");
+                                    try {
+                                        ftestWriter.flush();
+                                        BLUEWriter.flush();
+                                    } catch (Exception e1) {
+                                    }
+                                    myLogger.error(e);
+                                    return null;
+                                }
+                            } else {
+                                alleleEstimateResults.add(result);
+                            }
+
                         }
+                    }
 
+                    int tmpPercent = ++iterationsSofar * 100 / expectedIterations;
+                    if (tmpPercent > percentFinished) {
+                        percentFinished = tmpPercent;
+                        fireProgress(percentFinished);
                     }
                 }
 
-                int tmpPercent = ++iterationsSofar * 100 / expectedIterations;
-                if (tmpPercent > percentFinished) {
-                    percentFinished = tmpPercent;
-                    fireProgress(percentFinished);
+                if (permute) {
+                    permutationEngine.finish(minP[ph]);
+                }
+            } finally {
+                if (permutationEngine != null) {
+                    permutationEngine.shutdown();
                 }
             }
         }
@@ -753,41 +756,6 @@ public class FixedEffectLMPlugin extends AbstractPlugin {
         return resultset;
     }
 
-    private void updatePermutationPValues(int phenotype, double[][] permutedData, int[] nonMissingIndex, DoubleMatrix X, DoubleMatrix G, int markerdf) {
-        int nobs = nonMissingIndex.length;
-        int rX = X.numberOfColumns();
-        double dferror = nobs - rX;
-
-        //determine L, the contrast
-        DoubleMatrix L = DoubleMatrixFactory.DEFAULT.make(rX, markerdf, 0);
-        for (int i = 0; i < markerdf; i++) {
-            L.set(rX - markerdf + i, i, 1);
-        }
-
-        for (int p = 0; p < numberOfPermutations; p++) {
-            DoubleMatrix y = DoubleMatrixFactory.DEFAULT.make(nobs, 1);
-            for (int i = 0; i < nobs; i++) {
-                y.set(i, 0, permutedData[p][nonMissingIndex[i]]);
-            }
-            DoubleMatrix yty = y.crossproduct(y);
-            DoubleMatrix Xty = X.crossproduct(y);
-            DoubleMatrix beta = G.mult(Xty);
-            double errorSS = yty.minus(Xty.crossproduct(beta)).get(0, 0);
-            DoubleMatrix Ltbeta = L.crossproduct(beta);
-            DoubleMatrix invLtGL = L.crossproduct(G.mult(L));
-            invLtGL.invert();
-            double dfL = L.numberOfColumns();
-            double F = (Ltbeta.crossproduct(invLtGL.mult(Ltbeta)).get(0, 0)) / errorSS / dfL * dferror;
-            double pval;
-            try {
-                pval = LinearModelUtils.Ftest(F, dfL, dferror);
-            } catch (Exception e) {
-                pval = 1;
-            }
-            minP[phenotype][p] = Math.min(minP[phenotype][p], pval);
-        }
-    }
-
     private double[][] permuteData(double[] phenotypeData, boolean[] missing, ArrayList<String[]> factorList,
             ArrayList<double[]> covariateList, MarkerPhenotypeAdapter theAdapter) {
         int[] nonMissingIndex = MarkerPhenotypeAdapterUtils.getNonMissingIndex(missing);
@@ -861,15 +829,6 @@ public class FixedEffectLMPlugin extends AbstractPlugin {
         return permutedData;
     }
 
-    private DoubleMatrix getXfromModelEffects(ArrayList<ModelEffect> someEffects) {
-        int n = someEffects.size();
-        DoubleMatrix[][] mats = new DoubleMatrix[1][n];
-        for (int i = 0; i < n; i++) {
-            mats[0][i] = someEffects.get(i).getX();
-        }
-        return DoubleMatrixFactory.DEFAULT.compose(mats);
-    }
-
     private int[] nonMissingIndex(boolean[] originalMissing, boolean[] finalMissing) {
         //count final not missing
         int finalCount = 0;
@@ -1176,6 +1135,15 @@ public class FixedEffectLMPlugin extends AbstractPlugin {
         this.numberOfPermutations = numberOfPermutations;
     }
 
+    /**
+     * Sets the number of threads used to test the markers against the permuted data.
+     *
+     * @param numThreads
+     */
+    public void setNumThreads(int numThreads) {
+        this.numThreads = numThreads;
+    }
+
     /**
      * Sets the randomizer seed so that permutation results are reproducible for
      * testing. The same seed will reproduce the same sequence of pseudo-random
@@ -46,6 +46,8 @@ public class LinkageDisequilibriumPlugin extends AbstractPlugin {
     private String myPossibleAlignmentName;
     private int[] myPossibleSiteList;
     private LinkageDisequilibrium.HetTreatment myHetTreatment = LinkageDisequilibrium.HetTreatment.Haplotype;
+    private int myNumThreads = Runtime.getRuntime().availableProcessors();
+    private String myOutputFile = null;
 
     /**
      * Creates a new instance of LinkageDisequilibriumPlugin
@@ -127,8 +129,16 @@ public class LinkageDisequilibriumPlugin extends AbstractPlugin {
     private DataSet processDatum(Datum input) {
         Alignment aa = (Alignment) input.getData();
         LinkageDisequilibrium theLD = new LinkageDisequilibrium(aa, myWindowSize, myLDType, myTestSite, this, myIsAccumulateResults, myNumAccumulateIntervals, myPossibleSiteList, myHetTreatment);
+        theLD.setNumThreads(myNumThreads);
+        if ((myOutputFile != null) && !myIsAccumulateResults) {
+            theLD.setOutputFile(myOutputFile);
+        }
         try {
             theLD.run();
+            if ((myOutputFile != null) && !myIsAccumulateResults) {
+                myLogger.info("processDatum: LD results written to: " + myOutputFile);
+                return null;
+            }
             Datum td = new Datum("LD:" + input.getName(), theLD, "LD Analysis");
             DataSet tds = new DataSet(td, this);
             return tds;
@@ -211,6 +221,25 @@ public class LinkageDisequilibriumPlugin extends AbstractPlugin {
         return myHetTreatment;
     }
 
+    public void setNumThreads(int numThreads) {
+        myNumThreads = numThreads;
+    }
+
+    public int getNumThreads() {
+        return myNumThreads;
+    }
+
+    /**
+     * Writes the LD results to this file as they are computed, instead of returning them as a table.
+     */
+    public void setOutputFile(String filename) {
+        myOutputFile = filename;
+    }
+
+    public String getOutputFile() {
+        return myOutputFile;
+    }
+
     /**
      * Icon for this plugin to be used in buttons, etc.
      *
@@ -39,6 +39,7 @@ public class MLMPlugin extends AbstractPlugin {
     private String outputName = null;
     private boolean filterOutput = false;
     private double maxp = 1;
+    private int numThreads = Runtime.getRuntime().availableProcessors();
 
     public enum CompressionType {
 
@@ -284,6 +285,17 @@ public class MLMPlugin extends AbstractPlugin {
     public void setCustomCompression(double value) {
         compression = value;
     }
+
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    /**
+     * Sets the number of threads used to test the markers with P3D. Defaults to the number of processors.
+     */
+    public void setNumThreads(int numThreads) {
+        this.numThreads = numThreads;
+    }
 }
 
 class MLMOptionDialog extends JDialog implements ActionListener {
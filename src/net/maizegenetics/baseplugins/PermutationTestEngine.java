@@ -0,0 +1,218 @@
+/*
+ * PermutationTestEngine
+ */
+package net.maizegenetics.baseplugins;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.maizegenetics.jGLiM.LinearModelUtils;
+import net.maizegenetics.jGLiM.dm.ModelEffect;
+import net.maizegenetics.matrixalgebra.Matrix.DoubleMatrix;
+import net.maizegenetics.matrixalgebra.Matrix.DoubleMatrixFactory;
+
+/**
+ * Computes the permutation test of the markers of one phenotype for FixedEffectLMPlugin.  The permuted phenotypes
+ * are held as the columns of one matrix Y, stored by observation, so that X'Y for all the permutations of a marker
+ * is accumulated in one pass over its observations, and the estimates and marker sums of squares are each computed
+ * by one matrix multiply.  The markers are tested by a pool of threads.
+ * Each thread keeps the minimum p-value of every permutation in its own array, and these are merged into the
+ * minimum p-values of the plugin by finish(), so the threads never share what they update.  Since only minima are
+ * kept, the results don't depend on the number of threads.
+ * <p>
+ * The F test of each permutation is the one FixedEffectLMPlugin computed for a single permuted phenotype: the last
+ * markerdf columns of X are tested, and a p-value that can't be computed counts as 1.
+ */
+class PermutationTestEngine {
+
+    private static final int MAX_MARKERS_PER_THREAD = 4;
+    private final double[] myPermutedData;
+    private final int myNumberOfObs;
+    private final int myNumberOfPermutations;
+    private final int myNumThreads;
+    private final List<double[]> myThreadMinP = new ArrayList<double[]>();
+    private final ThreadLocal<double[]> myLocalMinP = new ThreadLocal<double[]>() {
+        @Override
+        protected double[] initialValue() {
+            double[] localMinP = new double[myNumberOfPermutations];
+            Arrays.fill(localMinP, 1);
+            synchronized (myThreadMinP) {
+                myThreadMinP.add(localMinP);
+            }
+            return localMinP;
+        }
+    };
+    private final ExecutorService myPool;
+    private final List<Future<?>> myFutures = new ArrayList<Future<?>>();
+
+    /**
+     * @param permutedData the permuted phenotypes, permutedData[p][i] being observation i of permutation p
+     * @param numThreads number of threads testing markers
+     */
+    PermutationTestEngine(double[][] permutedData, int numThreads) {
+        myNumberOfPermutations = permutedData.length;
+        myNumberOfObs = (myNumberOfPermutations == 0) ? 0 : permutedData[0].length;
+        myPermutedData = new double[myNumberOfObs * myNumberOfPermutations];
+        for (int p = 0; p < myNumberOfPermutations; p++) {
+            double[] data = permutedData[p];
+            for (int i = 0; i < myNumberOfObs; i++) {
+                myPermutedData[i * myNumberOfPermutations + p] = data[i];
+            }
+        }
+        myNumThreads = numThreads;
+        myPool = (numThreads > 1) ? Executors.newFixedThreadPool(numThreads) : null;
+    }
+
+    /**
+     * Tests a marker against all the permutations, on a pool thread if there is one.  The model effects and G must
+     * not be changed afterwards.
+     *
+     * @param nonMissingIndex the observations of the permuted data used by this marker
+     * @param modelEffects the model effects, giving the columns of X
+     * @param G the inverse of X'X
+     * @param markerdf the number of marker degrees of freedom, tested as the last columns of X
+     */
+    void testMarker(final int[] nonMissingIndex, final ArrayList<ModelEffect> modelEffects, final DoubleMatrix G, final int markerdf) {
+        Runnable test = new Runnable() {
+            @Override
+            public void run() {
+                updateMinP(myLocalMinP.get(), nonMissingIndex, getX(modelEffects), G, markerdf);
+            }
+        };
+        if (myPool == null) {
+            test.run();
+            return;
+        }
+        // bounded, so that the calling thread doesn't get too far ahead of the pool
+        while (myFutures.size() >= MAX_MARKERS_PER_THREAD * myNumThreads) {
+            waitFor(myFutures.remove(0));
+        }
+        myFutures.add(myPool.submit(test));
+    }
+
+    /**
+     * Waits for the markers to be tested and lowers minP to the minimum p-value of each permutation.
+     */
+    void finish(double[] minP) {
+        while (!myFutures.isEmpty()) {
+            waitFor(myFutures.remove(0));
+        }
+        for (double[] localMinP : myThreadMinP) {
+            for (int p = 0; p < myNumberOfPermutations; p++) {
+                minP[p] = Math.min(minP[p], localMinP[p]);
+            }
+        }
+    }
+
+    /**
+     * Stops the pool.  Must be called once the engine is no longer used, whether or not finish() was.
+     */
+    void shutdown() {
+        if (myPool != null) {
+            myPool.shutdownNow();
+        }
+    }
+
+    private void updateMinP(double[] minP, int[] nonMissingIndex, DoubleMatrix X, DoubleMatrix G, int markerdf) {
+        int nobs = nonMissingIndex.length;
+        int numberOfPermutations = myNumberOfPermutations;
+        int rX = X.numberOfColumns();
+        double dferror = nobs - rX;
+        double dfL = markerdf;
+
+        //X'Y and the y'y of every permutation in one pass over the observations, skipping the zeros of X
+        double[] xty = new double[rX * numberOfPermutations];
+        double[] yty = new double[numberOfPermutations];
+        for (int i = 0; i < nobs; i++) {
+            int row = nonMissingIndex[i] * numberOfPermutations;
+            for (int p = 0; p < numberOfPermutations; p++) {
+                double y = myPermutedData[row + p];
+                yty[p] += y * y;
+            }
+            for (int k = 0; k < rX; k++) {
+                double xik = X.get(i, k);
+                if (xik != 0) {
+                    int offset = k * numberOfPermutations;
+                    for (int p = 0; p < numberOfPermutations; p++) {
+                        xty[offset + p] += xik * myPermutedData[row + p];
+                    }
+                }
+            }
+        }
+        DoubleMatrix XtY = DoubleMatrixFactory.DEFAULT.make(rX, numberOfPermutations, xty);
+        double[] beta = toRowMajor(G.mult(XtY));
+
+        //L'beta and (L'GL)^-1, where L selects the last markerdf columns of X
+        int firstMarkerColumn = rX - markerdf;
+        double[] ltbeta = new double[markerdf * numberOfPermutations];
+        System.arraycopy(beta, firstMarkerColumn * numberOfPermutations, ltbeta, 0, ltbeta.length);
+        DoubleMatrix invLtGL = DoubleMatrixFactory.DEFAULT.make(markerdf, markerdf);
+        for (int i = 0; i < markerdf; i++) {
+            for (int j = 0; j < markerdf; j++) {
+                invLtGL.set(i, j, G.get(firstMarkerColumn + i, firstMarkerColumn + j));
+            }
+        }
+        invLtGL.invert();
+        double[] invLtGLLtbeta = toRowMajor(invLtGL.mult(DoubleMatrixFactory.DEFAULT.make(markerdf, numberOfPermutations, ltbeta)));
+
+        for (int p = 0; p < numberOfPermutations; p++) {
+            double xtybeta = 0;
+            for (int k = 0; k < rX; k++) {
+                xtybeta += xty[k * numberOfPermutations + p] * beta[k * numberOfPermutations + p];
+            }
+            double errorSS = yty[p] - xtybeta;
+            double markerSS = 0;
+            for (int k = 0; k < markerdf; k++) {
+                markerSS += ltbeta[k * numberOfPermutations + p] * invLtGLLtbeta[k * numberOfPermutations + p];
+            }
+            double F = markerSS / errorSS / dfL * dferror;
+            double pval;
+            try {
+                pval = LinearModelUtils.Ftest(F, dfL, dferror);
+            } catch (Exception e) {
+                pval = 1;
+            }
+            minP[p] = Math.min(minP[p], pval);
+        }
+    }
+
+    private static double[] toRowMajor(DoubleMatrix dm) {
+        int nrows = dm.numberOfRows();
+        int ncols = dm.numberOfColumns();
+        double[] values = new double[nrows * ncols];
+        for (int r = 0; r < nrows; r++) {
+            for (int c = 0; c < ncols; c++) {
+                values[r * ncols + c] = dm.get(r, c);
+            }
+        }
+        return values;
+    }
+
+    private static DoubleMatrix getX(ArrayList<ModelEffect> someEffects) {
+        int n = someEffects.size();
+        DoubleMatrix[][] mats = new DoubleMatrix[1][n];
+        for (int i = 0; i < n; i++) {
+            mats[0][i] = someEffects.get(i).getX();
+        }
+        return DoubleMatrixFactory.DEFAULT.compose(mats);
+    }
+
+    private static void waitFor(Future<?> future) {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("PermutationTestEngine: " + e.getCause(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("PermutationTestEngine: interrupted");
+        }
+    }
+}
@@ -30,7 +30,7 @@ public class ParseBarcodeRead {
     static int maxBarcodeLength = 10;
     private Barcode[] theBarcodes;
     private long[] quickBarcodeList;
-    private HashMap<Long, Integer> quickMap;
+    private int[] quickBarcodeIndex;  // index in theBarcodes of each entry of quickBarcodeList
 
     /**
      * Create the barcode parsing object
@@ -391,14 +391,18 @@ public class ParseBarcodeRead {
             Arrays.sort(theBarcodes);
             int nBL = theBarcodes[0].barOverLong.length;
             quickBarcodeList = new long[theBarcodes.length * nBL];
-            quickMap = new HashMap();
+            HashMap<Long, Integer> barcodeMap = new HashMap<Long, Integer>();
             for (int i = 0; i < theBarcodes.length; i++) {
                 for (int j = 0; j < nBL; j++) {
                     quickBarcodeList[i * nBL + j] = theBarcodes[i].barOverLong[j];
-                    quickMap.put(theBarcodes[i].barOverLong[j], i);
+                    barcodeMap.put(theBarcodes[i].barOverLong[j], i);
                 }
             }
             Arrays.sort(quickBarcodeList);
+            quickBarcodeIndex = new int[quickBarcodeList.length];
+            for (int k = 0; k < quickBarcodeList.length; k++) {
+                quickBarcodeIndex[k] = barcodeMap.get(quickBarcodeList[k]);
+            }
         } catch (Exception e) {
             System.out.println("Error with setupBarcodeFiles: " + e);
         }
@@ -413,48 +417,59 @@ public class ParseBarcodeRead {
      * @return best barcode match (null if no good match)
      */
     Barcode findBestBarcode(String queryS, int maxDivergence) {
-        long query = BaseEncoder.getLongFromSeq(queryS.substring(0, chunkSize));
+        int index = findBestBarcodeIndex(BaseEncoder.getLongFromSeq(queryS.substring(0, chunkSize)), maxDivergence);
+        return (index < 0) ? null : theBarcodes[index];
+    }
+
+    /**
+     * Returns the index of the best barcode match for the first 32 bases of a read.
+     * @param query first 32 bases of the read encoded in 2-bit long
+     * @param maxDivergence maximum divergence to permit
+     * @return index of the best barcode match in theBarcodes (-1 if no good match)
+     */
+    private int findBestBarcodeIndex(long query, int maxDivergence) {
         //note because the barcodes are polyA after the sequence, they should always
         //sort ahead of the hit, this is the reason for the -(closestHit+2)
         int closestHit = Arrays.binarySearch(quickBarcodeList, query);
 
         /*      THIS IS THE NEW PIPELINE APPROACH THAT DOES NOT WORK
-         if(closestHit>-2) return null; //hit or perfect
-         if((query&quickBarcodeList[-(closestHit+2)])!=quickBarcodeList[-(closestHit+2)]) return null;
-         int index =quickMap.get(quickBarcodeList[-(closestHit+2)]);
+         if(closestHit>-2) return -1; //hit or perfect
+         if((query&quickBarcodeList[-(closestHit+2)])!=quickBarcodeList[-(closestHit+2)]) return -1;
+         int index =quickBarcodeIndex[-(closestHit+2)];
          //      System.out.println(theBarcodes[index].barcodeS);
-         return theBarcodes[index];
+         return index;
          //note to see if it is a perfect match you can just bit AND
          */
 
         //  Below is the old pipeline approach, which works (at least for maxDivergence of 0)
         if (closestHit < -1) {  // should always be true, as the barcode+overhang is padded to 32 bases with polyA
-            int index = quickMap.get(quickBarcodeList[-(closestHit + 2)]);
+            int index = quickBarcodeIndex[-(closestHit + 2)];
             if (theBarcodes[index].compareSequence(query, 1) == 0) {
-                return theBarcodes[index];
+                return index;
             } else if (maxDivergence == 0) {
-                return null;  // return null if not a perfect match
+                return -1;  // return -1 if not a perfect match
             }
         } else {
-            return null;  // should never go to this line
+            return -1;  // should never go to this line
         }
         int maxLength = 0, minDiv = maxDivergence + 1, countBest = 0;
-        Barcode bestBC = null;
-        for (Barcode bc : theBarcodes) {
+        int bestIndex = -1;
+        for (int i = 0; i < theBarcodes.length; i++) {
+            Barcode bc = theBarcodes[i];
             int div = bc.compareSequence(query, maxDivergence + 1);
             if (div <= minDiv) {
                 if ((div < minDiv) || (bc.barOverLength > maxLength)) {
                     minDiv = div;
                     maxLength = bc.barOverLength;
-                    bestBC = bc;
+                    bestIndex = i;
                     countBest = 1;
                 } else {  //it is a tie, so return that not resolvable
-                    bestBC = null;
+                    bestIndex = -1;
                     countBest++;
                 }
             }
         }
-        return bestBC;
+        return bestIndex;
     }
 
     /**
@@ -569,6 +584,117 @@ public class ParseBarcodeRead {
         ReadBarcodeResult rbr = new ReadBarcodeResult(read, (byte) pos, bestBarcode.getTaxaName());
         return rbr;
     }
+
+    /**
+     * Same as {@link #parseReadIntoTagAndTaxa(String, String, boolean, int)}, but works on any CharSequence and
+     * writes into a ReadBarcodeResult owned by the caller, so nothing is allocated per read.  The read array of
+     * the result is reused from call to call, and its sequence Strings are left null.  The result must not be
+     * shared between threads; the ParseBarcodeRead can be.
+     * @param seq DNA sequence from the sequencer
+     * @param qual quality score string from the sequencer (can be null)
+     * @param fastq (fastq = true?; qseq=false?)
+     * @param minQual minimum quality score
+     * @param result receives the read, its length, the taxon and the barcode index
+     * @return true if the barcode and cut site were found (result is then filled), false otherwise
+     */
+    public boolean parseReadIntoTagAndTaxa(CharSequence seq, CharSequence qual, boolean fastq, int minQual, ReadBarcodeResult result) {
+        int checkedLength = maxBarcodeLength + 2 * chunkSize;
+        if ((minQual > 0) && (qual != null)) {
+            if (BaseEncoder.getFirstLowQualityPos(qual, minQual) < checkedLength) {
+                return false;
+            }
+        }
+        char missing = fastq ? 'N' : '.';
+        for (int i = Math.min(seq.length(), checkedLength) - 1; i >= 0; i--) {
+            if (seq.charAt(i) == missing) {
+                return false;  //bad sequence so skip
+            }
+        }
+        if (seq.length() < chunkSize) {
+            return false;
+        }
+        int barcodeIndex = findBestBarcodeIndex(BaseEncoder.getLongFromSeq(seq, 0, chunkSize), maximumMismatchInBarcodeAndOverhang);
+        if (barcodeIndex < 0) {
+            return false;  //overhang missing so skip
+        }
+        int start = theBarcodes[barcodeIndex].barLength;
+        int end = seq.length();
+        int maxLength = 2 * chunkSize;
+        int cutSitePosition = findSecondCutSite(seq, start, end, maxLength);
+        if (cutSitePosition == -2) {  // overlapping ApeKI cut site: GCWGCWGC
+            start += 3;  // trim off the initial GCW from GCWGCWGC
+            cutSitePosition = Math.abs(findSecondCutSite(seq, start, end, maxLength));
+        } else {
+            cutSitePosition = Math.abs(cutSitePosition);
+        }
+        int length;
+        if (cutSitePosition < maxLength) {
+            length = cutSitePosition + readEndCutSiteRemnantLength;
+        } else {
+            length = Math.max(end - start, 0);
+        }
+        length = Math.min(length, Math.min(end - start, maxLength));
+        if ((result.read == null) || (result.read.length != 2)) {
+            result.read = new long[2];
+        }
+        result.read[0] = BaseEncoder.getLongFromSeq(seq, start, Math.min(length, chunkSize));
+        result.read[1] = BaseEncoder.getLongFromSeq(seq, start + chunkSize, Math.max(length - chunkSize, 0));
+        result.length = (byte) length;
+        result.taxonName = theBarcodes[barcodeIndex].getTaxaName();
+        result.barcodeIndex = barcodeIndex;
+        result.unprocessedSequence = null;
+        result.processedSequence = null;
+        result.paddedSequence = null;
+        return true;
+    }
+
+    /**
+     * Finds the first likelyReadEnd in seq[start, end) that starts more than one base after start, the way
+     * removeSeqAfterSecondCutSite() does with indexOf: a site is only looked for from start+1, and is ignored if it
+     * first occurs at start+1.  Only positions below maxLength matter to the caller.
+     * @return position of the cut site relative to start, negated if it is an ApeKI site that overlaps the
+     * initial cut site, or Integer.MAX_VALUE if there is none below maxLength
+     */
+    private static int findSecondCutSite(CharSequence seq, int start, int end, int maxLength) {
+        int cutSitePosition = Integer.MAX_VALUE;
+        String match = null;
+        for (String potentialCutSite : likelyReadEnd) {
+            int p = indexOf(seq, potentialCutSite, start + 1, Math.min(end, start + Math.min(cutSitePosition, maxLength) - 1 + potentialCutSite.length())) - start;
+            if ((p > 1) && (p < cutSitePosition)) {
+                cutSitePosition = p;
+                match = potentialCutSite;
+            }
+        }
+        if ((cutSitePosition == 2) && theEnzyme.equalsIgnoreCase("ApeKI") && (match.equals("GCAGC") || match.equals("GCTGC"))) {
+            return -cutSitePosition;
+        }
+        return cutSitePosition;
+    }
+
+    /**
+     * Returns the index of the first occurrence of pattern in seq[from, end), or -1.
+     */
+    private static int indexOf(CharSequence seq, String pattern, int from, int end) {
+        if (seq instanceof String) {  // String.indexOf() is much faster than charAt(), and allocates nothing either
+            int p = ((String) seq).indexOf(pattern, from);
+            return ((p >= 0) && (p + pattern.length() <= end)) ? p : -1;
+        }
+        for (int p = from; p + pattern.length() <= end; p++) {
+            if (regionMatches(seq, p, pattern)) {
+                return p;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean regionMatches(CharSequence seq, int offset, String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            if (seq.charAt(offset + i) != pattern.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
     
    /**Returns the number of barcodes for the flowcell and lane*/
     public int getBarCodeCount() {
@@ -0,0 +1,173 @@
+/*
+ * ParseBarcodeReadBenchmark
+ */
+package net.maizegenetics.gbs.homology;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Compares the reads per second and the bytes allocated per read of the String based
+ * ParseBarcodeRead.parseReadIntoTagAndTaxa() with the CharSequence one that fills a reusable ReadBarcodeResult,
+ * for every enzyme known to ParseBarcodeRead.chooseEnzyme(), and checks that both give the same read, length and
+ * taxon.
+ * <p>
+ * Usage: ParseBarcodeReadBenchmark [numberOfReads] [enzyme ...]
+ * <p>
+ * The reads are simulated: 96 barcodes of 8 bases, the initial cut site remnant, then genomic sequence that
+ * contains a second cut site or the common adapter in half of the reads.  One read in ten has an unknown barcode
+ * and one in twenty an N.
+ */
+public class ParseBarcodeReadBenchmark {
+
+    private static final String[] ENZYMES = {
+        "ApeKI", "ApoI", "BamHI", "Csp6I", "CviQI", "EcoRI", "EcoT22I", "HindIII", "HinP1I", "HpaII", "MseI", "MspI",
+        "NdeI", "PasI", "PstI", "Sau3AI", "SbfI", "RBSTA", "RBSCG",
+        "AsiSI-MspI", "AvaII-MseI", "BamHI-MluCI", "BbvCI-MspI", "BssHII-MspI", "EcoRI-AvaII", "EcoRI-HinfI",
+        "EcoRI-MseI", "EcoRI-MspI", "FseI-MspI", "HindIII-MspI", "HindIII-NlaIII", "PaeR7I-HhaI", "PstI-ApeKI",
+        "PstI-EcoT22I", "PstI-MseI", "PstI-MspI", "PstI-TaqI", "SalI-MspI", "SbfI-MspI", "SexAI-Sau3AI"};
+    private static final char[] BASES = {'A', 'C', 'G', 'T'};
+    private static final int NUM_BARCODES = 96;
+    private static final int READ_LENGTH = 100;
+
+    private ParseBarcodeReadBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        int numReads = (args.length > 0) ? Integer.parseInt(args[0]) : 2000000;
+        String[] enzymes = (args.length > 1) ? Arrays.copyOfRange(args, 1, args.length) : ENZYMES;
+        System.out.println("Reads per enzyme: " + numReads);
+        System.out.printf("%-16s %14s %14s %8s %12s %12s%n", "enzyme", "String reads/s", "reusable r/s", "speedup", "String B/rd", "reusable B/rd");
+        for (String enzyme : enzymes) {
+            runEnzyme(enzyme, numReads, new Random(enzyme.hashCode()));
+        }
+    }
+
+    private static void runEnzyme(String enzyme, int numReads, Random random) throws IOException {
+        String[] barcodes = new String[NUM_BARCODES];
+        File keyFile = writeKeyFile(enzyme, barcodes, random);
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }));
+        ParseBarcodeRead thePBR;
+        try {
+            thePBR = new ParseBarcodeRead(keyFile.getPath(), enzyme, "FC", "1");
+        } finally {
+            System.setOut(out);
+            keyFile.delete();
+        }
+        String[] seqs = new String[numReads];
+        String[] quals = new String[numReads];
+        char[] qual = new char[READ_LENGTH];
+        Arrays.fill(qual, 'h');
+        String qualS = new String(qual);
+        for (int r = 0; r < numReads; r++) {
+            seqs[r] = simulateRead(barcodes, random);
+            quals[r] = qualS;
+        }
+
+        int good = 0;
+        for (int round = 0; round < 2; round++) {  // the first round warms up the JIT
+            long allocated = allocatedBytes();
+            long time = System.nanoTime();
+            good = 0;
+            for (int r = 0; r < numReads; r++) {
+                if (thePBR.parseReadIntoTagAndTaxa(seqs[r], quals[r], true, 0) != null) {
+                    good++;
+                }
+            }
+            double stringSeconds = (System.nanoTime() - time) / 1e9;
+            double stringBytes = (double) (allocatedBytes() - allocated) / numReads;
+
+            ReadBarcodeResult result = new ReadBarcodeResult();
+            allocated = allocatedBytes();
+            time = System.nanoTime();
+            int goodReusable = 0;
+            for (int r = 0; r < numReads; r++) {
+                if (thePBR.parseReadIntoTagAndTaxa(seqs[r], quals[r], true, 0, result)) {
+                    goodReusable++;
+                }
+            }
+            double reusableSeconds = (System.nanoTime() - time) / 1e9;
+            double reusableBytes = (double) (allocatedBytes() - allocated) / numReads;
+            if (good != goodReusable) {
+                throw new IllegalStateException("ParseBarcodeReadBenchmark: " + enzyme + ": " + good + " reads parsed with Strings, " + goodReusable + " with the reusable result");
+            }
+            if (round == 1) {
+                System.out.printf("%-16s %14.0f %14.0f %7.2fx %12.1f %12.1f%n", enzyme, numReads / stringSeconds, numReads / reusableSeconds,
+                        stringSeconds / reusableSeconds, stringBytes, reusableBytes);
+            }
+        }
+        ReadBarcodeResult result = new ReadBarcodeResult();
+        for (int r = 0; r < numReads; r++) {
+            ReadBarcodeResult expected = thePBR.parseReadIntoTagAndTaxa(seqs[r], quals[r], true, 0);
+            boolean found = thePBR.parseReadIntoTagAndTaxa(seqs[r], quals[r], true, 0, result);
+            if ((expected != null) != found) {
+                throw new IllegalStateException("ParseBarcodeReadBenchmark: " + enzyme + ": results differ for read " + seqs[r]);
+            }
+            if (found && (!Arrays.equals(expected.getRead(), result.getRead()) || (expected.getLength() != result.getLength())
+                    || !expected.getTaxonName().equals(result.getTaxonName()))) {
+                throw new IllegalStateException("ParseBarcodeReadBenchmark: " + enzyme + ": " + expected + " != " + result + " for read " + seqs[r]);
+            }
+        }
+    }
+
+    private static File writeKeyFile(String enzyme, String[] barcodes, Random random) throws IOException {
+        HashSet<String> used = new HashSet<String>();
+        File keyFile = File.createTempFile("ParseBarcodeReadBenchmark", ".key");
+        FileWriter fw = new FileWriter(keyFile);
+        fw.write("Flowcell\tLane\tBarcode\tSample\tPlateName\tRow\tColumn\tLibraryPrepID\tEnzyme\n");
+        for (int b = 0; b < barcodes.length; b++) {
+            do {
+                barcodes[b] = randomBases(8, random);
+            } while (!used.add(barcodes[b]));
+            fw.write("FC\t1\t" + barcodes[b] + "\tS" + b + "\tP1\t" + (char) ('A' + b / 12) + "\t" + (b % 12 + 1) + "\t" + b + "\t" + enzyme + "\n");
+        }
+        fw.close();
+        return keyFile;
+    }
+
+    private static String simulateRead(String[] barcodes, Random random) {
+        StringBuilder sb = new StringBuilder(READ_LENGTH + 20);
+        if (random.nextInt(10) == 0) {
+            sb.append(randomBases(8, random));
+        } else {
+            sb.append(barcodes[random.nextInt(barcodes.length)]);
+        }
+        String[] remnants = ParseBarcodeRead.initialCutSiteRemnant;
+        sb.append(remnants[random.nextInt(remnants.length)]);
+        if (random.nextBoolean()) {
+            sb.append(randomBases(random.nextInt(80), random));
+            String[] readEnds = ParseBarcodeRead.likelyReadEnd;
+            sb.append(readEnds[random.nextInt(readEnds.length)]);
+        }
+        sb.append(randomBases(READ_LENGTH, random));
+        sb.setLength(READ_LENGTH);
+        if (random.nextInt(20) == 0) {
+            sb.setCharAt(random.nextInt(READ_LENGTH), 'N');
+        }
+        return sb.toString();
+    }
+
+    private static String randomBases(int length, Random random) {
+        char[] seq = new char[length];
+        for (int i = 0; i < length; i++) {
+            seq[i] = BASES[random.nextInt(4)];
+        }
+        return new String(seq);
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -30,6 +30,8 @@ public class ReadBarcodeResult {
     long[] read;
     /**Taxon name implied by the barcode sequence*/
     String taxonName;
+    /**Index of the barcode in the ParseBarcodeRead (-1 if unknown)*/
+    int barcodeIndex = -1;
 
     //TODO this instantiation should also include the orginal unprocessedSequence, processedSequence, and paddedSequence - the the object encode it
     public ReadBarcodeResult(long[] read, byte length, String taxon) {
@@ -42,6 +44,13 @@ public class ReadBarcodeResult {
         unprocessedSequence = sequence;
     }
 
+    /**
+     * Creates an empty result, to be filled again and again by
+     * {@link ParseBarcodeRead#parseReadIntoTagAndTaxa(CharSequence, CharSequence, boolean, int, ReadBarcodeResult)}
+     */
+    public ReadBarcodeResult() {
+    }
+
     @Override
     public String toString() {
         return BaseEncoder.getSequenceFromLong(read) + ":" + (int) length + ":" + taxonName;
@@ -59,4 +68,9 @@ public class ReadBarcodeResult {
     public String getTaxonName() {
         return taxonName;
     }
+
+    /**Return the index of the barcode in {@link ParseBarcodeRead#getTheBarcodes(int)} (-1 if unknown)*/
+    public int getBarcodeIndex() {
+        return barcodeIndex;
+    }
 }
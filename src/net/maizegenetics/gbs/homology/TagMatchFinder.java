@@ -1,11 +1,6 @@
 package net.maizegenetics.gbs.homology;
 
-import cern.colt.GenericSorting;
-import cern.colt.Swapper;
-import cern.colt.function.IntComparator;
-
 import java.util.Arrays;
-import java.util.Map.Entry;
 import java.util.TreeMap;
 
 import net.maizegenetics.gbs.tagdist.Tags;
@@ -21,30 +16,50 @@ import net.maizegenetics.gbs.util.BaseEncoder;
  * read this code.
  * <p>
  * The lookup match tables are based on 2-bit encoded long sequences, and the query also needs to
- * in a 2-bit long
+ * in a 2-bit long.  The word table is a {@link TagWordIndex}, which can be saved and memory mapped.
  * 
  * @author Ed Buckler
  */
 public class TagMatchFinder {
 
     Tags refTags;
-    private static int[][] lookups;
+    private final TagWordIndex myIndex;
     public static final int wordLength = 16;        //best results 8 for sensitivity
     public static final int maxDivergence = 15;
     private SmithWaterman pa;
 //    private Thread liveThread = null; //use to keep this alive while another thread is alive
 
+    /**
+     * Returns a copy of the word index as {words, tag indices}.
+     */
     public int[][] getTagLookTable() {
+        int[][] lookups = new int[2][myIndex.getWordCount()];
+        for (int k = 0; k < lookups[0].length; k++) {
+            lookups[0][k] = myIndex.getWord(k);
+            lookups[1][k] = myIndex.getTagIndex(k);
+        }
         return lookups;
     }
 
+    /**
+     * Builds the word index of theTags.  To match many reads, build the finder once and share it: it is
+     * immutable and can be used by several threads.
+     */
     public TagMatchFinder(Tags theTags) {
+        this(theTags, new TagWordIndex(theTags));
+    }
+
+    /**
+     * @param theTags Tags to match against
+     * @param index word index of theTags, e.g. from {@link TagWordIndex#getIndex(Tags, String)}
+     */
+    public TagMatchFinder(Tags theTags, TagWordIndex index) {
+        if ((index.getTagCount() != theTags.getTagCount()) || (index.getTagSizeInLong() != theTags.getTagSizeInLong())) {
+            throw new IllegalArgumentException("TagMatchFinder: the word index was not made from these tags");
+        }
         this.refTags = theTags;
-        init();
-        pa = new SmithWaterman(64, 32);
-        long[] query = refTags.getTag(10);
-        TreeMap<Integer, Integer> al = findMatchesWithIntLengthWords(query, 10, false);
-        System.out.println(al.toString());
+        myIndex = index;
+        pa = new SmithWaterman(32, 32);
     }
 
     public static void main(String[] args) {
@@ -52,54 +67,92 @@ public class TagMatchFinder {
 //       TagMatchFinder tmf=new TagMatchFinder(refTags);
     }
 
-    private void init() {
-        lookups = new int[2][2 * refTags.getTagCount() * refTags.getTagSizeInLong()];  //4 x 16base words
-        int count = 0;
-        System.out.println("Beginning to create index");
-        for (int i = 0; i < refTags.getTagCount(); i++) {
-            long[] cTag = refTags.getTag(i);
-            for (int j = 0; j < refTags.getTagSizeInLong(); j++) {
-                int word[] = BaseEncoder.getIntFromLong(cTag[j]);
-                lookups[0][count] = word[0];
-                lookups[1][count] = i;
-                count++;
-                lookups[0][count] = word[1];
-                lookups[1][count] = i;
-                count++;
+    /**
+     * Hits of a query, in increasing order of tag index.  Reuse one per thread to match many reads without
+     * allocating per read.
+     */
+    public static class Hits {
+
+        private int[] myTagIndices = new int[16];
+        private int[] myDivergences = new int[16];
+        private int mySize = 0;
+        private int[] myCandidates = new int[64];
+
+        public int size() {
+            return mySize;
+        }
+
+        public int getTagIndex(int hit) {
+            return myTagIndices[hit];
+        }
+
+        public int getDivergence(int hit) {
+            return myDivergences[hit];
+        }
+
+        private void add(int tagIndex, int divergence) {
+            if (mySize == myTagIndices.length) {
+                myTagIndices = Arrays.copyOf(myTagIndices, 2 * mySize);
+                myDivergences = Arrays.copyOf(myDivergences, 2 * mySize);
             }
+            myTagIndices[mySize] = tagIndex;
+            myDivergences[mySize] = divergence;
+            mySize++;
         }
-        System.out.println("Sorting index");
-        GenericSorting.quickSort(0, lookups[0].length, comp, swapper);
-        System.out.println("Beginning to reduce duplicates");
-        reduceDuplicates();
-        System.out.println("Duplicates removed");
-        pa = new SmithWaterman(32, 32);
     }
 
-    private void reduceDuplicates() {
-        int start = 0, end = -1, currHap = lookups[0][0], duplicated = 0;
-        System.out.println(BaseEncoder.getSequenceFromInt(currHap) + " " + currHap);
-        for (int i = 0; i < lookups[0].length; i++) {
-            if (lookups[0][i] == currHap) {
-                end = i;
-            } else {
-                if (((end - start) > 1000)) {
-                    //System.out.println(BaseEncoder.getSequenceFromInt(currHap)+" "+(end-start));
-                    for (int j = start; j <= end; j++) {
-                        lookups[0][j] = Integer.MAX_VALUE;
-                        duplicated++;
+    /**
+     * Finds the tags that share a 16 base word with the query and differ from it by at most maxDiv bases, like
+     * {@link #findMatchesWithIntLengthWords(long[], int, boolean)}, but puts them in a reusable Hits.
+     * @param query array of 2-bit encoded long query
+     * @param maxDiv maximum divergence to look for
+     * @param keepOnlyBest result only includes the hits with the smallest divergence
+     * @param hits receives the hits (cleared first)
+     * @return number of hits
+     */
+    public int findMatches(long[] query, int maxDiv, boolean keepOnlyBest, Hits hits) {
+        hits.mySize = 0;
+        int nCandidates = 0;
+        for (int i = 0; i < query.length; i++) {
+            for (int w = 0; w < 2; w++) {
+                int word = (w == 0) ? (int) (query[i] >> 32) : (int) query[i];
+                for (int hit = myIndex.firstPosition(word); (hit >= 0) && (hit < myIndex.getWordCount()) && (myIndex.getWord(hit) == word); hit++) {
+                    if (nCandidates == hits.myCandidates.length) {
+                        hits.myCandidates = Arrays.copyOf(hits.myCandidates, 2 * nCandidates);
                     }
+                    hits.myCandidates[nCandidates++] = myIndex.getTagIndex(hit);
+                }
+            }
+        }
+        Arrays.sort(hits.myCandidates, 0, nCandidates);
+        int bestDiv = maxDiv;
+        for (int c = 0; c < nCandidates; c++) {
+            int indexPossHapHit = hits.myCandidates[c];
+            if ((c > 0) && (indexPossHapHit == hits.myCandidates[c - 1])) {
+                continue;  // already compared
+            }
+            long[] refTag = refTags.getTag(indexPossHapHit);
+            int div = BaseEncoder.seqDifferences(refTag[0], query[0], maxDiv)
+                    + BaseEncoder.seqDifferences(refTag[1], query[1], maxDiv);
+            if (div <= maxDiv) {
+                hits.add(indexPossHapHit, div);
+                if (div < bestDiv) {
+                    bestDiv = div;
+                }
+            }
+        }
+        if (keepOnlyBest && (hits.mySize > 1)) {
+            int kept = 0;
+            for (int h = 0; h < hits.mySize; h++) {
+                if (hits.myDivergences[h] == bestDiv) {
+                    hits.myTagIndices[kept] = hits.myTagIndices[h];
+                    hits.myDivergences[kept] = bestDiv;
+                    kept++;
                 }
-                currHap = lookups[0][i];
-                start = end = i;
             }
+            hits.mySize = kept;
         }
-        GenericSorting.quickSort(0, lookups[0].length, comp, swapper);
-        int[][] newlookups = new int[2][lookups[0].length - duplicated];
-        System.arraycopy(lookups[0], 0, newlookups[0], 0, lookups[0].length - duplicated);
-        System.arraycopy(lookups[1], 0, newlookups[1], 0, lookups[1].length - duplicated);
-        System.out.println("Old Lookup Size:" + lookups[0].length + "  new size:" + newlookups[0].length);
-        lookups = newlookups;
+        return hits.mySize;
     }
 
     /**
@@ -112,68 +165,13 @@ public class TagMatchFinder {
      * @return hit map (tagIndex, divergence)
      */
     public TreeMap<Integer, Integer> findMatchesWithIntLengthWords(long[] query, int maxDiv, boolean keepOnlyBest) {
+        Hits hits = new Hits();
+        findMatches(query, maxDiv, keepOnlyBest, hits);
         TreeMap<Integer, Integer> hitsAndDiv = new TreeMap<Integer, Integer>();
-        int bestDiv = maxDiv;
-        //   OpenBitSet bQuery=new OpenBitSet(query);
-        for (int i = 0; i < query.length; i++) {
-            int words[] = BaseEncoder.getIntFromLong(query[i]);
-            for (int word : words) {
-                //      System.out.println("word"+word+" string:"+BaseEncoder.getSequenceFromInt(word));
-                int hit = Arrays.binarySearch(lookups[0], word);
-                if (hit < 0) {
-                    continue;  //no hit for this word
-                }
-                while ((hit > 0) && (word == lookups[0][hit - 1])) {
-                    hit--;
-                }  //backup to the first hit
-                while ((hit < lookups[0].length) && (lookups[0][hit] == word)) {
-                    int indexPossHapHit = lookups[1][hit];
-                    if (!hitsAndDiv.containsKey(indexPossHapHit)) {
-                        int div = BaseEncoder.seqDifferences(refTags.getTag(indexPossHapHit)[0], query[0], maxDiv)
-                                + BaseEncoder.seqDifferences(refTags.getTag(indexPossHapHit)[1], query[1], maxDiv);
-                        if (div <= maxDiv) {
-                            hitsAndDiv.put(indexPossHapHit, div); //System.out.println("Hit"+indexPossHapHit+" div:"+div);
-                        }
-                        if (div < bestDiv) {
-                            bestDiv = div;
-                        }
-                    }
-                    hit++;
-                }
-            }
-        }
-        if (keepOnlyBest && hitsAndDiv.size() > 1) {
-            TreeMap<Integer, Integer> bestHitsAndDiv = new TreeMap<Integer, Integer>();
-            for (Entry<Integer, Integer> e : hitsAndDiv.entrySet()) {
-                if (e.getValue() == bestDiv) {
-                    bestHitsAndDiv.put(e.getKey(), e.getValue());
-                }
-            }
-            return bestHitsAndDiv;
-        } else {
-            return hitsAndDiv;
+        for (int h = 0; h < hits.size(); h++) {
+            hitsAndDiv.put(hits.getTagIndex(h), hits.getDivergence(h));
         }
+        return hitsAndDiv;
         //1bp indels can be dealt with by shift
     }
-    Swapper swapper = new Swapper() {
-
-        public void swap(int a, int b) {
-            int t1, t2;
-            t1 = lookups[0][a];
-            lookups[0][a] = lookups[0][b];
-            lookups[0][b] = t1;
-            t2 = lookups[1][a];
-            lookups[1][a] = lookups[1][b];
-            lookups[1][b] = t2;
-        }
-    };
-    IntComparator comp = new IntComparator() {
-
-        public int compare(int a, int b) {
-            if (lookups[0][a] == lookups[0][b]) {
-                return lookups[1][a] == lookups[1][b] ? 0 : (lookups[1][a] < lookups[1][b] ? -1 : 1);
-            }
-            return lookups[0][a] < lookups[0][b] ? -1 : 1;
-        }
-    };
 }
@@ -0,0 +1,209 @@
+/*
+ * TagWordIndex
+ */
+package net.maizegenetics.gbs.homology;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.util.Arrays;
+
+import net.maizegenetics.gbs.tagdist.Tags;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Immutable index of the 16 base words of a set of Tags, used by TagMatchFinder to find the tags sharing a word
+ * with a query.  Each 2-bit encoded long of a tag gives two words (its high and low int).  The (word, tag index)
+ * pairs are sorted by word then tag, and words found more than 1001 times (repeats, poly-A padding) are dropped.
+ * <p>
+ * The index can be written to a file and memory mapped from it, so that it is built once per tag set instead of
+ * once per run.  Lookups only read it, so one instance can be shared by several threads.
+ */
+public class TagWordIndex {
+
+    private static final Logger myLogger = Logger.getLogger(TagWordIndex.class);
+    private static final int FILE_MAGIC = 0x54574931;  // "TWI1"
+    private static final int HEADER_INTS = 4;  // magic, tag count, tag size in long, number of words
+    private static final int MAX_WORD_REPEATS = 1000;
+    private final IntBuffer myWords;
+    private final IntBuffer myTagIndices;
+    private final int myTagCount;
+    private final int myTagSizeInLong;
+
+    /**
+     * Builds the index in memory.
+     */
+    public TagWordIndex(Tags theTags) {
+        myTagCount = theTags.getTagCount();
+        myTagSizeInLong = theTags.getTagSizeInLong();
+        int wordsPerTag = 2 * myTagSizeInLong;
+        long[] pairs = new long[myTagCount * wordsPerTag];  // word in the high int, tag index in the low int
+        int count = 0;
+        for (int i = 0; i < myTagCount; i++) {
+            long[] cTag = theTags.getTag(i);
+            for (int j = 0; j < myTagSizeInLong; j++) {
+                pairs[count++] = (cTag[j] & 0xFFFFFFFF00000000L) | i;
+                pairs[count++] = (cTag[j] << 32) | i;
+            }
+        }
+        Arrays.sort(pairs);  // by word (signed, as Arrays.binarySearch on the words expects), then tag index
+        int kept = 0;
+        for (int start = 0; start < count;) {
+            int word = (int) (pairs[start] >> 32);
+            int end = start + 1;
+            while ((end < count) && ((int) (pairs[end] >> 32) == word)) {
+                end++;
+            }
+            if (end - start <= MAX_WORD_REPEATS + 1) {
+                System.arraycopy(pairs, start, pairs, kept, end - start);
+                kept += end - start;
+            }
+            start = end;
+        }
+        int[] words = new int[kept];
+        int[] tagIndices = new int[kept];
+        for (int k = 0; k < kept; k++) {
+            words[k] = (int) (pairs[k] >> 32);
+            tagIndices[k] = (int) pairs[k];
+        }
+        myWords = IntBuffer.wrap(words);
+        myTagIndices = IntBuffer.wrap(tagIndices);
+        myLogger.info("TagWordIndex: " + count + " words of " + myTagCount + " tags, " + kept + " kept after removing repeated words");
+    }
+
+    /**
+     * Memory maps an index written by {@link #write(File)}.
+     */
+    public TagWordIndex(File indexFile) {
+        try {
+            RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, 4 * HEADER_INTS);
+            if (header.getInt(0) != FILE_MAGIC) {
+                raf.close();
+                throw new IllegalStateException("TagWordIndex: not a tag word index file: " + indexFile);
+            }
+            myTagCount = header.getInt(4);
+            myTagSizeInLong = header.getInt(8);
+            int numWords = header.getInt(12);
+            long expectedLength = 4L * (HEADER_INTS + 2L * numWords);
+            if (channel.size() != expectedLength) {
+                raf.close();
+                throw new IllegalStateException("TagWordIndex: " + indexFile + " has " + channel.size() + " bytes, expected " + expectedLength);
+            }
+            myWords = channel.map(FileChannel.MapMode.READ_ONLY, 4L * HEADER_INTS, 4L * numWords).asIntBuffer();
+            myTagIndices = channel.map(FileChannel.MapMode.READ_ONLY, 4L * (HEADER_INTS + numWords), 4L * numWords).asIntBuffer();
+            raf.close();  // the mappings stay valid after the channel is closed
+        } catch (IOException e) {
+            myLogger.error("TagWordIndex: error while mapping " + indexFile + ": " + e);
+            e.printStackTrace();
+            throw new IllegalStateException("TagWordIndex: can't map: " + indexFile);
+        }
+        myLogger.info("TagWordIndex: mapped " + myWords.limit() + " words of " + myTagCount + " tags from " + indexFile);
+    }
+
+    /**
+     * Returns the index of a tag file: mapped from tagFileName + ".words" if that file is newer than the tag file
+     * and was made from as many tags, otherwise built and then written there (when possible) for the next run.
+     */
+    public static TagWordIndex getIndex(Tags theTags, String tagFileName) {
+        File tagFile = new File(tagFileName);
+        File indexFile = new File(tagFileName + ".words");
+        if (indexFile.isFile() && (indexFile.lastModified() >= tagFile.lastModified())) {
+            try {
+                TagWordIndex index = new TagWordIndex(indexFile);
+                if ((index.getTagCount() == theTags.getTagCount()) && (index.getTagSizeInLong() == theTags.getTagSizeInLong())) {
+                    return index;
+                }
+                myLogger.info("TagWordIndex: " + indexFile + " was made from other tags, rebuilding it");
+            } catch (IllegalStateException e) {
+                myLogger.warn("TagWordIndex: can't use " + indexFile + ", rebuilding it: " + e.getMessage());
+            }
+        }
+        TagWordIndex index = new TagWordIndex(theTags);
+        try {
+            index.write(indexFile);
+        } catch (IOException e) {
+            myLogger.warn("TagWordIndex: can't write " + indexFile + " (it will be built again next time): " + e);
+        }
+        return index;
+    }
+
+    /**
+     * Writes the index, to be memory mapped by {@link #TagWordIndex(File)}.
+     */
+    public void write(File indexFile) throws IOException {
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile), 65536));
+        try {
+            dos.writeInt(FILE_MAGIC);
+            dos.writeInt(myTagCount);
+            dos.writeInt(myTagSizeInLong);
+            dos.writeInt(getWordCount());
+            for (int k = 0, n = getWordCount(); k < n; k++) {
+                dos.writeInt(myWords.get(k));
+            }
+            for (int k = 0, n = getWordCount(); k < n; k++) {
+                dos.writeInt(myTagIndices.get(k));
+            }
+        } finally {
+            dos.close();
+        }
+        myLogger.info("TagWordIndex: wrote " + indexFile);
+    }
+
+    /**
+     * Returns the number of (word, tag) pairs in the index.
+     */
+    public int getWordCount() {
+        return myWords.limit();
+    }
+
+    /**
+     * Returns the number of tags the index was made from.
+     */
+    public int getTagCount() {
+        return myTagCount;
+    }
+
+    public int getTagSizeInLong() {
+        return myTagSizeInLong;
+    }
+
+    public int getWord(int position) {
+        return myWords.get(position);
+    }
+
+    public int getTagIndex(int position) {
+        return myTagIndices.get(position);
+    }
+
+    /**
+     * Returns the first position of a word in the index, or -1 if it is not there.  The tags with that word are at
+     * this position and the following ones, as long as getWord() returns the word.
+     */
+    public int firstPosition(int word) {
+        int low = 0, high = myWords.limit() - 1, found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midWord = myWords.get(mid);
+            if (midWord < word) {
+                low = mid + 1;
+            } else {
+                if (midWord == word) {
+                    found = mid;
+                }
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+}
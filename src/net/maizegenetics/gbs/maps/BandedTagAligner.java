@@ -0,0 +1,356 @@
+/*
+ * BandedTagAligner
+ */
+package net.maizegenetics.gbs.maps;
+
+import java.util.Arrays;
+
+import net.maizegenetics.gbs.util.BaseEncoder;
+
+/**
+ * Star alignment of the tags at a locus.  Every tag is aligned to a center tag (the tag with the most reads) with
+ * a banded affine gap (Gotoh) alignment, and the pairwise alignments are merged into a multiple alignment by
+ * inserting, before each center base, as many columns as the longest insertion any tag has there.
+ * <p>
+ * All tags at a locus start at the same cut site, so the alignment is global at the start of the tags and free at
+ * their ends: the positions of the center beyond the end of a tag are left empty and written as 'N'.  With a band
+ * of w, indels of up to w bases (in total, along a tag) are found.  Tags are read from their 2-bit encoding
+ * (long[]), and a tag with at most one mismatch against the center and no extra length is placed without the
+ * dynamic programming.
+ * <p>
+ * The scores are those of the NUC.4.4 matrix used by the biojava alignment (match 5, mismatch -4, N -2), with a gap
+ * of length k costing gapOpen + k * gapExtend.  An instance reuses its work arrays, so it must not be shared by
+ * threads.
+ */
+public class BandedTagAligner {
+
+    /** Codes of the bases: A, C, G, T as in the 2-bit encoding, and N for anything else */
+    public static final byte A = 0, C = 1, G = 2, T = 3, N = 4;
+    private static final char[] CODE_CHARS = {'A', 'C', 'G', 'T', 'N'};
+    private static final byte GAP = -1, NO_BASE = -2;
+    private static final int MATCH = 5, MISMATCH = -4, N_SCORE = -2, N_N_SCORE = -1;
+    private static final int NEG_INF = Integer.MIN_VALUE / 4;
+    private static final byte FROM_DIAG = 0, FROM_E = 1, FROM_F = 2, E_EXTENDED = 4, F_EXTENDED = 8;
+    private final int myBand;
+    private final int myGapOpen;
+    private final int myGapExtend;
+    private int myRowCapacity = -1;
+    private int[] myH, myE, myF;
+    private byte[] myTrace;
+
+    public BandedTagAligner() {
+        this(8, 5, 2);
+    }
+
+    /**
+     * @param band Maximum distance from the diagonal (longest total indel) of the alignments
+     * @param gapOpen Penalty for opening a gap
+     * @param gapExtend Penalty for each position of a gap
+     */
+    public BandedTagAligner(int band, int gapOpen, int gapExtend) {
+        if (band < 1) {
+            throw new IllegalArgumentException("BandedTagAligner: band must be at least 1: " + band);
+        }
+        myBand = band;
+        myGapOpen = gapOpen;
+        myGapExtend = gapExtend;
+    }
+
+    /**
+     * Decodes the first length bases of a 2-bit encoded tag into base codes.
+     */
+    public static byte[] decode(long[] tag, int length) {
+        byte[] result = new byte[length];
+        for (int i = 0; i < length; i++) {
+            result[i] = (byte) ((tag[i / BaseEncoder.chunkSize] >>> (2 * (BaseEncoder.chunkSize - 1 - (i % BaseEncoder.chunkSize)))) & 3);
+        }
+        return result;
+    }
+
+    /**
+     * Converts the first length characters of a sequence into base codes (anything but A, C, G or T becomes N).
+     */
+    public static byte[] decode(String seq, int length) {
+        byte[] result = new byte[length];
+        for (int i = 0; i < length; i++) {
+            switch (seq.charAt(i)) {
+                case 'A':
+                    result[i] = A;
+                    break;
+                case 'C':
+                    result[i] = C;
+                    break;
+                case 'G':
+                    result[i] = G;
+                    break;
+                case 'T':
+                    result[i] = T;
+                    break;
+                default:
+                    result[i] = N;
+                    break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Number of mismatches in the first length bases of two 2-bit encoded tags.
+     */
+    public static int countMismatches(long[] tag1, long[] tag2, int length) {
+        int mismatches = 0;
+        int fullLongs = length / BaseEncoder.chunkSize;
+        for (int j = 0; j < fullLongs; j++) {
+            mismatches += mismatchedBases(tag1[j] ^ tag2[j]);
+        }
+        int rest = length % BaseEncoder.chunkSize;
+        if (rest > 0) {
+            long mask = -1L << (2 * (BaseEncoder.chunkSize - rest));  // the first bases are in the high bits
+            mismatches += mismatchedBases((tag1[fullLongs] ^ tag2[fullLongs]) & mask);
+        }
+        return mismatches;
+    }
+
+    private static int mismatchedBases(long xor) {
+        return Long.bitCount((xor | (xor >>> 1)) & 0x5555555555555555L);
+    }
+
+    /**
+     * Aligns the tags to the center tag.
+     *
+     * @param seqs Base codes of the tags (see decode())
+     * @param tags 2-bit encoding of the tags, used to skip the alignment of tags close to the center (may be null,
+     * or contain null for tags that are not 2-bit encoded)
+     * @param center Index of the center tag
+     *
+     * @return The aligned tags, with '-' for gaps and 'N' beyond the end of a tag
+     */
+    public String[] align(byte[][] seqs, long[][] tags, int center) {
+        int nSeqs = seqs.length;
+        int maxLength = 0;
+        for (byte[] seq : seqs) {
+            maxLength = Math.max(maxLength, seq.length);
+        }
+        // the center is padded with N to the length of the longest tag, so that longer tags are not forced into insertions
+        byte[] centerSeq = Arrays.copyOf(seqs[center], maxLength);
+        Arrays.fill(centerSeq, seqs[center].length, maxLength, N);
+        byte[][] alignedToCenter = new byte[nSeqs][];
+        byte[][][] insertions = new byte[nSeqs][][];
+        int[] maxInsertion = new int[maxLength + 1];
+        for (int s = 0; s < nSeqs; s++) {
+            alignedToCenter[s] = new byte[maxLength];
+            Arrays.fill(alignedToCenter[s], NO_BASE);
+            byte[] seq = seqs[s];
+            boolean closeToCenter = false;
+            if ((s == center) || (seq.length <= seqs[center].length)) {
+                if ((tags != null) && (tags[s] != null) && (tags[center] != null)) {
+                    closeToCenter = (s == center) || (countMismatches(tags[s], tags[center], seq.length) <= 1);
+                } else {
+                    closeToCenter = (s == center) || (countMismatches(seq, centerSeq) <= 1);
+                }
+            }
+            if (closeToCenter) {
+                System.arraycopy(seq, 0, alignedToCenter[s], 0, seq.length);
+                continue;
+            }
+            insertions[s] = new byte[maxLength + 1][];
+            alignPair(seq, centerSeq, alignedToCenter[s], insertions[s]);
+            for (int j = 0; j <= maxLength; j++) {
+                if (insertions[s][j] != null) {
+                    maxInsertion[j] = Math.max(maxInsertion[j], insertions[s][j].length);
+                }
+            }
+        }
+        int nColumns = maxLength;
+        for (int j = 0; j <= maxLength; j++) {
+            nColumns += maxInsertion[j];
+        }
+        String[] result = new String[nSeqs];
+        char[] row = new char[nColumns];
+        for (int s = 0; s < nSeqs; s++) {
+            int lastAligned = -1;  // last center position covered by the tag
+            for (int j = maxLength - 1; j >= 0; j--) {
+                if (alignedToCenter[s][j] != NO_BASE) {
+                    lastAligned = j;
+                    break;
+                }
+            }
+            int col = 0;
+            for (int j = 0; j <= maxLength; j++) {
+                byte[] ins = (insertions[s] == null) ? null : insertions[s][j];
+                boolean withinTag = (j <= lastAligned) || (ins != null);
+                for (int k = 0; k < maxInsertion[j]; k++) {
+                    if ((ins != null) && (k < ins.length)) {
+                        row[col++] = CODE_CHARS[ins[k]];
+                    } else {
+                        row[col++] = withinTag ? '-' : 'N';
+                    }
+                }
+                if (j < maxLength) {
+                    byte code = alignedToCenter[s][j];
+                    row[col++] = (code == GAP) ? '-' : ((code == NO_BASE) ? 'N' : CODE_CHARS[code]);
+                }
+            }
+            result[s] = new String(row);
+        }
+        return result;
+    }
+
+    private static int countMismatches(byte[] seq, byte[] centerSeq) {
+        int mismatches = 0;
+        for (int i = 0; i < seq.length; i++) {
+            if (seq[i] != centerSeq[i]) {
+                mismatches++;
+            }
+        }
+        return mismatches;
+    }
+
+    private static int score(byte a, byte b) {
+        if ((a == N) || (b == N)) {
+            return ((a == N) && (b == N)) ? N_N_SCORE : N_SCORE;
+        }
+        return (a == b) ? MATCH : MISMATCH;
+    }
+
+    private void ensureCapacity(int rows) {
+        if (rows > myRowCapacity) {
+            myRowCapacity = rows;
+            int cells = rows * (2 * myBand + 1);
+            myH = new int[cells];
+            myE = new int[cells];
+            myF = new int[cells];
+            myTrace = new byte[cells];
+        }
+    }
+
+    /**
+     * Banded alignment of seq (rows, i) against center (columns, j), stored with the diagonal offset k = j - i + band.
+     * Fills alignedToCenter[j] with the base of seq at center position j (GAP for a deletion, NO_BASE past the end of
+     * seq) and insertions[j] with the bases of seq inserted before center position j.
+     */
+    private void alignPair(byte[] seq, byte[] center, byte[] alignedToCenter, byte[][] insertions) {
+        int rows = seq.length + 1;
+        int width = 2 * myBand + 1;
+        ensureCapacity(rows);
+        int cols = center.length;
+        int[] h = myH, e = myE, f = myF;
+        byte[] trace = myTrace;
+        Arrays.fill(h, 0, rows * width, NEG_INF);
+        Arrays.fill(e, 0, rows * width, NEG_INF);
+        Arrays.fill(f, 0, rows * width, NEG_INF);
+        int openExtend = myGapOpen + myGapExtend;
+        for (int i = 0; i < rows; i++) {
+            int jMin = Math.max(0, i - myBand);
+            int jMax = Math.min(cols, i + myBand);
+            for (int j = jMin; j <= jMax; j++) {
+                int cell = i * width + (j - i + myBand);
+                if ((i == 0) && (j == 0)) {
+                    h[cell] = 0;
+                    trace[cell] = FROM_DIAG;
+                    continue;
+                }
+                byte tr = 0;
+                // E: seq base i-1 against a gap in the center (insertion); previous cell (i-1, j) is at k + 1
+                int eValue = NEG_INF;
+                if ((i > 0) && (j - i + 1 <= myBand)) {
+                    int up = (i - 1) * width + (j - i + 1 + myBand);
+                    int fromH = h[up] - openExtend;
+                    int fromE = e[up] - myGapExtend;
+                    if (fromE > fromH) {
+                        eValue = fromE;
+                        tr |= E_EXTENDED;
+                    } else {
+                        eValue = fromH;
+                    }
+                }
+                // F: center base j-1 against a gap in seq (deletion); previous cell (i, j-1) is at k - 1
+                int fValue = NEG_INF;
+                if ((j > 0) && (j - 1 - i >= -myBand)) {
+                    int left = cell - 1;
+                    int fromH = h[left] - openExtend;
+                    int fromF = f[left] - myGapExtend;
+                    if (fromF > fromH) {
+                        fValue = fromF;
+                        tr |= F_EXTENDED;
+                    } else {
+                        fValue = fromH;
+                    }
+                }
+                int hValue = NEG_INF;
+                byte from = FROM_DIAG;
+                if ((i > 0) && (j > 0)) {
+                    int diag = (i - 1) * width + (j - i + myBand);
+                    if (h[diag] > NEG_INF) {
+                        hValue = h[diag] + score(seq[i - 1], center[j - 1]);
+                    }
+                }
+                if (eValue > hValue) {
+                    hValue = eValue;
+                    from = FROM_E;
+                }
+                if (fValue > hValue) {
+                    hValue = fValue;
+                    from = FROM_F;
+                }
+                h[cell] = hValue;
+                e[cell] = eValue;
+                f[cell] = fValue;
+                trace[cell] = (byte) (tr | from);
+            }
+        }
+        // free end gaps for seq: the alignment may stop at any center position within the band of the last row
+        int i = seq.length;
+        int bestJ = -1;
+        int best = NEG_INF;
+        for (int j = Math.max(0, i - myBand); j <= Math.min(cols, i + myBand); j++) {
+            int value = h[i * width + (j - i + myBand)];
+            if (value > best) {
+                best = value;
+                bestJ = j;
+            }
+        }
+        int j = bestJ;
+        int state = -1;  // -1 = H, FROM_E, FROM_F
+        byte[] insertBuffer = new byte[seq.length];
+        int nInsert = 0;
+        while ((i > 0) || (j > 0)) {
+            int cell = i * width + (j - i + myBand);
+            byte tr = trace[cell];
+            int current = (state == -1) ? (tr & 3) : state;
+            if (current == FROM_DIAG) {
+                flushInsertions(insertions, j, insertBuffer, nInsert);
+                nInsert = 0;
+                alignedToCenter[j - 1] = seq[i - 1];
+                i--;
+                j--;
+                state = -1;
+            } else if (current == FROM_E) {
+                insertBuffer[nInsert++] = seq[i - 1];
+                state = ((tr & E_EXTENDED) != 0) ? FROM_E : -1;
+                i--;
+            } else {
+                flushInsertions(insertions, j, insertBuffer, nInsert);
+                nInsert = 0;
+                alignedToCenter[j - 1] = GAP;
+                state = ((tr & F_EXTENDED) != 0) ? FROM_F : -1;
+                j--;
+            }
+        }
+        flushInsertions(insertions, 0, insertBuffer, nInsert);
+    }
+
+    /**
+     * Stores the bases collected (backwards) during the traceback as the insertion before center position j.
+     */
+    private static void flushInsertions(byte[][] insertions, int j, byte[] insertBuffer, int nInsert) {
+        if (nInsert == 0) {
+            return;
+        }
+        byte[] ins = new byte[nInsert];
+        for (int k = 0; k < nInsert; k++) {
+            ins[k] = insertBuffer[nInsert - 1 - k];
+        }
+        insertions[j] = ins;
+    }
+}
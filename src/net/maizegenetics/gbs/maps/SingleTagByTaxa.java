@@ -0,0 +1,93 @@
+/*
+ * SingleTagByTaxa
+ */
+package net.maizegenetics.gbs.maps;
+
+import net.maizegenetics.gbs.tagdist.TagsByTaxa;
+import net.maizegenetics.gbs.util.BaseEncoder;
+
+/**
+ * A tag of a TagsAtLocus, with its position and strand in the TOPM and its counts in each taxon.
+ */
+class SingleTagByTaxa {
+
+    int tagTOPMIndex;
+    int tagLength;
+    int startPosition;
+    byte tagStrand;
+    int divergence;
+    String tagTrimmed;
+    long[] tag;  // 2-bit encoding of tagTrimmed (null if tagTrimmed is not the TOPM tag, e.g., reverse complemented or from the reference)
+    int tagTBTIndex; //index in the TBT
+    int taxaWithTag;
+    short[] tagDist;  // observed count of the tag for each taxon
+
+    SingleTagByTaxa(int tagTOPMIndex, TagsOnPhysicalMapV3 theTOPM, TagsByTaxa theTBT, boolean includeRefGenome, boolean fuzzyStartPositions) {
+        tagStrand = Byte.MIN_VALUE;
+        this.tagTOPMIndex = tagTOPMIndex;
+        long[] tag = theTOPM.getTag(tagTOPMIndex);
+        tagTBTIndex = theTBT.getTagIndex(tag);
+        taxaWithTag = (tagTBTIndex > -1) ? theTBT.getNumberOfTaxaWithTag(tagTBTIndex) : 0;
+        if (taxaWithTag > 0) {  // tags with 0 taxaWithTag will not be added to TagsAtLocus
+            startPosition = theTOPM.getStartPosition(tagTOPMIndex);
+            tagLength = theTOPM.getTagLength(tagTOPMIndex);
+            divergence = theTOPM.getDivergence(tagTOPMIndex);
+            tagTrimmed = BaseEncoder.getSequenceFromLong(tag).substring(0, tagLength);
+            tagStrand = theTOPM.getStrand(tagTOPMIndex);
+            this.tag = tag;
+            if (includeRefGenome && fuzzyStartPositions) {
+                if (tagStrand == -1) {
+                    tagTrimmed = BaseEncoder.getReverseComplement(tagTrimmed);
+                    this.tag = null;
+                }
+            } else if (tagLength < theTOPM.getTagSizeInLong() * BaseEncoder.chunkSize) {
+                tagTrimmed = tagTrimmed
+                        + theTOPM.getNullTag().substring(0, theTOPM.getTagSizeInLong() * BaseEncoder.chunkSize - tagLength).replace("A", "N");
+            }
+            tagDist = theTBT.getTaxaReadCountsForTag(tagTBTIndex);
+        }
+    }
+    
+    SingleTagByTaxa(int tagTOPMIndex, TagsOnPhysicalMap theTOPM, TagsByTaxa theTBT, boolean includeRefGenome, boolean fuzzyStartPositions) {
+        tagStrand = Byte.MIN_VALUE;
+        this.tagTOPMIndex = tagTOPMIndex;
+        long[] tag = theTOPM.getTag(tagTOPMIndex);
+        tagTBTIndex = theTBT.getTagIndex(tag);
+        taxaWithTag = (tagTBTIndex > -1) ? theTBT.getNumberOfTaxaWithTag(tagTBTIndex) : 0;
+        if (taxaWithTag > 0) {  // tags with 0 taxaWithTag will not be added to TagsAtLocus
+            startPosition = theTOPM.getStartPosition(tagTOPMIndex);
+            tagLength = theTOPM.getTagLength(tagTOPMIndex);
+            divergence = theTOPM.getDivergence(tagTOPMIndex);
+            tagTrimmed = BaseEncoder.getSequenceFromLong(tag).substring(0, tagLength);
+            tagStrand = theTOPM.getStrand(tagTOPMIndex);
+            this.tag = tag;
+            if (includeRefGenome && fuzzyStartPositions) {
+                if (tagStrand == -1) {
+                    tagTrimmed = BaseEncoder.getReverseComplement(tagTrimmed);
+                    this.tag = null;
+                }
+            } else if (tagLength < theTOPM.getTagSizeInLong() * BaseEncoder.chunkSize) {
+                tagTrimmed = tagTrimmed
+                        + theTOPM.getNullTag().substring(0, theTOPM.getTagSizeInLong() * BaseEncoder.chunkSize - tagLength).replace("A", "N");
+            }
+            tagDist = theTBT.getTaxaReadCountsForTag(tagTBTIndex);
+        }
+    }
+    
+    // this constructor can be used to add a refTag directly from the refererence genome
+    SingleTagByTaxa(int startPosition, byte strand, String refTag, int nLongsPerTag, String nullTag) {
+        tagTOPMIndex = Integer.MIN_VALUE;
+        tagLength = (byte) refTag.length();
+        this.startPosition = startPosition;
+        tagStrand = strand;
+        divergence = 0;
+        tagTrimmed = refTag;
+        if (tagLength < nLongsPerTag*BaseEncoder.chunkSize) {
+            tagTrimmed = tagTrimmed + 
+                    nullTag.substring(0,nLongsPerTag*BaseEncoder.chunkSize-tagLength).replace("A","N");
+        }
+        tagTBTIndex = Integer.MIN_VALUE;
+        taxaWithTag = 0;
+        tagDist = null;
+    }
+}
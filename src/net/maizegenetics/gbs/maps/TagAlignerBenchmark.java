@@ -0,0 +1,127 @@
+/*
+ * TagAlignerBenchmark
+ */
+package net.maizegenetics.gbs.maps;
+
+import java.util.Random;
+
+import net.maizegenetics.gbs.util.BaseEncoder;
+
+import org.biojava3.core.util.ConcurrencyTools;
+
+/**
+ * Compares the loci per second of the SNP calling in TagsAtLocus with the biojava multiple sequence alignment and
+ * with the banded star alignment (BandedTagAligner), on simulated loci.
+ * <p>
+ * Usage: TagAlignerBenchmark [tagsPerLocus] [numberOfLoci] [numberOfTaxa]
+ * <p>
+ * Each locus has a random 64 bp founder sequence.  Its tags carry 0-3 substitutions and, one in five, an indel of
+ * 1-3 bp, and are trimmed to 40-64 bp, the way tags at a high depth polyploid locus differ from each other.
+ * The variable sites found by both methods are counted as a check.  They are not expected to be identical: the
+ * multiple alignment tends to open gaps in the N padded ends of the shorter tags, which adds sites there.
+ */
+public class TagAlignerBenchmark {
+
+    private static final char[] BASES = {'A', 'C', 'G', 'T'};
+    private static final String NULL_TAG = "AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA";
+
+    private TagAlignerBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        int tagsPerLocus = (args.length > 0) ? Integer.parseInt(args[0]) : 50;
+        int numLoci = (args.length > 1) ? Integer.parseInt(args[1]) : 50;
+        int numTaxa = (args.length > 2) ? Integer.parseInt(args[2]) : 96;
+        Random random = new Random(11);
+        TagsAtLocus[] biojavaLoci = new TagsAtLocus[numLoci];
+        TagsAtLocus[] bandedLoci = new TagsAtLocus[numLoci];
+        for (int l = 0; l < numLoci; l++) {
+            long seed = random.nextLong();
+            biojavaLoci[l] = simulateLocus(new Random(seed), 1001 + 1000 * l, tagsPerLocus, numTaxa);
+            bandedLoci[l] = simulateLocus(new Random(seed), 1001 + 1000 * l, tagsPerLocus, numTaxa);
+        }
+        System.out.println("Loci: " + numLoci + "  Tags per locus: " + tagsPerLocus + "  Taxa: " + numTaxa);
+
+        TagsAtLocus.setUseBandedAligner(false);
+        byte[][][] biojavaCalls = new byte[numLoci][][];
+        long time = System.nanoTime();
+        for (int l = 0; l < numLoci; l++) {
+            biojavaCalls[l] = biojavaLoci[l].getSNPCallsQuant(false, false);
+        }
+        double biojavaSeconds = (System.nanoTime() - time) / 1e9;
+
+        TagsAtLocus.setUseBandedAligner(true);
+        byte[][][] bandedCalls = new byte[numLoci][][];
+        time = System.nanoTime();
+        for (int l = 0; l < numLoci; l++) {
+            bandedCalls[l] = bandedLoci[l].getSNPCallsQuant(false, false);
+        }
+        double bandedSeconds = (System.nanoTime() - time) / 1e9;
+        TagsAtLocus.setUseBandedAligner(false);
+
+        int biojavaSites = 0, bandedSites = 0, sharedSites = 0;
+        for (int l = 0; l < numLoci; l++) {
+            int[] biojavaPositions = (biojavaCalls[l] == null) ? new int[0] : biojavaLoci[l].getPositionsOfVariableSites();
+            int[] bandedPositions = (bandedCalls[l] == null) ? new int[0] : bandedLoci[l].getPositionsOfVariableSites();
+            biojavaSites += biojavaPositions.length;
+            bandedSites += bandedPositions.length;
+            for (int position : bandedPositions) {
+                for (int other : biojavaPositions) {
+                    if (position == other) {
+                        sharedSites++;
+                        break;
+                    }
+                }
+            }
+        }
+        System.out.printf("biojava MSA:   %.2f loci/s (%.2f s)%n", numLoci / biojavaSeconds, biojavaSeconds);
+        System.out.printf("banded star:   %.2f loci/s (%.2f s)  speedup %.1fx%n", numLoci / bandedSeconds, bandedSeconds, biojavaSeconds / bandedSeconds);
+        System.out.println("Variable sites: biojava " + biojavaSites + "  banded " + bandedSites + "  at the same position in both " + sharedSites);
+        ConcurrencyTools.shutdown();  // lets the JVM exit after the biojava alignments
+    }
+
+    private static TagsAtLocus simulateLocus(Random random, int startPosition, int nTags, int nTaxa) {
+        TagsAtLocus locus = new TagsAtLocus(1, (byte) 1, startPosition, 64, false, false, 0.01);
+        char[] founder = new char[64 + 8];
+        for (int i = 0; i < founder.length; i++) {
+            founder[i] = BASES[random.nextInt(4)];
+        }
+        for (int t = 0; t < nTags; t++) {
+            StringBuilder sb = new StringBuilder(new String(founder));
+            if (t > 0) {
+                int nSubstitutions = random.nextInt(4);
+                for (int m = 0; m < nSubstitutions; m++) {
+                    sb.setCharAt(5 + random.nextInt(55), BASES[random.nextInt(4)]);
+                }
+                if (random.nextInt(5) == 0) {
+                    int position = 10 + random.nextInt(40);
+                    int length = 1 + random.nextInt(3);
+                    if (random.nextBoolean()) {
+                        sb.delete(position, position + length);
+                    } else {
+                        for (int k = 0; k < length; k++) {
+                            sb.insert(position, BASES[random.nextInt(4)]);
+                        }
+                    }
+                }
+            }
+            int tagLength = (t == 0) ? 64 : 40 + random.nextInt(25);
+            String seq = sb.substring(0, tagLength);
+            SingleTagByTaxa sTBT = new SingleTagByTaxa(startPosition, (byte) 1, seq, 2, NULL_TAG);
+            sTBT.tagTOPMIndex = t;
+            sTBT.tagTBTIndex = t;
+            sTBT.divergence = (t == 0) ? 0 : 1;
+            sTBT.tag = BaseEncoder.getLongArrayFromSeq(seq, 64);
+            sTBT.tagDist = new short[nTaxa];
+            int maxCount = (t == 0) ? 20 : 1 + random.nextInt(5);  // the founder is the most common tag
+            for (int tx = 0; tx < nTaxa; tx++) {
+                if (random.nextInt(3) == 0) {
+                    sTBT.tagDist[tx] = (short) random.nextInt(maxCount + 1);
+                    sTBT.taxaWithTag += (sTBT.tagDist[tx] > 0) ? 1 : 0;
+                }
+            }
+            locus.theTags.add(sTBT);
+        }
+        return locus;
+    }
+}
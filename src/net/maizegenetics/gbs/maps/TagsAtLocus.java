@@ -62,6 +62,7 @@ public class TagsAtLocus {
     private final static int maxNumAlleles = 3;
     private SubstitutionMatrix<NucleotideCompound> subMatrix = SubstitutionMatrixHelper.getNuc4_4();
     private SimpleGapPenalty gapPen = new SimpleGapPenalty((short) 5, (short) 2);
+    private static boolean useBandedAligner = false;  // false = biojava multiple sequence alignment in getVariableSites()
     private static int[] likelihoodRatioThreshAlleleCnt = null;  // index = sample size; value = min count of less tagged allele for likelihood ratio > 1
     // if less tagged allele has counts < likelihoodRatioThreshAlleleCnt[totalCount], call it a homozygote
     // where likelihood ratio = (binomial likelihood het) / (binomial likelihood all less tagged alleles are errors)
@@ -93,6 +94,18 @@ public class TagsAtLocus {
         System.out.println("\n");
     }
 
+    /**
+     * Chooses how the tags at a locus are aligned: a banded star alignment against the tag with the most reads
+     * (see BandedTagAligner), or the biojava multiple sequence alignment (default).
+     */
+    public static void setUseBandedAligner(boolean useBanded) {
+        useBandedAligner = useBanded;
+    }
+
+    public static boolean isUseBandedAligner() {
+        return useBandedAligner;
+    }
+
     public TagsAtLocus(int chromosome, byte strand, int startPosition, int tagLength, 
             boolean includeRefGenome, boolean fuzzyStartPositions, double errorRate) {
         this.chromosome = chromosome;
@@ -499,32 +512,14 @@ public class TagsAtLocus {
             return null;
         }
         if (indexOfRef == Integer.MIN_VALUE) this.assignRefTag();
-        boolean checkReplicateProfiles = false;
         boolean printOutAlignments = true;
-        List<DNASequence> lst = new ArrayList<DNASequence>();
-        int tagIndex = 0;
-        for (SingleTagByTaxa sTBT : theTags) {
-            DNASequence ds = new DNASequence(sTBT.tagTrimmed);
-            String refMark = (tagIndex == indexOfRef) ? "refTag" : "no";
-            ds.setOriginalHeader(tagIndex + "_" + refMark);    // OriginalHeader set to indexInTheTags_'refTag'|'no'
-            ds.setCompoundSet(AmbiguityDNACompoundSet.getDNACompoundSet());
-            lst.add(ds);
-            ++tagIndex;
-        }
-        Profile<DNASequence, NucleotideCompound> profile = Alignments.getMultipleSequenceAlignment(lst);
-        if (checkReplicateProfiles) {
-            System.out.printf("Clustal1:%d%n%s%n", minStartPosition, profile);
-            Profile<DNASequence, NucleotideCompound> profile2 = Alignments.getMultipleSequenceAlignment(lst);
-            System.out.printf("Clustal2:%d%n%s%n", minStartPosition, profile2);
-        }
-        String[] aseqs = new String[theTags.size()];
+        String[] aseqs = useBandedAligner ? getBandedAlignment() : getBiojavaAlignment();
         String[] names = new String[theTags.size()];
         boolean refTagWithGaps = false;
         int[] positions = null;
         for (int i = 0; i < aseqs.length; i++) {
-            aseqs[i] = profile.getAlignedSequence(i + 1).getSequenceAsString();
-            names[i] = profile.getAlignedSequence(i + 1).getOriginalSequence().getOriginalHeader();
-            if (names[i].split("_")[1].equals("refTag")) {  // names were set to indexInTheTags_"refTag"|"no"
+            names[i] = i + "_" + ((i == indexOfRef) ? "refTag" : "no");  // names are set to indexInTheTags_"refTag"|"no"
+            if (i == indexOfRef) {
                 if (aseqs[i].contains("-")) {
                     refTagWithGaps = true;
                     positions = new int[aseqs[i].length()];
@@ -535,7 +530,6 @@ public class TagsAtLocus {
                 }
             }
         }
-        profile = null;
         Alignment aa = null;
         if (refTagWithGaps) {
             aa = BitAlignment.getNucleotideInstance(new SimpleIdGroup(names), aseqs, null, null, positions, 5, new Locus[]{Locus.UNKNOWN}, new int[]{0}, null, false, true);
@@ -576,6 +570,70 @@ public class TagsAtLocus {
         return faa;
     }
 
+    /**
+     * Aligns the tags with the biojava multiple sequence alignment.
+     *
+     * @return aligned tags, in the order of theTags
+     */
+    private String[] getBiojavaAlignment() {
+        boolean checkReplicateProfiles = false;
+        List<DNASequence> lst = new ArrayList<DNASequence>();
+        int tagIndex = 0;
+        for (SingleTagByTaxa sTBT : theTags) {
+            DNASequence ds = new DNASequence(sTBT.tagTrimmed);
+            String refMark = (tagIndex == indexOfRef) ? "refTag" : "no";
+            ds.setOriginalHeader(tagIndex + "_" + refMark);    // OriginalHeader set to indexInTheTags_'refTag'|'no'
+            ds.setCompoundSet(AmbiguityDNACompoundSet.getDNACompoundSet());
+            lst.add(ds);
+            ++tagIndex;
+        }
+        Profile<DNASequence, NucleotideCompound> profile = Alignments.getMultipleSequenceAlignment(lst);
+        if (checkReplicateProfiles) {
+            System.out.printf("Clustal1:%d%n%s%n", minStartPosition, profile);
+            Profile<DNASequence, NucleotideCompound> profile2 = Alignments.getMultipleSequenceAlignment(lst);
+            System.out.printf("Clustal2:%d%n%s%n", minStartPosition, profile2);
+        }
+        String[] aseqs = new String[theTags.size()];
+        for (int i = 0; i < aseqs.length; i++) {
+            int indexInTheTags = Integer.parseInt(profile.getAlignedSequence(i + 1).getOriginalSequence().getOriginalHeader().split("_")[0]);
+            aseqs[indexInTheTags] = profile.getAlignedSequence(i + 1).getSequenceAsString();
+        }
+        return aseqs;
+    }
+
+    /**
+     * Aligns the tags to the tag with the most reads with BandedTagAligner, using their 2-bit encoding when available.
+     *
+     * @return aligned tags, in the order of theTags
+     */
+    private String[] getBandedAlignment() {
+        int nTags = theTags.size();
+        byte[][] seqs = new byte[nTags][];
+        long[][] tags = new long[nTags][];
+        int center = 0;
+        long maxReads = -1;
+        for (int tg = 0; tg < nTags; tg++) {
+            SingleTagByTaxa sTBT = theTags.get(tg);
+            if (sTBT.tag != null) {
+                tags[tg] = sTBT.tag;
+                seqs[tg] = BandedTagAligner.decode(sTBT.tag, sTBT.tagLength);
+            } else {
+                seqs[tg] = BandedTagAligner.decode(sTBT.tagTrimmed, sTBT.tagLength);
+            }
+            if (sTBT.tagDist != null) {
+                long reads = 0;
+                for (short count : sTBT.tagDist) {
+                    reads += count;
+                }
+                if (reads > maxReads) {
+                    maxReads = reads;
+                    center = tg;
+                }
+            }
+        }
+        return new BandedTagAligner().align(seqs, tags, center);
+    }
+
     private Alignment getVariableSites(String refSeq) {
         if (theTags.size() < 2) {
             return null;
@@ -864,81 +922,3 @@ public class TagsAtLocus {
         return sb.toString();
     }
 }
-
-class SingleTagByTaxa {
-
-    int tagTOPMIndex;
-    int tagLength;
-    int startPosition;
-    byte tagStrand;
-    int divergence;
-    String tagTrimmed;
-    int tagTBTIndex; //index in the TBT
-    int taxaWithTag;
-    short[] tagDist;  // observed count of the tag for each taxon
-
-    SingleTagByTaxa(int tagTOPMIndex, TagsOnPhysicalMapV3 theTOPM, TagsByTaxa theTBT, boolean includeRefGenome, boolean fuzzyStartPositions) {
-        tagStrand = Byte.MIN_VALUE;
-        this.tagTOPMIndex = tagTOPMIndex;
-        long[] tag = theTOPM.getTag(tagTOPMIndex);
-        tagTBTIndex = theTBT.getTagIndex(tag);
-        taxaWithTag = (tagTBTIndex > -1) ? theTBT.getNumberOfTaxaWithTag(tagTBTIndex) : 0;
-        if (taxaWithTag > 0) {  // tags with 0 taxaWithTag will not be added to TagsAtLocus
-            startPosition = theTOPM.getStartPosition(tagTOPMIndex);
-            tagLength = theTOPM.getTagLength(tagTOPMIndex);
-            divergence = theTOPM.getDivergence(tagTOPMIndex);
-            tagTrimmed = BaseEncoder.getSequenceFromLong(tag).substring(0, tagLength);
-            tagStrand = theTOPM.getStrand(tagTOPMIndex);
-            if (includeRefGenome && fuzzyStartPositions) {
-                if (tagStrand == -1) {
-                    tagTrimmed = BaseEncoder.getReverseComplement(tagTrimmed);
-                }
-            } else if (tagLength < theTOPM.getTagSizeInLong() * BaseEncoder.chunkSize) {
-                tagTrimmed = tagTrimmed
-                        + theTOPM.getNullTag().substring(0, theTOPM.getTagSizeInLong() * BaseEncoder.chunkSize - tagLength).replace("A", "N");
-            }
-            tagDist = theTBT.getTaxaReadCountsForTag(tagTBTIndex);
-        }
-    }
-    
-    SingleTagByTaxa(int tagTOPMIndex, TagsOnPhysicalMap theTOPM, TagsByTaxa theTBT, boolean includeRefGenome, boolean fuzzyStartPositions) {
-        tagStrand = Byte.MIN_VALUE;
-        this.tagTOPMIndex = tagTOPMIndex;
-        long[] tag = theTOPM.getTag(tagTOPMIndex);
-        tagTBTIndex = theTBT.getTagIndex(tag);
-        taxaWithTag = (tagTBTIndex > -1) ? theTBT.getNumberOfTaxaWithTag(tagTBTIndex) : 0;
-        if (taxaWithTag > 0) {  // tags with 0 taxaWithTag will not be added to TagsAtLocus
-            startPosition = theTOPM.getStartPosition(tagTOPMIndex);
-            tagLength = theTOPM.getTagLength(tagTOPMIndex);
-            divergence = theTOPM.getDivergence(tagTOPMIndex);
-            tagTrimmed = BaseEncoder.getSequenceFromLong(tag).substring(0, tagLength);
-            tagStrand = theTOPM.getStrand(tagTOPMIndex);
-            if (includeRefGenome && fuzzyStartPositions) {
-                if (tagStrand == -1) {
-                    tagTrimmed = BaseEncoder.getReverseComplement(tagTrimmed);
-                }
-            } else if (tagLength < theTOPM.getTagSizeInLong() * BaseEncoder.chunkSize) {
-                tagTrimmed = tagTrimmed
-                        + theTOPM.getNullTag().substring(0, theTOPM.getTagSizeInLong() * BaseEncoder.chunkSize - tagLength).replace("A", "N");
-            }
-            tagDist = theTBT.getTaxaReadCountsForTag(tagTBTIndex);
-        }
-    }
-    
-    // this constructor can be used to add a refTag directly from the refererence genome
-    SingleTagByTaxa(int startPosition, byte strand, String refTag, int nLongsPerTag, String nullTag) {
-        tagTOPMIndex = Integer.MIN_VALUE;
-        tagLength = (byte) refTag.length();
-        this.startPosition = startPosition;
-        tagStrand = strand;
-        divergence = 0;
-        tagTrimmed = refTag;
-        if (tagLength < nLongsPerTag*BaseEncoder.chunkSize) {
-            tagTrimmed = tagTrimmed + 
-                    nullTag.substring(0,nLongsPerTag*BaseEncoder.chunkSize-tagLength).replace("A","N");
-        }
-        tagTBTIndex = Integer.MIN_VALUE;
-        taxaWithTag = 0;
-        tagDist = null;
-    }
-}
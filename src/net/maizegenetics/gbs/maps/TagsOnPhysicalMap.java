@@ -222,6 +222,7 @@ public class TagsOnPhysicalMap extends AbstractTagsOnPhysicalMap {
             return -1;
         }
         long time = System.currentTimeMillis();
+        clearTagIndex();
         GenericSorting.quickSort(0, tags[0].length, this, this);
         long totalTime = System.currentTimeMillis() - time;
         System.out.println("Done in " + totalTime + "ms");
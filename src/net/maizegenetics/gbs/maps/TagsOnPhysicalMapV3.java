@@ -1049,6 +1049,7 @@ public class TagsOnPhysicalMapV3 extends AbstractTagsOnPhysicalMap implements TO
             return -1;
         }
         long time = System.currentTimeMillis();
+        clearTagIndex();
         GenericSorting.quickSort(0, tags[0].length, this, this);
         long totalTime = System.currentTimeMillis() - time;
         System.out.println("Done in " + totalTime + "ms");
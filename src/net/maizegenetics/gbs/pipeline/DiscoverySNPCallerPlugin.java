@@ -14,19 +14,28 @@ import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import javax.swing.ImageIcon;
 import net.maizegenetics.gbs.maps.TOPMInterface;
 import net.maizegenetics.gbs.maps.TagsAtLocus;
 import net.maizegenetics.gbs.maps.TagsOnPhysicalMap;
 import net.maizegenetics.gbs.tagdist.TagsByTaxa;
+import net.maizegenetics.gbs.tagdist.TagsByTaxa.FilePacking;
 import net.maizegenetics.gbs.tagdist.TagsByTaxaBitFileMap;
 import net.maizegenetics.gbs.tagdist.TagsByTaxaByteFileMap;
 import net.maizegenetics.gbs.tagdist.TagsByTaxaShortFileMap;
+import net.maizegenetics.gbs.tagdist.TagsByTaxaShortSparse;
+import net.maizegenetics.gbs.tagdist.TagsByTaxaMappedFile;
 import net.maizegenetics.gbs.tagdist.TagsByTaxaByteHDF5TagGroups;
 import net.maizegenetics.util.ArgsEngine;
 import net.maizegenetics.gbs.util.BaseEncoder;
+import net.maizegenetics.gbs.util.ReferenceGenome;
 import net.maizegenetics.pal.alignment.Alignment;
 import net.maizegenetics.pal.alignment.AlignmentUtils;
 import net.maizegenetics.pal.alignment.ExportUtils;
@@ -83,13 +92,14 @@ public class DiscoverySNPCallerPlugin extends AbstractPlugin {
     private double errorRate = 0.01;
     private boolean includeReference = false;
     private String refGenomeFileStr = null;
-    private long[] refGenomeChr = null;
+    private ReferenceGenome theReference = null;
     private boolean fuzzyStartPositions = false;
     int locusBorder = 0;
     final static int CHR = 0, STRAND = 1, START_POS = 2;  // indices of these position attributes in array returned by theTOPM.getPositionArray(a)
     private boolean customSNPLogging = true;  // a custom SNP log that collects useful info for filtering SNPs through machine learning criteria
-    private CustomSNPLog myCustomSNPLog = null;
     private boolean customFiltering = false;
+    private int numThreads = 1;
+    private boolean lockTBT = false;  // true if theTBT can't be read by several threads at once
     
 
 
@@ -109,20 +119,12 @@ public class DiscoverySNPCallerPlugin extends AbstractPlugin {
         theTOPM.sortTable(true);
         myLogger.info("\nAs a check, here are the first 5 tags in the TOPM (sorted by position):");
         theTOPM.printRows(5, true, true);
-        for (int chr = startChr; chr <= endChr; chr++) {
-            myLogger.info("\n\nProcessing chromosome " + chr + "...");
-            String out = suppliedOutputFileName.replace("+", "" + chr);
-            if (customSNPLogging) myCustomSNPLog = new CustomSNPLog(out, false);
-            myLogger.info("Creating Mutable Alignment to hold genotypes for chr" + chr + " (maximum number of sites = " + maxSize + ")");
-            MutableNucleotideAlignment theMSA = vcf ? createMutableVCFAlignment(theTBT, maxSize + 100, includeReference)
-                    : createMutableAlignment(theTBT, maxSize + 100, includeReference);
-            if (includeReference) {
-                refGenomeChr = readReferenceGenomeChr(refGenomeFileStr, chr);
-                if (refGenomeChr == null) continue;
+        if ((numThreads > 1) && (endChr > startChr)) {
+            processChromosomesConcurrently();
+        } else {
+            for (int chr = startChr; chr <= endChr; chr++) {
+                processChromosome(new ChromosomeRun(chr, false));
             }
-            runTagsToSNPByAlignment(theMSA, out, chr, false);
-            if (customSNPLogging) myCustomSNPLog.close();
-            myLogger.info("Finished processing chromosome " + chr + "\n\n");
         }
         if (this.isUpdateTOPM) {
             if (outTOPMFile.endsWith(".txt")) {
@@ -135,12 +137,118 @@ public class DiscoverySNPCallerPlugin extends AbstractPlugin {
         return null;
     }
 
+    private void processChromosome(ChromosomeRun run) {
+        int chr = run.chr;
+        myLogger.info("\n\nProcessing chromosome " + chr + "...");
+        String out = suppliedOutputFileName.replace("+", "" + chr);
+        myLogger.info("Creating Mutable Alignment to hold genotypes for chr" + chr + " (maximum number of sites = " + maxSize + ")");
+        MutableNucleotideAlignment theMSA = vcf ? createMutableVCFAlignment(theTBT, maxSize + 100, includeReference)
+                : createMutableAlignment(theTBT, maxSize + 100, includeReference);
+        runTagsToSNPByAlignment(theMSA, out, false, run);
+        myLogger.info("Finished processing chromosome " + chr + "\n\n");
+    }
+
+    /**
+     * Calls the chromosomes in a pool of numThreads workers that share the (read-only) TBT and TOPM.  Each chromosome
+     * has its own alignment, locus log and SNP log, so the output files are the same as when they are processed one
+     * after the other.  The TOPM variants are collected by each worker and added at the end in chromosome order.
+     */
+    private void processChromosomesConcurrently() {
+        // sets up the likelihood ratio cutoffs shared by all TagsAtLocus before the workers start
+        new TagsAtLocus(Integer.MIN_VALUE, Byte.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE, includeReference, fuzzyStartPositions, errorRate);
+        int nChr = endChr - startChr + 1;
+        int nWorkers = Math.min(numThreads, nChr);
+        myLogger.info("Processing chromosomes " + startChr + " to " + endChr + " with " + nWorkers + " threads");
+        ChromosomeRun[] runs = new ChromosomeRun[nChr];
+        ExecutorService pool = Executors.newFixedThreadPool(nWorkers);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int c = 0; c < nChr; c++) {
+            final ChromosomeRun run = new ChromosomeRun(startChr + c, true);
+            runs[c] = run;
+            futures.add(pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    processChromosome(run);
+                }
+            }));
+        }
+        pool.shutdown();
+        boolean[] failed = new boolean[nChr];
+        for (int c = 0; c < nChr; c++) {
+            try {
+                futures.get(c).get();
+            } catch (Exception e) {
+                failed[c] = true;
+                myLogger.error("Error processing chromosome " + runs[c].chr + ": " + e);
+                e.printStackTrace();
+            }
+        }
+        if (isUpdateTOPM) {
+            for (int c = 0; c < nChr; c++) {
+                if (failed[c]) {
+                    myLogger.warn("The TOPM variants of chromosome " + runs[c].chr + " are not added to " + outTOPMFile + " because it failed");
+                } else {
+                    runs[c].addVariantsToTOPM();
+                }
+            }
+        }
+    }
+
+    /**
+     * State of the SNP calling on one chromosome.  When bufferVariants is true the TOPM variants are kept until
+     * addVariantsToTOPM() is called, so that several chromosomes can be called at once without sharing the TOPM.
+     */
+    private class ChromosomeRun {
+
+        final int chr;
+        final boolean bufferVariants;
+        int refChrIndex = -1;  // index of the chromosome in theReference
+        CustomSNPLog snpLog = null;
+        private int nVariants = 0;
+        private int[] variantTags = new int[0];
+        private byte[] variantOffsets = new byte[0];
+        private byte[] variantBases = new byte[0];
+
+        ChromosomeRun(int chr, boolean bufferVariants) {
+            this.chr = chr;
+            this.bufferVariants = bufferVariants;
+        }
+
+        void addVariant(int topmTagIndex, byte offset, byte base) {
+            if (!bufferVariants) {
+                theTOPM.addVariant(topmTagIndex, offset, base);
+                return;
+            }
+            if (nVariants == variantTags.length) {
+                int newSize = Math.max(1024, 2 * nVariants);
+                variantTags = Arrays.copyOf(variantTags, newSize);
+                variantOffsets = Arrays.copyOf(variantOffsets, newSize);
+                variantBases = Arrays.copyOf(variantBases, newSize);
+            }
+            variantTags[nVariants] = topmTagIndex;
+            variantOffsets[nVariants] = offset;
+            variantBases[nVariants] = base;
+            nVariants++;
+        }
+
+        void addVariantsToTOPM() {
+            for (int i = 0; i < nVariants; i++) {
+                theTOPM.addVariant(variantTags[i], variantOffsets[i], variantBases[i]);
+            }
+            nVariants = 0;
+        }
+    }
+
     private void printUsage() {
         myLogger.info(
                 "\n\n\nThe available options for the DiscoverySNPCallerPlugin are as follows:\n"
                 + "-i       Input .tbt file\n"
                 + "-y       Use byte-formatted TBT file (*.tbt.byte)\n"
                 + "-sh      Use short-formatted TBT file (*.tbt.shrt)\n"
+                + "-sp      Load the TBT file into memory as a sparse TBT (memory scales with non-zero tag/taxon counts)\n"
+                + "         instead of reading it from disk through a RandomAccessFile\n"
+                + "-mm      Memory map the TBT file (read-only, works with files larger than RAM) instead of reading it\n"
+                + "         through a RandomAccessFile\n"
                 + "-m       TagsOnPhysicalMap file containing genomic positions of tags\n"
                 + "-mUpd    Update TagsOnPhysicalMap file with allele calls for Production Pipeline, save to specified file (default: no updating)\n"
                 + "-o       Output HapMap file. Use a plus sign (+) as a wild card character in place of the chromosome number\n"
@@ -158,6 +266,8 @@ public class DiscoverySNPCallerPlugin extends AbstractPlugin {
                 + "-ref     Path to reference genome in fasta format. Ensures that a tag from the reference genome is always included\n"
                 + "         when the tags at a locus are aligned against each other to call SNPs. The reference allele for each site\n"
                 + "         is then provided in the output HapMap files, under the taxon name \"REFERENCE_GENOME\" (first taxon).\n"
+                + "         The first run writes an index (.fai) and a 2-bit packed copy (.packed) of the fasta file next to it,\n"
+                + "         which later runs reuse.\n"
                 + "         DEFAULT: Don't use reference genome.\n"
 //                + "-LocusBorder  All tags on either strand with start postions that differ by less than the specified\n"
 //                + "              integer (LocusBorder) are aligned to the reference genome to call SNPs at a locus.\n"
@@ -167,8 +277,13 @@ public class DiscoverySNPCallerPlugin extends AbstractPlugin {
                 + "-inclRare  Include the rare alleles at site (3 or 4th states) (default: " + inclRare + ")\n"
                 + "-inclGaps  Include sites where major or minor allele is a GAP (default: " + inclGaps + ")\n"
                 + "-callBiSNPsWGap  Include sites where the third allele is a GAP (default: " + callBiallelicSNPsWithGap + ") (mutually exclusive with inclGaps)\n"
+                + "-bandAln  Align the tags at each locus to the tag with the most reads with a fast banded aligner, instead of\n"
+                + "          the biojava multiple sequence alignment (default: false)\n"
                 + "-sC       Start chromosome\n"
-                + "-eC       End chromosome\n\n\n");
+                + "-eC       End chromosome\n"
+                + "-th       Number of chromosomes to process at the same time (default: 1).  Each thread holds its own\n"
+                + "          alignment of up to -mxSites sites; a file mapped TBT (-y, -sh or bit) is read by one thread at a time,\n"
+                + "          so use -mm or -sp to let the threads read it concurrently\n\n\n");
     }
 
     @Override
@@ -184,6 +299,8 @@ public class DiscoverySNPCallerPlugin extends AbstractPlugin {
             myArgsEngine.add("-i", "--input-file", true);
             myArgsEngine.add("-y", "--useTBTByte", false);
             myArgsEngine.add("-sh", "--useTBTShort", false);
+            myArgsEngine.add("-sp", "--sparseTBTInMemory", false);
+            myArgsEngine.add("-mm", "--memoryMappedTBT", false);
             myArgsEngine.add("-m", "--physical-map", true);
             myArgsEngine.add("-mUpd", "--update-physical-map", true);
             myArgsEngine.add("-o", "--output-directory", true);
@@ -201,8 +318,10 @@ public class DiscoverySNPCallerPlugin extends AbstractPlugin {
             myArgsEngine.add("-inclGaps", "--includeGaps", false);
             myArgsEngine.add("-callBiSNPsWGap", "--callBiSNPsWGap", false);
             myArgsEngine.add("-cF", "--customSNPFiltering", false);
+            myArgsEngine.add("-bandAln", "--bandedTagAligner", false);
             myArgsEngine.add("-sC", "--start-chromosome", true);
             myArgsEngine.add("-eC", "--end-chromosome", true);
+            myArgsEngine.add("-th", "--threads", true);
         }
         myArgsEngine.parse(args);
 
@@ -225,6 +344,13 @@ public class DiscoverySNPCallerPlugin extends AbstractPlugin {
             }
             if (inputFileName.endsWith(".hdf") || inputFileName.endsWith(".h5")) {
                     theTBT = new TagsByTaxaByteHDF5TagGroups(inputFileName);
+            } else if (myArgsEngine.getBoolean("-sp") && myArgsEngine.getBoolean("-mm")) {
+                printUsage();
+                throw new IllegalArgumentException("The -sp option is incompatible with -mm. Please use only one.");
+            } else if (myArgsEngine.getBoolean("-mm")) {
+                theTBT = new TagsByTaxaMappedFile(inputFileName, useTBTByte ? FilePacking.Byte : (useTBTShort ? FilePacking.Short : FilePacking.Bit));
+            } else if (myArgsEngine.getBoolean("-sp")) {
+                theTBT = new TagsByTaxaShortSparse(inputFileName, useTBTByte ? FilePacking.Byte : (useTBTShort ? FilePacking.Short : FilePacking.Bit));
             } else if (useTBTByte) {
                 theTBT = new TagsByTaxaByteFileMap(inputFileName);
             } else if (useTBTShort) {
@@ -360,6 +486,7 @@ public class DiscoverySNPCallerPlugin extends AbstractPlugin {
         if (myArgsEngine.getBoolean("-cF")) {
             customFiltering = true;
         }
+        TagsAtLocus.setUseBandedAligner(myArgsEngine.getBoolean("-bandAln"));
         if (myArgsEngine.getBoolean("-sC")) {
             startChr = Integer.parseInt(myArgsEngine.getString("-sC"));
         } else {
@@ -376,6 +503,14 @@ public class DiscoverySNPCallerPlugin extends AbstractPlugin {
             printUsage();
             throw new IllegalArgumentException("Error: The start chromosome is larger than the end chromosome.");
         }
+        if (myArgsEngine.getBoolean("-th")) {
+            numThreads = Integer.parseInt(myArgsEngine.getString("-th"));
+            if (numThreads < 1) {
+                printUsage();
+                throw new IllegalArgumentException("The number of threads must be at least 1 (-th option: " + numThreads + ").");
+            }
+        }
+        lockTBT = !(theTBT instanceof TagsByTaxaMappedFile) && !(theTBT instanceof TagsByTaxaShortSparse);
         myLogger.info(String.format("minTaxaWithLocus:%d MinF:%g MinMAF:%g MinMAC:%d %n", minTaxaWithLocus, minF, minMAF, minMAC));
         myLogger.info(String.format("includeRare:%s includeGaps:%s %n", inclRare, inclGaps));
     }
@@ -396,6 +531,19 @@ public class DiscoverySNPCallerPlugin extends AbstractPlugin {
     }
 
     public void runTagsToSNPByAlignment(MutableNucleotideAlignment theMSA, String outHapMap, int targetChromo, boolean requireGeneticSupport) {
+        runTagsToSNPByAlignment(theMSA, outHapMap, requireGeneticSupport, new ChromosomeRun(targetChromo, false));
+    }
+
+    private void runTagsToSNPByAlignment(MutableNucleotideAlignment theMSA, String outHapMap, boolean requireGeneticSupport, ChromosomeRun run) {
+        int targetChromo = run.chr;
+        if (includeReference) {
+            run.refChrIndex = getReferenceGenome().getChromosomeIndex(targetChromo);
+            if (run.refChrIndex < 0) {
+                myLogger.warn("Target chromosome (" + targetChromo + ") not found in the reference genome fasta file: " + refGenomeFileStr + "\n   Skipping this chromosome...");
+                return;
+            }
+        }
+        if (customSNPLogging) run.snpLog = new CustomSNPLog(outHapMap, false);
         long time = System.currentTimeMillis();
         DataOutputStream locusLogDOS = openLocusLog(outHapMap);
         TagsAtLocus currTAL = new TagsAtLocus(Integer.MIN_VALUE,Byte.MIN_VALUE,Integer.MIN_VALUE,Integer.MIN_VALUE,includeReference,fuzzyStartPositions,errorRate);
@@ -407,11 +555,11 @@ public class DiscoverySNPCallerPlugin extends AbstractPlugin {
             if (newPos[CHR] != targetChromo) continue;    //Skip tags from other chromosomes
             if (requireGeneticSupport && (theTOPM.getMapP(ri) < 2)) continue; //Skip tags with low mapP scores
             if ((fuzzyStartPositions && nearbyTag(newPos, currPos)) || Arrays.equals(newPos, currPos)) {
-                currTAL.addTag(ri, theTOPM, theTBT, includeReference, fuzzyStartPositions);
+                addTag(currTAL, ri);
             } else {
                 int nTaxaCovered = currTAL.getNumberTaxaCovered();
                 if (currTAL.getSize()>1 && nTaxaCovered >= minTaxaWithLocus) {  // finish the current TAL
-                    addSitesToMutableAlignment(currTAL, theMSA,locusLogDOS);  // note that with fuzzyStartPositions there may be no overlapping tags!!
+                    addSitesToMutableAlignment(currTAL, theMSA, locusLogDOS, run);  // note that with fuzzyStartPositions there may be no overlapping tags!!
                     countLoci++;
                     if (theMSA.getSiteCount() % 100 == 0) {
                         double rate = (double) theMSA.getSiteCount() / (double) (System.currentTimeMillis() - time);
@@ -422,14 +570,14 @@ public class DiscoverySNPCallerPlugin extends AbstractPlugin {
                 currPos = newPos; // start a new TAL with the current tag
                 if ((currPos[STRAND] != TagsOnPhysicalMap.BYTE_MISSING) && (currPos[START_POS] != TOPMInterface.INT_MISSING)) {  // we already know that currPos[CHR]==targetChromo
                     currTAL = new TagsAtLocus(currPos[CHR],(byte) currPos[STRAND],currPos[START_POS],theTOPM.getTagLength(ri),includeReference,fuzzyStartPositions,errorRate);
-                    currTAL.addTag(ri, theTOPM, theTBT, includeReference, fuzzyStartPositions);
+                    addTag(currTAL, ri);
                 } else {
                     currPos = null;  // invalid position
                 }
             }
         }
         if ((currTAL.getSize() > 1) && (currTAL.getNumberTaxaCovered() >= minTaxaWithLocus)) { // then finish the final TAL for the targetChromo
-            addSitesToMutableAlignment(currTAL, theMSA,locusLogDOS);
+            addSitesToMutableAlignment(currTAL, theMSA, locusLogDOS, run);
         } else if (currPos!=null) {
             logRejectedTagLocus(currTAL,locusLogDOS);
         }
@@ -450,6 +598,17 @@ public class DiscoverySNPCallerPlugin extends AbstractPlugin {
         }
         myLogger.info("Number of marker sites recorded for chr" + targetChromo + ": " + theMSA.getSiteCount());
         try{ locusLogDOS.close(); } catch(Exception e) { catchLocusLogException(e); }
+        if (customSNPLogging) run.snpLog.close();
+    }
+
+    private void addTag(TagsAtLocus theTAL, int topmTagIndex) {
+        if (lockTBT) {
+            synchronized (theTBT) {
+                theTAL.addTag(topmTagIndex, theTOPM, theTBT, includeReference, fuzzyStartPositions);
+            }
+        } else {
+            theTAL.addTag(topmTagIndex, theTOPM, theTBT, includeReference, fuzzyStartPositions);
+        }
     }
 
     /**
@@ -505,7 +664,7 @@ public class DiscoverySNPCallerPlugin extends AbstractPlugin {
         return false;
     }
     
-    private synchronized void addSitesToMutableAlignment(TagsAtLocus theTAL, MutableNucleotideAlignment theMSA, DataOutputStream locusLogDOS) {
+    private void addSitesToMutableAlignment(TagsAtLocus theTAL, MutableNucleotideAlignment theMSA, DataOutputStream locusLogDOS, ChromosomeRun run) {
         boolean refTagUsed = false;
         short[][][] alleleDepths = null;
         byte[][] commonAlleles = null;
@@ -516,7 +675,7 @@ public class DiscoverySNPCallerPlugin extends AbstractPlugin {
         byte[][] callsBySite;
         if (vcf) {
             if (includeReference) {
-                addRefTag(theTAL);
+                addRefTag(theTAL, run.refChrIndex);
                 refTagUsed = true;
             }
             callsBySite = theTAL.getSNPCallsVCF(callBiallelicSNPsWithGap, includeReference);
@@ -524,10 +683,10 @@ public class DiscoverySNPCallerPlugin extends AbstractPlugin {
             commonAlleles = theTAL.getCommonAlleles();
         } else if (includeReference) {
             if (fuzzyStartPositions) {
-                String refSeqInRegion = getRefSeqInRegion(theTAL);
+                String refSeqInRegion = getRefSeqInRegion(theTAL, run.refChrIndex);
                 callsBySite = theTAL.getSNPCallsQuant(refSeqInRegion, callBiallelicSNPsWithGap);
             } else {
-                addRefTag(theTAL);
+                addRefTag(theTAL, run.refChrIndex);
                 refTagUsed = true;
                 callsBySite = theTAL.getSNPCallsQuant(callBiallelicSNPsWithGap, includeReference);
             }
@@ -554,7 +713,7 @@ public class DiscoverySNPCallerPlugin extends AbstractPlugin {
             CustomSNPLogRecord mySNPLogRecord;
             if (customSNPLogging) {
                 mySNPLogRecord = new CustomSNPLogRecord(s, theTAL, position, useTaxaForMinF, refTagUsed);
-                myCustomSNPLog.writeEntry(mySNPLogRecord.toString());
+                run.snpLog.writeEntry(mySNPLogRecord.toString());
                 SiteQualityScores.addSite(s, mySNPLogRecord.getInbredCoverage(), mySNPLogRecord.getInbredHetScore(), alleles, position);
                 if (customFiltering && !mySNPLogRecord.isGoodSNP()) {
                     continue;
@@ -600,7 +759,7 @@ public class DiscoverySNPCallerPlugin extends AbstractPlugin {
                 theMSA.setCommonAlleles(currSite, allelesForSite);
             }
             if (isUpdateTOPM & !customFiltering) {  
-                updateTOPM(theTAL, s, position, strand, alleles);
+                updateTOPM(theTAL, s, position, strand, alleles, run);
             }
             if (currSite % 100 == 0) {
                 System.out.printf("Site:%d Position:%d %n", currSite, position);
@@ -608,22 +767,22 @@ public class DiscoverySNPCallerPlugin extends AbstractPlugin {
         }
         logAcceptedTagLocus(theTAL.getLocusReport(minTaxaWithLocus, varSiteKept), locusLogDOS);
         if (isUpdateTOPM & customFiltering) {  
-            updateTOPM(theTAL, varSiteKept, SiteQualityScores);
+            updateTOPM(theTAL, varSiteKept, SiteQualityScores, run);
         }
     }
 
-    private void updateTOPM(TagsAtLocus myTAL, boolean[] varSiteKept, TagLocusSiteQualityScores SiteQualityScores) {
+    private void updateTOPM(TagsAtLocus myTAL, boolean[] varSiteKept, TagLocusSiteQualityScores SiteQualityScores, ChromosomeRun run) {
         SiteQualityScores.sortByQuality();
         byte strand = myTAL.getStrand();
         for (int s = 0; s < SiteQualityScores.getSize(); s++) {
             int siteInTAL = SiteQualityScores.getSiteInTAL(s);
             if (varSiteKept[siteInTAL]) {
-                updateTOPM(myTAL, siteInTAL, SiteQualityScores.getPosition(s), strand, SiteQualityScores.getAlleles(s));
+                updateTOPM(myTAL, siteInTAL, SiteQualityScores.getPosition(s), strand, SiteQualityScores.getAlleles(s), run);
             }
         }
     }
 
-    private void updateTOPM(TagsAtLocus myTAL, int variableSite, int position, int strand, byte[] alleles) {
+    private void updateTOPM(TagsAtLocus myTAL, int variableSite, int position, int strand, byte[] alleles, ChromosomeRun run) {
         for (int tg = 0; tg < myTAL.getSize(); tg++) {
             int topmTagIndex = myTAL.getTOPMIndexOfTag(tg);
             if (topmTagIndex == Integer.MIN_VALUE) continue; // skip the reference genome tag (which may not be in the TOPM)
@@ -645,7 +804,7 @@ public class DiscoverySNPCallerPlugin extends AbstractPlugin {
             }
             // convert from allele from 0-15 style to IUPAC ASCII character value (e.g., (byte) 'A') (maintains compatibility with Tassel3 TOPM)
             baseToAdd = getIUPACAllele(baseToAdd);
-            theTOPM.addVariant(topmTagIndex, offset, baseToAdd);
+            run.addVariant(topmTagIndex, offset, baseToAdd);
         }
     }
 
@@ -967,139 +1126,32 @@ public class DiscoverySNPCallerPlugin extends AbstractPlugin {
         }
     }
 
-    private long[] readReferenceGenomeChr(String inFileStr, int targetChr) {
-        int nBases = getLengthOfReferenceGenomeChr(inFileStr, targetChr);
-        if (nBases == 0) return null;
-        int basesPerLong = BaseEncoder.chunkSize;
-        int nLongs = (nBases % basesPerLong == 0) ? nBases / basesPerLong : (nBases / basesPerLong) + 1;
-        long[] refGenomeChrAsLongs = new long[nLongs];
-        myLogger.info("\n\nReading in the target chromosome " + targetChr + " from the reference genome fasta file: " + inFileStr);
-        String temp = "Nothing has been read yet from the reference genome fasta file";
-        try {
-            BufferedReader br = new BufferedReader(new FileReader(new File(inFileStr)));
-            StringBuilder currStrB = new StringBuilder();
-            int currChr = Integer.MIN_VALUE, chunk = 0;
-            while (br.ready()) {
-                temp = br.readLine().trim();
-                if (temp.startsWith(">")) {
-                    if (chunk > 0) {
-                        break;  // finished reading the targetChr (no need to read the rest of the file)
-                    }
-                    String chrS = temp.replace(">", "");
-                    chrS = chrS.replace("chr", "");
-                    currChr = Integer.parseInt(chrS);  // don't need to catch exception because getLengthOfReferenceGenomeChr() would have caught it already
-                    myLogger.info("Currently reading chromosome " + currChr + " (target chromosome = " + targetChr + ")");
-                } else if (currChr == targetChr) {
-                    currStrB.append(temp.replace("N", "A")); // BaseEncoder encodes sequences with N's as (long) -1
-                    while (currStrB.length() >= basesPerLong) {
-                        refGenomeChrAsLongs[chunk] = BaseEncoder.getLongFromSeq(currStrB.substring(0, basesPerLong));
-                        currStrB = (currStrB.length() > basesPerLong) ? new StringBuilder(currStrB.substring(basesPerLong)) : new StringBuilder();
-                        chunk++;
-                        if (chunk % 1000000 == 0) {
-                            myLogger.info(chunk + " chunks of " + basesPerLong + " bases read from the reference genome fasta file for chromosome " + targetChr);
-                        }
-                    }
-                }
-            }
-            if (currStrB.length() > 0) {
-                refGenomeChrAsLongs[chunk] = BaseEncoder.getLongFromSeq(currStrB.toString());
-                chunk++;
-            }
-            myLogger.info("\n\nFinished reading target chromosome " + targetChr + " into a total of " + chunk + " " + basesPerLong + "bp chunks\n\n");
-            if (chunk != nLongs) {
-                throw new Exception("The number of 32 base chunks read (" + chunk + ") was not equal to the expected number (" + nLongs + ")");
-            }
-            br.close();
-        } catch (Exception e) {
-            myLogger.error("Exception caught while reading the reference genome fasta file at line.  Error=" + e);
-            e.printStackTrace();
-            System.exit(1);
-        }
-        return refGenomeChrAsLongs;
-    }
-
-    private int getLengthOfReferenceGenomeChr(String inFileStr, int targetChr) {
-        myLogger.info("\n\nDetermining the length (in bases) of target chromosome " + targetChr + " in the reference genome fasta file: " + inFileStr);
-        String temp = "Nothing has been read yet from the reference genome fasta file";
-        int line = 0, nBases = 0;
-        try {
-            BufferedReader br = new BufferedReader(new FileReader(new File(inFileStr)));
-            int currChr = Integer.MIN_VALUE;
-            while (br.ready()) {
-                temp = br.readLine().trim();
-                line++;
-                if (line % 1000000 == 0) {
-                    myLogger.info(line + " lines read from the reference genome fasta file");
-                }
-                if (temp.startsWith(">")) {
-                    if (nBases > 0) {
-                        break;  // finished reading the targetChr (no need to read the rest of the file)
-                    }
-                    String chrS = temp.replace(">", "");
-                    chrS = chrS.replace("chr", "");
-                    try {
-                        currChr = Integer.parseInt(chrS);
-                    } catch (NumberFormatException e) {
-                        myLogger.error("\n\nTagsToSNPByAlignment detected a non-numeric chromosome name in the reference genome sequence fasta file: " + chrS
-                                + "\n\nPlease change the FASTA headers in your reference genome sequence to integers "
-                                + "(>1, >2, >3, etc.) OR to 'chr' followed by an integer (>chr1, >chr2, >chr3, etc.)\n\n");
-                        System.exit(1);
-                    }
-                    myLogger.info("Currently reading chromosome " + currChr + " (target chromosome = " + targetChr + ")");
-                } else if (currChr == targetChr) {
-                    nBases += temp.length();
-                }
-            }
-            if (nBases == 0) {
-                throw new Exception("Target chromosome ("+targetChr+") not found");
-            } 
-            myLogger.info("The target chromosome " + targetChr + " is " + nBases + " bases long");
-            br.close();
-        } catch (Exception e) {
-            if (nBases == 0) {
-                myLogger.warn("Exception caught while reading the reference genome fasta file at line " + line + "\n   e=" + e +"\n   Skipping this chromosome...");
-            }  else {
-                myLogger.error("Exception caught while reading the reference genome fasta file at line " + line + "\n   e=" + e);
-                e.printStackTrace();
-                System.exit(1);
-            }
+    private synchronized ReferenceGenome getReferenceGenome() {
+        if (theReference == null) {
+            theReference = new ReferenceGenome(refGenomeFileStr);
         }
-        return nBases;
+        return theReference;
     }
 
-    private String getRefSeqInRegion(TagsAtLocus theTAL) {
+    private String getRefSeqInRegion(TagsAtLocus theTAL, int refChrIndex) {
         int basesPerLong = BaseEncoder.chunkSize;
         int refSeqStartPosition = theTAL.getMinStartPosition() - 128;
         int startIndex = Math.max((refSeqStartPosition / basesPerLong) - 1, 0);
         int refSeqEndPosition = theTAL.getMaxStartPosition() + 128;
-        int endIndex = Math.min((refSeqEndPosition / basesPerLong) + 1, refGenomeChr.length - 1);
-        StringBuilder sb = new StringBuilder();
-        for (int i = startIndex; i <= endIndex; ++i) {
-            sb.append(BaseEncoder.getSequenceFromLong(refGenomeChr[i]));
-        }
+        int endIndex = (refSeqEndPosition / basesPerLong) + 1;
+        String refSeq = theReference.getSequence(refChrIndex, startIndex * basesPerLong + 1, (endIndex + 1) * basesPerLong);
         theTAL.setMinStartPosition(startIndex * basesPerLong + 1);
-        return sb.toString();
+        return refSeq;
     }
 
-    private void addRefTag(TagsAtLocus theTAL) {
-        String refTag;
-        int basesPerLong = BaseEncoder.chunkSize;
-        int refSeqStartPos, refSeqEndPos;
+    private void addRefTag(TagsAtLocus theTAL, int refChrIndex) {
+        int refSeqStartPos;
         if (theTAL.getStrand() == -1) {
-            refSeqEndPos = theTAL.getMinStartPosition();
-            refSeqStartPos = refSeqEndPos - theTAL.getMaxTagLength() + 1;
+            refSeqStartPos = theTAL.getMinStartPosition() - theTAL.getMaxTagLength() + 1;
         } else {
             refSeqStartPos = theTAL.getMinStartPosition();
-            refSeqEndPos = refSeqStartPos + theTAL.getMaxTagLength() - 1;
-        }
-        int startIndex = Math.max((refSeqStartPos/basesPerLong)-1, 0);
-        int endIndex = Math.min((refSeqEndPos/basesPerLong), refGenomeChr.length-1);
-        StringBuilder sb = new StringBuilder();
-        for (int i = startIndex; i <= endIndex; ++i) {
-            sb.append(BaseEncoder.getSequenceFromLong(refGenomeChr[i]));
         }
-        refTag = sb.substring(Math.max(refSeqStartPos-startIndex*basesPerLong-1,0),
-                Math.min(refSeqStartPos-startIndex*basesPerLong-1+theTAL.getMaxTagLength(),sb.length()));
+        String refTag = theReference.getSequence(refChrIndex, refSeqStartPos, refSeqStartPos + theTAL.getMaxTagLength() - 1);
         if (theTAL.getStrand() == -1) {
             refTag = revComplement(refTag);
         }
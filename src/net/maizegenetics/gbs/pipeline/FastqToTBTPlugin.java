@@ -15,7 +15,9 @@ import net.maizegenetics.util.MultiMemberGZIPInputStream;
 import net.maizegenetics.gbs.homology.ParseBarcodeRead;
 import net.maizegenetics.gbs.homology.ReadBarcodeResult;
 import net.maizegenetics.gbs.maps.TagsOnPhysicalMap;
+import net.maizegenetics.gbs.tagdist.AbstractTags;
 import net.maizegenetics.gbs.tagdist.TagCounts;
+import net.maizegenetics.gbs.tagdist.TagIndex;
 import net.maizegenetics.gbs.tagdist.Tags;
 import net.maizegenetics.gbs.tagdist.TagsByTaxa;
 import net.maizegenetics.gbs.tagdist.TagsByTaxa.FilePacking;
@@ -27,7 +29,15 @@ import net.maizegenetics.plugindef.DataSet;
 
 import java.awt.Frame;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.swing.ImageIcon;
 
@@ -54,6 +64,8 @@ public class FastqToTBTPlugin extends AbstractPlugin {
     private Tags myMasterTags = null;
     private boolean useTBTByte = false;
     private boolean useTBTShort = false;
+    private int myNumThreads = 1;
+    private int myNumParallelLanes = 1;
 
     public FastqToTBTPlugin() {
         super(null, false);
@@ -65,7 +77,7 @@ public class FastqToTBTPlugin extends AbstractPlugin {
 
     @Override
     public DataSet performFunction(DataSet input) {
-        matchTagsToTaxa(myFastqFileS, myKeyFile, myEnzyme, myMasterTags, myOutputDir, myMinCount, useTBTByte, useTBTShort);
+        matchTagsToTaxa(myFastqFileS, myKeyFile, myEnzyme, myMasterTags, myOutputDir, myMinCount, useTBTByte, useTBTShort, myNumThreads, myNumParallelLanes);
         return null;
     }
 
@@ -78,6 +90,8 @@ public class FastqToTBTPlugin extends AbstractPlugin {
                 + "-o  Output directory\n"
                 + "-c  Minimum taxa count within a fastq file for a tag to be output (default 1)\n" // Nb: using TagsByTaxaBit, so max count PER TAXON = 1
                 + "-y  Output to tagsByTaxaByte (tag counts per taxon from 0 to 127) instead of tagsByTaxaBit (0 or 1)\n"
+                + "-th Number of threads used to parse the reads of each fastq file (default 1)\n"
+                + "-p  Number of fastq files processed at the same time, memory permitting (default 1)\n"
                 + "One of either:\n"
                 + "    -t  Tag count file, OR A\n"
                 + "    -m  Physical map file containing alignments\n");
@@ -101,6 +115,8 @@ public class FastqToTBTPlugin extends AbstractPlugin {
             myArgsEngine.add("-sh", "--TBTShort", false);
             myArgsEngine.add("-t", "--tag-count", true);
             myArgsEngine.add("-m", "--physical-map", true);
+            myArgsEngine.add("-th", "--threads", true);
+            myArgsEngine.add("-p", "--parallel-lanes", true);
         }
         myArgsEngine.parse(args);
 
@@ -154,6 +170,24 @@ public class FastqToTBTPlugin extends AbstractPlugin {
         } else {
             myMinCount = 1;
         }
+        if (myArgsEngine.getBoolean("-th")) {
+            myNumThreads = Integer.parseInt(myArgsEngine.getString("-th"));
+            if (myNumThreads < 1) {
+                printUsage();
+                throw new IllegalArgumentException("The number of threads (option -th) must be at least 1.");
+            }
+        } else {
+            myNumThreads = 1;
+        }
+        if (myArgsEngine.getBoolean("-p")) {
+            myNumParallelLanes = Integer.parseInt(myArgsEngine.getString("-p"));
+            if (myNumParallelLanes < 1) {
+                printUsage();
+                throw new IllegalArgumentException("The number of parallel lanes (option -p) must be at least 1.");
+            }
+        } else {
+            myNumParallelLanes = 1;
+        }
         if (myArgsEngine.getBoolean("-y")) {
             useTBTByte = true;
         }
@@ -206,78 +240,143 @@ public class FastqToTBTPlugin extends AbstractPlugin {
      * @param minCount       The minimum number of times a tag must show up in a fastq file before it is included in the corresponding TBT file
      */
     public static void matchTagsToTaxa(String[] fastqFileS, String keyFileS, String enzyme, Tags theMasterTags, String outputDir, int minCount, boolean useTBTByte, boolean useTBTShort) {
-        for (int laneNum = 0; laneNum < fastqFileS.length; laneNum++) {
+        matchTagsToTaxa(fastqFileS, keyFileS, enzyme, theMasterTags, outputDir, minCount, useTBTByte, useTBTShort, 1);
+    }
 
-            HashMap<String, Integer> readsPerSample = new HashMap<String, Integer>();       //Maps samples to #reads/sample
-            HashMap<String, Integer> mappedReadsPerSample = new HashMap<String, Integer>();       //Maps samples to #reads/sample
-
-            //Determine name of output file based on input parameters
-            File outfile;
-            FilePacking outFormat = useTBTByte ? FilePacking.Byte : (useTBTShort ? FilePacking.Short : FilePacking.Bit);
-            String outFileS = outputDir + fastqFileS[laneNum].substring(fastqFileS[laneNum].lastIndexOf(File.separator));
-            String replaceS = (outFormat == FilePacking.Text) ? ".tbt.txt" : ((outFormat == FilePacking.Byte) ? ".tbt.byte" : ((outFormat == FilePacking.Short) ? ".tbt.shrt" : ".tbt.bin"));
-            outfile = new File(outFileS.replaceAll(
-                    "(?i)\\.fq$|\\.fq\\.gz$|\\.fastq$|_fastq\\.txt$|_fastq\\.gz$|_fastq\\.txt\\.gz$|_sequence\\.txt$|_sequence\\.txt\\.gz$",
-                    replaceS));
-
-            //Skip input file if a corresponding output file has already been written.
-            if (outfile.isFile()) {
-                System.out.println(
-                        "An output file " + outfile.getName() + "\n"
-                        + " already exists in the output directory for file " + fastqFileS[laneNum] + ".  Skipping.");
-                continue;
-            }
+    /**
+     * Same as above, but the reads of each fastq file are parsed by numThreads worker threads while the calling thread
+     * decompresses and batches the records.  The resulting TBT files are identical to those of the single threaded run.
+     *
+     * @param numThreads     Number of threads used to parse barcodes and match reads to tags (1 = single threaded)
+     */
+    public static void matchTagsToTaxa(String[] fastqFileS, String keyFileS, String enzyme, Tags theMasterTags, String outputDir, int minCount, boolean useTBTByte, boolean useTBTShort, int numThreads) {
+        matchTagsToTaxa(fastqFileS, keyFileS, enzyme, theMasterTags, outputDir, minCount, useTBTByte, useTBTShort, numThreads, 1);
+    }
 
-            System.out.println("\nWorking on fastq file: " + fastqFileS[laneNum]);
-            TagsByTaxa theTBT = null;
-            System.gc();
-            int goodBarcodedReads = 0, allReads = 0, goodMatched = 0;
-            File fastqFile = new File(fastqFileS[laneNum]);
-            String[] np = fastqFile.getName().split("_");
-
-            //Create a new object to hold barcoded tags.  The constructor can optionally process a group of fastq
-            //files.  A minimum quality score for inclusion of a read can also be provided.
-            ParseBarcodeRead thePBR;
-            if (np.length == 3) {
-                thePBR = new ParseBarcodeRead(keyFileS, enzyme, np[0], np[1]);
-            } else if (np.length == 5) {
-                thePBR = new ParseBarcodeRead(keyFileS, enzyme, np[1], np[3]);
-            } else if (np.length == 4) {
-                thePBR = new ParseBarcodeRead(keyFileS, enzyme, np[0], np[2]);
-            } else if (np.length == 6) {
-                thePBR = new ParseBarcodeRead(keyFileS, enzyme, np[1], np[3]);
-            } else {
-                System.out.println("Error in parsing file name:");
-                System.out.println("   The filename does not contain either 3 or 5 underscore-delimited values.");
-                System.out.println("   Expect: flowcell_lane_fastq.txt OR code_flowcell_s_lane_fastq.txt");
-                System.out.println("   Filename: " + fastqFileS[laneNum]);
-                return;
+    /**
+     * Same as above, but up to numParallelLanes fastq files are processed at once.  All lanes share the single
+     * read-only copy of the master tags, and a lane only starts once the memory for its TBT is available.
+     *
+     * @param numParallelLanes Maximum number of fastq files processed concurrently (1 = one lane after another)
+     */
+    public static void matchTagsToTaxa(final String[] fastqFileS, final String keyFileS, final String enzyme, final Tags theMasterTags, final String outputDir,
+            final int minCount, final boolean useTBTByte, final boolean useTBTShort, final int numThreads, int numParallelLanes) {
+        // the TBTs copy the master tags in order, so tag indices in the master list are tag indices in each TBT
+        final TagIndex masterIndex = (theMasterTags instanceof AbstractTags) ? ((AbstractTags) theMasterTags).buildTagIndex() : new TagIndex(theMasterTags);
+        if (numParallelLanes <= 1) {
+            for (int laneNum = 0; laneNum < fastqFileS.length; laneNum++) {
+                if (!matchTagsToTaxaForLane(laneNum, fastqFileS, keyFileS, enzyme, theMasterTags, masterIndex, outputDir, minCount, useTBTByte, useTBTShort, numThreads, null)) {
+                    return;
+                }
             }
-            System.out.println("Total barcodes found in lane:" + thePBR.getBarCodeCount());
-            if (thePBR.getBarCodeCount() == 0) {
-                System.out.println("No barcodes found.  Skipping this flowcell.");
-                continue;
+            return;
+        }
+        final LaneMemoryBudget budget = new LaneMemoryBudget();
+        myLogger.info("matchTagsToTaxa: processing up to " + numParallelLanes + " lanes at once within a memory budget of " + (budget.getBudget() >> 20) + " MB");
+        ExecutorService lanePool = Executors.newFixedThreadPool(numParallelLanes);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int laneNum = 0; laneNum < fastqFileS.length; laneNum++) {
+            final int lane = laneNum;
+            futures.add(lanePool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    matchTagsToTaxaForLane(lane, fastqFileS, keyFileS, enzyme, theMasterTags, masterIndex, outputDir, minCount, useTBTByte, useTBTShort, numThreads, budget);
+                }
+            }));
+        }
+        lanePool.shutdown();
+        for (int laneNum = 0; laneNum < futures.size(); laneNum++) {
+            try {
+                futures.get(laneNum).get();
+            } catch (Exception e) {
+                myLogger.error("matchTagsToTaxa: error processing " + fastqFileS[laneNum] + ": " + e);
+                e.printStackTrace();
             }
+        }
+    }
 
-            //Fill an array with taxon names.
-            String[] taxaNames = new String[thePBR.getBarCodeCount()];
-            for (int i = 0; i < taxaNames.length; i++) {
-                taxaNames[i] = thePBR.getTheBarcodes(i).getTaxaName();
+    /**
+     * Creates the TBT file and its .log report for a single fastq file.
+     *
+     * @param masterIndex Hash index over theMasterTags used to find the tag of each read
+     * @param budget Memory budget shared by the lanes running concurrently (null when lanes are processed one at a time)
+     *
+     * @return false if the file name could not be parsed, in which case the remaining lanes are not processed
+     */
+    private static boolean matchTagsToTaxaForLane(int laneNum, String[] fastqFileS, String keyFileS, String enzyme, Tags theMasterTags, TagIndex masterIndex, String outputDir,
+            int minCount, boolean useTBTByte, boolean useTBTShort, int numThreads, LaneMemoryBudget budget) {
+        HashMap<String, Integer> readsPerSample = new HashMap<String, Integer>();       //Maps samples to #reads/sample
+        HashMap<String, Integer> mappedReadsPerSample = new HashMap<String, Integer>();       //Maps samples to #reads/sample
+
+        //Determine name of output file based on input parameters
+        File outfile;
+        FilePacking outFormat = useTBTByte ? FilePacking.Byte : (useTBTShort ? FilePacking.Short : FilePacking.Bit);
+        String outFileS = outputDir + fastqFileS[laneNum].substring(fastqFileS[laneNum].lastIndexOf(File.separator));
+        String replaceS = (outFormat == FilePacking.Text) ? ".tbt.txt" : ((outFormat == FilePacking.Byte) ? ".tbt.byte" : ((outFormat == FilePacking.Short) ? ".tbt.shrt" : ".tbt.bin"));
+        outfile = new File(outFileS.replaceAll(
+                "(?i)\\.fq$|\\.fq\\.gz$|\\.fastq$|_fastq\\.txt$|_fastq\\.gz$|_fastq\\.txt\\.gz$|_sequence\\.txt$|_sequence\\.txt\\.gz$",
+                replaceS));
+
+        //Skip input file if a corresponding output file has already been written.
+        if (outfile.isFile()) {
+            System.out.println(
+                    "An output file " + outfile.getName() + "\n"
+                    + " already exists in the output directory for file " + fastqFileS[laneNum] + ".  Skipping.");
+            return true;
+        }
 
-                //Initialize the reads/sample variables to zero, or increment them if they already exist.
-                if (readsPerSample.get(taxaNames[i]) == null) {
-                    readsPerSample.put(taxaNames[i], 0);
-                } else {
-                    readsPerSample.put(taxaNames[i], readsPerSample.get(taxaNames[i]) + 1);
-                }
+        System.out.println("\nWorking on fastq file: " + fastqFileS[laneNum]);
+        TagsByTaxa theTBT = null;
+        System.gc();
+        int goodBarcodedReads = 0, allReads = 0, goodMatched = 0;
+        File fastqFile = new File(fastqFileS[laneNum]);
+        String[] np = fastqFile.getName().split("_");
+
+        //Create a new object to hold barcoded tags.  The constructor can optionally process a group of fastq
+        //files.  A minimum quality score for inclusion of a read can also be provided.
+        ParseBarcodeRead thePBR;
+        if (np.length == 3) {
+            thePBR = new ParseBarcodeRead(keyFileS, enzyme, np[0], np[1]);
+        } else if (np.length == 5) {
+            thePBR = new ParseBarcodeRead(keyFileS, enzyme, np[1], np[3]);
+        } else if (np.length == 4) {
+            thePBR = new ParseBarcodeRead(keyFileS, enzyme, np[0], np[2]);
+        } else if (np.length == 6) {
+            thePBR = new ParseBarcodeRead(keyFileS, enzyme, np[1], np[3]);
+        } else {
+            System.out.println("Error in parsing file name:");
+            System.out.println("   The filename does not contain either 3 or 5 underscore-delimited values.");
+            System.out.println("   Expect: flowcell_lane_fastq.txt OR code_flowcell_s_lane_fastq.txt");
+            System.out.println("   Filename: " + fastqFileS[laneNum]);
+            return false;
+        }
+        System.out.println("Total barcodes found in lane:" + thePBR.getBarCodeCount());
+        if (thePBR.getBarCodeCount() == 0) {
+            System.out.println("No barcodes found.  Skipping this flowcell.");
+            return true;
+        }
 
-                if (mappedReadsPerSample.get(taxaNames[i]) == null) {
-                    mappedReadsPerSample.put(taxaNames[i], 0);
-                } else {
-                    readsPerSample.put(taxaNames[i], readsPerSample.get(taxaNames[i]) + 1);
-                }
+        //Fill an array with taxon names.
+        String[] taxaNames = new String[thePBR.getBarCodeCount()];
+        for (int i = 0; i < taxaNames.length; i++) {
+            taxaNames[i] = thePBR.getTheBarcodes(i).getTaxaName();
+
+            //Initialize the reads/sample variables to zero, or increment them if they already exist.
+            if (readsPerSample.get(taxaNames[i]) == null) {
+                readsPerSample.put(taxaNames[i], 0);
+            } else {
+                readsPerSample.put(taxaNames[i], readsPerSample.get(taxaNames[i]) + 1);
             }
 
+            if (mappedReadsPerSample.get(taxaNames[i]) == null) {
+                mappedReadsPerSample.put(taxaNames[i], 0);
+            } else {
+                readsPerSample.put(taxaNames[i], readsPerSample.get(taxaNames[i]) + 1);
+            }
+        }
+
+        int permits = (budget == null) ? 0 : budget.acquire(LaneMemoryBudget.estimateTBTBytes(taxaNames.length, theMasterTags, outFormat), fastqFileS[laneNum]);
+        try {
             if (useTBTByte) {
                 theTBT = new TagsByTaxaByte(taxaNames, theMasterTags);
             } else if (useTBTShort) {
@@ -287,60 +386,67 @@ public class FastqToTBTPlugin extends AbstractPlugin {
             }
 
             // Read the fastq file and assign reads to tags and taxa
-            String temp = "";
-            int currLine = 0;
-            goodBarcodedReads = 0;
-            allReads = 0;
-            goodMatched = 0;
-            try {
-                BufferedReader br;
-                //Read in fastq file as a gzipped text stream if its name ends in ".gz", otherwise read as text
-                if (fastqFileS[laneNum].endsWith(".gz")) {
-                    br = new BufferedReader(new InputStreamReader(new MultiMemberGZIPInputStream(new FileInputStream(fastqFileS[laneNum]))));
-                } else {
-                    br = new BufferedReader(new FileReader(fastqFileS[laneNum]), 65536);
-                }
-                String sl = "", qualS = "";
-                while ((temp = br.readLine()) != null) {
-                    currLine++;
-                    //The quality score is every 4th line; the sequence is every 4th line starting from the 2nd.
-                    if ((currLine + 2) % 4 == 0) {
-                        sl = temp;
-                    } else if (currLine % 4 == 0) {
-                        qualS = temp;
-                        allReads++;
-                        //After quality score is read, decode barcode using the current sequence & quality  score
-                        ReadBarcodeResult rr = thePBR.parseReadIntoTagAndTaxa(sl, qualS, true, 0);
-
-                        //If read is barcoded, note this fact and check for it in TOPM file
-                        if (rr != null) {
-                            goodBarcodedReads++;
-                            readsPerSample.put(
-                                    rr.getTaxonName(),
-                                    readsPerSample.get(rr.getTaxonName()) + 1);
-
-                            int t = theTBT.getIndexOfTaxaName(rr.getTaxonName());
-                            int h = theTBT.getTagIndex(rr.getRead());
-
-                            //If read is in TOPM file, note this fact and add it to TBT
-                            if (h > -1) {
-                                theTBT.addReadsToTagTaxon(h, t, 1);
-                                goodMatched++;
-                                mappedReadsPerSample.put(
+            if (numThreads > 1) {
+                int[] laneCounts = matchReadsThreaded(fastqFileS[laneNum], thePBR, theTBT, masterIndex, readsPerSample, mappedReadsPerSample, numThreads);
+                allReads = laneCounts[0];
+                goodBarcodedReads = laneCounts[1];
+                goodMatched = laneCounts[2];
+            } else {
+                String temp = "";
+                int currLine = 0;
+                goodBarcodedReads = 0;
+                allReads = 0;
+                goodMatched = 0;
+                try {
+                    BufferedReader br;
+                    //Read in fastq file as a gzipped text stream if its name ends in ".gz", otherwise read as text
+                    if (fastqFileS[laneNum].endsWith(".gz")) {
+                        br = new BufferedReader(new InputStreamReader(new MultiMemberGZIPInputStream(new FileInputStream(fastqFileS[laneNum]))));
+                    } else {
+                        br = new BufferedReader(new FileReader(fastqFileS[laneNum]), 65536);
+                    }
+                    String sl = "", qualS = "";
+                    while ((temp = br.readLine()) != null) {
+                        currLine++;
+                        //The quality score is every 4th line; the sequence is every 4th line starting from the 2nd.
+                        if ((currLine + 2) % 4 == 0) {
+                            sl = temp;
+                        } else if (currLine % 4 == 0) {
+                            qualS = temp;
+                            allReads++;
+                            //After quality score is read, decode barcode using the current sequence & quality  score
+                            ReadBarcodeResult rr = thePBR.parseReadIntoTagAndTaxa(sl, qualS, true, 0);
+
+                            //If read is barcoded, note this fact and check for it in TOPM file
+                            if (rr != null) {
+                                goodBarcodedReads++;
+                                readsPerSample.put(
                                         rr.getTaxonName(),
-                                        mappedReadsPerSample.get(rr.getTaxonName()) + 1);
+                                        readsPerSample.get(rr.getTaxonName()) + 1);
+
+                                int t = theTBT.getIndexOfTaxaName(rr.getTaxonName());
+                                int h = masterIndex.getIndex(rr.getRead());
+
+                                //If read is in TOPM file, note this fact and add it to TBT
+                                if (h > -1) {
+                                    theTBT.addReadsToTagTaxon(h, t, 1);
+                                    goodMatched++;
+                                    mappedReadsPerSample.put(
+                                            rr.getTaxonName(),
+                                            mappedReadsPerSample.get(rr.getTaxonName()) + 1);
+                                }
+                            }
+                            if (allReads % 1000000 == 0) {
+                                System.out.println("Total Reads:" + allReads + " goodReads:" + goodBarcodedReads + " goodMatched:" + goodMatched);
                             }
-                        }
-                        if (allReads % 1000000 == 0) {
-                            System.out.println("Total Reads:" + allReads + " goodReads:" + goodBarcodedReads + " goodMatched:" + goodMatched);
                         }
                     }
+                    br.close();
+                } catch (Exception e) {
+                    System.out.println("Catch testBasicPipeline c=" + goodBarcodedReads + " e=" + e);
+                    System.out.println(temp);
+                    e.printStackTrace();
                 }
-                br.close();
-            } catch (Exception e) {
-                System.out.println("Catch testBasicPipeline c=" + goodBarcodedReads + " e=" + e);
-                System.out.println(temp);
-                e.printStackTrace();
             }
             System.out.println("Timing process (writing TagsByTaxa file)...");
             long timePoint1 = System.currentTimeMillis();
@@ -375,6 +481,223 @@ public class FastqToTBTPlugin extends AbstractPlugin {
             } catch (Exception e) {
                 myLogger.warn("Caught exception while writing report file for lane " + laneNum + ": " + e);
             }
+        } finally {
+            if (budget != null) {
+                budget.release(permits);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads one fastq file on the calling thread and hands batches of reads to a pool of workers, which parse the
+     * barcodes, look up the tags and accumulate hits in their own buffers.  The buffers are sorted, collapsed and
+     * added to the TBT in bulk, so the final counts do not depend on the order in which the reads were processed.
+     *
+     * @return {total reads, good barcoded reads, barcoded reads matching a tag}
+     */
+    private static int[] matchReadsThreaded(String fastqFileS, ParseBarcodeRead thePBR, TagsByTaxa theTBT, TagIndex masterIndex,
+            HashMap<String, Integer> readsPerSample, HashMap<String, Integer> mappedReadsPerSample, int numThreads) {
+        String[] taxaNames = theTBT.getTaxaNames();
+        HashMap<String, Integer> taxonIndex = new HashMap<String, Integer>();
+        for (int t = taxaNames.length - 1; t >= 0; t--) {
+            taxonIndex.put(taxaNames[t], t);  // first occurrence wins, as in getIndexOfTaxaName()
+        }
+        BlockingQueue<FastqReadBatch> queue = new ArrayBlockingQueue<FastqReadBatch>(numThreads * 4);
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        FastqMatchWorker[] workers = new FastqMatchWorker[numThreads];
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int i = 0; i < numThreads; i++) {
+            workers[i] = new FastqMatchWorker(queue, thePBR, theTBT, masterIndex, taxonIndex);
+            futures.add(pool.submit(workers[i]));
+        }
+        int allReads = 0, currLine = 0;
+        String temp = "";
+        try {
+            BufferedReader br;
+            if (fastqFileS.endsWith(".gz")) {
+                br = new BufferedReader(new InputStreamReader(new MultiMemberGZIPInputStream(new FileInputStream(fastqFileS))));
+            } else {
+                br = new BufferedReader(new FileReader(fastqFileS), 65536);
+            }
+            FastqReadBatch batch = new FastqReadBatch();
+            while ((temp = br.readLine()) != null) {
+                currLine++;
+                //The quality score is every 4th line; the sequence is every 4th line starting from the 2nd.
+                if ((currLine + 2) % 4 == 0) {
+                    batch.seqs[batch.size] = temp;
+                } else if (currLine % 4 == 0) {
+                    batch.quals[batch.size++] = temp;
+                    allReads++;
+                    if (batch.size == FastqReadBatch.BATCH_SIZE) {
+                        queue.put(batch);
+                        batch = new FastqReadBatch();
+                    }
+                    if (allReads % 1000000 == 0) {
+                        System.out.println("Total Reads:" + allReads);
+                    }
+                }
+            }
+            br.close();
+            if (batch.size > 0) {
+                queue.put(batch);
+            }
+        } catch (Exception e) {
+            System.out.println("Catch matchReadsThreaded c=" + allReads + " e=" + e);
+            System.out.println(temp);
+            e.printStackTrace();
+        } finally {
+            try {
+                for (int i = 0; i < numThreads; i++) {
+                    queue.put(FastqReadBatch.END_OF_FILE);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            pool.shutdown();
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (Exception e) {
+                System.out.println("Catch matchReadsThreaded worker e=" + e);
+                e.printStackTrace();
+            }
+        }
+        int goodBarcodedReads = 0, goodMatched = 0;
+        for (FastqMatchWorker worker : workers) {
+            goodBarcodedReads += worker.goodBarcodedReads;
+            goodMatched += worker.goodMatched;
+            for (int t = 0; t < taxaNames.length; t++) {
+                if (worker.readsPerTaxon[t] > 0) {
+                    readsPerSample.put(taxaNames[t], readsPerSample.get(taxaNames[t]) + worker.readsPerTaxon[t]);
+                }
+                if (worker.mappedReadsPerTaxon[t] > 0) {
+                    mappedReadsPerSample.put(taxaNames[t], mappedReadsPerSample.get(taxaNames[t]) + worker.mappedReadsPerTaxon[t]);
+                }
+            }
+        }
+        System.out.println("Total Reads:" + allReads + " goodReads:" + goodBarcodedReads + " goodMatched:" + goodMatched);
+        return new int[]{allReads, goodBarcodedReads, goodMatched};
+    }
+
+    /**
+     * Sequence and quality lines of a block of consecutive fastq records.
+     */
+    private static class FastqReadBatch {
+
+        static final int BATCH_SIZE = 4096;
+        static final FastqReadBatch END_OF_FILE = new FastqReadBatch(0);
+        final String[] seqs;
+        final String[] quals;
+        int size = 0;
+
+        FastqReadBatch() {
+            this(BATCH_SIZE);
+        }
+
+        FastqReadBatch(int capacity) {
+            seqs = new String[capacity];
+            quals = new String[capacity];
+        }
+    }
+
+    /**
+     * Parses batches of reads and keeps its tag/taxon hits as packed (tag << 32 | taxon) keys.  When the buffer is full
+     * the keys are sorted, runs of the same cell are collapsed into one count, and the counts are added to the TBT
+     * while holding its lock.
+     */
+    private static class FastqMatchWorker implements Runnable {
+
+        private static final int HIT_BUFFER_SIZE = 1 << 17;
+        private final BlockingQueue<FastqReadBatch> myQueue;
+        private final ParseBarcodeRead myPBR;
+        private final TagsByTaxa myTBT;
+        private final TagIndex myTagIndex;
+        private final int[] myBarcodeTaxon;  // TBT taxon of each barcode of myPBR
+        private final ReadBarcodeResult myResult = new ReadBarcodeResult();
+        private final long[] myHits = new long[HIT_BUFFER_SIZE];
+        private int myNumHits = 0;
+        final int[] readsPerTaxon;
+        final int[] mappedReadsPerTaxon;
+        int goodBarcodedReads = 0;
+        int goodMatched = 0;
+
+        FastqMatchWorker(BlockingQueue<FastqReadBatch> queue, ParseBarcodeRead thePBR, TagsByTaxa theTBT, TagIndex tagIndex, HashMap<String, Integer> taxonIndex) {
+            myQueue = queue;
+            myPBR = thePBR;
+            myTBT = theTBT;
+            myTagIndex = tagIndex;
+            myBarcodeTaxon = new int[thePBR.getBarCodeCount()];
+            for (int b = 0; b < myBarcodeTaxon.length; b++) {
+                myBarcodeTaxon[b] = taxonIndex.get(thePBR.getTheBarcodes(b).getTaxaName());
+            }
+            readsPerTaxon = new int[theTBT.getTaxaCount()];
+            mappedReadsPerTaxon = new int[theTBT.getTaxaCount()];
+        }
+
+        @Override
+        public void run() {
+            boolean failed = false;
+            try {
+                FastqReadBatch batch;
+                while ((batch = myQueue.take()) != FastqReadBatch.END_OF_FILE) {
+                    if (failed) {
+                        continue;  // keep draining so that the reader never blocks on a full queue
+                    }
+                    try {
+                        processBatch(batch);
+                    } catch (RuntimeException e) {
+                        failed = true;
+                        System.out.println("Catch FastqMatchWorker e=" + e);
+                        e.printStackTrace();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                flushHits();
+            }
+        }
+
+        private void processBatch(FastqReadBatch batch) {
+            for (int r = 0; r < batch.size; r++) {
+                if (!myPBR.parseReadIntoTagAndTaxa(batch.seqs[r], batch.quals[r], true, 0, myResult)) {
+                    continue;
+                }
+                goodBarcodedReads++;
+                int t = myBarcodeTaxon[myResult.getBarcodeIndex()];
+                readsPerTaxon[t]++;
+                int h = myTagIndex.getIndex(myResult.getRead());
+                if (h > -1) {
+                    goodMatched++;
+                    mappedReadsPerTaxon[t]++;
+                    myHits[myNumHits++] = ((long) h << 32) | t;
+                    if (myNumHits == HIT_BUFFER_SIZE) {
+                        flushHits();
+                    }
+                }
+            }
+        }
+
+        private void flushHits() {
+            if (myNumHits == 0) {
+                return;
+            }
+            Arrays.sort(myHits, 0, myNumHits);
+            synchronized (myTBT) {
+                int start = 0;
+                while (start < myNumHits) {
+                    long cell = myHits[start];
+                    int end = start + 1;
+                    while ((end < myNumHits) && (myHits[end] == cell)) {
+                        end++;
+                    }
+                    myTBT.addReadsToTagTaxon((int) (cell >>> 32), (int) cell, end - start);
+                    start = end;
+                }
+            }
+            myNumHits = 0;
         }
     }
 
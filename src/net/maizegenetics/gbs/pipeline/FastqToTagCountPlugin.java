@@ -6,6 +6,12 @@ import javax.swing.ImageIcon;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import net.maizegenetics.gbs.homology.ParseBarcodeRead;
 import net.maizegenetics.gbs.homology.ReadBarcodeResult;
 import net.maizegenetics.gbs.tagdist.TagCountMutable;
@@ -36,6 +42,7 @@ public class FastqToTagCountPlugin extends AbstractPlugin {
     private int myMaxGoodReads = 300000000;
     private int myMinCount = 1;
     private String myOutputDir = null;
+    private int myNumParallelLanes = 1;
 
     public FastqToTagCountPlugin() {
         super(null, false);
@@ -55,6 +62,7 @@ public class FastqToTagCountPlugin extends AbstractPlugin {
                 + " -e  Enzyme used to create the GBS library, if it differs from the one listed in the key file.\n"
                 + " -s  Max good reads per lane. (Optional. Default is 300,000,000).\n"
                 + " -c  Minimum tag count (default is 1).\n"
+                + " -p  Number of FASTQ files processed at the same time, memory permitting (default is 1).\n"
                 + " -o  Output directory to contain .cnt files (one per FASTQ file, defaults to input directory).\n\n");
     }
 
@@ -64,7 +72,7 @@ public class FastqToTagCountPlugin extends AbstractPlugin {
             printUsage();
             throw new IllegalStateException("The input name you supplied is not a directory: " + myInputDirName);
         }
-        countTags(myKeyfile, myEnzyme, myInputDirName, myOutputDir, myMaxGoodReads, myMinCount);
+        countTags(myKeyfile, myEnzyme, myInputDirName, myOutputDir, myMaxGoodReads, myMinCount, myNumParallelLanes);
         return null;
     }
 
@@ -83,6 +91,7 @@ public class FastqToTagCountPlugin extends AbstractPlugin {
             myArgsEngine.add("-s", "--max-reads", true);
             myArgsEngine.add("-c", "--min-count", true);
             myArgsEngine.add("-o", "--output-file", true);
+            myArgsEngine.add("-p", "--parallel-lanes", true);
             myArgsEngine.parse(args);
         }
 
@@ -114,6 +123,14 @@ public class FastqToTagCountPlugin extends AbstractPlugin {
             myMinCount = Integer.parseInt(myArgsEngine.getString("-c"));
         }
 
+        if (myArgsEngine.getBoolean("-p")) {
+            myNumParallelLanes = Integer.parseInt(myArgsEngine.getString("-p"));
+            if (myNumParallelLanes < 1) {
+                printUsage();
+                throw new IllegalArgumentException("The number of parallel lanes (-p) must be at least 1.");
+            }
+        }
+
         if (myArgsEngine.getBoolean("-o")) {
             myOutputDir = myArgsEngine.getString("-o");
         } else {
@@ -139,6 +156,17 @@ public class FastqToTagCountPlugin extends AbstractPlugin {
      * file for it to be included in the output tagCounts file
      */
     public static void countTags(String keyFileS, String enzyme, String fastqDirectory, String outputDir, int maxGoodReads, int minCount) {
+        countTags(keyFileS, enzyme, fastqDirectory, outputDir, maxGoodReads, minCount, 1);
+    }
+
+    /**
+     * Same as above, but up to numParallelLanes fastq files are processed at
+     * once, as long as their tag count lists fit in the available memory.
+     *
+     * @param numParallelLanes Maximum number of fastq files processed
+     * concurrently (1 = one lane after another)
+     */
+    public static void countTags(final String keyFileS, final String enzyme, String fastqDirectory, final String outputDir, final int maxGoodReads, final int minCount, int numParallelLanes) {
         String[] countFileNames = null;
 
         File inputDirectory = new File(fastqDirectory);
@@ -157,103 +185,146 @@ public class FastqToTagCountPlugin extends AbstractPlugin {
             }
         }
 
+        if (numParallelLanes <= 1) {
+            for (int laneNum = 0; laneNum < fastqFiles.length; laneNum++) {
+                countTagsForLane(laneNum, fastqFiles, countFileNames, keyFileS, enzyme, outputDir, maxGoodReads, minCount, null);
+            }
+            return;
+        }
+        final LaneMemoryBudget budget = new LaneMemoryBudget();
+        myLogger.info("Processing up to " + numParallelLanes + " lanes at once within a memory budget of " + (budget.getBudget() >> 20) + " MB");
+        ExecutorService lanePool = Executors.newFixedThreadPool(numParallelLanes);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
         for (int laneNum = 0; laneNum < fastqFiles.length; laneNum++) {
-            File outputFile = new File(outputDir + File.separator + countFileNames[laneNum]);
-            if (outputFile.isFile()) {
-                myLogger.warn("An output file " + countFileNames[laneNum] + "\n"
-                        + " already exists in the output directory for file " + fastqFiles[laneNum] + ".  Skipping.");
-                continue;
+            final int lane = laneNum;
+            final File[] files = fastqFiles;
+            final String[] names = countFileNames;
+            futures.add(lanePool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    countTagsForLane(lane, files, names, keyFileS, enzyme, outputDir, maxGoodReads, minCount, budget);
+                }
+            }));
+        }
+        lanePool.shutdown();
+        for (int laneNum = 0; laneNum < futures.size(); laneNum++) {
+            try {
+                futures.get(laneNum).get();
+            } catch (Exception e) {
+                myLogger.error("Error processing " + fastqFiles[laneNum] + ": " + e);
+                e.printStackTrace();
             }
+        }
+    }
 
-            myLogger.info("Reading FASTQ file: " + fastqFiles[laneNum]);
-            String[] filenameField = fastqFiles[laneNum].getName().split("_");
-            ParseBarcodeRead thePBR;  // this reads the key file and store the expected barcodes for this lane
-            if (filenameField.length == 3) {
-                thePBR = new ParseBarcodeRead(keyFileS, enzyme, filenameField[0], filenameField[1]);
-            } else if (filenameField.length == 4) {
-                thePBR = new ParseBarcodeRead(keyFileS, enzyme, filenameField[0], filenameField[2]);
-            } // B08AAABXX_s_1_sequence.txt.gz
-            else if (filenameField.length == 5) {
-                thePBR = new ParseBarcodeRead(keyFileS, enzyme, filenameField[1], filenameField[3]);
-            } else {
-                myLogger.error("Error in parsing file name: " + fastqFiles[laneNum]);
-                myLogger.error("   The filename does not contain either 3, 4, or 5 underscore-delimited values.");
-                myLogger.error("   Expect: flowcell_lane_fastq.txt.gz OR flowcell_s_lane_fastq.txt.gz OR code_flowcell_s_lane_fastq.txt.gz");
-                continue;
-            }
+    /**
+     * Derives the tagCount list of a single fastq file.
+     *
+     * @param budget Memory budget shared by the lanes running concurrently
+     * (null when lanes are processed one at a time)
+     */
+    private static void countTagsForLane(int laneNum, File[] fastqFiles, String[] countFileNames, String keyFileS, String enzyme,
+            String outputDir, int maxGoodReads, int minCount, LaneMemoryBudget budget) {
+        File outputFile = new File(outputDir + File.separator + countFileNames[laneNum]);
+        if (outputFile.isFile()) {
+            myLogger.warn("An output file " + countFileNames[laneNum] + "\n"
+                    + " already exists in the output directory for file " + fastqFiles[laneNum] + ".  Skipping.");
+            return;
+        }
 
-            myLogger.info("Total barcodes found in lane:" + thePBR.getBarCodeCount());
-            if (thePBR.getBarCodeCount() == 0) {
-                myLogger.warn("No barcodes found.  Skipping this flowcell lane.");
-                continue;
-            }
-            String[] taxaNames = new String[thePBR.getBarCodeCount()];
-            for (int i = 0; i < taxaNames.length; i++) {
-                taxaNames[i] = thePBR.getTheBarcodes(i).getTaxaName();
-            }
+        myLogger.info("Reading FASTQ file: " + fastqFiles[laneNum]);
+        String[] filenameField = fastqFiles[laneNum].getName().split("_");
+        ParseBarcodeRead thePBR;  // this reads the key file and store the expected barcodes for this lane
+        if (filenameField.length == 3) {
+            thePBR = new ParseBarcodeRead(keyFileS, enzyme, filenameField[0], filenameField[1]);
+        } else if (filenameField.length == 4) {
+            thePBR = new ParseBarcodeRead(keyFileS, enzyme, filenameField[0], filenameField[2]);
+        } // B08AAABXX_s_1_sequence.txt.gz
+        else if (filenameField.length == 5) {
+            thePBR = new ParseBarcodeRead(keyFileS, enzyme, filenameField[1], filenameField[3]);
+        } else {
+            myLogger.error("Error in parsing file name: " + fastqFiles[laneNum]);
+            myLogger.error("   The filename does not contain either 3, 4, or 5 underscore-delimited values.");
+            myLogger.error("   Expect: flowcell_lane_fastq.txt.gz OR flowcell_s_lane_fastq.txt.gz OR code_flowcell_s_lane_fastq.txt.gz");
+            return;
+        }
+
+        myLogger.info("Total barcodes found in lane:" + thePBR.getBarCodeCount());
+        if (thePBR.getBarCodeCount() == 0) {
+            myLogger.warn("No barcodes found.  Skipping this flowcell lane.");
+            return;
+        }
+        String[] taxaNames = new String[thePBR.getBarCodeCount()];
+        for (int i = 0; i < taxaNames.length; i++) {
+            taxaNames[i] = thePBR.getTheBarcodes(i).getTaxaName();
+        }
+
+        int goodBarcodedReads = 0;
+        int permits = (budget == null) ? 0 : budget.acquire(LaneMemoryBudget.estimateTagCountBytes(2, maxGoodReads), fastqFiles[laneNum].getName());
+        try {
+            BufferedReader br = Utils.getBufferedReader(fastqFiles[laneNum], 65536);
 
-            int goodBarcodedReads = 0;
+            TagCountMutable theTC = null;
             try {
-                BufferedReader br = Utils.getBufferedReader(fastqFiles[laneNum], 65536);
+                theTC = new TagCountMutable(2, maxGoodReads);
+            } catch (OutOfMemoryError e) {
+                myLogger.error("Your system doesn't have enough memory to store the number of sequences"
+                        + "you specified.  Try using a smaller value for the minimum number of reads.");
+                System.exit(1);
+            }
 
-                TagCountMutable theTC = null;
-                try {
-                    theTC = new TagCountMutable(2, maxGoodReads);
-                } catch (OutOfMemoryError e) {
-                    myLogger.error("Your system doesn't have enough memory to store the number of sequences"
-                            + "you specified.  Try using a smaller value for the minimum number of reads.");
-                    System.exit(1);
-                }
+            int currLine = 0;
+            int allReads = 0;
+            goodBarcodedReads = 0;
+            String sequence = "";
+            String qualityScore = "";
+            ReadBarcodeResult rr = new ReadBarcodeResult();
+            String temp = br.readLine();
+            while ((temp != null) && goodBarcodedReads < maxGoodReads) {
+                currLine++;
 
-                int currLine = 0;
-                int allReads = 0;
-                goodBarcodedReads = 0;
-                String sequence = "";
-                String qualityScore = "";
-                String temp = br.readLine();
-                while ((temp != null) && goodBarcodedReads < maxGoodReads) {
-                    currLine++;
-
-                    try {
-                        //The quality score is every 4th line; the sequence is every 4th line starting from the 2nd.
-                        if ((currLine + 2) % 4 == 0) {
-                            sequence = temp;
-                        } else if (currLine % 4 == 0) {
-                            qualityScore = temp;
-                            allReads++;
-                            //After quality score is read, decode barcode using the current sequence & quality  score
-                            ReadBarcodeResult rr = thePBR.parseReadIntoTagAndTaxa(sequence, qualityScore, true, 0);
-                            if (rr != null) {
-                                goodBarcodedReads++;
-                                theTC.addReadCount(rr.getRead(), rr.getLength(), 1);
-                            }
-                            if (allReads % 1000000 == 0) {
-                                myLogger.info("Total Reads:" + allReads + " Reads with barcode and cut site overhang:" + goodBarcodedReads);
-                            }
+                try {
+                    //The quality score is every 4th line; the sequence is every 4th line starting from the 2nd.
+                    if ((currLine + 2) % 4 == 0) {
+                        sequence = temp;
+                    } else if (currLine % 4 == 0) {
+                        qualityScore = temp;
+                        allReads++;
+                        //After quality score is read, decode barcode using the current sequence & quality  score
+                        if (thePBR.parseReadIntoTagAndTaxa(sequence, qualityScore, true, 0, rr)) {
+                            goodBarcodedReads++;
+                            theTC.addReadCount(rr.getRead(), rr.getLength(), 1);
+                        }
+                        if (allReads % 1000000 == 0) {
+                            myLogger.info("Total Reads:" + allReads + " Reads with barcode and cut site overhang:" + goodBarcodedReads);
                         }
-                    } catch (NullPointerException e) {
-                        myLogger.error("Unable to correctly parse the sequence and: " + sequence
-                                + " and quality score: " + qualityScore + " from fastq file.  Your fastq file may have been corrupted.");
-                        System.exit(1);
                     }
-                    temp = br.readLine();
+                } catch (NullPointerException e) {
+                    myLogger.error("Unable to correctly parse the sequence and: " + sequence
+                            + " and quality score: " + qualityScore + " from fastq file.  Your fastq file may have been corrupted.");
+                    System.exit(1);
                 }
+                temp = br.readLine();
+            }
 
-                myLogger.info("Total number of reads in lane=" + allReads);
-                myLogger.info("Total number of good barcoded reads=" + goodBarcodedReads);
-                myLogger.info("Timing process (sorting, collapsing, and writing TagCount to file).");
-                long timePoint1 = System.currentTimeMillis();
-                theTC.collapseCounts();
-                theTC.writeTagCountFile(outputDir + File.separator + countFileNames[laneNum], FilePacking.Bit, minCount);
-                myLogger.info("Process took " + (System.currentTimeMillis() - timePoint1) + " milliseconds.");
-                br.close();
-
-            } catch (Exception e) {
-                myLogger.error("Good Barcodes Read: " + goodBarcodedReads);
-                e.printStackTrace();
+            myLogger.info("Total number of reads in lane=" + allReads);
+            myLogger.info("Total number of good barcoded reads=" + goodBarcodedReads);
+            myLogger.info("Timing process (sorting, collapsing, and writing TagCount to file).");
+            long timePoint1 = System.currentTimeMillis();
+            theTC.collapseCounts();
+            theTC.writeTagCountFile(outputDir + File.separator + countFileNames[laneNum], FilePacking.Bit, minCount);
+            myLogger.info("Process took " + (System.currentTimeMillis() - timePoint1) + " milliseconds.");
+            br.close();
+
+        } catch (Exception e) {
+            myLogger.error("Good Barcodes Read: " + goodBarcodedReads);
+            e.printStackTrace();
+        } finally {
+            if (budget != null) {
+                budget.release(permits);
             }
-            myLogger.info("Finished reading " + (laneNum + 1) + " of " + fastqFiles.length + " sequence files.");
         }
+        myLogger.info("Finished reading " + (laneNum + 1) + " of " + fastqFiles.length + " sequence files.");
     }
 
     @Override
@@ -0,0 +1,94 @@
+/*
+ * LaneMemoryBudget
+ */
+package net.maizegenetics.gbs.pipeline;
+
+import java.util.concurrent.Semaphore;
+
+import net.maizegenetics.gbs.tagdist.Tags;
+import net.maizegenetics.gbs.tagdist.TagsByTaxa.FilePacking;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Limits how many fastq lanes are processed at the same time by the memory their count structures are expected to
+ * need.  The budget is kept in megabyte permits.  A lane asking for more than the whole budget is granted all of it,
+ * so it runs by itself rather than blocking forever.
+ */
+public class LaneMemoryBudget {
+
+    private static final Logger myLogger = Logger.getLogger(LaneMemoryBudget.class);
+    private static final long MB = 1L << 20;
+    private final Semaphore myPermits;
+    private final int myTotalPermits;
+
+    /**
+     * Creates a budget of 90% of the heap that is not yet in use (e.g. by the master tags).
+     */
+    public LaneMemoryBudget() {
+        this(defaultBudget());
+    }
+
+    /**
+     * @param budgetInBytes Memory that the concurrently processed lanes may use together
+     */
+    public LaneMemoryBudget(long budgetInBytes) {
+        myTotalPermits = (int) Math.max(1, Math.min(Integer.MAX_VALUE, budgetInBytes / MB));
+        myPermits = new Semaphore(myTotalPermits, true);
+    }
+
+    private static long defaultBudget() {
+        Runtime rt = Runtime.getRuntime();
+        long used = rt.totalMemory() - rt.freeMemory();
+        return (long) ((rt.maxMemory() - used) * 0.9);
+    }
+
+    public long getBudget() {
+        return myTotalPermits * MB;
+    }
+
+    /**
+     * Blocks until the requested memory is available.
+     *
+     * @param bytes Estimated memory needed by the lane
+     * @param laneName Name used in the log if the lane has to wait
+     *
+     * @return The number of permits taken, to be handed back to release()
+     */
+    public int acquire(long bytes, String laneName) {
+        int permits = (int) Math.max(1, Math.min(myTotalPermits, (bytes + MB - 1) / MB));
+        if (!myPermits.tryAcquire(permits)) {
+            myLogger.info("Waiting for " + permits + " MB of memory before processing " + laneName);
+            myPermits.acquireUninterruptibly(permits);
+        }
+        return permits;
+    }
+
+    public void release(int permits) {
+        myPermits.release(permits);
+    }
+
+    /**
+     * Estimated size of a TagsByTaxa built from theMasterTags: the copy of the tags plus the taxa by tags counts.
+     */
+    public static long estimateTBTBytes(int numTaxa, Tags theMasterTags, FilePacking countType) {
+        long numTags = theMasterTags.getTagCount();
+        long tagBytes = numTags * (8L * theMasterTags.getTagSizeInLong() + 1);
+        long cells = numTags * numTaxa;
+        switch (countType) {
+            case Short:
+                return tagBytes + 2 * cells;
+            case Byte:
+                return tagBytes + cells;
+            default:
+                return tagBytes + cells / 8;
+        }
+    }
+
+    /**
+     * Estimated size of a TagCountMutable holding maxGoodReads tags of tagLengthInLong longs.
+     */
+    public static long estimateTagCountBytes(int tagLengthInLong, int maxGoodReads) {
+        return (long) maxGoodReads * (8L * tagLengthInLong + 1 + 4);
+    }
+}
@@ -16,6 +16,7 @@ import net.maizegenetics.gbs.tagdist.TagsByTaxa;
 import net.maizegenetics.gbs.tagdist.TagsByTaxaBitFileMap;
 import net.maizegenetics.gbs.tagdist.TagsByTaxaByteFileMap;
 import net.maizegenetics.gbs.tagdist.TagsByTaxaShortFileMap;
+import net.maizegenetics.gbs.tagdist.TagsByTaxaShortSparse;
 import net.maizegenetics.gbs.tagdist.TagsByTaxaUtils;
 import net.maizegenetics.util.ArgsEngine;
 import net.maizegenetics.gbs.util.ReadsByTaxa;
@@ -46,6 +47,7 @@ public class MergeTagsByTaxaFilesPlugin extends AbstractPlugin {
     static ArgsEngine myArgsEngine = null;
     static boolean combineSynonymousTaxa = false;
     static int maxTags = 200000000;
+    static boolean mergeInMemory = false;
 
     public MergeTagsByTaxaFilesPlugin() {
         super(null, false);
@@ -58,10 +60,31 @@ public class MergeTagsByTaxaFilesPlugin extends AbstractPlugin {
     /**Determines the dimensions of the merged matrix, and creates a RandomAccessFile on disk large enough
     to hold the data.*/
     public static final void createMergeOutfile(String[] infiles, String outfile) {
+        TreeSet<String> allTaxa = new TreeSet();
+        TagCountMutable theTCM = collectTagsAndTaxa(infiles, allTaxa);
+        String[] tn = allTaxa.toArray(new String[0]);
+        TagsByTaxa tbtOut = newTBT(outfile, tn, theTCM);
+    }
+
+    /**Merges the files into a sparse TBT held in memory, whose size depends on the number of non-zero tag/taxon
+    cells rather than on the full matrix, and writes it in the format given by the output file extension.*/
+    public static final void mergeInMemory(String[] infiles, String outfile) {
+        TreeSet<String> allTaxa = new TreeSet();
+        TagCountMutable theTCM = collectTagsAndTaxa(infiles, allTaxa);
+        String[] tn = allTaxa.toArray(new String[0]);
+        TagsByTaxaShortSparse tbtOut = new TagsByTaxaShortSparse(tn, theTCM);
+        theTCM = null;
+        tbtOut.buildTagIndex();
+        fillMergeTBT(infiles, tbtOut);
+        myLogger.info("Non-zero tag/taxon cells in merged TBT: " + tbtOut.getNonZeroCellCount());
+        tbtOut.writeDistFile(new File(outfile), TagsByTaxaUtils.format(outfile), 0);
+    }
+
+    /**Collects the distinct tags of all input files, and adds their taxa names to allTaxa.*/
+    private static TagCountMutable collectTagsAndTaxa(String[] infiles, TreeSet<String> allTaxa) {
         TagCountMutable theTCM = new TagCountMutable(2, maxTags);  // 50,000,000 works on a Windows7 machine with 4GB of RAM - JCG. 
         myLogger.info("Mutable Tag Count Created.  MaxTags:" + theTCM.getSize());
         myLogger.info("CurrentSize:" + theTCM.getCurrentSize());
-        TreeSet<String> allTaxa = new TreeSet();
         int filesRead = 0;
         for (String inName : infiles) {
             filesRead++;
@@ -83,14 +106,19 @@ public class MergeTagsByTaxaFilesPlugin extends AbstractPlugin {
         }
         theTCM.shrinkToCurrentRows();
         myLogger.info("Size:" + theTCM.getSize());
-        String[] tn = allTaxa.toArray(new String[0]);
-        TagsByTaxa tbtOut = newTBT(outfile, tn, theTCM);
+        return theTCM;
     }
 
     /**Inserts tag count values into the RandomAccessFile created by @link{createMergeOutfile}.*/
     public static final void fillMergeOutfile(String[] infiles, String outfile) {
         TagsByTaxa tbtOut = newTBT(outfile);
         tbtOut.setMethodByRows(true);
+        fillMergeTBT(infiles, tbtOut);
+        tbtOut.getFileReadyForClosing();
+    }
+
+    /**Adds the tag counts of all input files to tbtOut.*/
+    private static void fillMergeTBT(String[] infiles, TagsByTaxa tbtOut) {
         int count = 0;
         int filesRead = 0;
         for (String inName : infiles) {
@@ -121,7 +149,6 @@ public class MergeTagsByTaxaFilesPlugin extends AbstractPlugin {
                 }
             }
         }
-        tbtOut.getFileReadyForClosing();
     }
 
     public static int[] taxaRedirect(String[] fromNames, String[] toNames) {
@@ -140,8 +167,12 @@ public class MergeTagsByTaxaFilesPlugin extends AbstractPlugin {
 
     @Override
     public DataSet performFunction(DataSet input) {
-    	createMergeOutfile(infiles, outfilename);
-        fillMergeOutfile(infiles, outfilename);
+        if (mergeInMemory) {
+            mergeInMemory(infiles, outfilename);
+        } else {
+            createMergeOutfile(infiles, outfilename);
+            fillMergeOutfile(infiles, outfilename);
+        }
         if (hapmapFile != null) {
             myLogger.info("Calling SNPs in good reads.");
             ReadsByTaxa rbt = new ReadsByTaxa();
@@ -169,6 +200,7 @@ public class MergeTagsByTaxaFilesPlugin extends AbstractPlugin {
             myArgsEngine.add("-s", "--max_tags", true);
             myArgsEngine.add("-x", "--combine-synonymous-taxa");
             myArgsEngine.add("-h", "--write-hapmap", true);
+            myArgsEngine.add("-sp", "--sparse-in-memory");
         }
 
         myArgsEngine.parse(args);
@@ -176,6 +208,9 @@ public class MergeTagsByTaxaFilesPlugin extends AbstractPlugin {
         if (myArgsEngine.getBoolean("-x")) {
             combineSynonymousTaxa = true;
         }
+        if (myArgsEngine.getBoolean("-sp")) {
+            mergeInMemory = true;
+        }
         if (myArgsEngine.getBoolean("-h")) {
             hapmapFile = new File(myArgsEngine.getString("-h"));
         }
@@ -223,6 +258,7 @@ public class MergeTagsByTaxaFilesPlugin extends AbstractPlugin {
                 + "-o  Output file name\n"
                 + "-s  Maximum number of tags the TBT can hold while merging (default: " + maxTags + ")\n"
                 + "-x  Merge tag counts of taxa with identical names (default: false)\n"
+                + "-sp Merge in memory using a sparse TBT instead of a RandomAccessFile (memory scales with non-zero counts)\n"
                 + "-h  Call snps in output and write to HapMap file with the provided name\n\n\n",
                 new IllegalArgumentException());
     }
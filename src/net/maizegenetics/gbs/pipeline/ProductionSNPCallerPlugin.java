@@ -16,6 +16,7 @@ import net.maizegenetics.util.DirectoryCrawler;
 import net.maizegenetics.plugindef.AbstractPlugin;
 import net.maizegenetics.plugindef.DataSet;
 import net.maizegenetics.gbs.homology.TagMatchFinder;
+import net.maizegenetics.gbs.homology.TagWordIndex;
 import net.maizegenetics.pal.alignment.ExportUtils;
 import net.maizegenetics.pal.alignment.Locus;
 import java.awt.Frame;
@@ -25,8 +26,12 @@ import java.io.OutputStreamWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import javax.swing.ImageIcon;
 import net.maizegenetics.gbs.maps.TOPMInterface;
 import net.maizegenetics.gbs.maps.TOPMUtils;
@@ -65,8 +70,9 @@ public class ProductionSNPCallerPlugin extends AbstractPlugin {
     private String myOutputDir = null;
     private TOPMInterface topm = null;
     private int maxDivergence = 0;
+    private TagMatchFinder tagMatchFinder = null;  // word index of the topm, built once when maxDivergence > 0
     private int[] chromosomes = null;
-    private boolean fastq = true;
+    private int numThreads = 1;  // number of raw sequence files read at the same time
     private HashMap<String,Integer> KeyFileColumns = new HashMap<String,Integer>();
     private TreeMap<String,Boolean> FlowcellLanes = new TreeMap<String,Boolean>();  // true = corresponding fastq (or qseq) file is present in input directory
     private TreeMap<String,String> FullNameToFinalName = new TreeMap<String,String>();
@@ -75,6 +81,9 @@ public class ProductionSNPCallerPlugin extends AbstractPlugin {
     private HashMap<String,Integer> FinalNameToTaxonIndex = new HashMap<String,Integer>();
     private MutableNucleotideDepthAlignment genos = null;
     private HashMap<Integer,Integer>[] PositionToSite = null;  // indices = chrIndices.  For a given position (key), eaach HashMap provides the site in the MutableNucleotideDepthAlignment (value)
+    private int[] tagFirstVariant = null;  // index = tag index in the topm.  First entry of the tag's variants in variantSite and variantAllele
+    private int[] variantSite = null;  // site in the MutableNucleotideDepthAlignment of each variant
+    private byte[] variantAllele = null;
     private int totalNSites = 0;
     private TreeMap<String,Integer> RawReadCountsForFullSampleName = new TreeMap<String,Integer>();
     private TreeMap<String,Integer> RawReadCountsForFinalSampleName = new TreeMap<String,Integer>();
@@ -104,6 +113,7 @@ public class ProductionSNPCallerPlugin extends AbstractPlugin {
             + "  -e   Enzyme used to create the GBS library\n"
             + "  -sL  Use STACKS likelihood method to call heterozygotes (default: use tasselGBS likelihood ratio method)\n"
             + "  -o   Output directory\n"
+            + "  -th  Number of raw sequence files read at the same time (default: 1)\n"
 //            + "  -d  Maximum divergence (edit distance) between new read and previously mapped read (Default: 0 = perfect matches only)\n"  // NOT IMPLEMENTED YET
         );
     }
@@ -123,6 +133,7 @@ public class ProductionSNPCallerPlugin extends AbstractPlugin {
             myArgsEngine.add("-sL", "--STACKS-likelihood", false);
             myArgsEngine.add("-o",  "--output-directory", true);
             myArgsEngine.add("-d",  "--divergence", true);
+            myArgsEngine.add("-th", "--threads", true);
         }
         myArgsEngine.parse(args);
         String tempDirectory = myArgsEngine.getString("-i");
@@ -186,6 +197,21 @@ public class ProductionSNPCallerPlugin extends AbstractPlugin {
         }
         if (myArgsEngine.getBoolean("-d")) {
             maxDivergence = Integer.parseInt(myArgsEngine.getString("-d"));
+            if (maxDivergence > 0) {
+                tagMatchFinder = new TagMatchFinder(topm, TagWordIndex.getIndex(topm, myArgsEngine.getString("-m")));
+            }
+        }
+        if (myArgsEngine.getBoolean("-th")) {
+            try {
+                numThreads = Integer.parseInt(myArgsEngine.getString("-th"));
+            } catch (NumberFormatException e) {
+                printUsage();
+                throw new IllegalArgumentException("The number of threads (option -th) must be an integer: " + myArgsEngine.getString("-th"));
+            }
+            if (numThreads < 1) {
+                printUsage();
+                throw new IllegalArgumentException("The number of threads (option -th) must be at least 1: " + numThreads);
+            }
         }
     }
 
@@ -210,33 +236,98 @@ public class ProductionSNPCallerPlugin extends AbstractPlugin {
     }
 
     private void readRawSequencesAndRecordDepth() {
+        generateTagVariantSites();
+        // the ParseBarcodeReads are made here, one lane after another, because their constructor sets the (static) enzyme
+        ArrayList<LaneReader> lanes = new ArrayList<LaneReader>();
         for (int fileNum = 0; fileNum < myRawSeqFileNames.length; fileNum++) {
-            int[] counters = {0, 0, 0, 0, 0, 0}; // 0:allReads 1:goodBarcodedReads 2:goodMatched 3:perfectMatches 4:imperfectMatches 5:singleImperfectMatches
             ParseBarcodeRead thePBR = setUpBarcodes(fileNum);
             if (thePBR == null || thePBR.getBarCodeCount() == 0) {
                 System.out.println("No barcodes found. Skipping this flowcell lane.");
                 continue;
             }
-            myLogger.info("Looking for known SNPs in sequence reads...");
+            lanes.add(new LaneReader(fileNum, thePBR));
+        }
+        if (numThreads <= 1) {
+            for (LaneReader lane : lanes) {
+                lane.run();
+            }
+        } else {
+            myLogger.info("Reading up to " + numThreads + " raw sequence files at once");
+            ExecutorService lanePool = Executors.newFixedThreadPool(numThreads);
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (LaneReader lane : lanes) {
+                futures.add(lanePool.submit(lane));
+            }
+            lanePool.shutdown();
+            for (int laneNum = 0; laneNum < futures.size(); laneNum++) {
+                try {
+                    futures.get(laneNum).get();
+                } catch (Exception e) {
+                    myLogger.error("readRawSequencesAndRecordDepth: error processing " + myRawSeqFileNames[lanes.get(laneNum).fileNum] + ": " + e);
+                    e.printStackTrace();
+                }
+            }
+        }
+        tagFirstVariant = null;
+        variantSite = null;
+        variantAllele = null;
+    }
+
+    /**
+     * Reads one raw sequence file.  The depths are buffered as (tag, taxon) pairs, which are sorted and added to
+     * genos (under a lock on genos) whenever the buffer is full, and the read counts are added to the report maps
+     * once the whole file is read.  So several lanes can be read at the same time.
+     */
+    private class LaneReader implements Runnable {
+
+        private static final int DEPTH_BUFFER_SIZE = 1 << 22;
+        private final int fileNum;
+        private final ParseBarcodeRead thePBR;
+        private final boolean fastq;
+        private final int[] barcodeTaxonIndex;  // index = barcode index in thePBR
+        private final int[] rawReadsPerBarcode;
+        private final int[] matchedReadsPerBarcode;
+        private final int[] counters = {0, 0, 0, 0, 0, 0}; // 0:allReads 1:goodBarcodedReads 2:goodMatched 3:perfectMatches 4:imperfectMatches 5:singleImperfectMatches
+        private final TagMatchFinder.Hits imperfectHits = new TagMatchFinder.Hits();
+        private final ReadBarcodeResult rr = new ReadBarcodeResult();
+        private long[] depthBuffer = null;  // (tag index << 32) | taxon index, one per matched read of a tag with variants
+        private int depthBufferCount = 0;
+
+        LaneReader(int fileNum, ParseBarcodeRead thePBR) {
+            this.fileNum = fileNum;
+            this.thePBR = thePBR;
+            fastq = !isQseqFile(fileNum);
+            int nBarcodes = thePBR.getBarCodeCount();
+            barcodeTaxonIndex = new int[nBarcodes];
+            for (int b = 0; b < nBarcodes; b++) {
+                barcodeTaxonIndex[b] = FinalNameToTaxonIndex.get(FullNameToFinalName.get(thePBR.getTheBarcodes(b).getTaxaName()));
+            }
+            rawReadsPerBarcode = new int[nBarcodes];
+            matchedReadsPerBarcode = new int[nBarcodes];
+        }
+
+        @Override
+        public void run() {
+            myLogger.info("Looking for known SNPs in sequence reads of " + myRawSeqFileNames[fileNum]);
+            depthBuffer = new long[DEPTH_BUFFER_SIZE];
             String temp = "Nothing has been read from the raw sequence file yet";
             BufferedReader br = getBufferedReaderForRawSeqFile(fileNum);
             try {
                 while ((temp = br.readLine()) != null) {
                     if (counters[0] % 1000000 == 0)  reportProgress(counters);
-                    ReadBarcodeResult rr = readSequenceRead(br, temp, thePBR, counters);
-                    if (rr != null) {
+                    if (readSequenceRead(br, temp)) {
                         counters[1]++;  // goodBarcodedReads
-                        RawReadCountsForFullSampleName.put(rr.getTaxonName(),RawReadCountsForFullSampleName.get(rr.getTaxonName())+1);
-                        RawReadCountsForFinalSampleName.put(FullNameToFinalName.get(rr.getTaxonName()),RawReadCountsForFinalSampleName.get(FullNameToFinalName.get(rr.getTaxonName()))+1);
+                        int barcode = rr.getBarcodeIndex();
+                        rawReadsPerBarcode[barcode]++;
                         int tagIndex = topm.getTagIndex(rr.getRead());
                         if (tagIndex >= 0)  counters[3]++;  // perfectMatches
-                        if (tagIndex < 0 && maxDivergence > 0)  tagIndex = findBestImperfectMatch(rr.getRead(), counters);
+                        if (tagIndex < 0 && maxDivergence > 0)  tagIndex = findBestImperfectMatch(rr.getRead(), imperfectHits, counters);
                         if (tagIndex < 0)  continue;
                         counters[2]++;  // goodMatched++;
-                        MatchedReadCountsForFullSampleName.put(rr.getTaxonName(),MatchedReadCountsForFullSampleName.get(rr.getTaxonName())+1);
-                        MatchedReadCountsForFinalSampleName.put(FullNameToFinalName.get(rr.getTaxonName()),MatchedReadCountsForFinalSampleName.get(FullNameToFinalName.get(rr.getTaxonName()))+1);
-                        int taxonIndex = FinalNameToTaxonIndex.get(FullNameToFinalName.get(rr.getTaxonName()));
-                        incrementDepthForTagVariants(tagIndex, taxonIndex);
+                        matchedReadsPerBarcode[barcode]++;
+                        if (tagFirstVariant[tagIndex] == tagFirstVariant[tagIndex + 1])  continue;  // no variants on this tag
+                        if (depthBufferCount == depthBuffer.length)  flushDepthBuffer();
+                        depthBuffer[depthBufferCount++] = ((long) tagIndex << 32) | barcodeTaxonIndex[barcode];
                     }
                 }
                 br.close();
@@ -245,7 +336,59 @@ public class ProductionSNPCallerPlugin extends AbstractPlugin {
                 System.out.println("Last line read: "+temp);
                 e.printStackTrace();
             }
-            reportTotals(fileNum, counters);
+            flushDepthBuffer();
+            depthBuffer = null;
+            synchronized (genos) {
+                for (int b = 0; b < rawReadsPerBarcode.length; b++) {
+                    String fullName = thePBR.getTheBarcodes(b).getTaxaName();
+                    String finalName = FullNameToFinalName.get(fullName);
+                    RawReadCountsForFullSampleName.put(fullName, RawReadCountsForFullSampleName.get(fullName) + rawReadsPerBarcode[b]);
+                    RawReadCountsForFinalSampleName.put(finalName, RawReadCountsForFinalSampleName.get(finalName) + rawReadsPerBarcode[b]);
+                    MatchedReadCountsForFullSampleName.put(fullName, MatchedReadCountsForFullSampleName.get(fullName) + matchedReadsPerBarcode[b]);
+                    MatchedReadCountsForFinalSampleName.put(finalName, MatchedReadCountsForFinalSampleName.get(finalName) + matchedReadsPerBarcode[b]);
+                }
+                reportTotals(fileNum, counters);
+            }
+        }
+
+        private boolean readSequenceRead(BufferedReader br, String temp) {
+            boolean goodRead = false;
+            try {
+                if (fastq) {
+                    String sl = br.readLine();    // read the 2nd line in the set of 4 lines = sequence
+                    br.readLine();  // skip the 3rd line
+                    br.readLine();  // skip the 4th in the set of 4 lines = quality score (note that the QS is scaled differently in Cassava 1.8 - we don't use it so it is not corrected here)
+                    goodRead = thePBR.parseReadIntoTagAndTaxa(sl, null, true, 0, rr);
+                } else {  // qseq
+                    String[] jj = temp.split("\\s");
+                    goodRead = thePBR.parseReadIntoTagAndTaxa(jj[8], null, false, 0, rr);
+                }
+            } catch (Exception e) {
+                System.out.println("Catch in readSequenceRead() at nReads=" + counters[0] + " e=" + e);
+                System.out.println(temp);
+                e.printStackTrace();
+            }
+            counters[0]++;  // allReads
+            return goodRead;
+        }
+
+        /**
+         * Sorts the buffered (tag, taxon) pairs, so that each pair is added to genos once with its number of reads.
+         */
+        private void flushDepthBuffer() {
+            Arrays.sort(depthBuffer, 0, depthBufferCount);
+            synchronized (genos) {
+                for (int i = 0; i < depthBufferCount;) {
+                    long tagTaxon = depthBuffer[i];
+                    int j = i + 1;
+                    while ((j < depthBufferCount) && (depthBuffer[j] == tagTaxon)) {
+                        j++;
+                    }
+                    addDepthForTagVariants((int) (tagTaxon >>> 32), (int) tagTaxon, j - i);
+                    i = j;
+                }
+            }
+            depthBufferCount = 0;
         }
     }
  
@@ -398,11 +541,7 @@ public class ProductionSNPCallerPlugin extends AbstractPlugin {
     private ParseBarcodeRead setUpBarcodes(int fileNum) {
         System.gc();
         System.out.println("\nWorking on GBS raw sequence file: " + myRawSeqFileNames[fileNum]);
-        fastq = true;
-        if (myRawSeqFileNames[fileNum].substring(myRawSeqFileNames[fileNum].lastIndexOf(File.separator)).contains("qseq")) {
-            fastq = false;
-        }
-        if (fastq) {
+        if (!isQseqFile(fileNum)) {
             System.out.println("\tThis file is assumed to be in fastq format");
         } else {
             System.out.println("\tThis file contains 'qseq' in its name so is assumed to be in qseq format");
@@ -417,6 +556,10 @@ public class ProductionSNPCallerPlugin extends AbstractPlugin {
         }
     }
     
+    private boolean isQseqFile(int fileNum) {
+        return myRawSeqFileNames[fileNum].substring(myRawSeqFileNames[fileNum].lastIndexOf(File.separator)).contains("qseq");
+    }
+
     /**
      * Parses out the flowcell and lane from the raw GBS sequence filename (fastq or qseq file)
      * @param rawSeqFileName
@@ -569,70 +712,79 @@ public class ProductionSNPCallerPlugin extends AbstractPlugin {
         return br;
     }
 
-    private ReadBarcodeResult readSequenceRead(BufferedReader br, String temp, ParseBarcodeRead thePBR, int[] counters) {
-        ReadBarcodeResult rr = null;
-        String sl = "";
-        try {
-            if (fastq) {
-                sl = br.readLine();    // read the 2nd line in the set of 4 lines = sequence
-                temp = br.readLine();  // skip the 3rd line
-                temp = br.readLine();  // skip the 4th in the set of 4 lines = quality score (note that the QS is scaled differently in Cassava 1.8 - we don't use it so it is not corrected here)
-                rr = thePBR.parseReadIntoTagAndTaxa(sl, null, true, 0);
-            } else {  // qseq
-                String[] jj = temp.split("\\s");
-                sl = jj[8];
-                rr = thePBR.parseReadIntoTagAndTaxa(sl, null, false, 0);
-            }
-        } catch (Exception e) {
-            System.out.println("Catch in readSequenceRead() at nReads=" + counters[0] + " e=" + e);
-            System.out.println(temp);
-            e.printStackTrace();
-        }
-        counters[0]++;  // allReads
-        return rr;
-    }
-
-    private int findBestImperfectMatch(long[] read, int[] counters) {
+    private int findBestImperfectMatch(long[] read, TagMatchFinder.Hits imperfectHits, int[] counters) {
         // this method is not ready for prime time -- to resolve a tie, it currently chooses a random tag out of the tied tags
         int tagIndex = -1;
-        TagMatchFinder tmf = new TagMatchFinder(topm);
-        TreeMap<Integer, Integer> bestHitsAndDiv = tmf.findMatchesWithIntLengthWords(read, maxDivergence, true);
-        if (bestHitsAndDiv.size() > 0) {
+        int nBestHits = tagMatchFinder.findMatches(read, maxDivergence, true, imperfectHits);
+        if (nBestHits > 0) {
             counters[4]++; // imperfectMatches
-            if (bestHitsAndDiv.size() == 1) {
+            if (nBestHits == 1) {
                 counters[5]++; // singleImperfectMatches
             }
-            tagIndex = bestHitsAndDiv.firstKey();  // a random tag (firstKey) chosen to resolve the tie = suboptimal behavior
+            tagIndex = imperfectHits.getTagIndex(0);  // a random tag (the lowest index) chosen to resolve the tie = suboptimal behavior
         }
         return tagIndex;
     }
 
-    private void incrementDepthForTagVariants(int tagIndex, int taxonIndex) {
-        int chromosome = topm.getChromosome(tagIndex);
-        if (chromosome == TOPMInterface.INT_MISSING) {
-            return;
-        }
-        Locus locus = new Locus(chromosome + "", chromosome + "", -1, -1, null, null);
-        int startPos = topm.getStartPosition(tagIndex);
-        for (int variant = 0; variant < topm.getMaxNumVariants(); variant++) {
-            byte newBase = topm.getVariantDef(tagIndex, variant); // Nb: this should return Tassel4 allele encodings
-            if ((newBase == TOPMInterface.BYTE_MISSING) || (newBase == Alignment.UNKNOWN_ALLELE)) {
+    /**
+     * Looks up, once for all reads, the site in genos and the allele of each variant of each tag in the TOPM.  The
+     * variants of tag t are in variantSite[] and variantAllele[] from tagFirstVariant[t] to tagFirstVariant[t+1].
+     */
+    private void generateTagVariantSites() {
+        int nTags = topm.getSize();
+        int maxNumVariants = topm.getMaxNumVariants();
+        tagFirstVariant = new int[nTags + 1];
+        int[] sites = new int[nTags];
+        byte[] alleles = new byte[nTags];
+        int nVariants = 0;
+        for (int tagIndex = 0; tagIndex < nTags; tagIndex++) {
+            tagFirstVariant[tagIndex] = nVariants;
+            int chromosome = topm.getChromosome(tagIndex);
+            if (chromosome == TOPMInterface.INT_MISSING || chromosome < 0 || chromosome >= PositionToSite.length || PositionToSite[chromosome] == null) {
                 continue;
             }
-            int offset = topm.getVariantPosOff(tagIndex, variant);
-            int pos = startPos + offset;
-//            int currSite = genos.getSiteOfPhysicalPosition(pos, locus);
-            int currSite = PositionToSite[chromosome].get(pos);
-            if (currSite < 0) {
-                continue;
+            int startPos = topm.getStartPosition(tagIndex);
+            for (int variant = 0; variant < maxNumVariants; variant++) {
+                byte newBase = topm.getVariantDef(tagIndex, variant); // Nb: this should return Tassel4 allele encodings
+                if ((newBase == TOPMInterface.BYTE_MISSING) || (newBase == Alignment.UNKNOWN_ALLELE)) {
+                    continue;
+                }
+                int offset = topm.getVariantPosOff(tagIndex, variant);
+                Integer currSite = PositionToSite[chromosome].get(startPos + offset);
+                if (currSite == null || currSite < 0) {
+                    continue;
+                }
+                if (nVariants == sites.length) {
+                    sites = Arrays.copyOf(sites, 2 * sites.length);
+                    alleles = Arrays.copyOf(alleles, 2 * alleles.length);
+                }
+                sites[nVariants] = currSite;
+                alleles[nVariants] = newBase;
+                nVariants++;
             }
-            genos.incrementDepthForAllele(taxonIndex, currSite, newBase);
+        }
+        tagFirstVariant[nTags] = nVariants;
+        variantSite = Arrays.copyOf(sites, nVariants);
+        variantAllele = Arrays.copyOf(alleles, nVariants);
+        PositionToSite = null;  // no longer needed
+        myLogger.info("Found " + nVariants + " variants on " + nTags + " tags in the TOPM");
+    }
+
+    /**
+     * Adds nReads to the depth of each variant of a tag.  Callers must hold the lock on genos.
+     */
+    private void addDepthForTagVariants(int tagIndex, int taxonIndex, int nReads) {
+        for (int v = tagFirstVariant[tagIndex], end = tagFirstVariant[tagIndex + 1]; v < end; v++) {
+            int site = variantSite[v];
+            byte allele = variantAllele[v];
+            genos.setDepthForAllele(taxonIndex, site, allele, genos.getDepthForAllele(taxonIndex, site, allele) + nReads);
         }
     }
     
     private void callGenotypes() {
         System.out.print("\nCalling genotypes...");
         topm = null;  // no longer needed in memory
+        tagMatchFinder = null;
         System.gc();
         for (int taxon = 0, nTaxa = genos.getSequenceCount(); taxon < nTaxa; taxon++) {
             byte[] callsForTaxon = resolveGenosForTaxon(taxon);
@@ -17,7 +17,9 @@ import java.io.IOException;
 import net.maizegenetics.gbs.homology.ParseBarcodeRead;
 import net.maizegenetics.gbs.homology.ReadBarcodeResult;
 import net.maizegenetics.gbs.maps.TagsOnPhysicalMap;
+import net.maizegenetics.gbs.tagdist.AbstractTags;
 import net.maizegenetics.gbs.tagdist.TagCounts;
+import net.maizegenetics.gbs.tagdist.TagIndex;
 import net.maizegenetics.gbs.tagdist.Tags;
 import net.maizegenetics.gbs.tagdist.TagsByTaxa.FilePacking;
 import net.maizegenetics.gbs.tagdist.TagsByTaxaByteHDF5TaxaGroups;
@@ -193,6 +195,7 @@ public class SeqToTBTHDF5Plugin extends AbstractPlugin {
      * @param minCount       The minimum number of times a tag must show up in a fastq file before it is included in the corresponding TBT file
      */
     public void matchTagsToTaxa(String[] fastqFileS, String keyFileS, String enzyme, Tags theMasterTags, String outputTBT, String outputLog) {
+        TagIndex masterIndex = (theMasterTags instanceof AbstractTags) ? ((AbstractTags) theMasterTags).buildTagIndex() : new TagIndex(theMasterTags);
         for (int laneNum = 0; laneNum < fastqFileS.length; laneNum++) {
             //            IntArrayList[] taxaReads;
             //            int[] readsPerSample, mappedReadsPerSample;
@@ -240,7 +243,7 @@ public class SeqToTBTHDF5Plugin extends AbstractPlugin {
                     if (rr != null) {  //If read is barcoded, note this fact and find tag in the TOPM file
                         goodBarcodedReads++;
                         int t = taxaNameToIndices.get(rr.getTaxonName());
-                        int h = theMasterTags.getTagIndex(rr.getRead());
+                        int h = masterIndex.getIndex(rr.getRead());
                         readsPerSample[t]++;
                         if (h > -1) {
                             goodMatched++;
@@ -0,0 +1,370 @@
+/*
+ * TagCountMerger
+ */
+package net.maizegenetics.gbs.pipeline;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.maizegenetics.gbs.util.BaseEncoder;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Merges sorted binary tag count (.cnt) files into one, adding up the counts of identical tags.
+ * <p>
+ * The files are read through one cursor each, and the cursors are kept in a binary min-heap ordered by their
+ * current tag, so each tag costs O(log k) comparisons for k files instead of the O(k) scan of every file.  When
+ * the same tag is in several files its length is taken from the last of them, as before.
+ * <p>
+ * The binary output is written in a single pass: the header is reserved, the records are streamed after it, and
+ * the tag count is written into the header through the FileChannel at the end.  The FASTQ text output is written
+ * to outputFileName + ".fq".
+ * <p>
+ * With several threads the input files are split into groups that are merged at the same time into temporary
+ * files next to the output, which are then merged into the output.  The minimum count is only applied in that
+ * final merge.  All state is held by the instance, so several merges can run in one JVM.
+ */
+public class TagCountMerger {
+
+    private static final Logger myLogger = Logger.getLogger(TagCountMerger.class);
+    private static final int MIN_BUFFER = 1 << 16, MAX_BUFFER = 4000000;
+    private static final long TOTAL_BUFFER = 256L << 20;  // for all the input files together
+    private final int myMinCount;
+    private final boolean myTextOutput;
+    private int tagLengthInLong = -1;
+    private DataInputStream[] myInputs;
+    private int[] myRemaining;  // tags not yet read from each file
+    private long[] myTags;  // current tag of each cursor, tagLengthInLong longs per cursor
+    private byte[] myLengths;
+    private int[] myCounts;
+    private int[] myHeap;
+    private int myHeapSize;
+    private long myTagsRead = 0;
+    private long myTagsWritten = 0;
+    private long[] myGroupTagsRead;  // tags read by each group of a hierarchical merge
+
+    /**
+     * @param minCount Minimum count of reads for a tag to be output
+     * @param textOutput true for FASTQ text output, false for a binary tag count file
+     */
+    public TagCountMerger(int minCount, boolean textOutput) {
+        myMinCount = minCount;
+        myTextOutput = textOutput;
+    }
+
+    /**
+     * Merges the input files into the output file.
+     * @return Number of tags written
+     */
+    public long merge(String[] inputFileNames, String outputFileName) {
+        return merge(inputFileNames, outputFileName, 1);
+    }
+
+    /**
+     * Merges the input files into the output file, merging groups of input files concurrently first when numThreads
+     * is more than 1.
+     * @return Number of tags written
+     */
+    public long merge(String[] inputFileNames, String outputFileName, int numThreads) {
+        long time = System.nanoTime();
+        long tagsRead;
+        long tagsWritten;
+        int nGroups = Math.min(numThreads, inputFileNames.length / 2);
+        if (nGroups < 2) {
+            tagsWritten = mergeFiles(inputFileNames, outputFileName);
+            tagsRead = myTagsRead;
+        } else {
+            tagsRead = 0;
+            String[] groupFiles = mergeGroups(inputFileNames, outputFileName, nGroups);
+            try {
+                tagsWritten = mergeFiles(groupFiles, outputFileName);
+            } finally {
+                for (String groupFile : groupFiles) {
+                    new File(groupFile).delete();
+                }
+            }
+            for (int g = 0; g < nGroups; g++) {
+                tagsRead += myGroupTagsRead[g];
+            }
+        }
+        double seconds = (System.nanoTime() - time) / 1e9;
+        myLogger.info(String.format("Merged %d tags from %d files into %d tags in %.1f s: %.0f tags read per second, %.1f ns per tag read",
+                tagsRead, inputFileNames.length, tagsWritten, seconds, tagsRead / seconds, 1e9 * seconds / Math.max(tagsRead, 1)));
+        return tagsWritten;
+    }
+
+    private String[] mergeGroups(String[] inputFileNames, String outputFileName, int nGroups) {
+        File outDir = new File(outputFileName).getAbsoluteFile().getParentFile();
+        final String[] groupFiles = new String[nGroups];
+        final long[] groupTagsRead = new long[nGroups];
+        myGroupTagsRead = groupTagsRead;
+        myLogger.info("Merging " + inputFileNames.length + " files in " + nGroups + " groups at the same time");
+        ExecutorService pool = Executors.newFixedThreadPool(nGroups);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        try {
+            for (int g = 0; g < nGroups; g++) {
+                final int group = g;
+                final String[] groupInput = Arrays.copyOfRange(inputFileNames, g * inputFileNames.length / nGroups, (g + 1) * inputFileNames.length / nGroups);
+                groupFiles[g] = File.createTempFile("merge" + g + "_", ".cnt", outDir).getPath();
+                futures.add(pool.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        TagCountMerger groupMerger = new TagCountMerger(1, false);  // keep every tag until the final merge
+                        groupMerger.mergeFiles(groupInput, groupFiles[group]);
+                        groupTagsRead[group] = groupMerger.myTagsRead;
+                    }
+                }));
+            }
+            pool.shutdown();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (Exception e) {
+            pool.shutdownNow();
+            for (String groupFile : groupFiles) {
+                if (groupFile != null) {
+                    new File(groupFile).delete();
+                }
+            }
+            myLogger.error("Error while merging groups of tag count files: " + e);
+            e.printStackTrace();
+            throw new IllegalStateException("TagCountMerger: merging the groups of files failed: " + e);
+        }
+        return groupFiles;
+    }
+
+    private long mergeFiles(String[] inputFileNames, String outputFileName) {
+        openInputs(inputFileNames);
+        File outFile = new File(myTextOutput ? outputFileName + ".fq" : outputFileName);
+        long[] outTag = new long[tagLengthInLong];
+        try {
+            FileOutputStream fos = new FileOutputStream(outFile);
+            DataOutputStream outStream = new DataOutputStream(new BufferedOutputStream(fos, 655360));
+            if (!myTextOutput) {
+                outStream.writeInt(0);  // tag count, written at the end
+                outStream.writeInt(tagLengthInLong);
+            }
+            while (myHeapSize > 0) {
+                int c = myHeap[0];
+                System.arraycopy(myTags, c * tagLengthInLong, outTag, 0, tagLengthInLong);
+                int count = 0;
+                byte length = 0;
+                do {
+                    count += myCounts[c];
+                    length = myLengths[c];
+                    if (readNextTag(c)) {
+                        siftDown(0);
+                    } else {
+                        myHeap[0] = myHeap[--myHeapSize];
+                        siftDown(0);
+                    }
+                    c = myHeap[0];
+                } while ((myHeapSize > 0) && (compareTag(c, outTag) == 0));
+                if (count >= myMinCount) {
+                    if (myTextOutput) {
+                        writeFASTQ(outStream, outTag, length, count);
+                    } else {
+                        writeTag(outStream, outTag, length, count);
+                    }
+                    myTagsWritten++;
+                    if (myTagsWritten % 10000000 == 0) {
+                        myLogger.info("tagsRead=" + myTagsRead + " tagsWritten=" + myTagsWritten + " filesOpen=" + myHeapSize + " " + BaseEncoder.getSequenceFromLong(outTag));
+                    }
+                }
+            }
+            outStream.flush();
+            if (!myTextOutput) {
+                if (myTagsWritten > Integer.MAX_VALUE) {
+                    throw new IllegalStateException("TagCountMerger: too many tags for a tag count file: " + myTagsWritten);
+                }
+                ByteBuffer header = ByteBuffer.allocate(4);
+                header.putInt(0, (int) myTagsWritten);
+                fos.getChannel().write(header, 0);
+            }
+            outStream.close();
+        } catch (IOException e) {
+            myLogger.error("Error while writing " + outFile + ": " + e);
+            e.printStackTrace();
+            throw new IllegalStateException("TagCountMerger: can't write " + outFile + ": " + e);
+        } finally {
+            closeInputs();
+        }
+        return myTagsWritten;
+    }
+
+    private void openInputs(String[] inputFileNames) {
+        int k = inputFileNames.length;
+        int bufferSize = (int) Math.max(MIN_BUFFER, Math.min(MAX_BUFFER, TOTAL_BUFFER / Math.max(k, 1)));
+        myInputs = new DataInputStream[k];
+        myRemaining = new int[k];
+        myLengths = new byte[k];
+        myCounts = new int[k];
+        myHeap = new int[k];
+        myHeapSize = 0;
+        tagLengthInLong = -1;
+        myTagsRead = 0;
+        myTagsWritten = 0;
+        try {
+            for (int f = 0; f < k; f++) {
+                myInputs[f] = new DataInputStream(new BufferedInputStream(new FileInputStream(inputFileNames[f]), bufferSize));
+                myRemaining[f] = myInputs[f].readInt();
+                int fileTagLengthInLong = myInputs[f].readInt();
+                if (tagLengthInLong == -1) {
+                    tagLengthInLong = fileTagLengthInLong;
+                    myTags = new long[k * tagLengthInLong];
+                } else if (fileTagLengthInLong != tagLengthInLong) {
+                    throw new IllegalArgumentException("TagCountMerger: " + inputFileNames[f] + " has tags of " + fileTagLengthInLong
+                            + " longs, the other files of " + tagLengthInLong);
+                }
+                myLogger.info("Opened :" + inputFileNames[f] + " tags=" + myRemaining[f]);
+            }
+        } catch (IOException e) {
+            closeInputs();
+            myLogger.error("Error while opening the tag count files: " + e);
+            e.printStackTrace();
+            throw new IllegalStateException("TagCountMerger: can't read the tag count files: " + e);
+        } catch (IllegalArgumentException e) {
+            closeInputs();
+            throw e;
+        }
+        if (tagLengthInLong == -1) {
+            tagLengthInLong = 2;
+            myTags = new long[0];
+        }
+        for (int f = 0; f < k; f++) {
+            if (readNextTag(f)) {
+                myHeap[myHeapSize++] = f;
+            }
+        }
+        for (int i = myHeapSize / 2 - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+    }
+
+    /**
+     * Reads the next tag of a file into its cursor.
+     * @return false if the file has no more tags (it is then closed)
+     */
+    private boolean readNextTag(int f) {
+        if (myRemaining[f] == 0) {
+            closeInput(f);
+            return false;
+        }
+        try {
+            int offset = f * tagLengthInLong;
+            for (int j = 0; j < tagLengthInLong; j++) {
+                myTags[offset + j] = myInputs[f].readLong();
+            }
+            myLengths[f] = myInputs[f].readByte();
+            myCounts[f] = myInputs[f].readInt();
+            myRemaining[f]--;
+            myTagsRead++;
+            return true;
+        } catch (EOFException e) {
+            myLogger.warn("File " + f + " ended " + myRemaining[f] + " tags before the count in its header.");
+            closeInput(f);
+            return false;
+        } catch (IOException e) {
+            myLogger.error("Error while reading tag count file " + f + ": " + e);
+            e.printStackTrace();
+            throw new IllegalStateException("TagCountMerger: can't read tag count file " + f + ": " + e);
+        }
+    }
+
+    private void closeInput(int f) {
+        if (myInputs[f] == null) {
+            return;
+        }
+        try {
+            myInputs[f].close();
+        } catch (IOException e) {
+            myLogger.info("Catch closing" + e);
+        }
+        myInputs[f] = null;
+    }
+
+    private void closeInputs() {
+        for (int f = 0; f < myInputs.length; f++) {
+            closeInput(f);
+        }
+    }
+
+    /**
+     * Orders the cursors by their current tag, and identical tags by file, so that the length of a tag found in
+     * several files is taken from the last one.
+     */
+    private int compareCursors(int a, int b) {
+        int offsetA = a * tagLengthInLong, offsetB = b * tagLengthInLong;
+        for (int j = 0; j < tagLengthInLong; j++) {
+            if (myTags[offsetA + j] != myTags[offsetB + j]) {
+                return (myTags[offsetA + j] < myTags[offsetB + j]) ? -1 : 1;
+            }
+        }
+        return (a < b) ? -1 : ((a == b) ? 0 : 1);
+    }
+
+    private int compareTag(int c, long[] tag) {
+        int offset = c * tagLengthInLong;
+        for (int j = 0; j < tagLengthInLong; j++) {
+            if (myTags[offset + j] != tag[j]) {
+                return (myTags[offset + j] < tag[j]) ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+
+    private void siftDown(int i) {
+        int c = myHeap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= myHeapSize) {
+                break;
+            }
+            if ((child + 1 < myHeapSize) && (compareCursors(myHeap[child + 1], myHeap[child]) < 0)) {
+                child++;
+            }
+            if (compareCursors(myHeap[child], c) >= 0) {
+                break;
+            }
+            myHeap[i] = myHeap[child];
+            i = child;
+        }
+        myHeap[i] = c;
+    }
+
+    private void writeTag(DataOutputStream outStream, long[] tag, byte length, int count) throws IOException {
+        for (int j = 0; j < tagLengthInLong; j++) {
+            outStream.writeLong(tag[j]);
+        }
+        outStream.writeByte(length);
+        outStream.writeInt(count);
+    }
+
+    private void writeFASTQ(DataOutputStream outStream, long[] tag, byte length, int count) throws IOException {
+        outStream.writeBytes("@length=" + length + "count=" + count + "\n");   //Length & count header
+        String tagSequence = BaseEncoder.getSequenceFromLong(tag);
+        tagSequence = tagSequence.substring(0, length);  //Remove any poly-A padding
+        outStream.writeBytes(tagSequence + "\n+\n");    //Sequence and "+" symbol
+        for (int i = 0; i < length; i++) {
+            outStream.writeBytes("f");
+        }           //Bogus quality string
+        outStream.writeBytes("\n");
+    }
+}
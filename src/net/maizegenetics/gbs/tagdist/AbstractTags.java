@@ -16,6 +16,7 @@ public abstract class AbstractTags implements Tags {
     protected long[][] tags;  // for memory efficiency the rows first and second half of the read
     // columns are the index of the reads.
     protected byte[] tagLength;  // length of tag (number of bases)  // 1 byte
+    private volatile TagIndex myTagIndex = null;  // optional hash index used by getTagIndex(), see buildTagIndex()
 
     @Override
     public boolean areTagsUnique() {
@@ -36,8 +37,35 @@ public abstract class AbstractTags implements Tags {
         return tags[0].length;
     }
 
+    /**
+     * Builds (once) a hash index over the tags, which getTagIndex() then uses instead of the binary search.  The
+     * tags must not be changed afterwards; sort() drops the index, and it has to be rebuilt after sorting.  swap()
+     * leaves it alone, since it is called for every exchange of a sort, so other reorderings must call clearTagIndex().
+     *
+     * @return the index, which may also be queried directly (getIndex() returns -1 for missing tags)
+     */
+    public synchronized TagIndex buildTagIndex() {
+        if (myTagIndex == null) {
+            long time = System.currentTimeMillis();
+            myTagIndex = new TagIndex(this);
+            System.out.println("Tag index of " + getTagCount() + " tags built in " + (System.currentTimeMillis() - time) + " milliseconds.");
+        }
+        return myTagIndex;
+    }
+
+    /**
+     * Drops the hash index built by buildTagIndex(), e.g. because the tags changed.
+     */
+    public void clearTagIndex() {
+        myTagIndex = null;
+    }
+
     @Override
     public int getTagIndex(long[] read) {
+        TagIndex index = myTagIndex;
+        if (index != null) {
+            return index.getIndexOrInsertionPoint(read);
+        }
         //code inspired by COLT lower bound function
         int first = 0;
         int len = tags[0].length - first;
@@ -162,6 +190,7 @@ public abstract class AbstractTags implements Tags {
 
     public void sort() {
         System.out.println("Position index sort begin.");
+        clearTagIndex();
         GenericSorting.quickSort(0, this.getTagCount(), this, this);
         System.out.println("Position index sort end.");
     }
@@ -56,6 +56,7 @@ public class TagCountMutable extends TagCounts {
      * @param tagCountsToAdd
      */
     public void addReadCounts(TagCounts tagCountsToAdd) {
+        clearTagIndex();
         for (int i = 0; i < tagCountsToAdd.getTagCount(); i++) {
             long[] ls = tagCountsToAdd.getTag(i);
             for (int j = 0; j < tagLengthInLong; j++) {
@@ -68,6 +69,7 @@ public class TagCountMutable extends TagCounts {
     }
 
     public void addReadCounts(Tags tagsToAdd, int defaultCount) {
+        clearTagIndex();
         for (int i = 0; i < tagsToAdd.getTagCount(); i++) {
             long[] ls = tagsToAdd.getTag(i);
             for (int j = 0; j < tagLengthInLong; j++) {
@@ -80,6 +82,7 @@ public class TagCountMutable extends TagCounts {
     }
 
     public void collapseCounts() {
+        clearTagIndex();
         this.sort();
         int collapsedRows = 0;
         int initSize = this.getCurrentSize();
@@ -115,6 +118,7 @@ public class TagCountMutable extends TagCounts {
     }
 
     public int shrinkToCurrentRows() {
+        clearTagIndex();
         for (int i = 0; i < tagLengthInLong; i++) {
             long[] t1 = new long[currentRows];
             System.arraycopy(tags[i], 0, t1, 0, currentRows);
@@ -315,6 +315,7 @@ public class TagCounts extends AbstractTags {
 
     public void sort() {
         System.out.println("Position index sort begin.");
+        clearTagIndex();
         GenericSorting.quickSort(0, this.getSize(), this, this);
         System.out.println("Position index sort end.");
 
@@ -0,0 +1,173 @@
+/*
+ * TagIndex
+ */
+package net.maizegenetics.gbs.tagdist;
+
+/**
+ * Open addressing hash index from the 2-bit encoded tag (long[tagLengthInLong]) to its index in a Tags object.
+ * It replaces the binary search of AbstractTags.getTagIndex(), which costs about log2(tagCount) cache missing
+ * probes per read, with one probe of the slot table plus the comparison against the tag itself.
+ * <p>
+ * The table only holds int slots (index + 1, 0 = empty) with linear probing at a load factor of at most 0.5, so it
+ * needs 8-16 bytes per tag, and the keys are compared against the tag arrays of the indexed object rather than
+ * being copied.  When a tag occurs more than once the lowest index is kept, which is the index the lower bound
+ * binary search returns for a sorted list.
+ * <p>
+ * The index is read-only once built and may be shared by any number of threads.  It is not updated when the
+ * underlying tags change, so it has to be rebuilt after sorting or adding tags.
+ */
+public class TagIndex {
+
+    private final long[][] myTags;
+    private final int myTagLengthInLong;
+    private final int myTagCount;
+    private final int[] mySlots;
+    private final int myMask;
+
+    /**
+     * Builds the index over all tags of theTags.  For AbstractTags the tag arrays are shared, otherwise they are
+     * copied with getTag().
+     */
+    public TagIndex(Tags theTags) {
+        myTagLengthInLong = theTags.getTagSizeInLong();
+        myTagCount = theTags.getTagCount();
+        if (theTags instanceof AbstractTags) {
+            myTags = ((AbstractTags) theTags).tags;
+        } else {
+            myTags = new long[myTagLengthInLong][myTagCount];
+            for (int i = 0; i < myTagCount; i++) {
+                long[] tag = theTags.getTag(i);
+                for (int j = 0; j < myTagLengthInLong; j++) {
+                    myTags[j][i] = tag[j];
+                }
+            }
+        }
+        int capacity = Integer.highestOneBit(Math.max(2, myTagCount) * 2 - 1) << 1;
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("TagIndex: too many tags to index: " + myTagCount);
+        }
+        mySlots = new int[capacity];
+        myMask = capacity - 1;
+        for (int i = 0; i < myTagCount; i++) {
+            int slot = hash(i) & myMask;
+            while (true) {
+                int current = mySlots[slot];
+                if (current == 0) {
+                    mySlots[slot] = i + 1;
+                    break;
+                }
+                if (isSameTag(current - 1, i)) {
+                    break;  // keep the first occurrence
+                }
+                slot = (slot + 1) & myMask;
+            }
+        }
+    }
+
+    /**
+     * @param read 2-bit encoded tag with at least getTagSizeInLong() longs
+     *
+     * @return index of the tag, or -1 if it is not in the list
+     */
+    public int getIndex(long[] read) {
+        int slot = hash(read) & myMask;
+        while (true) {
+            int current = mySlots[slot];
+            if (current == 0) {
+                return -1;
+            }
+            if (isTag(current - 1, read)) {
+                return current - 1;
+            }
+            slot = (slot + 1) & myMask;
+        }
+    }
+
+    /**
+     * Index of the read as returned by AbstractTags.getTagIndex() on a sorted list: the index of the tag if it is
+     * present, otherwise -(insertion point) - 1, which is only computed (by binary search) for absent tags.
+     */
+    public int getIndexOrInsertionPoint(long[] read) {
+        int index = getIndex(read);
+        if (index >= 0) {
+            return index;
+        }
+        int first = 0;
+        int len = myTagCount;
+        while (len > 0) {
+            int half = len >>> 1;
+            int middle = first + half;
+            if (compareTag(middle, read) < 0) {
+                first = middle + 1;
+                len -= half + 1;
+            } else {
+                len = half;
+            }
+        }
+        return -(first + 1);
+    }
+
+    public int getTagCount() {
+        return myTagCount;
+    }
+
+    public int getTagSizeInLong() {
+        return myTagLengthInLong;
+    }
+
+    private int hash(int index) {
+        long h = 0;
+        for (int j = 0; j < myTagLengthInLong; j++) {
+            h = mix(h, myTags[j][index]);
+        }
+        return finish(h);
+    }
+
+    private int hash(long[] read) {
+        long h = 0;
+        for (int j = 0; j < myTagLengthInLong; j++) {
+            h = mix(h, read[j]);
+        }
+        return finish(h);
+    }
+
+    private static long mix(long h, long value) {
+        return (h ^ value) * 0x9E3779B97F4A7C15L;
+    }
+
+    private static int finish(long h) {
+        h ^= h >>> 29;
+        h *= 0xBF58476D1CE4E5B9L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private boolean isSameTag(int index1, int index2) {
+        for (int j = 0; j < myTagLengthInLong; j++) {
+            if (myTags[j][index1] != myTags[j][index2]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isTag(int index, long[] read) {
+        for (int j = 0; j < myTagLengthInLong; j++) {
+            if (myTags[j][index] != read[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int compareTag(int index, long[] read) {
+        for (int j = 0; j < myTagLengthInLong; j++) {
+            if (myTags[j][index] < read[j]) {
+                return -1;
+            }
+            if (myTags[j][index] > read[j]) {
+                return 1;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * TagIndexBenchmark
+ */
+package net.maizegenetics.gbs.tagdist;
+
+import java.util.Random;
+
+import net.maizegenetics.gbs.tagdist.TagsByTaxa.FilePacking;
+
+/**
+ * Compares the lookups per second of the binary search in AbstractTags.getTagIndex() with the hash based TagIndex,
+ * and checks that both return the same index for every query.
+ * <p>
+ * Usage: TagIndexBenchmark [tagCountFile | numberOfRandomTags] [numberOfQueries]
+ * <p>
+ * Three quarters of the queries are tags of the list, the rest are random tags that are (almost certainly) absent,
+ * roughly the proportion of barcoded reads matching the master tags in a GBS lane.
+ */
+public class TagIndexBenchmark {
+
+    private TagIndexBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        TagCounts theTags;
+        if ((args.length > 0) && !args[0].matches("\\d+")) {
+            theTags = new TagCounts(args[0], FilePacking.Bit);
+        } else {
+            int numTags = (args.length > 0) ? Integer.parseInt(args[0]) : 10000000;
+            theTags = randomTags(numTags, new Random(42));
+        }
+        int numQueries = (args.length > 1) ? Integer.parseInt(args[1]) : 20000000;
+        long[][] queries = queries(theTags, numQueries, new Random(7));
+
+        System.out.println("Tags: " + theTags.getTagCount() + "  Queries: " + numQueries);
+        long[] binaryResult = new long[1];
+        long[] hashResult = new long[1];
+        for (int round = 0; round < 3; round++) {  // first rounds warm up the JIT
+            theTags.clearTagIndex();
+            double binaryRate = lookupsPerSecond(theTags, queries, binaryResult);
+
+            long time = System.nanoTime();
+            theTags.buildTagIndex();
+            double buildSeconds = (System.nanoTime() - time) / 1e9;
+            double hashRate = lookupsPerSecond(theTags, queries, hashResult);
+            double directRate = directLookupsPerSecond(theTags.buildTagIndex(), queries);
+
+            System.out.printf("Round %d: binary search %.0f lookups/s  getTagIndex() with hash index %.0f lookups/s (%.2fx)  TagIndex.getIndex() %.0f lookups/s (%.2fx)  index built in %.2f s%n",
+                    round, binaryRate, hashRate, hashRate / binaryRate, directRate, directRate / binaryRate, buildSeconds);
+            if (binaryResult[0] != hashResult[0]) {
+                throw new IllegalStateException("TagIndexBenchmark: binary search and hash index results differ");
+            }
+        }
+        TagIndex index = theTags.buildTagIndex();
+        theTags.clearTagIndex();
+        for (long[] query : queries) {
+            int expected = theTags.getTagIndex(query);
+            if (index.getIndexOrInsertionPoint(query) != expected) {
+                throw new IllegalStateException("TagIndexBenchmark: index mismatch for query " + query[0] + " " + query[1]);
+            }
+        }
+        System.out.println("All queries returned the same index with both methods.");
+    }
+
+    /**
+     * Runs all queries through getTagIndex() and stores a checksum of the results in checksum[0].
+     */
+    private static double lookupsPerSecond(Tags theTags, long[][] queries, long[] checksum) {
+        long sum = 0;
+        long time = System.nanoTime();
+        for (long[] query : queries) {
+            sum += theTags.getTagIndex(query);
+        }
+        double seconds = (System.nanoTime() - time) / 1e9;
+        checksum[0] = sum;
+        return queries.length / seconds;
+    }
+
+    /**
+     * Runs all queries through TagIndex.getIndex(), which skips the insertion point search for absent tags.
+     */
+    private static double directLookupsPerSecond(TagIndex index, long[][] queries) {
+        long sum = 0;
+        long time = System.nanoTime();
+        for (long[] query : queries) {
+            sum += index.getIndex(query);
+        }
+        double seconds = (System.nanoTime() - time) / 1e9;
+        if (sum == Long.MIN_VALUE) {
+            System.out.println(sum);  // keeps the loop from being optimized away
+        }
+        return queries.length / seconds;
+    }
+
+    private static TagCounts randomTags(int numTags, Random random) {
+        TagCounts result = new TagCounts(2, numTags);
+        for (int i = 0; i < numTags; i++) {
+            result.tags[0][i] = random.nextLong();
+            result.tags[1][i] = random.nextLong();
+            result.tagLength[i] = 64;
+        }
+        result.sort();
+        return result;
+    }
+
+    private static long[][] queries(Tags theTags, int numQueries, Random random) {
+        long[][] result = new long[numQueries][];
+        for (int q = 0; q < numQueries; q++) {
+            if (random.nextInt(4) != 0) {
+                result[q] = theTags.getTag(random.nextInt(theTags.getTagCount()));
+            } else {
+                result[q] = new long[]{random.nextLong(), random.nextLong()};
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * TagsByTaxaMappedFile
+ */
+package net.maizegenetics.gbs.tagdist;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import net.maizegenetics.util.BitUtil;
+import net.maizegenetics.util.OpenBitSet;
+
+/**
+ * A read-only TagsByTaxa that memory maps a .tbt.bin, .tbt.byte or .tbt.shrt file with NIO instead of seeking
+ * and reading it through a RandomAccessFile like the FileMap classes.  The tags are held in memory, while the taxa
+ * counts stay in the file and are paged in by the operating system, so files larger than RAM can be used.
+ * <p>
+ * A single MappedByteBuffer is limited to 2 GB, so the file is mapped in segments of whole rows (tags).  Counts
+ * are read with absolute gets, which leaves the buffers unchanged, so an instance can be read by several threads
+ * at once.  Row level methods (getTaxaReadCountsForTag(), getNumberOfTaxaWithTag(), getTaxaCountBuffer()) go
+ * straight to the mapped row rather than through one getReadCountForTagTaxon() call per taxon.
+ */
+public class TagsByTaxaMappedFile extends AbstractTagsByTaxa {
+
+    private static final long MAX_SEGMENT_BYTES = 1L << 30;
+    private FilePacking myPacking;
+    private MappedByteBuffer[] mySegments;
+    private int myRowsPerSegment;
+    private int myByteLenRow;
+    private int myByteLenDist;
+    private int myDistOffset;
+    private int myNumLongPerTaxaDist;
+
+    /**
+     * @param infile TBT file
+     * @param packing Format of the file: Bit, Byte or Short
+     */
+    public TagsByTaxaMappedFile(String infile, FilePacking packing) {
+        if ((packing != FilePacking.Bit) && (packing != FilePacking.Byte) && (packing != FilePacking.Short)) {
+            throw new IllegalArgumentException("TagsByTaxaMappedFile: unsupported file packing: " + packing);
+        }
+        myPacking = packing;
+        readDistFile(new File(infile), packing);
+    }
+
+    @Override
+    public void readDistFile(File inFile, FilePacking binary) {
+        System.out.println("Mapping Haplotypes distribution from:" + inFile.toString());
+        int tagNum = 0;
+        RandomAccessFile raf = null;
+        long dataStartPos;
+        try {
+            raf = new RandomAccessFile(inFile, "r");
+            tagNum = raf.readInt();
+            tagLengthInLong = raf.readInt();
+            taxaNum = raf.readInt();
+            initMatrices(taxaNum, tagNum);
+            for (int t = 0; t < taxaNum; t++) {
+                taxaNames[t] = raf.readUTF();
+            }
+            dataStartPos = raf.getFilePointer();
+        } catch (Exception e) {
+            System.out.println("Catch in reading input file: " + e);
+            e.printStackTrace();
+            throw new IllegalStateException("TagsByTaxaMappedFile: can't read header of: " + inFile);
+        }
+        switch (myPacking) {
+            case Bit:
+                myNumLongPerTaxaDist = BitUtil.bits2words(taxaNum);
+                myByteLenDist = 8 * myNumLongPerTaxaDist;
+                break;
+            case Short:
+                myByteLenDist = 2 * taxaNum;
+                break;
+            default:
+                myByteLenDist = taxaNum;
+                break;
+        }
+        myDistOffset = 8 * tagLengthInLong + 1;
+        myByteLenRow = myDistOffset + myByteLenDist;
+        myRowsPerSegment = (int) Math.max(1, Math.min(tagNum, MAX_SEGMENT_BYTES / myByteLenRow));
+        int numSegments = (tagNum == 0) ? 0 : (tagNum - 1) / myRowsPerSegment + 1;
+        mySegments = new MappedByteBuffer[numSegments];
+        try {
+            FileChannel channel = raf.getChannel();
+            long expectedLength = dataStartPos + (long) tagNum * myByteLenRow;
+            if (channel.size() < expectedLength) {
+                raf.close();
+                throw new IllegalStateException("TagsByTaxaMappedFile: file is shorter (" + channel.size() + " bytes) than expected from its header (" + expectedLength + " bytes): " + inFile);
+            }
+            for (int s = 0; s < numSegments; s++) {
+                int firstRow = s * myRowsPerSegment;
+                int rows = Math.min(myRowsPerSegment, tagNum - firstRow);
+                long start = dataStartPos + (long) firstRow * myByteLenRow;
+                mySegments[s] = channel.map(FileChannel.MapMode.READ_ONLY, start, (long) rows * myByteLenRow);
+            }
+            raf.close();  // the mappings stay valid after the channel is closed
+        } catch (IllegalStateException e) {
+            throw e;
+        } catch (Exception e) {
+            System.out.println("Catch in mapping input file: " + e);
+            e.printStackTrace();
+            throw new IllegalStateException("TagsByTaxaMappedFile: can't map: " + inFile);
+        }
+        for (int i = 0; i < tagNum; i++) {
+            if (i % 1000000 == 0) {
+                System.out.println("Read tag" + i);
+            }
+            ByteBuffer bb = mySegments[i / myRowsPerSegment];
+            int pos = (i % myRowsPerSegment) * myByteLenRow;
+            for (int j = 0; j < tagLengthInLong; j++) {
+                tags[j][i] = bb.getLong(pos + 8 * j);
+            }
+            tagLength[i] = bb.get(pos + 8 * tagLengthInLong);
+        }
+        System.out.println("Number of Taxa in file:" + taxaNum);
+        System.out.println("Number of Haplotypes in file:" + tagNum);
+        System.out.println("Segments mapped:" + numSegments);
+    }
+
+    /**
+     * Returns a read-only view of the counts of a tag, without copying them: one byte (Byte) or one short (Short)
+     * per taxon, or the OpenBitSet words (Bit) of the row.  The returned buffer starts at position 0 and can be used
+     * by the calling thread only.
+     */
+    public ByteBuffer getTaxaCountBuffer(int tagIndex) {
+        ByteBuffer bb = mySegments[tagIndex / myRowsPerSegment].duplicate();
+        int pos = rowDistStart(tagIndex);
+        bb.limit(pos + myByteLenDist);
+        bb.position(pos);
+        return bb.slice().asReadOnlyBuffer();
+    }
+
+    public FilePacking getFilePacking() {
+        return myPacking;
+    }
+
+    private int rowDistStart(int tagIndex) {
+        return (tagIndex % myRowsPerSegment) * myByteLenRow + myDistOffset;
+    }
+
+    @Override
+    public int getReadCountForTagTaxon(int tagIndex, int taxaIndex) {
+        ByteBuffer bb = mySegments[tagIndex / myRowsPerSegment];
+        int pos = rowDistStart(tagIndex);
+        switch (myPacking) {
+            case Short:
+                return bb.getShort(pos + 2 * taxaIndex);
+            case Byte:
+                return bb.get(pos + taxaIndex);
+            default:
+                long word = bb.getLong(pos + 8 * (taxaIndex >> 6));
+                return (int) ((word >>> (taxaIndex & 63)) & 1L);
+        }
+    }
+
+    @Override
+    public short[] getTaxaReadCountsForTag(int tagIndex) {
+        short[] r = new short[taxaNum];
+        ByteBuffer bb = mySegments[tagIndex / myRowsPerSegment];
+        int pos = rowDistStart(tagIndex);
+        switch (myPacking) {
+            case Short:
+                for (int t = 0; t < taxaNum; t++) {
+                    r[t] = bb.getShort(pos + 2 * t);
+                }
+                break;
+            case Byte:
+                for (int t = 0; t < taxaNum; t++) {
+                    r[t] = bb.get(pos + t);
+                }
+                break;
+            default:
+                for (int w = 0; w < myNumLongPerTaxaDist; w++) {
+                    long word = bb.getLong(pos + 8 * w);
+                    while (word != 0) {
+                        int t = (w << 6) + Long.numberOfTrailingZeros(word);
+                        if (t < taxaNum) {
+                            r[t] = 1;
+                        }
+                        word &= word - 1;
+                    }
+                }
+                break;
+        }
+        return r;
+    }
+
+    @Override
+    public OpenBitSet getTaxaReadBitsForTag(int tagIndex) {
+        OpenBitSet r = new OpenBitSet(taxaNum);
+        ByteBuffer bb = mySegments[tagIndex / myRowsPerSegment];
+        int pos = rowDistStart(tagIndex);
+        if (myPacking == FilePacking.Bit) {
+            long[] bits = r.getBits();
+            for (int w = 0; w < myNumLongPerTaxaDist; w++) {
+                bits[w] = bb.getLong(pos + 8 * w);
+            }
+            return r;
+        }
+        for (int t = 0; t < taxaNum; t++) {
+            int count = (myPacking == FilePacking.Short) ? bb.getShort(pos + 2 * t) : bb.get(pos + t);
+            if (count > 0) {
+                r.fastSet(t);
+            }
+        }
+        return r;
+    }
+
+    @Override
+    public int getNumberOfTaxaWithTag(int readIndex) {
+        ByteBuffer bb = mySegments[readIndex / myRowsPerSegment];
+        int pos = rowDistStart(readIndex);
+        int nTaxaWData = 0;
+        switch (myPacking) {
+            case Short:
+                for (int t = 0; t < taxaNum; t++) {
+                    if (bb.getShort(pos + 2 * t) > 0) {
+                        nTaxaWData++;
+                    }
+                }
+                break;
+            case Byte:
+                for (int t = 0; t < taxaNum; t++) {
+                    if (bb.get(pos + t) > 0) {
+                        nTaxaWData++;
+                    }
+                }
+                break;
+            default:
+                for (int w = 0; w < myNumLongPerTaxaDist; w++) {
+                    nTaxaWData += Long.bitCount(bb.getLong(pos + 8 * w));
+                }
+                break;
+        }
+        return nTaxaWData;
+    }
+
+    @Override
+    public int getReadCount(int tagIndex) {
+        if (myPacking == FilePacking.Bit) {
+            return getNumberOfTaxaWithTag(tagIndex);
+        }
+        ByteBuffer bb = mySegments[tagIndex / myRowsPerSegment];
+        int pos = rowDistStart(tagIndex);
+        int sum = 0;
+        for (int t = 0; t < taxaNum; t++) {
+            sum += (myPacking == FilePacking.Short) ? bb.getShort(pos + 2 * t) : bb.get(pos + t);
+        }
+        return sum;
+    }
+
+    @Override
+    public void setReadCountForTagTaxon(int tagIndex, int taxaIndex, int value) {
+        throw new UnsupportedOperationException("TagsByTaxaMappedFile is read-only.");
+    }
+
+    @Override
+    public void setMethodByRows(boolean rowSetMethod) {
+        // read-only, nothing is buffered
+    }
+
+    @Override
+    public void getFileReadyForClosing() {
+        // read-only, nothing to write back
+    }
+
+    @Override
+    public void initMatrices(int taxaNum, int tagNum) {
+        taxaNames = new String[taxaNum];
+        tags = new long[tagLengthInLong][tagNum];
+        tagLength = new byte[tagNum];
+    }
+
+    @Override
+    public void addTaxa(String[] addTaxaNames) {
+        throw new UnsupportedOperationException("TagsByTaxaMappedFile is read-only.");
+    }
+
+    @Override
+    public void swap(int index1, int index2) {
+        throw new UnsupportedOperationException("TagsByTaxaMappedFile is read-only.");
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * TagsByTaxaShortSparse
+ */
+package net.maizegenetics.gbs.tagdist;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+
+import net.maizegenetics.util.OpenBitSet;
+
+/**
+ * A sparse implementation of TagsByTaxa with short depths (max 32,767), so memory scales with the number of
+ * non-zero tag/taxon cells rather than with taxa x tags.
+ * <p>
+ * Each tag holds one row (compressed sparse row per tag): an int[] with one entry per taxon that has the tag, sorted
+ * by taxon, where each entry packs the taxon index in the upper 17 bits and the depth in the lower 15 bits.  This
+ * limits the number of taxa to 131,072.  Rows have no spare capacity, so setting a new cell copies the row; this is
+ * cheap for the short rows of GBS data, and tags without any read share one empty row.
+ * <p>
+ * Files are read and written in the regular .tbt.shrt / .tbt.byte / .tbt.bin formats, so the class can replace
+ * TagsByTaxaShort wherever the dense matrix does not fit in memory.
+ */
+public class TagsByTaxaShortSparse extends AbstractTagsByTaxa {
+
+    private static final int COUNT_BITS = 15;
+    private static final int COUNT_MASK = (1 << COUNT_BITS) - 1;
+    private static final int MAX_TAXA = 1 << (32 - COUNT_BITS);
+    private static final int[] EMPTY_ROW = new int[0];
+    private int[][] tagDist;
+
+    public TagsByTaxaShortSparse() {
+    }
+
+    public TagsByTaxaShortSparse(String infile, FilePacking binary) {
+        readDistFile(new File(infile), binary);
+    }
+
+    public TagsByTaxaShortSparse(String[] taxaNames, Tags theDistinctReads) {
+        if (taxaNames.length > MAX_TAXA) {
+            throw new IllegalArgumentException("TagsByTaxaShortSparse: too many taxa: " + taxaNames.length + " (max " + MAX_TAXA + ")");
+        }
+        this.taxaNames = taxaNames.clone();
+        taxaNum = taxaNames.length;
+        int tagNum = theDistinctReads.getTagCount();
+        tagLengthInLong = theDistinctReads.getTagSizeInLong();
+        initMatrices(taxaNum, tagNum);
+        for (int i = 0; i < tagNum; i++) {
+            long[] h = theDistinctReads.getTag(i);
+            for (int j = 0; j < h.length; j++) {
+                tags[j][i] = h[j];
+            }
+            tagLength[i] = (byte) theDistinctReads.getTagLength(i);
+        }
+        for (int i = 0; i < taxaNames.length; i++) {
+            this.taxaNames[i] = taxaNames[i];
+        }
+    }
+
+    /**
+     * Copies any TagsByTaxa (e.g. one of the file mapped versions) into sparse storage, one tag at a time.
+     */
+    public TagsByTaxaShortSparse(TagsByTaxa theTBT) {
+        this(theTBT.getTaxaNames(), theTBT);
+        short[] row = new short[taxaNum];
+        for (int i = 0; i < getTagCount(); i++) {
+            for (int t = 0; t < taxaNum; t++) {
+                row[t] = (short) Math.min(Short.MAX_VALUE, theTBT.getReadCountForTagTaxon(i, t));
+            }
+            setRow(i, row);
+        }
+    }
+
+    @Override
+    public void setReadCountForTagTaxon(int tagIndex, int taxaIndex, int value) {
+        if (value > Short.MAX_VALUE) {
+            value = Short.MAX_VALUE;
+        } else if (value < 0) {
+            value = 0;
+        }
+        int[] row = tagDist[tagIndex];
+        int pos = findTaxon(row, taxaIndex);
+        if (pos >= 0) {
+            if (value == 0) {
+                int[] newRow = (row.length == 1) ? EMPTY_ROW : new int[row.length - 1];
+                System.arraycopy(row, 0, newRow, 0, pos);
+                System.arraycopy(row, pos + 1, newRow, pos, row.length - pos - 1);
+                tagDist[tagIndex] = newRow;
+            } else {
+                row[pos] = pack(taxaIndex, value);
+            }
+        } else if (value != 0) {
+            int insert = -(pos + 1);
+            int[] newRow = new int[row.length + 1];
+            System.arraycopy(row, 0, newRow, 0, insert);
+            newRow[insert] = pack(taxaIndex, value);
+            System.arraycopy(row, insert, newRow, insert + 1, row.length - insert);
+            tagDist[tagIndex] = newRow;
+        }
+    }
+
+    @Override
+    public int getReadCountForTagTaxon(int tagIndex, int taxaIndex) {
+        int[] row = tagDist[tagIndex];
+        int pos = findTaxon(row, taxaIndex);
+        return (pos < 0) ? 0 : (row[pos] & COUNT_MASK);
+    }
+
+    @Override
+    public short[] getTaxaReadCountsForTag(int tagIndex) {
+        short[] r = new short[getTaxaCount()];
+        for (int cell : tagDist[tagIndex]) {
+            r[cell >>> COUNT_BITS] = (short) (cell & COUNT_MASK);
+        }
+        return r;
+    }
+
+    @Override
+    public OpenBitSet getTaxaReadBitsForTag(int tagIndex) {
+        OpenBitSet r = new OpenBitSet(getTaxaCount());
+        for (int cell : tagDist[tagIndex]) {
+            r.fastSet(cell >>> COUNT_BITS);
+        }
+        return r;
+    }
+
+    @Override
+    public int getNumberOfTaxaWithTag(int readIndex) {
+        return tagDist[readIndex].length;
+    }
+
+    @Override
+    public int getReadCount(int tagIndex) {
+        int sum = 0;
+        for (int cell : tagDist[tagIndex]) {
+            sum += cell & COUNT_MASK;
+        }
+        return sum;
+    }
+
+    /**
+     * Number of tag/taxon cells with a depth greater than zero.
+     */
+    public long getNonZeroCellCount() {
+        long sum = 0;
+        for (int[] row : tagDist) {
+            sum += row.length;
+        }
+        return sum;
+    }
+
+    @Override
+    public void initMatrices(int taxaNum, int tagNum) {
+        if (taxaNum > MAX_TAXA) {
+            throw new IllegalArgumentException("TagsByTaxaShortSparse: too many taxa: " + taxaNum + " (max " + MAX_TAXA + ")");
+        }
+        taxaNames = new String[taxaNum];
+        tags = new long[tagLengthInLong][tagNum];
+        tagDist = new int[tagNum][];
+        for (int i = 0; i < tagNum; i++) {
+            tagDist[i] = EMPTY_ROW;
+        }
+        tagLength = new byte[tagNum];
+    }
+
+    @Override
+    public void addTaxa(String[] addTaxaNames) {
+        // new taxa have no reads, so only the names change
+        if (taxaNames.length + addTaxaNames.length > MAX_TAXA) {
+            throw new IllegalArgumentException("TagsByTaxaShortSparse: too many taxa: " + (taxaNames.length + addTaxaNames.length) + " (max " + MAX_TAXA + ")");
+        }
+        String[] newTaxaNames = new String[taxaNames.length + addTaxaNames.length];
+        System.arraycopy(taxaNames, 0, newTaxaNames, 0, taxaNames.length);
+        System.arraycopy(addTaxaNames, 0, newTaxaNames, taxaNames.length, addTaxaNames.length);
+        taxaNames = newTaxaNames;
+        taxaNum = taxaNames.length;
+    }
+
+    @Override
+    public void swap(int index1, int index2) {
+        super.swap(index1, index2);
+        int[] temp = tagDist[index1];
+        tagDist[index1] = tagDist[index2];
+        tagDist[index2] = temp;
+    }
+
+    /**
+     * Reads .tbt.shrt and .tbt.byte files one row at a time, keeping only the non-zero depths.
+     */
+    @Override
+    void readByteShortDistFile(File inFile, FilePacking countType) {
+        int hapsOutput = 0;
+        try {
+            DataInputStream rw = new DataInputStream(new BufferedInputStream(new FileInputStream(inFile), 4000000));
+            int tagNum = rw.readInt();
+            tagLengthInLong = rw.readInt();
+            taxaNum = rw.readInt();
+            initMatrices(taxaNum, tagNum);
+            for (int t = 0; t < taxaNum; t++) {
+                taxaNames[t] = rw.readUTF();
+            }
+            short[] row = new short[taxaNum];
+            for (int i = 0; i < tagNum; i++) {
+                for (int j = 0; j < tagLengthInLong; j++) {
+                    tags[j][i] = rw.readLong();
+                }
+                tagLength[i] = rw.readByte();
+                for (int t = 0; t < taxaNum; t++) {
+                    row[t] = (countType == FilePacking.Short) ? rw.readShort() : rw.readByte();
+                }
+                setRow(i, row);
+                hapsOutput++;
+            }
+            rw.close();
+        } catch (Exception e) {
+            System.out.println("Catch in reading input file e=" + e);
+        }
+        System.out.println("Number of Taxa in file:" + taxaNum);
+        System.out.println("Number of Haplotypes in file:" + hapsOutput);
+        System.out.println("Non-zero tag/taxon cells:" + getNonZeroCellCount());
+    }
+
+    /**
+     * Writes the same bytes as the dense implementations, but expands each row once instead of looking up every
+     * cell.  Text and Bit output use the generic writer.
+     */
+    @Override
+    public void writeDistFile(File outFile, FilePacking numberType, int minCount) {
+        if ((numberType != FilePacking.Short) && (numberType != FilePacking.Byte)) {
+            super.writeDistFile(outFile, numberType, minCount);
+            return;
+        }
+        int hapsOutput = 0;
+        int outReads = getTagCount();
+        if (minCount > 0) {
+            outReads = 0;
+            for (int i = 0; i < getTagCount(); i++) {
+                if (getReadCount(i) >= minCount) {
+                    outReads++;
+                }
+            }
+        }
+        System.out.println(outReads + " tags will be output to " + outFile.getName());
+        try {
+            DataOutputStream fw = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outFile), 65536));
+            fw.writeInt(outReads);
+            fw.writeInt(tagLengthInLong);
+            fw.writeInt(taxaNum);
+            for (int t = 0; t < taxaNum; t++) {
+                fw.writeUTF(taxaNames[t]);
+            }
+            short[] row = new short[taxaNum];
+            for (int i = 0; i < tags[0].length; i++) {
+                if (minCount > 0 && getReadCount(i) < minCount) {
+                    continue;
+                }
+                for (int j = 0; j < tagLengthInLong; j++) {
+                    fw.writeLong(tags[j][i]);
+                }
+                fw.writeByte(tagLength[i]);
+                int[] cells = tagDist[i];
+                for (int cell : cells) {
+                    row[cell >>> COUNT_BITS] = (short) (cell & COUNT_MASK);
+                }
+                for (int t = 0; t < taxaNum; t++) {
+                    if (numberType == FilePacking.Short) {
+                        fw.writeShort(row[t]);
+                    } else {
+                        fw.writeByte(row[t]);
+                    }
+                }
+                for (int cell : cells) {
+                    row[cell >>> COUNT_BITS] = 0;
+                }
+                hapsOutput++;
+            }
+            fw.flush();
+            fw.close();
+            System.out.println("Tags written to:" + outFile.toString());
+            System.out.println("Number of tags in file:" + hapsOutput);
+        } catch (Exception e) {
+            System.out.println("Catch in writing output file e=" + e);
+            e.printStackTrace();
+        }
+    }
+
+    public void setMethodByRows(boolean rowSetMethod) {
+        // rows are always set in memory
+    }
+
+    public void getFileReadyForClosing() {
+        // nothing is buffered
+    }
+
+    /**
+     * Replaces the row of a tag with the non-zero depths of a dense row (one value per taxon).
+     */
+    private void setRow(int tagIndex, short[] row) {
+        int nonZero = 0;
+        for (int t = 0; t < taxaNum; t++) {
+            if (row[t] > 0) {
+                nonZero++;
+            }
+        }
+        if (nonZero == 0) {
+            tagDist[tagIndex] = EMPTY_ROW;
+            return;
+        }
+        int[] cells = new int[nonZero];
+        int c = 0;
+        for (int t = 0; t < taxaNum; t++) {
+            if (row[t] > 0) {
+                cells[c++] = pack(t, row[t]);
+            }
+        }
+        tagDist[tagIndex] = cells;
+    }
+
+    private static int pack(int taxaIndex, int value) {
+        return (taxaIndex << COUNT_BITS) | value;
+    }
+
+    /**
+     * Binary search of a row for a taxon.
+     *
+     * @return position of the taxon, or -(insertion point) - 1
+     */
+    private static int findTaxon(int[] row, int taxaIndex) {
+        int low = 0;
+        int high = row.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midTaxon = row[mid] >>> COUNT_BITS;
+            if (midTaxon < taxaIndex) {
+                low = mid + 1;
+            } else if (midTaxon > taxaIndex) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+}
@@ -64,6 +64,43 @@ public class BaseEncoder {
         return v;
     }
 
+    /**
+     * Returns a long for length bases of a sequence, starting at start, without creating a substring
+     * @param seq
+     * @param start index of the first base
+     * @param length number of bases (at most chunkSize)
+     * @return 2-bit encode sequence (-1 if an invalid sequence state is provided e.g. N)
+     */
+    public static long getLongFromSeq(CharSequence seq, int start, int length) {
+        if (length > chunkSize) {
+            return -1;
+        }
+        long v = 0;
+        for (int i = start; i < start + length; i++) {
+            switch (seq.charAt(i)) {
+                case 'A':
+                case 'a':
+                    v = v << 2;
+                    break;
+                case 'C':
+                case 'c':
+                    v = (v << 2) + (byte) 1;
+                    break;
+                case 'G':
+                case 'g':
+                    v = (v << 2) + (byte) 2;
+                    break;
+                case 'T':
+                case 't':
+                    v = (v << 2) + (byte) 3;
+                    break;
+                default:
+                    return -1;
+            }
+        }
+        return v << (2 * (chunkSize - length)); //if shorter fill with AAAA
+    }
+
     /**
      * @param seq A String containing a DNA sequence.
      * @return result A array of Long containing the binary representation of the sequence.
@@ -306,7 +343,7 @@ public class BaseEncoder {
      * @return position of first low quality position (quality length is returned is not low 
      * quality base is found.
      */
-    public static int getFirstLowQualityPos(String quality, int minQual) {
+    public static int getFirstLowQualityPos(CharSequence quality, int minQual) {
         int qualInt = 0;
         for (int i = 0; i < quality.length(); i++) {
             qualInt = (int) quality.charAt(i) - 64;
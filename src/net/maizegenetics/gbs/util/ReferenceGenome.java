@@ -0,0 +1,318 @@
+/*
+ * ReferenceGenome
+ */
+package net.maizegenetics.gbs.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Random access to the sequence of a reference genome fasta file through a 2-bit packed copy of the genome that
+ * is memory mapped.
+ * <p>
+ * The first time a fasta file is opened it is read once, from start to end, and two files are written next to it
+ * (or in java.io.tmpdir when its directory is read-only):
+ * <ul>
+ * <li>fasta.fai: a samtools style index (name, length, offset, line bases, line width) of the chromosomes</li>
+ * <li>fasta.packed: the bases of all chromosomes, one after the other, as BaseEncoder longs of 32 bases each.  Every
+ * chromosome starts on a new long, and its last long is padded with A.</li>
+ * </ul>
+ * They are reused as long as they are newer than the fasta file.  Anything other than A, C, G or T (upper or
+ * lower case), N included, is stored as A.  Reads use absolute gets on the mapped buffers, so an instance can be
+ * shared by several threads.
+ */
+public class ReferenceGenome {
+
+    private static final Logger myLogger = Logger.getLogger(ReferenceGenome.class);
+    private static final long LONGS_PER_SEGMENT = 1L << 27;  // 1 GB per mapped buffer
+    private static final int CHUNK = BaseEncoder.chunkSize;
+    private final String[] myNames;
+    private final int[] myLengths;
+    private final long[] myFirstLong;
+    private final HashMap<String, Integer> myNameToIndex = new HashMap<String, Integer>();
+    private MappedByteBuffer[] mySegments;
+
+    /**
+     * @param fastaFile reference genome fasta file (not compressed)
+     */
+    public ReferenceGenome(String fastaFile) {
+        File fasta = new File(fastaFile).getAbsoluteFile();
+        if (!fasta.isFile()) {
+            throw new IllegalArgumentException("ReferenceGenome: can't find the fasta file: " + fastaFile);
+        }
+        File dir = fasta.getParentFile().canWrite() ? fasta.getParentFile() : new File(System.getProperty("java.io.tmpdir"));
+        File indexFile = new File(dir, fasta.getName() + ".fai");
+        File packedFile = new File(dir, fasta.getName() + ".packed");
+        if (!isCurrent(fasta, indexFile) || !isCurrent(fasta, packedFile)) {
+            try {
+                pack(fasta, indexFile, packedFile);
+            } catch (IOException e) {
+                myLogger.error("ReferenceGenome: error while indexing " + fasta + ": " + e);
+                e.printStackTrace();
+                throw new IllegalStateException("ReferenceGenome: can't index: " + fasta);
+            }
+        }
+        List<String[]> entries = readIndex(indexFile);
+        int nChr = entries.size();
+        myNames = new String[nChr];
+        myLengths = new int[nChr];
+        myFirstLong = new long[nChr + 1];
+        for (int c = 0; c < nChr; c++) {
+            myNames[c] = entries.get(c)[0];
+            myLengths[c] = Integer.parseInt(entries.get(c)[1]);
+            myFirstLong[c + 1] = myFirstLong[c] + (myLengths[c] + CHUNK - 1) / CHUNK;
+            myNameToIndex.put(myNames[c], c);
+        }
+        map(packedFile, myFirstLong[nChr]);
+        myLogger.info("ReferenceGenome: " + nChr + " chromosomes, " + myFirstLong[nChr] * 8 + " bytes mapped from " + packedFile);
+    }
+
+    public int getNumChromosomes() {
+        return myNames.length;
+    }
+
+    public String getChromosomeName(int chrIndex) {
+        return myNames[chrIndex];
+    }
+
+    /**
+     * Returns the length in bases of a chromosome.
+     */
+    public int getChromosomeLength(int chrIndex) {
+        return myLengths[chrIndex];
+    }
+
+    /**
+     * Returns the index of the chromosome with this name (the first word of its fasta header), or -1.
+     */
+    public int getChromosomeIndex(String name) {
+        Integer index = myNameToIndex.get(name);
+        return (index == null) ? -1 : index;
+    }
+
+    /**
+     * Returns the index of a chromosome with a numeric name: either the number (>1, >2, ...) or 'chr' followed by
+     * the number (>chr1, >chr2, ...), as required by the GBS pipeline.  Returns -1 if there is no such chromosome.
+     */
+    public int getChromosomeIndex(int chr) {
+        for (int c = 0; c < myNames.length; c++) {
+            try {
+                if (Integer.parseInt(myNames[c].replace("chr", "")) == chr) {
+                    return c;
+                }
+            } catch (NumberFormatException e) {
+                // not a numeric chromosome name
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns 32 bases of a chromosome, from base chunkIndex*32+1, in the BaseEncoder format.
+     */
+    public long getChunk(int chrIndex, int chunkIndex) {
+        return getLong(myFirstLong[chrIndex] + chunkIndex);
+    }
+
+    /**
+     * Returns the bases from start to end (1 based, both included) of a chromosome.  The region is clipped to the
+     * chromosome, so the result is shorter than end-start+1 near the chromosome ends.
+     */
+    public String getSequence(int chrIndex, int start, int end) {
+        int first = Math.max(start, 1) - 1;
+        int last = Math.min(end, myLengths[chrIndex]);
+        if (last <= first) {
+            return "";
+        }
+        char[] seq = new char[last - first];
+        long firstLong = myFirstLong[chrIndex];
+        int chunk = first / CHUNK;
+        long word = getLong(firstLong + chunk);
+        for (int p = first; p < last; p++) {
+            if (p / CHUNK != chunk) {
+                chunk = p / CHUNK;
+                word = getLong(firstLong + chunk);
+            }
+            seq[p - first] = BaseEncoder.bases[(int) (word >>> (2 * (CHUNK - 1 - p % CHUNK))) & 3];
+        }
+        return new String(seq);
+    }
+
+    private long getLong(long index) {
+        return mySegments[(int) (index / LONGS_PER_SEGMENT)].getLong((int) (index % LONGS_PER_SEGMENT) * 8);
+    }
+
+    private void map(File packedFile, long numLongs) {
+        int numSegments = (int) ((numLongs + LONGS_PER_SEGMENT - 1) / LONGS_PER_SEGMENT);
+        mySegments = new MappedByteBuffer[numSegments];
+        try {
+            RandomAccessFile raf = new RandomAccessFile(packedFile, "r");
+            FileChannel channel = raf.getChannel();
+            if (channel.size() != numLongs * 8) {
+                raf.close();
+                throw new IllegalStateException("ReferenceGenome: " + packedFile + " has " + channel.size() + " bytes but its index expects " + numLongs * 8
+                        + ".  Delete it and its .fai to rebuild them.");
+            }
+            for (int s = 0; s < numSegments; s++) {
+                long start = s * LONGS_PER_SEGMENT;
+                long longs = Math.min(LONGS_PER_SEGMENT, numLongs - start);
+                mySegments[s] = channel.map(FileChannel.MapMode.READ_ONLY, start * 8, longs * 8);
+            }
+            raf.close();  // the mappings stay valid after the channel is closed
+        } catch (IllegalStateException e) {
+            throw e;
+        } catch (Exception e) {
+            myLogger.error("ReferenceGenome: error while mapping " + packedFile + ": " + e);
+            e.printStackTrace();
+            throw new IllegalStateException("ReferenceGenome: can't map: " + packedFile);
+        }
+    }
+
+    private static boolean isCurrent(File fasta, File derived) {
+        return derived.isFile() && (derived.lastModified() >= fasta.lastModified());
+    }
+
+    private static List<String[]> readIndex(File indexFile) {
+        List<String[]> result = new ArrayList<String[]>();
+        try {
+            BufferedReader br = new BufferedReader(new FileReader(indexFile));
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.length() > 0) {
+                    result.add(line.split("\t"));
+                }
+            }
+            br.close();
+        } catch (Exception e) {
+            myLogger.error("ReferenceGenome: error while reading " + indexFile + ": " + e);
+            e.printStackTrace();
+            throw new IllegalStateException("ReferenceGenome: can't read index: " + indexFile);
+        }
+        return result;
+    }
+
+    /**
+     * Reads the fasta file once and writes the index and the packed bases.
+     */
+    private static void pack(File fasta, File indexFile, File packedFile) throws IOException {
+        myLogger.info("ReferenceGenome: indexing and packing " + fasta + " into " + indexFile + " and " + packedFile);
+        long time = System.currentTimeMillis();
+        InputStream in = new BufferedInputStream(new FileInputStream(fasta), 1 << 16);
+        DataOutputStream packed = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(packedFile), 1 << 16));
+        StringBuilder index = new StringBuilder();
+        byte[] buffer = new byte[1 << 16];
+        StringBuilder header = null;  // not null while reading a header line
+        String name = null;
+        long filePos = 0, offset = 0;
+        long word = 0;
+        int length = 0, lineBases = 0, lineWidth = 0, currLineBases = 0, currLineWidth = 0;
+        boolean firstLine = true;
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            for (int i = 0; i < n; i++, filePos++) {
+                byte b = buffer[i];
+                if (header != null) {
+                    if (b == '\n') {
+                        name = header.toString().trim().split("\\s+")[0];
+                        header = null;
+                        offset = filePos + 1;
+                        length = 0;
+                        word = 0;
+                        firstLine = true;
+                        currLineBases = currLineWidth = 0;
+                    } else {
+                        header.append((char) b);
+                    }
+                    continue;
+                }
+                if ((b == '>') && (currLineWidth == 0)) {
+                    if (name != null) {
+                        finishChromosome(packed, index, name, length, offset, lineBases, lineWidth, word);
+                    }
+                    header = new StringBuilder();
+                    continue;
+                }
+                currLineWidth++;
+                if (b == '\n') {
+                    if (firstLine) {
+                        lineBases = currLineBases;
+                        lineWidth = currLineWidth;
+                        firstLine = false;
+                    }
+                    currLineBases = currLineWidth = 0;
+                    continue;
+                }
+                if ((b == '\r') || (name == null)) {
+                    continue;
+                }
+                word = (word << 2) | baseCode(b);
+                length++;
+                currLineBases++;
+                if (length % CHUNK == 0) {
+                    packed.writeLong(word);
+                    word = 0;
+                }
+            }
+        }
+        if (name != null) {
+            if (firstLine) {  // single line without a final newline
+                lineBases = currLineBases;
+                lineWidth = currLineWidth;
+            }
+            finishChromosome(packed, index, name, length, offset, lineBases, lineWidth, word);
+        }
+        in.close();
+        packed.close();
+        BufferedWriter bw = new BufferedWriter(new FileWriter(indexFile));  // written last: the index marks a complete packed file
+        bw.write(index.toString());
+        bw.close();
+        myLogger.info("ReferenceGenome: indexed and packed in " + (System.currentTimeMillis() - time) / 1000 + " s");
+    }
+
+    private static void finishChromosome(DataOutputStream packed, StringBuilder index, String name, int length, long offset,
+            int lineBases, int lineWidth, long word) throws IOException {
+        int rest = length % CHUNK;
+        if (rest != 0) {
+            packed.writeLong(word << (2 * (CHUNK - rest)));  // pad with A
+        }
+        index.append(name).append('\t').append(length).append('\t').append(offset).append('\t')
+                .append(lineBases).append('\t').append(lineWidth).append('\n');
+        myLogger.info("ReferenceGenome: chromosome " + name + " is " + length + " bases long");
+    }
+
+    private static long baseCode(byte b) {
+        switch (b) {
+            case 'C':
+            case 'c':
+                return 1;
+            case 'G':
+            case 'g':
+                return 2;
+            case 'T':
+            case 't':
+                return 3;
+            default:
+                return 0;  // A, and N or other codes read as A
+        }
+    }
+}
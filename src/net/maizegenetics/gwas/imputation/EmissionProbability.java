@@ -23,6 +23,17 @@ public class EmissionProbability {
 		return Math.log(getProbObsGivenState(state, obs, node));
 	}
 
+	/**
+	 * @return true if the probabilities do not depend on the node, so that ViterbiEngine can compute their ln once for all nodes
+	 */
+	public boolean isIndependentOfNode() {
+		return true;
+	}
+
+	public int getNumberOfObservations() {
+		return probObsGivenState[0].length;
+	}
+
 	public void setEmissionProbability(double[][] probabilityMatrix) {
 		probObsGivenState = probabilityMatrix;
 	}
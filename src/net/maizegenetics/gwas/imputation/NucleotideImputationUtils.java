@@ -1911,6 +1911,13 @@ public class NucleotideImputationUtils {
 	}
 	
 	public static MutableNucleotideAlignment imputeUsingViterbiFiveState(Alignment a, double probHeterozygous, String familyName, boolean useVariableRecombitionRates) {
+		return imputeUsingViterbiFiveState(a, probHeterozygous, familyName, useVariableRecombitionRates, Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * @param numThreads the number of threads used to run the Viterbi algorithm on the taxa
+	 */
+	public static MutableNucleotideAlignment imputeUsingViterbiFiveState(Alignment a, double probHeterozygous, String familyName, boolean useVariableRecombitionRates, int numThreads) {
 		a = ConvertSBitTBitPlugin.convertAlignment(a, ConvertSBitTBitPlugin.CONVERT_TYPE.tbit, null);
 		//states are in {all A; 3A:1C; 1A:1C, 1A:3C; all C}
 		//obs are in {A, C, M}, where M is heterozygote A/C
@@ -2003,13 +2010,19 @@ public class NucleotideImputationUtils {
 			//apply Viterbi
 			myLogger.info("Iteration " + iter++ + " for " + familyName);
 			bestStates.clear();
+			ArrayList<byte[]> viterbiObs = new ArrayList<byte[]>();
+			ArrayList<int[]> viterbiPositions = new ArrayList<int[]>();
+			for (int t = 0; t < ntaxa; t++) {
+				if (notMissingCount[t] >= 20) {
+					viterbiObs.add(nonMissingObs.get(t));
+					viterbiPositions.add(snpPositions.get(t));
+				}
+			}
+			Iterator<byte[]> viterbiStates = new ViterbiEngine(tp, ep, pTrue).getMostProbableStateSequences(viterbiObs, viterbiPositions, numThreads).iterator();
 			for (int t = 0; t < ntaxa; t++) {
-				tp.setPositions(snpPositions.get(t));
 				int nobs = notMissingCount[t];
 				if (nobs >= 20) {
-					ViterbiAlgorithm va = new ViterbiAlgorithm(nonMissingObs.get(t), tp, ep, pTrue);
-					va.calculate();
-					bestStates.add(va.getMostProbableStateSequence());
+					bestStates.add(viterbiStates.next());
 				} else { //do not impute if obs < 20
 					myLogger.info("Fewer then 20 observations for " + a.getTaxaName(t));
 					byte[] states = new byte[nobs];
@@ -2621,7 +2634,7 @@ public class NucleotideImputationUtils {
     	int[][] transCount = new int[][]{{totalTransitions - hetHet - 2*hetHom, hetHom},{hetHom, hetHet}};
     	
     	tp.setTransitionCounts(transCount, chrlen, ntaxa);
-    	tp.setPositions(a.getPhysicalPositions());
+    	int[] positions = a.getPhysicalPositions();
     	
     	//count number of het loci
     	int hetCount = 0;
@@ -2679,9 +2692,7 @@ public class NucleotideImputationUtils {
     		
     		ep.setEmissionProbability(probMatrix);
     		
-    		ViterbiAlgorithm va = new ViterbiAlgorithm(obs, tp, ep, initialProb);
-    		va.calculate();
-    		byte[] states = va.getMostProbableStateSequence();
+    		byte[] states = new ViterbiEngine(tp, ep, initialProb).getMostProbableStateSequence(obs, positions);
     		OpenBitSet bitStates = new OpenBitSet(nsites);
     		for (int s = 0; s < nsites; s++) if (states[s] == 1) bitStates.fastSet(s);
     		taxaStates[t] = bitStates;
@@ -31,6 +31,11 @@ public class PhasedEmissionProbability extends EmissionProbability {
 		return Math.log(getProbObsGivenState(state, obs, node));
 	}
 
+	@Override
+	public boolean isIndependentOfNode() {
+		return false;
+	}
+
 	private double conditionalProbability(int obs, int N1, int N2) {
 		double p = 0.0;
 		
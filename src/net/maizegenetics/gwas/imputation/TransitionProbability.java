@@ -1,10 +1,15 @@
 package net.maizegenetics.gwas.imputation;
 
+import java.util.concurrent.ConcurrentHashMap;
+
 public class TransitionProbability {
+	private static final int MAX_CACHED_MATRICES = 100000;
 	protected double[][] probabilityOfATransition;
 	protected double[][] adjustedProbability;
 	protected int[] positions;
 	double avgSegmentLength = Double.NaN;
+	//ln of the adjusted transition probabilities by segment length, cleared when the model changes
+	private final ConcurrentHashMap<Integer, double[][]> lnMatrixBySegmentLength = new ConcurrentHashMap<Integer, double[][]>();
 	
 	/**
 	 * Use this function to set the transition probability matrix when it is to be used without specifying nodes for getTransitionProbability
@@ -12,6 +17,7 @@ public class TransitionProbability {
 	 */
 	public void setTransitionProbability(double[][] probabilityMatrix) {
 		probabilityOfATransition = probabilityMatrix;
+		lnMatrixBySegmentLength.clear();
 	}
 	
 	public double getTransitionProbability(int state1, int state2) {
@@ -53,27 +59,64 @@ public class TransitionProbability {
 				probabilityOfATransition[row][col] = ((double) transitionCounts[row][col]) / ((double) rowSums[row]);
 			}
 		}
+		lnMatrixBySegmentLength.clear();
 	}
 
 	public void setNode(int node) {
 		if (node <= 0) return;
+		adjustedProbability = getAdjustedProbability(Math.abs(positions[node] - positions[node - 1]));
+	}
+
+	/**
+	 * Returns the ln of the transition probabilities between two nodes at the given positions, as
+	 * getLnTransitionProbability() would after setNode(), rows = state1, columns = state2.
+	 * The matrices are cached by segment length, so the returned matrix must not be modified.
+	 * This does not change the state of this object, so it can be called by several threads.
+	 */
+	public double[][] getLnTransitionMatrix(int previousPosition, int position) {
+		int segmentLength = Math.abs(position - previousPosition);
+		double[][] result = lnMatrixBySegmentLength.get(segmentLength);
+		if (result == null) {
+			result = toLn(getAdjustedProbability(segmentLength));
+			if (lnMatrixBySegmentLength.size() >= MAX_CACHED_MATRICES) lnMatrixBySegmentLength.clear();
+			lnMatrixBySegmentLength.put(segmentLength, result);
+		}
+		return result;
+	}
+
+	protected static double[][] toLn(double[][] probability) {
+		int n = probability.length;
+		double[][] result = new double[n][n];
+		for (int row = 0; row < n; row++) {
+			for (int col = 0; col < n; col++) {
+				result[row][col] = Math.log(probability[row][col]);
+			}
+		}
+		return result;
+	}
+
+	private double[][] getAdjustedProbability(int segmentLength) {
 		int n = probabilityOfATransition.length;
-		adjustedProbability = new double[n][n];
-		int segmentLength = Math.abs(positions[node] - positions[node - 1]);
+		double[][] adjusted = new double[n][n];
 		double m;
 		for (int row = 0; row < n; row++) {
 			double offdiagsum = 0;
 			for (int col = 0; col < n; col++) {
 				if (col != row) {
 					m = -Math.log(1 - 2 * probabilityOfATransition[row][col]) * segmentLength / avgSegmentLength / 2;
-					adjustedProbability[row][col] = (1 - Math.exp(-2*m)) / 2;
-					offdiagsum += adjustedProbability[row][col];
+					adjusted[row][col] = (1 - Math.exp(-2*m)) / 2;
+					offdiagsum += adjusted[row][col];
 				}
 			}
-			adjustedProbability[row][row] = 1 - offdiagsum;
+			adjusted[row][row] = 1 - offdiagsum;
 		}
+		return adjusted;
+	}
+
+	public void setAverageSegmentLength(double length) {
+		avgSegmentLength = length;
+		lnMatrixBySegmentLength.clear();
 	}
 
-	public void setAverageSegmentLength(double length) { avgSegmentLength = length; }
 	public void setPositions(int[] positions) { this.positions = positions; }
 }
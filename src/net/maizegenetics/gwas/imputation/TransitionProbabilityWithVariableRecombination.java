@@ -22,21 +22,33 @@ public class TransitionProbabilityWithVariableRecombination extends TransitionPr
 	@Override
 	public void setNode(int node) {
 		if (node <= 0) return;
-		double rrr = getRelativeRecombinationRate(node);
+		adjustedProbability = getAdjustedProbability(positions[node - 1], positions[node]);
+	}
+
+	/**
+	 * The rate varies along the chromosome, so the matrices are computed for each pair of positions rather than cached.
+	 */
+	@Override
+	public double[][] getLnTransitionMatrix(int previousPosition, int position) {
+		return toLn(getAdjustedProbability(previousPosition, position));
+	}
+
+	private double[][] getAdjustedProbability(int previousPosition, int position) {
+		double rrr = getRelativeRecombinationRate(previousPosition, position);
 		int n = transitionCounts.length;
-		adjustedProbability = new double[n][n];
-		int segmentLength = positions[node] - positions[node - 1];
-		double m;
+		double[][] adjusted = new double[n][n];
+		int segmentLength = position - previousPosition;
 		for (int row = 0; row < n; row++) {
 			double offdiagsum = 0;
 			for (int col = 0; col < n; col++) {
 				if (col != row) {
-					adjustedProbability[row][col] = segmentLength * rrr * transitionCounts[row][col] / numberOfTaxa;
-					offdiagsum += adjustedProbability[row][col];
+					adjusted[row][col] = segmentLength * rrr * transitionCounts[row][col] / numberOfTaxa;
+					offdiagsum += adjusted[row][col];
 				}
 			}
-			adjustedProbability[row][row] = 1 - offdiagsum;
+			adjusted[row][row] = 1 - offdiagsum;
 		}
+		return adjusted;
 	}
 	
 //	private double getRelativeRecombinationRate(int node) {
@@ -61,13 +73,13 @@ public class TransitionProbabilityWithVariableRecombination extends TransitionPr
 		this.numberOfTaxa = numberOfTaxa;
 	}
 
-	private double getRelativeRecombinationRate(int node) {
-		int index1 = Arrays.binarySearch(ratePosition, positions[node]);
+	private double getRelativeRecombinationRate(int previousPosition, int position) {
+		int index1 = Arrays.binarySearch(ratePosition, position);
 		if (index1 < 0) {
 			index1 = -index1 - 1;
 		}
 		if (index1 >= ratePosition.length) index1 = ratePosition.length - 1;
-		int index0 = Arrays.binarySearch(ratePosition, positions[node - 1]);
+		int index0 = Arrays.binarySearch(ratePosition, previousPosition);
 		if (index0 < 0) {
 			index0 = -index0 - 2;
 		}
@@ -18,6 +18,7 @@ public class ViterbiAlgorithmPlugin extends AbstractPlugin {
 	private double probHeterozygous = 0.07;
 	private boolean useVariableTransition = false;
 	private String variableRecombFilename = "";
+	private int numThreads = Runtime.getRuntime().availableProcessors();
 	
 	public ViterbiAlgorithmPlugin(Frame parentFrame) {
 		super(parentFrame, false);
@@ -42,7 +43,7 @@ public class ViterbiAlgorithmPlugin extends AbstractPlugin {
 				phet = probHeterozygous;
 			}
 			
-			family.imputed = NucleotideImputationUtils.imputeUsingViterbiFiveState(tba, phet, family.name, useVariableTransition);
+			family.imputed = NucleotideImputationUtils.imputeUsingViterbiFiveState(tba, phet, family.name, useVariableTransition, numThreads);
 			
 			if (fillGapsInAlignment) NucleotideImputationUtils.fillGapsInAlignment(family);
 			
@@ -72,6 +73,8 @@ public class ViterbiAlgorithmPlugin extends AbstractPlugin {
 				if (vr.toLowerCase().startsWith("t")) useVariableTransition = true;
 			} else if (args[i].equals("-f") || args[i].equalsIgnoreCase("-varRecombFile")) {
 				variableRecombFilename = args[++i];
+			} else if (args[i].equals("-t") || args[i].equalsIgnoreCase("-threads")) {
+				numThreads = Integer.parseInt(args[++i]);
 			} else if (args[i].equals("?")) myLogger.info(getUsage());
 		}
 	}
@@ -105,6 +108,7 @@ public class ViterbiAlgorithmPlugin extends AbstractPlugin {
 		usage.append("-h or -phet : expected frequency of heterozygous loci (default = 0.07). If the inbreeding coefficient is specified in the pedigree file that will used to calculate this value.\n");
 		usage.append("-v or -varRecomb : If true use recombination rates that vary along the chromosome\n");
 		usage.append("-f or -varRecombFile : The name of the file containing recombination rate as a function of position\n");
+		usage.append("-t or -threads : The number of threads used to run the Viterbi algorithm on the taxa of a family (default = number of processors)\n");
 		usage.append("? : print the parameter list.\n");
 
 		return usage.toString();
@@ -118,4 +122,8 @@ public class ViterbiAlgorithmPlugin extends AbstractPlugin {
 		this.variableRecombFilename = variableRecombFilename;
 	}
 
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+
 }
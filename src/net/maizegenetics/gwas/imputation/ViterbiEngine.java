@@ -0,0 +1,209 @@
+package net.maizegenetics.gwas.imputation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Viterbi decoding of many observation sequences (taxa) that share the same transition and emission model.
+ * It gives the same state sequences as ViterbiAlgorithm, but the ln of the emission probabilities is computed once
+ * for all taxa (when they do not depend on the node), the ln transition matrices come from the cache of
+ * TransitionProbability, and the path lengths and history are kept in buffers that are allocated once per thread
+ * and reused for every taxon.
+ */
+public class ViterbiEngine {
+
+	private final TransitionProbability myTransition;
+	private final EmissionProbability myEmission;
+	private final int numberOfStates;
+	private final double[] lnProbTrueStates;
+	private final double[][] lnEmission; //observations in rows, states in columns; null if it depends on the node
+	private final Workspace myWorkspace = new Workspace();
+
+	/**
+	 * @param transition the transition model, which must not be changed while this engine is used
+	 * @param emission the emission model, which must not be changed while this engine is used
+	 * @param pTrue the probabilities of the true states at the first node
+	 */
+	public ViterbiEngine(TransitionProbability transition, EmissionProbability emission, double[] pTrue) {
+		myTransition = transition;
+		myEmission = emission;
+		numberOfStates = transition.getNumberOfStates();
+		lnProbTrueStates = new double[pTrue.length];
+		for (int i = 0; i < pTrue.length; i++) {
+			lnProbTrueStates[i] = Math.log(pTrue[i]);
+		}
+		if (emission.isIndependentOfNode()) {
+			int numberOfObs = emission.getNumberOfObservations();
+			lnEmission = new double[numberOfObs][numberOfStates];
+			for (int o = 0; o < numberOfObs; o++) {
+				for (int s = 0; s < numberOfStates; s++) {
+					lnEmission[o][s] = emission.getLnProbObsGivenState(s, o, 0);
+				}
+			}
+		} else {
+			lnEmission = null;
+		}
+	}
+
+	/**
+	 * @param obs the observations
+	 * @param positions the positions of the observations, used for the transition probabilities
+	 * @return the most probable sequence of true states
+	 */
+	public synchronized byte[] getMostProbableStateSequence(byte[] obs, int[] positions) {
+		return decode(obs, positions, myWorkspace);
+	}
+
+	/**
+	 * Decodes the observations of several taxa, using numThreads threads.
+	 * @param observations the observations of each taxon
+	 * @param positions the positions of the observations of each taxon
+	 * @param numThreads the number of threads
+	 * @return the most probable sequence of true states of each taxon, in the same order as observations
+	 */
+	public List<byte[]> getMostProbableStateSequences(final List<byte[]> observations, final List<int[]> positions, int numThreads) {
+		final int ntaxa = observations.size();
+		final byte[][] result = new byte[ntaxa][];
+		numThreads = Math.min(numThreads, ntaxa);
+		if (numThreads <= 1) {
+			Workspace ws = new Workspace();
+			for (int t = 0; t < ntaxa; t++) {
+				result[t] = decode(observations.get(t), positions.get(t), ws);
+			}
+			return new ArrayList<byte[]>(Arrays.asList(result));
+		}
+
+		final AtomicInteger nextTaxon = new AtomicInteger(0);
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		try {
+			List<Future<Object>> futures = new ArrayList<Future<Object>>();
+			for (int i = 0; i < numThreads; i++) {
+				futures.add(pool.submit(new Callable<Object>() {
+					@Override
+					public Object call() {
+						Workspace ws = new Workspace();
+						for (int t = nextTaxon.getAndIncrement(); t < ntaxa; t = nextTaxon.getAndIncrement()) {
+							result[t] = decode(observations.get(t), positions.get(t), ws);
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Object> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+					throw new IllegalStateException("ViterbiEngine: " + e.getCause(), e.getCause());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("ViterbiEngine: interrupted");
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		return new ArrayList<byte[]>(Arrays.asList(result));
+	}
+
+	private byte[] decode(byte[] obs, int[] positions, Workspace ws) {
+		int numberOfObs = obs.length;
+		if (numberOfObs == 0) return new byte[0];
+		int n = numberOfStates;
+		ws.ensureCapacity(n, numberOfObs);
+		double[] distance = ws.distance;
+		double[] next = ws.next;
+		byte[] history = ws.history;
+
+		//initialize
+		double[] lnE = getLnEmission(obs[0], 0, ws);
+		for (int i = 0; i < n; i++) {
+			distance[i] = lnE[i] + lnProbTrueStates[i];
+		}
+
+		//iterate, with the same arithmetic and tie breaking as ViterbiAlgorithm
+		for (int node = 1; node < numberOfObs; node++) {
+			double[][] lnT = myTransition.getLnTransitionMatrix(positions[node - 1], positions[node]);
+			lnE = getLnEmission(obs[node], node, ws);
+			int h = node * n;
+			for (int j = 0; j < n; j++) {
+				int max = 0;
+				double maxDistance = distance[0] + lnT[0][j] + lnE[j];
+				for (int i = 1; i < n; i++) {
+					double d = distance[i] + lnT[i][j] + lnE[j];
+					if (d > maxDistance) {
+						max = i;
+						maxDistance = d;
+					}
+				}
+				next[j] = maxDistance;
+				history[h + j] = (byte) max;
+			}
+			double[] temp = distance;
+			distance = next;
+			next = temp;
+
+			//if the min distance is less than -1e100, subtract the max distance;
+			double maxd = distance[0];
+			double mind = 0;
+			for (int i = 0; i < n; i++) {
+				if (distance[i] > maxd) maxd = distance[i];
+				if (distance[i] != Double.NEGATIVE_INFINITY && distance[i] < mind) mind = distance[i];
+			}
+			if (mind < -1e100) {
+				for (int i = 0; i < n; i++) {
+					distance[i] -= maxd;
+				}
+			}
+		}
+
+		//decode the most probable state sequence
+		byte[] seq = new byte[numberOfObs];
+		byte finalState = 0;
+		for (int i = 1; i < n; i++) {
+			if (distance[i] > distance[finalState]) finalState = (byte) i;
+		}
+		seq[numberOfObs - 1] = finalState;
+		for (int i = numberOfObs - 2; i >= 0; i--) {
+			seq[i] = history[(i + 1) * n + seq[i + 1]];
+		}
+		return seq;
+	}
+
+	private double[] getLnEmission(byte obs, int node, Workspace ws) {
+		if (lnEmission != null) return lnEmission[obs];
+		for (int s = 0; s < numberOfStates; s++) {
+			ws.emission[s] = myEmission.getLnProbObsGivenState(s, obs, node);
+		}
+		return ws.emission;
+	}
+
+	/**
+	 * Working buffers of one thread: the path lengths of the current and next node, the ln emission probabilities
+	 * of the current node and the history, node after node.
+	 */
+	private static class Workspace {
+		double[] distance = new double[0];
+		double[] next = new double[0];
+		double[] emission = new double[0];
+		byte[] history = new byte[0];
+
+		void ensureCapacity(int numberOfStates, int numberOfObs) {
+			if (distance.length != numberOfStates) {
+				distance = new double[numberOfStates];
+				next = new double[numberOfStates];
+				emission = new double[numberOfStates];
+			}
+			if (history.length < numberOfStates * numberOfObs) {
+				history = new byte[Math.max(numberOfStates * numberOfObs, 2 * history.length)];
+			}
+		}
+	}
+}
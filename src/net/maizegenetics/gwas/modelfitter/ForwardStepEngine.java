@@ -0,0 +1,340 @@
+package net.maizegenetics.gwas.modelfitter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.maizegenetics.jGLiM.dm.CovariateModelEffect;
+import net.maizegenetics.jGLiM.dm.FactorModelEffect;
+import net.maizegenetics.jGLiM.dm.ModelEffect;
+import net.maizegenetics.jGLiM.dm.NestedCovariateModelEffect;
+import net.maizegenetics.jGLiM.dm.PartitionedLinearModel;
+import net.maizegenetics.jGLiM.dm.SweepFastLinearModel;
+import net.maizegenetics.matrixalgebra.Matrix.DoubleMatrix;
+import net.maizegenetics.matrixalgebra.Matrix.DoubleMatrixFactory;
+import net.maizegenetics.pal.alignment.Locus;
+import net.maizegenetics.pal.alignment.MarkerCodes;
+import net.maizegenetics.pal.alignment.MarkerPhenotypeAdapter;
+
+/**
+ * Finds the marker to add in a forward step of StepwiseOLSModelFitter. The design matrix X1 of the current model,
+ * the inverse G1 of X1'X1 and X1'y are computed once per step. Each marker is then scored from its level codes or
+ * values, as PartitionedLinearModel.testNewModelEffect() would score its ModelEffect, without creating one. Only the
+ * marker that is selected is made into a ModelEffect.
+ * <p>
+ * Markers are scored in chunks of MARKERS_PER_CHUNK by a pool of threads, while the calling thread reads the marker
+ * codes ahead of them. The best marker of each chunk is compared in marker order, so the marker selected is the one
+ * the sequential scan would select.
+ */
+class ForwardStepEngine {
+
+	private static final int MARKERS_PER_CHUNK = 256;
+	private static final int MAX_CHUNKS_PER_THREAD = 4;
+	private final MarkerPhenotypeAdapter myData;
+	private final int myPhenotype;
+	private final ArrayList<ModelEffect> myModel;
+	private final SweepFastLinearModel myLinearModel;
+	private final FactorModelEffect myNestingEffect;
+	private final double[] myY;
+	private final double[] myX1;
+	private final int myNumberOfColumns;
+	private final DoubleMatrix myG1;
+	private final DoubleMatrix myX1Ty;
+	private final double[] myResidualSSdf;
+	private final ThreadLocal<Buffers> myBuffers = new ThreadLocal<Buffers>() {
+		@Override
+		protected Buffers initialValue() {
+			return new Buffers();
+		}
+	};
+
+	/**
+	 * The best marker found and its statistics.
+	 */
+	static class Candidate {
+		int marker = -1;
+		double modelss = 0;
+		double errorss;
+		double modeldf;
+		double bic = 1.7E+308;
+	}
+
+	/**
+	 * Per thread arrays that are reused from marker to marker.
+	 */
+	private static class Buffers {
+		double[] x2tx1 = new double[0];
+		double[] counts = new double[0];
+		double[] x2ty = new double[0];
+		PartitionedLinearModel plm = null;
+	}
+
+	/**
+	 * @param data the markers
+	 * @param phenotype the phenotype whose marker values are used
+	 * @param model the current model
+	 * @param linearModel the solution of the current model
+	 * @param y the data
+	 * @param nestingEffect the factor covariates are nested in, or null if they are not nested
+	 */
+	ForwardStepEngine(MarkerPhenotypeAdapter data, int phenotype, ArrayList<ModelEffect> model, SweepFastLinearModel linearModel, double[] y, FactorModelEffect nestingEffect) {
+		myData = data;
+		myPhenotype = phenotype;
+		myModel = model;
+		myLinearModel = linearModel;
+		myNestingEffect = nestingEffect;
+		myY = y;
+		myG1 = linearModel.getInverseOfXtX();
+		myResidualSSdf = linearModel.getResidualSSdf();
+
+		int nx1 = model.size();
+		DoubleMatrix[][] x1tymatrices = new DoubleMatrix[nx1][1];
+		for (int i = 0; i < nx1; i++) {
+			x1tymatrices[i][0] = model.get(i).getXty(y);
+		}
+		myX1Ty = DoubleMatrixFactory.DEFAULT.compose(x1tymatrices);
+
+		//X1 row major, so that the columns of an observation are together
+		int n = y.length;
+		int p = 0;
+		for (ModelEffect me : model) {
+			p += me.getX().numberOfColumns();
+		}
+		myNumberOfColumns = p;
+		myX1 = new double[n * p];
+		int firstColumn = 0;
+		for (ModelEffect me : model) {
+			DoubleMatrix X = me.getX();
+			int ncol = X.numberOfColumns();
+			for (int i = 0; i < n; i++) {
+				for (int j = 0; j < ncol; j++) {
+					myX1[i * p + firstColumn + j] = X.get(i, j);
+				}
+			}
+			firstColumn += ncol;
+		}
+	}
+
+	/**
+	 * Scores all markers and returns the best for modelType, or null if no marker is better than the starting
+	 * values of StepwiseOLSModelFitter.forwardStep().
+	 */
+	Candidate findBestMarker(StepwiseOLSModelFitter.MODEL_TYPE modelType, int numThreads) {
+		int numberOfSites = myData.getNumberOfMarkers();
+		int numChunks = (numberOfSites + MARKERS_PER_CHUNK - 1) / MARKERS_PER_CHUNK;
+		Candidate best = new Candidate();
+		if (numThreads <= 1) {
+			for (int c = 0; c < numChunks; c++) {
+				best = better(modelType, best, scoreChunk(modelType, c * MARKERS_PER_CHUNK, readChunk(c)));
+			}
+			return (best.marker < 0) ? null : best;
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		try {
+			List<Future<Candidate>> chunks = new LinkedList<Future<Candidate>>();
+			int numSubmitted = 0;
+			for (int c = 0; c < numChunks; c++) {
+				while ((numSubmitted < numChunks) && (numSubmitted - c <= MAX_CHUNKS_PER_THREAD * numThreads)) {
+					final int firstMarker = numSubmitted * MARKERS_PER_CHUNK;
+					final MarkerCodes[] codes = readChunk(numSubmitted++);
+					final StepwiseOLSModelFitter.MODEL_TYPE type = modelType;
+					chunks.add(pool.submit(new Callable<Candidate>() {
+						@Override
+						public Candidate call() {
+							return scoreChunk(type, firstMarker, codes);
+						}
+					}));
+				}
+				try {
+					best = better(modelType, best, chunks.remove(0).get());
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof RuntimeException) {
+						throw (RuntimeException) e.getCause();
+					}
+					throw new IllegalStateException("ForwardStepEngine: findBestMarker: " + e.getCause(), e.getCause());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("ForwardStepEngine: findBestMarker: interrupted");
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		return (best.marker < 0) ? null : best;
+	}
+
+	/**
+	 * Creates the ModelEffect of a marker, as it is added to the model.
+	 */
+	ModelEffect getMarkerEffect(int marker) {
+		SNP snp = new SNP(myData.getMarkerName(marker), new Locus(myData.getLocusName(marker)), (int) myData.getMarkerChromosomePosition(marker), marker);
+		MarkerCodes codes = myData.getMarkerCodes(myPhenotype, marker);
+		if (codes.isDiscrete()) {
+			ArrayList<Object> markerIds = new ArrayList<Object>();
+			int[] levels = codes.getLevels(null, markerIds);
+			snp.alleles = markerIds;
+			return new FactorModelEffect(levels, true, snp);
+		} else if (myNestingEffect != null) {
+			ModelEffect markerEffect = new NestedCovariateModelEffect(new CovariateModelEffect(codes.getValues(null)), myNestingEffect);
+			markerEffect.setID(snp);
+			return markerEffect;
+		} else {
+			return new CovariateModelEffect(codes.getValues(null), snp);
+		}
+	}
+
+	private MarkerCodes[] readChunk(int chunk) {
+		int first = chunk * MARKERS_PER_CHUNK;
+		int last = Math.min(myData.getNumberOfMarkers(), first + MARKERS_PER_CHUNK);
+		MarkerCodes[] codes = new MarkerCodes[last - first];
+		for (int s = first; s < last; s++) {
+			codes[s - first] = myData.getMarkerCodes(myPhenotype, s);
+		}
+		return codes;
+	}
+
+	/**
+	 * @param firstMarker the marker of codes[0]
+	 */
+	private Candidate scoreChunk(StepwiseOLSModelFitter.MODEL_TYPE modelType, int firstMarker, MarkerCodes[] codes) {
+		Candidate best = new Candidate();
+		for (int i = 0; i < codes.length; i++) {
+			double[] ssdf = scoreMarker(codes[i]);
+			Candidate current = new Candidate();
+			current.modelss = ssdf[0];
+			current.errorss = ssdf[1];
+			current.modeldf = ssdf[2];
+			int n = codes[i].getNumberOfRows();
+			double p = current.modeldf + 2; // modeldf corresponds to the slope estimates of each predictor, and 2 is for the intercept and the residual variance
+			current.bic = (n * Math.log(current.errorss / n)) + (p * Math.log(n));
+			if (isBetter(modelType, current, best)) {
+				current.marker = firstMarker + i;
+				best = current;
+			}
+		}
+		return best;
+	}
+
+	private static Candidate better(StepwiseOLSModelFitter.MODEL_TYPE modelType, Candidate best, Candidate candidate) {
+		if (candidate.marker >= 0 && isBetter(modelType, candidate, best)) {
+			return candidate;
+		}
+		return best;
+	}
+
+	/**
+	 * The comparison of StepwiseOLSModelFitter.forwardStep(). The mbic criterion is not implemented, so no marker is
+	 * better for it.
+	 */
+	private static boolean isBetter(StepwiseOLSModelFitter.MODEL_TYPE modelType, Candidate candidate, Candidate best) {
+		switch (modelType) {
+			case pvalue:
+				return candidate.modelss > best.modelss;
+			case bic:
+				return candidate.bic < best.bic;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Scores a marker as PartitionedLinearModel.testNewModelEffect() does, from Searle. 1987. Linear Models for
+	 * Unbalanced Data. p.264.
+	 *
+	 * @return {model SS, error SS, model df} of the marker added to the current model
+	 */
+	double[] scoreMarker(MarkerCodes codes) {
+		Buffers buffers = myBuffers.get();
+		if (!codes.isDiscrete() && myNestingEffect != null) {
+			ModelEffect markerEffect = new NestedCovariateModelEffect(new CovariateModelEffect(codes.getValues(null)), myNestingEffect);
+			return scoreUsingPartitionedModel(buffers, markerEffect);
+		}
+
+		int p = myNumberOfColumns;
+		int q;
+		DoubleMatrix X2TX2;
+		if (codes.isDiscrete()) {
+			//restricted factor: the last level has no column
+			int[] levels = codes.getLevels(null, null);
+			int numberOfLevels = 0;
+			for (int level : levels) {
+				numberOfLevels = Math.max(numberOfLevels, level + 1);
+			}
+			q = numberOfLevels - 1;
+			double[] x2tx1 = getBuffer(buffers.x2tx1, q * p);
+			buffers.x2tx1 = x2tx1;
+			double[] counts = getBuffer(buffers.counts, q);
+			buffers.counts = counts;
+			double[] x2ty = getBuffer(buffers.x2ty, q);
+			buffers.x2ty = x2ty;
+			for (int i = 0, n = levels.length; i < n; i++) {
+				int level = levels[i];
+				if (level < q) {
+					counts[level]++;
+					x2ty[level] += myY[i];
+					int row = level * p;
+					int col = i * p;
+					for (int j = 0; j < p; j++) {
+						x2tx1[row + j] += myX1[col + j];
+					}
+				}
+			}
+			X2TX2 = DoubleMatrixFactory.DEFAULT.diagonal(Arrays.copyOf(counts, q));
+			return score(DoubleMatrixFactory.DEFAULT.make(q, p, Arrays.copyOf(x2tx1, q * p)), X2TX2, DoubleMatrixFactory.DEFAULT.make(q, 1, Arrays.copyOf(x2ty, q)));
+		} else {
+			double[] covariate = codes.getValues();
+			double[] x2tx1 = getBuffer(buffers.x2tx1, p);
+			buffers.x2tx1 = x2tx1;
+			double sumsq = 0;
+			double sumprod = 0;
+			for (int i = 0, n = covariate.length; i < n; i++) {
+				double d = covariate[i];
+				sumsq += d * d;
+				sumprod += d * myY[i];
+				int col = i * p;
+				for (int j = 0; j < p; j++) {
+					x2tx1[j] += myX1[col + j] * d;
+				}
+			}
+			X2TX2 = DoubleMatrixFactory.DEFAULT.make(1, 1, sumsq);
+			return score(DoubleMatrixFactory.DEFAULT.make(1, p, Arrays.copyOf(x2tx1, p)), X2TX2, DoubleMatrixFactory.DEFAULT.make(1, 1, sumprod));
+		}
+	}
+
+	private double[] score(DoubleMatrix X2TX1, DoubleMatrix X2TX2, DoubleMatrix X2Ty) {
+		DoubleMatrix A = X2TX1.mult(myG1);
+		DoubleMatrix X2TM1X2 = X2TX2.minus(A.tcrossproduct(X2TX1));
+		DoubleMatrix X2TM1y = X2Ty.minus(A.mult(myX1Ty));
+
+		int[] rank = new int[]{0};
+		DoubleMatrix B = X2TM1X2.generalizedInverseWithRank(rank);
+		double modelss = X2TM1y.crossproduct(B).mult(X2TM1y).get(0, 0);
+		return new double[]{modelss, myResidualSSdf[0] - modelss, rank[0]};
+	}
+
+	private double[] scoreUsingPartitionedModel(Buffers buffers, ModelEffect markerEffect) {
+		if (buffers.plm == null) {
+			buffers.plm = new PartitionedLinearModel(myModel, myLinearModel);
+		}
+		buffers.plm.testNewModelEffect(markerEffect);
+		return new double[]{buffers.plm.getModelSS(), buffers.plm.getErrorSS(), buffers.plm.getModeldf()};
+	}
+
+	/**
+	 * Returns buffer, cleared, if it holds size values, otherwise a new array.
+	 */
+	private static double[] getBuffer(double[] buffer, int size) {
+		if (buffer.length < size) {
+			return new double[size];
+		}
+		Arrays.fill(buffer, 0, size, 0.0);
+		return buffer;
+	}
+}
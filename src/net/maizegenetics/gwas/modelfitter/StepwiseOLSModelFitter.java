@@ -27,6 +27,7 @@ public class StepwiseOLSModelFitter {
 	private double[] exitlimits = null;
 	private double enterlimit = 1e-5;
 	private double exitlimit = 2e-5;
+	private int numThreads = Runtime.getRuntime().availableProcessors();
 	private int maxNumberOfMarkers = 1000;
 	private FactorModelEffect nestingEffect;
 	private int nestingFactorIndex;
@@ -49,7 +50,6 @@ public class StepwiseOLSModelFitter {
         private double globalbestbic = Double.MAX_VALUE; //Rationale: the optimal model has minimum BIC. Thus, initialize bestbic with the largest possible double java can handle.
         private double globalbestmbic = Double.MAX_VALUE;
         public enum MODEL_TYPE {pvalue, bic, mbic};
-        private boolean test;
         
         
 	private final String[] anovaReportHeader = new String[]{"Trait", "Name","Locus","Position","df","SS","MS", "F", "pr>F"};
@@ -180,81 +180,15 @@ public class StepwiseOLSModelFitter {
 	}
 	
 	public boolean forwardStep() {
-		double bestss = 0;
-                double bestbic = 1.7E+308;
-                double bestmbic = 1.7E+308;
-		ModelEffect besteffect = null;
-		
 		SweepFastLinearModel sflm = new SweepFastLinearModel(currentModel, y);
-		PartitionedLinearModel plm = new PartitionedLinearModel(currentModel, sflm);
-		int numberOfSites = myData.getNumberOfMarkers();
-		
-		for (int s = 0; s < numberOfSites; s++) {
-			//create the appropriate marker effect
-			ModelEffect markerEffect = null;
-			SNP snp = new SNP(myData.getMarkerName(s), new Locus(myData.getLocusName(s)), (int) myData.getMarkerChromosomePosition(s), s);
-			Object[] markerValues = myData.getMarkerValue(currentPhenotypeIndex, s);
-			int n = markerValues.length;
-                        
-			if (myData.isMarkerDiscrete(s)) {
-				//int n = markerValues.length;
-				ArrayList<Object> markerIds = new ArrayList<Object>();
-				int[] levels = ModelEffectUtils.getIntegerLevels(markerValues, markerIds);
-				snp.alleles = markerIds;
-				
-				if (isNested) {
-					//not implemented yet
-					markerEffect = new FactorModelEffect(levels, true, snp);
-				} else {
-					markerEffect = new FactorModelEffect(levels, true, snp);
-				}
-			} else {
-				//int n = markerValues.length;
-				double[] cov = new double[n];
-				for (int i = 0; i < n; i++) cov[i] = ((Double) markerValues[i]).doubleValue();
-				
-				if (isNested) {
-					CovariateModelEffect cme = new CovariateModelEffect(cov);
-					markerEffect = new NestedCovariateModelEffect(cme, nestingEffect);
-					markerEffect.setID(snp);
-				} else {
-					markerEffect = new CovariateModelEffect(cov, snp);
-				}
-			}
-			
-			plm.testNewModelEffect(markerEffect);
-			double modelss = plm.getModelSS();
-                        
-                        //Calculate the BIC
-                        double errorss = plm.getErrorSS();
-                        double modeldf = plm.getModeldf();
-                        double p = modeldf+2; // modeldf corresponds to the slope estimates of each predictor, and 2 is for the intercept and the residual variance
-                        double bic = (n*Math.log(errorss/n)) + (p*Math.log(n)) ; 
-                                
-                        //Calculate the mBIC
-                        int numberOfTwoWayInteractions = (numberOfSites*(numberOfSites-1))/2;
-                        double pForMbic = plm.getModeldf();
-                        double qForMbic = 0; //This is going to be the number of two-way interaction terms. For now, this is not implemented, and thus I am setting it equal to zer
-                        double mbic = (n*Math.log(errorss)) + ((pForMbic+qForMbic)*Math.log(n)) + (2*pForMbic*(Math.log((numberOfSites/2.2)-1))) + 
-                                       (2*qForMbic*(Math.log((numberOfTwoWayInteractions/2.2)-1) ));
-                        
-                        switch(modelType){
-                            case pvalue:
-                                test = modelss > bestss;
-                                break;
-                            case bic:
-                                test = bic < bestbic;
-                                break;
-                            case mbic:
-                                //Not implemented yet
-                                break;
-                        }
-			if (test) {
-                                bestbic = bic;
-				bestss = modelss;
-				besteffect = markerEffect;
-			}
+		ForwardStepEngine engine = new ForwardStepEngine(myData, currentPhenotypeIndex, currentModel, sflm, y, isNested ? nestingEffect : null);
+		ForwardStepEngine.Candidate best = engine.findBestMarker(modelType, numThreads);
+		if (best == null) {
+			return false;
 		}
+		double bestbic = best.bic;
+		ModelEffect besteffect = engine.getMarkerEffect(best.marker);
+		PartitionedLinearModel plm = new PartitionedLinearModel(currentModel, sflm);
 		
 		//if the p-value for the select SNP is less than the enter limit, add it to the model and recalculate the model solution
 		plm.testNewModelEffect(besteffect);
@@ -466,6 +400,13 @@ public class StepwiseOLSModelFitter {
 		this.exitlimit = exitlimit;
 	}
 
+	/**
+	 * Sets the number of threads used to score the markers in forward steps. Defaults to the number of processors.
+	 */
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+
 	public void setMaxNumberOfMarkers(int maxNumberOfMarkers) {
 		this.maxNumberOfMarkers = maxNumberOfMarkers;
 	}
@@ -28,6 +28,7 @@ public class StepwiseOLSModelFitterPlugin extends AbstractPlugin {
     int maxNumberOfMarkers = 1000;
     boolean nestMarkers = false;
     int nestingFactorIndex;
+    int numThreads = Runtime.getRuntime().availableProcessors();
     
     public StepwiseOLSModelFitterPlugin(Frame parentFrame, boolean isInteractive) {
         super(parentFrame, isInteractive);
@@ -104,6 +105,7 @@ public class StepwiseOLSModelFitterPlugin extends AbstractPlugin {
 		modelFitter.setMaxNumberOfMarkers(maxNumberOfMarkers);
 		modelFitter.setNested(nestMarkers);
 		modelFitter.setNestingEffectIndex(nestingFactorIndex);
+		modelFitter.setNumThreads(numThreads);
 		
 		modelFitter.runAnalysis();
 		
@@ -162,6 +164,10 @@ public class StepwiseOLSModelFitterPlugin extends AbstractPlugin {
 		this.nestingFactorIndex = nestingFactorIndex;
 	}
 
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+
 	@Override
 	public void setParameters(String[] args) {
 		if (args == null || args.length == 0) {
@@ -194,6 +200,9 @@ public class StepwiseOLSModelFitterPlugin extends AbstractPlugin {
 			else if (args[i].equals("-f") || args[i].equalsIgnoreCase("-nestIndex")) {
 				nestingFactorIndex = Integer.parseInt(args[++i]);
 			}
+			else if (args[i].equals("-t") || args[i].equalsIgnoreCase("-threads")) {
+				numThreads = Integer.parseInt(args[++i]);
+			}
 			else if (args[i].equals("?") || args[i].equals("-?")) myLogger.error(getUsage());
 		}
 	}
@@ -216,6 +225,7 @@ public class StepwiseOLSModelFitterPlugin extends AbstractPlugin {
 		sb.append("-m or -maxmarkers : the maximum number of markers that will be fit, if the enter limit is not reached first.\n");
 		sb.append("-n or -nest : true or false, should markers be nested within a model factor? (default = false).\n");
 		sb.append("-f or -nestIndex : if there is more then one factor in the model and nest = true, the index of the nesting factor.\n");
+		sb.append("-t or -threads : the number of threads used to test the markers on forward steps (default = number of processors).\n");
 		sb.append("? : prints this usage information.\n");
 		return sb.toString();
 	}
@@ -37,6 +37,10 @@ abstract public class AbstractAlignment implements Alignment {
     private String[] mySNPIDs;
     private boolean myRetainRareAlleles = false;
     private Alignment myOriginalAlignment = null;
+    private boolean myCacheSiteStatistics = false;
+    private transient volatile SiteStatistics mySiteStatistics = null;
+    private transient volatile boolean myComputingSiteStatistics = false;
+    private int myEditCount = 0;
 
     public AbstractAlignment(IdGroup idGroup, byte[][] data, GeneticMap map, byte[] reference, String[][] alleleStates, int[] variableSites, int maxNumAlleles, Locus[] loci, int[] lociOffsets, String[] snpIDs, boolean retainRareAlleles) {
         if (idGroup.getIdCount() != data.length) {
@@ -292,6 +296,11 @@ abstract public class AbstractAlignment implements Alignment {
     @Override
     public int[][] getAllelesSortedByFrequency(int site) {
 
+        SiteStatistics stats = getSiteStatistics(site);
+        if (stats != null) {
+            return stats.getAllelesSortedByFrequency(site);
+        }
+
         int[] stateCnt = new int[16];
         for (int i = 0; i < getSequenceCount(); i++) {
             byte[] dipB = getBaseArray(i, site);
@@ -350,6 +359,11 @@ abstract public class AbstractAlignment implements Alignment {
     @Override
     public double getMajorAlleleFrequency(int site) {
 
+        SiteStatistics stats = getSiteStatistics(site);
+        if (stats != null) {
+            return stats.getMajorAlleleFrequency(site);
+        }
+
         int[][] alleles = getAllelesSortedByFrequency(site);
 
         int numAlleles = alleles[0].length;
@@ -368,6 +382,11 @@ abstract public class AbstractAlignment implements Alignment {
     @Override
     public double getMinorAlleleFrequency(int site) {
 
+        SiteStatistics stats = getSiteStatistics(site);
+        if (stats != null) {
+            return stats.getMinorAlleleFrequency(site);
+        }
+
         int[][] alleles = getAllelesSortedByFrequency(site);
 
         int numAlleles = alleles[0].length;
@@ -388,6 +407,10 @@ abstract public class AbstractAlignment implements Alignment {
         if (myAlleles != null) {
             return myAlleles[site][0];
         } else {
+            SiteStatistics stats = getSiteStatistics(site);
+            if (stats != null) {
+                return stats.getAllele(site, 0);
+            }
             int[][] alleles = getAllelesSortedByFrequency(site);
 
             if (alleles[0].length >= 1) {
@@ -412,6 +435,10 @@ abstract public class AbstractAlignment implements Alignment {
                 return Alignment.UNKNOWN_ALLELE;
             }
         } else {
+            SiteStatistics stats = getSiteStatistics(site);
+            if (stats != null) {
+                return stats.getAllele(site, 1);
+            }
             int[][] alleles = getAllelesSortedByFrequency(site);
 
             if (alleles[0].length >= 2) {
@@ -432,6 +459,14 @@ abstract public class AbstractAlignment implements Alignment {
         if (myAlleles != null) {
             return myAlleles[site];  //TODO this may not be correct for BitAlignment, as it returns UNKNOWN as one of the alleles
         } else {
+            SiteStatistics stats = getSiteStatistics(site);
+            if (stats != null) {
+                byte[] result = new byte[getMaxNumAlleles()];
+                for (int i = 0; i < result.length; i++) {
+                    result[i] = stats.getAllele(site, i);
+                }
+                return result;
+            }
             int[][] alleles = getAllelesSortedByFrequency(site);
             int resultSize = alleles[0].length;
             int maxNumAlleles = getMaxNumAlleles();
@@ -445,6 +480,10 @@ abstract public class AbstractAlignment implements Alignment {
 
     @Override
     public byte[] getMinorAlleles(int site) {
+        SiteStatistics stats = getSiteStatistics(site);
+        if (stats != null) {
+            return stats.getAlleles(site, 1);
+        }
         int[][] alleles = getAllelesSortedByFrequency(site);
         int resultSize = alleles[0].length - 1;
         byte[] result = new byte[resultSize];
@@ -549,6 +588,10 @@ abstract public class AbstractAlignment implements Alignment {
 
     @Override
     public int getHeterozygousCount(int site) {
+        SiteStatistics stats = getSiteStatistics(site);
+        if (stats != null) {
+            return stats.getHeterozygousCount(site);
+        }
         int result = 0;
         for (int i = 0, n = getSequenceCount(); i < n; i++) {
             if (isHeterozygous(i, site)) {
@@ -814,6 +857,11 @@ abstract public class AbstractAlignment implements Alignment {
     @Override
     public int getTotalGametesNotMissing(int site) {
 
+        SiteStatistics stats = getSiteStatistics(site);
+        if (stats != null) {
+            return stats.getTotalGametesNotMissing(site);
+        }
+
         int result = 0;
         for (int i = 0, n = getSequenceCount(); i < n; i++) {
             byte[] current = getBaseArray(i, site);
@@ -831,6 +879,11 @@ abstract public class AbstractAlignment implements Alignment {
     @Override
     public int getTotalNotMissing(int site) {
 
+        SiteStatistics stats = getSiteStatistics(site);
+        if (stats != null) {
+            return stats.getTotalNotMissing(site);
+        }
+
         int result = 0;
         for (int i = 0, n = getSequenceCount(); i < n; i++) {
             byte current = getBase(i, site);
@@ -876,6 +929,11 @@ abstract public class AbstractAlignment implements Alignment {
     @Override
     public int getMinorAlleleCount(int site) {
 
+        SiteStatistics stats = getSiteStatistics(site);
+        if (stats != null) {
+            return stats.getMinorAlleleCount(site);
+        }
+
         int[][] alleles = getAllelesSortedByFrequency(site);
 
         if (alleles[0].length >= 2) {
@@ -889,6 +947,11 @@ abstract public class AbstractAlignment implements Alignment {
     @Override
     public int getMajorAlleleCount(int site) {
 
+        SiteStatistics stats = getSiteStatistics(site);
+        if (stats != null) {
+            return stats.getMajorAlleleCount(site);
+        }
+
         int[][] alleles = getAllelesSortedByFrequency(site);
 
         if (alleles[0].length >= 1) {
@@ -1104,6 +1167,98 @@ abstract public class AbstractAlignment implements Alignment {
         throw new UnsupportedOperationException();
     }
 
+    @Override
+    public void setCacheSiteStatistics(boolean cache) {
+        myCacheSiteStatistics = cache;
+        if (!cache) {
+            mySiteStatistics = null;
+        }
+    }
+
+    /**
+     * Returns the cached statistics if caching is on and those of site are up to date, computing them for all
+     * sites first if needed.  Returns null otherwise, and while they are being computed, so that the uncached
+     * methods are used then.
+     */
+    SiteStatistics getSiteStatistics(int site) {
+        if (!myCacheSiteStatistics || myComputingSiteStatistics) {
+            return null;
+        }
+        SiteStatistics result = mySiteStatistics;
+        if ((result == null) || (result.getWrappedEditCount() != getWrappedEditCount())) {
+            result = computeSiteStatistics();
+            if (result == null) {
+                return null;
+            }
+        }
+        return result.isCurrent(site) ? result : null;
+    }
+
+    private synchronized SiteStatistics computeSiteStatistics() {
+        if (!myCacheSiteStatistics || myComputingSiteStatistics) {
+            return null;
+        }
+        int wrappedEditCount = getWrappedEditCount();
+        SiteStatistics result = mySiteStatistics;
+        if ((result != null) && (result.getWrappedEditCount() == wrappedEditCount)) {
+            return result;
+        }
+        myComputingSiteStatistics = true;
+        try {
+            result = new SiteStatistics(this, wrappedEditCount);
+        } finally {
+            myComputingSiteStatistics = false;
+        }
+        mySiteStatistics = result;
+        return result;
+    }
+
+    /**
+     * Returns whether the site statistic method of that name gives the result of the AbstractAlignment
+     * implementation, so that SiteStatistics can compute it from the allele counts.
+     */
+    boolean isDefaultSiteStatistic(String methodName) {
+        try {
+            return getClass().getMethod(methodName, int.class).getDeclaringClass() == AbstractAlignment.class;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Must be called by mutable subclasses after the genotypes of site are changed.
+     */
+    protected void genotypesChanged(int site) {
+        myEditCount++;
+        SiteStatistics stats = mySiteStatistics;
+        if ((stats != null) && !stats.siteChanged(site)) {
+            mySiteStatistics = null;
+        }
+    }
+
+    /**
+     * Must be called by mutable subclasses after sites or taxa are added, removed or reordered.
+     */
+    protected void alignmentChanged() {
+        myEditCount++;
+        mySiteStatistics = null;
+    }
+
+    /**
+     * Returns a count that changes each time the genotypes of this alignment, or of the alignments it wraps,
+     * are changed.
+     */
+    int getEditCount() {
+        return myEditCount + getWrappedEditCount();
+    }
+
+    /**
+     * Returns the edit count of the alignments this one reads its genotypes from, if any.
+     */
+    int getWrappedEditCount() {
+        return 0;
+    }
+
     @Override
     public short[] getDepthForAlleles(int taxon, int site) {
         return new short[]{1, 1};
@@ -901,6 +901,16 @@ public interface Alignment extends Serializable {
      */
     public void optimizeForSites(ProgressListener listener);
 
+    /**
+     * Turns caching of per site statistics (alleles sorted by frequency,
+     * allele frequencies and counts, heterozygous and not missing counts) on
+     * or off. When on, the statistics of all sites are computed the first
+     * time one is requested and kept until the genotypes change.
+     *
+     * @param cache whether to cache site statistics
+     */
+    public void setCacheSiteStatistics(boolean cache);
+
     /**
      * Returns depth count for each diploid allele at the given taxon and site.
      *
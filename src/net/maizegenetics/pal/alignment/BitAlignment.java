@@ -618,6 +618,11 @@ public class BitAlignment extends AbstractAlignment {
     @Override
     public int getTotalGametesNotMissing(int site) {
         
+        SiteStatistics stats = getSiteStatistics(site);
+        if (stats != null) {
+            return stats.getTotalGametesNotMissing(site);
+        }
+        
         if (mySBitData == null) {
             return super.getTotalGametesNotMissing(site);
         }
@@ -633,6 +638,11 @@ public class BitAlignment extends AbstractAlignment {
     @Override
     public int getTotalNotMissing(int site) {
         
+        SiteStatistics stats = getSiteStatistics(site);
+        if (stats != null) {
+            return stats.getTotalNotMissing(site);
+        }
+        
         if (mySBitData == null) {
             return super.getTotalNotMissing(site);
         }
@@ -678,6 +688,11 @@ public class BitAlignment extends AbstractAlignment {
     @Override
     public int getMinorAlleleCount(int site) {
         
+        SiteStatistics stats = getSiteStatistics(site);
+        if (stats != null) {
+            return stats.getMinorAlleleCount(site);
+        }
+        
         if ((myMaxNumAlleles < 2) || (myAlleles[site][1] == Alignment.UNKNOWN_ALLELE)) {
             return 0;
         }
@@ -701,6 +716,10 @@ public class BitAlignment extends AbstractAlignment {
     
     @Override
     public double getMinorAlleleFrequency(int site) {
+        SiteStatistics stats = getSiteStatistics(site);
+        if (stats != null) {
+            return stats.getMinorAlleleFrequency(site);
+        }
         int minorAlleleCount = getMinorAlleleCount(site);
         if (minorAlleleCount == 0) {
             return 0.0;
@@ -710,6 +729,10 @@ public class BitAlignment extends AbstractAlignment {
     
     @Override
     public double getMajorAlleleFrequency(int site) {
+        SiteStatistics stats = getSiteStatistics(site);
+        if (stats != null) {
+            return stats.getMajorAlleleFrequency(site);
+        }
         int majorAlleleCount = getMajorAlleleCount(site);
         if (majorAlleleCount == 0) {
             return 0.0;
@@ -720,6 +743,11 @@ public class BitAlignment extends AbstractAlignment {
     @Override
     public int getMajorAlleleCount(int site) {
         
+        SiteStatistics stats = getSiteStatistics(site);
+        if (stats != null) {
+            return stats.getMajorAlleleCount(site);
+        }
+        
         if (myAlleles[site][0] == Alignment.UNKNOWN_ALLELE) {
             return 0;
         }
@@ -777,6 +805,11 @@ public class BitAlignment extends AbstractAlignment {
     @Override
     public int getHeterozygousCount(int site) {
         
+        SiteStatistics stats = getSiteStatistics(site);
+        if (stats != null) {
+            return stats.getHeterozygousCount(site);
+        }
+        
         if (mySBitData == null) {
             return super.getHeterozygousCount(site);
         }
@@ -998,6 +1031,11 @@ public class BitAlignment extends AbstractAlignment {
     @Override
     public int[][] getAllelesSortedByFrequency(int site) {
         
+        SiteStatistics stats = getSiteStatistics(site);
+        if (stats != null) {
+            return stats.getAllelesSortedByFrequency(site);
+        }
+        
         if (mySBitData == null) {
             return super.getAllelesSortedByFrequency(site);
         }
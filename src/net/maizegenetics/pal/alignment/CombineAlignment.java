@@ -692,6 +692,12 @@ public class CombineAlignment extends AbstractAlignment {
         return myAlignments[translate].getTotalGametesNotMissing(site - mySiteOffsets[translate]);
     }
 
+    @Override
+    public int getTotalNotMissing(int site) {
+        int translate = translateSite(site);
+        return myAlignments[translate].getTotalNotMissing(site - mySiteOffsets[translate]);
+    }
+
     @Override
     public int getHeterozygousCount(int site) {
         int translate = translateSite(site);
@@ -743,6 +749,13 @@ public class CombineAlignment extends AbstractAlignment {
         }
     }
 
+    @Override
+    public void setCacheSiteStatistics(boolean cache) {
+        for (int i = 0; i < myAlignments.length; i++) {
+            myAlignments[i].setCacheSiteStatistics(cache);
+        }
+    }
+
     @Override
     public byte[] getAllelesByScope(ALLELE_SCOPE_TYPE scope, int site) {
         int translate = translateSite(site);
@@ -500,133 +500,70 @@ public class ExportUtils {
      * @param delimChar
      */
     public static String writeToHapmap(Alignment alignment, boolean diploid, String filename, char delimChar, ProgressListener listener) {
+        return writeToHapmap(alignment, diploid, filename, delimChar, listener, Runtime.getRuntime().availableProcessors(), false);
+    }
+
+    /**
+     * Writes an alignment to a Hapmap file, the rows being formatted by
+     * numThreads threads. With blockCompressed, the file is written as BGZF
+     * (and ".gz" added to its name if needed), so that tabix can index it.
+     *
+     * @param alignment alignment
+     * @param diploid
+     * @param filename
+     * @param delimChar
+     * @param listener
+     * @param numThreads number of threads formatting the rows
+     * @param blockCompressed whether to write BGZF
+     */
+    public static String writeToHapmap(final Alignment alignment, final boolean diploid, String filename, final char delimChar, ProgressListener listener, int numThreads, boolean blockCompressed) {
         if (delimChar != ' ' && delimChar != '\t') {
             throw new IllegalArgumentException("Delimiter charater must be either a blank space or a tab.");
         }
 
-        BufferedWriter bw = null;
         try {
-            String fullFileName = Utils.addSuffixIfNeeded(filename, ".hmp.txt", new String[]{".hmp.txt", ".hmp.txt.gz"});
-            bw = Utils.getBufferedWriter(fullFileName);
-            bw.write("rs#");
-            bw.write(delimChar);
-            bw.write("alleles");
-            bw.write(delimChar);
-            bw.write("chrom");
-            bw.write(delimChar);
-            bw.write("pos");
-            bw.write(delimChar);
-            bw.write("strand");
-            bw.write(delimChar);
-            bw.write("assembly#");
-            bw.write(delimChar);
-            bw.write("center");
-            bw.write(delimChar);
-            bw.write("protLSID");
-            bw.write(delimChar);
-            bw.write("assayLSID");
-            bw.write(delimChar);
-            bw.write("panelLSID");
-            bw.write(delimChar);
-            bw.write("QCcode");
-            bw.write(delimChar);
-            int numTaxa = alignment.getSequenceCount();
-            for (int taxa = 0; taxa < numTaxa; taxa++) {
-                //finish filling out first row
-                //not completely sure this does what I want, I need to access the
-                //accession name from every alleleBLOB in bytes [52-201] but there
-                //doesn't seem to be a method to access that in Alignment
-                String sequenceID = alignment.getIdGroup().getIdentifier(taxa).getFullName().trim();
-                bw.write(sequenceID);
-                if (taxa != numTaxa - 1) {
-                    bw.write(delimChar);
-                }
-            }
-            bw.write("\n");
-            int numSites = alignment.getSiteCount();
-            for (int site = 0; site < numSites; site++) {
-                bw.write(alignment.getSNPID(site));
-                bw.write(delimChar);
-//                byte[] alleles = alignment.getAlleles(site); // doesn't work right for MutableVCFAlignment (always returns 3 alleles, even if no data)
-//                int numAlleles = alleles.length;
-                int[][] sortedAlleles = alignment.getAllelesSortedByFrequency(site); // which alleles are actually present among the genotypes
-                int numAlleles = sortedAlleles[0].length;
-                if (numAlleles == 0) {
-                    bw.write("NA"); //if data does not exist
-                } else if (numAlleles == 1) {
-                    bw.write(alignment.getBaseAsString(site, (byte) sortedAlleles[0][0]));
-                } else {
-                    bw.write(alignment.getBaseAsString(site, (byte) sortedAlleles[0][0]));
-                    for (int allele = 1; allele < sortedAlleles[0].length; allele++) {
-                        if (sortedAlleles[0][allele] != Alignment.UNKNOWN_ALLELE) {
-                            bw.write('/');
-                            bw.write(alignment.getBaseAsString(site, (byte) sortedAlleles[0][allele]));  // will write out a third allele if it exists
-                        }
-                    }
-                }
-                bw.write(delimChar);
-                bw.write(alignment.getLocusName(site));
-                bw.write(delimChar);
-                bw.write(String.valueOf(alignment.getPositionInLocus(site)));
-                bw.write(delimChar);
-                bw.write("+"); //strand
-                bw.write(delimChar);
-                bw.write("NA"); //assembly# not supported
-                bw.write(delimChar);
-                bw.write("NA"); //center unavailable
-                bw.write(delimChar);
-                bw.write("NA"); //protLSID unavailable
-                bw.write(delimChar);
-                bw.write("NA"); //assayLSID unavailable
-                bw.write(delimChar);
-                bw.write("NA"); //panelLSID unavailable
-                bw.write(delimChar);
-                bw.write("NA"); //QCcode unavailable
-                bw.write(delimChar);
-                for (int taxa = 0; taxa < numTaxa; taxa++) {
-                    if (diploid == false) {
-                        String baseIUPAC = null;
-                        try {
-                            baseIUPAC = alignment.getBaseAsString(taxa, site);
-                        } catch (Exception e) {
-                            String[] b = alignment.getBaseAsStringArray(taxa, site);
-                            throw new IllegalArgumentException("There is no String representation for diploid values: " + b[0] + ":" + b[1] + " getBase(): 0x" + Integer.toHexString(alignment.getBase(taxa, site)) + "\nTry Exporting as Diploid Values.");
-                        }
-                        if ((baseIUPAC == null) || baseIUPAC.equals("?")) {
+            String fullFileName = getFileName(filename, ".hmp.txt", new String[]{".hmp.txt", ".hmp.txt.gz"}, blockCompressed);
+            final int numTaxa = alignment.getSequenceCount();
+            ParallelSiteWriter.SiteFormatter formatter = new ParallelSiteWriter.SiteFormatter() {
+                @Override
+                public void formatSite(int site, StringBuilder sb) {
+                    appendHapmapSiteColumns(alignment, site, delimChar, sb);
+                    for (int taxa = 0; taxa < numTaxa; taxa++) {
+                        if (diploid == false) {
+                            String baseIUPAC = null;
+                            try {
+                                baseIUPAC = alignment.getBaseAsString(taxa, site);
+                            } catch (Exception e) {
+                                String[] b = alignment.getBaseAsStringArray(taxa, site);
+                                throw new IllegalArgumentException("There is no String representation for diploid values: " + b[0] + ":" + b[1] + " getBase(): 0x" + Integer.toHexString(alignment.getBase(taxa, site)) + "\nTry Exporting as Diploid Values.");
+                            }
+                            if ((baseIUPAC == null) || baseIUPAC.equals("?")) {
+                                String[] b = alignment.getBaseAsStringArray(taxa, site);
+                                throw new IllegalArgumentException("There is no String representation for diploid values: " + b[0] + ":" + b[1] + " getBase(): 0x" + Integer.toHexString(alignment.getBase(taxa, site)) + "\nTry Exporting as Diploid Values.");
+                            }
+                            sb.append(baseIUPAC);
+                        } else {
                             String[] b = alignment.getBaseAsStringArray(taxa, site);
-                            throw new IllegalArgumentException("There is no String representation for diploid values: " + b[0] + ":" + b[1] + " getBase(): 0x" + Integer.toHexString(alignment.getBase(taxa, site)) + "\nTry Exporting as Diploid Values.");
+                            if (b.length == 1) {
+                                sb.append(b[0]);
+                                sb.append(b[0]);
+                            } else {
+                                sb.append(b[0]);
+                                sb.append(b[1]);
+                            }
                         }
-                        bw.write(baseIUPAC);
-                    } else {
-                        String[] b = alignment.getBaseAsStringArray(taxa, site);
-                        if (b.length == 1) {
-                            bw.write(b[0]);
-                            bw.write(b[0]);
-                        } else {
-                            bw.write(b[0]);
-                            bw.write(b[1]);
+                        if (taxa != (numTaxa - 1)) {
+                            sb.append(delimChar);
                         }
                     }
-                    if (taxa != (numTaxa - 1)) {
-                        bw.write(delimChar);
-                    }
+                    sb.append('\n');
                 }
-                bw.write("\n");
-
-                if (listener != null) {
-                    listener.progress((int) (((double) (site + 1) / (double) numSites) * 100.0), null);
-                }
-            }
+            };
+            ParallelSiteWriter.write(fullFileName, getHapmapHeader(alignment, delimChar), alignment, alignment.getSiteCount(), formatter, numThreads, blockCompressed, listener);
             return fullFileName;
         } catch (Exception e) {
             e.printStackTrace();
             throw new IllegalArgumentException("Error writing Hapmap file: " + filename + ": " + ExceptionUtils.getExceptionCauses(e));
-        } finally {
-            try {
-                bw.close();
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
         }
     }
 
@@ -639,139 +576,153 @@ public class ExportUtils {
      * @param filename
      * @param delimChar
      */
-    public static String writeToHapmap(Alignment alignment, AlignmentMask mask, boolean diploid, String filename, char delimChar, ProgressListener listener) {
+    public static String writeToHapmap(final Alignment alignment, final AlignmentMask mask, final boolean diploid, String filename, final char delimChar, ProgressListener listener) {
         if (delimChar != ' ' && delimChar != '\t') {
             throw new IllegalArgumentException("Delimiter charater must be either a blank space or a tab.");
         }
 
-        BufferedWriter bw = null;
         try {
             String fullFileName = Utils.addSuffixIfNeeded(filename, ".hmp.txt", new String[]{".hmp.txt", ".hmp.txt.gz"});
-            bw = Utils.getBufferedWriter(fullFileName);
-            bw.write("rs#");
-            bw.write(delimChar);
-            bw.write("alleles");
-            bw.write(delimChar);
-            bw.write("chrom");
-            bw.write(delimChar);
-            bw.write("pos");
-            bw.write(delimChar);
-            bw.write("strand");
-            bw.write(delimChar);
-            bw.write("assembly#");
-            bw.write(delimChar);
-            bw.write("center");
-            bw.write(delimChar);
-            bw.write("protLSID");
-            bw.write(delimChar);
-            bw.write("assayLSID");
-            bw.write(delimChar);
-            bw.write("panelLSID");
-            bw.write(delimChar);
-            bw.write("QCcode");
-            bw.write(delimChar);
-            int numTaxa = alignment.getSequenceCount();
-            for (int taxa = 0; taxa < numTaxa; taxa++) {
-                //finish filling out first row
-                //not completely sure this does what I want, I need to access the
-                //accession name from every alleleBLOB in bytes [52-201] but there
-                //doesn't seem to be a method to access that in Alignment
-                String sequenceID = alignment.getIdGroup().getIdentifier(taxa).getFullName().trim();
-                bw.write(sequenceID);
-                if (taxa != numTaxa - 1) {
-                    bw.write(delimChar);
-                }
-            }
-            bw.write("\n");
-            int numSites = alignment.getSiteCount();
-            for (int site = 0; site < numSites; site++) {
-                bw.write(alignment.getSNPID(site));
-                bw.write(delimChar);
-//                byte[] alleles = alignment.getAlleles(site); // doesn't work right for MutableVCFAlignment (always returns 3 alleles, even if no data)
-//                int numAlleles = alleles.length;
-                int[][] sortedAlleles = alignment.getAllelesSortedByFrequency(site); // which alleles are actually present among the genotypes
-                int numAlleles = sortedAlleles[0].length;
-                if (numAlleles == 0) {
-                    bw.write("NA"); //if data does not exist
-                } else if (numAlleles == 1) {
-                    bw.write(alignment.getBaseAsString(site, (byte) sortedAlleles[0][0]));
-                } else {
-                    bw.write(alignment.getBaseAsString(site, (byte) sortedAlleles[0][0]));
-                    for (int allele = 1; allele < sortedAlleles[0].length; allele++) {
-                        if (sortedAlleles[0][allele] != Alignment.UNKNOWN_ALLELE) {
-                            bw.write('/');
-                            bw.write(alignment.getBaseAsString(site, (byte) sortedAlleles[0][allele]));  // will write out a third allele if it exists
-                        }
-                    }
-                }
-                bw.write(delimChar);
-                bw.write(alignment.getLocusName(site));
-                bw.write(delimChar);
-                bw.write(String.valueOf(alignment.getPositionInLocus(site)));
-                bw.write(delimChar);
-                bw.write("+"); //strand
-                bw.write(delimChar);
-                bw.write("NA"); //assembly# not supported
-                bw.write(delimChar);
-                bw.write("NA"); //center unavailable
-                bw.write(delimChar);
-                bw.write("NA"); //protLSID unavailable
-                bw.write(delimChar);
-                bw.write("NA"); //assayLSID unavailable
-                bw.write(delimChar);
-                bw.write("NA"); //panelLSID unavailable
-                bw.write(delimChar);
-                bw.write("NA"); //QCcode unavailable
-                bw.write(delimChar);
-                for (int taxa = 0; taxa < numTaxa; taxa++) {
-                    if (diploid == false) {
-                        String baseIUPAC = alignment.getBaseAsString(taxa, site);
-                        if (mask.getMask(taxa, site) == 0x0) {
-                            bw.write(baseIUPAC);
-                        } else if (mask.getMask(taxa, site) == 0x1) {
-                            bw.write(baseIUPAC.toLowerCase());
-                        }
-                    } else {
-                        String[] b = alignment.getBaseAsStringArray(taxa, site);
-                        if (b.length == 1) {
+            final int numTaxa = alignment.getSequenceCount();
+            ParallelSiteWriter.SiteFormatter formatter = new ParallelSiteWriter.SiteFormatter() {
+                @Override
+                public void formatSite(int site, StringBuilder sb) {
+                    appendHapmapSiteColumns(alignment, site, delimChar, sb);
+                    for (int taxa = 0; taxa < numTaxa; taxa++) {
+                        if (diploid == false) {
+                            String baseIUPAC = alignment.getBaseAsString(taxa, site);
                             if (mask.getMask(taxa, site) == 0x0) {
-                                bw.write(b[0]);
-                                bw.write(b[0]);
+                                sb.append(baseIUPAC);
                             } else if (mask.getMask(taxa, site) == 0x1) {
-                                bw.write(b[0].toLowerCase());
-                                bw.write(b[0].toLowerCase());
+                                sb.append(baseIUPAC.toLowerCase());
                             }
                         } else {
-                            if (mask.getMask(taxa, site) == 0x0) {
-                                bw.write(b[0]);
-                                bw.write(b[1]);
-                            } else if (mask.getMask(taxa, site) == 0x1) {
-                                bw.write(b[0].toLowerCase());
-                                bw.write(b[1].toLowerCase());
+                            String[] b = alignment.getBaseAsStringArray(taxa, site);
+                            if (b.length == 1) {
+                                if (mask.getMask(taxa, site) == 0x0) {
+                                    sb.append(b[0]);
+                                    sb.append(b[0]);
+                                } else if (mask.getMask(taxa, site) == 0x1) {
+                                    sb.append(b[0].toLowerCase());
+                                    sb.append(b[0].toLowerCase());
+                                }
+                            } else {
+                                if (mask.getMask(taxa, site) == 0x0) {
+                                    sb.append(b[0]);
+                                    sb.append(b[1]);
+                                } else if (mask.getMask(taxa, site) == 0x1) {
+                                    sb.append(b[0].toLowerCase());
+                                    sb.append(b[1].toLowerCase());
+                                }
                             }
                         }
+                        if (taxa != (numTaxa - 1)) {
+                            sb.append(delimChar);
+                        }
                     }
-                    if (taxa != (numTaxa - 1)) {
-                        bw.write(delimChar);
-                    }
+                    sb.append('\n');
                 }
-                bw.write("\n");
-
-                if (listener != null) {
-                    listener.progress((int) (((double) (site + 1) / (double) numSites) * 100.0), null);
-                }
-            }
+            };
+            // the mask may not be safe to read from several threads
+            ParallelSiteWriter.write(fullFileName, getHapmapHeader(alignment, delimChar), alignment, alignment.getSiteCount(), formatter, 1, false, listener);
             return fullFileName;
         } catch (Exception e) {
             e.printStackTrace();
             throw new IllegalArgumentException("Error writing Hapmap file: " + filename + ": " + ExceptionUtils.getExceptionCauses(e));
-        } finally {
-            try {
-                bw.close();
-            } catch (Exception e) {
-                e.printStackTrace();
+        }
+    }
+
+    private static String getFileName(String filename, String suffix, String[] possible, boolean blockCompressed) {
+        String result = Utils.addSuffixIfNeeded(filename, suffix, possible);
+        if (blockCompressed && !result.endsWith(".gz")) {
+            result = result + ".gz";
+        }
+        return result;
+    }
+
+    private static String getHapmapHeader(Alignment alignment, char delimChar) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("rs#");
+        sb.append(delimChar);
+        sb.append("alleles");
+        sb.append(delimChar);
+        sb.append("chrom");
+        sb.append(delimChar);
+        sb.append("pos");
+        sb.append(delimChar);
+        sb.append("strand");
+        sb.append(delimChar);
+        sb.append("assembly#");
+        sb.append(delimChar);
+        sb.append("center");
+        sb.append(delimChar);
+        sb.append("protLSID");
+        sb.append(delimChar);
+        sb.append("assayLSID");
+        sb.append(delimChar);
+        sb.append("panelLSID");
+        sb.append(delimChar);
+        sb.append("QCcode");
+        sb.append(delimChar);
+        int numTaxa = alignment.getSequenceCount();
+        for (int taxa = 0; taxa < numTaxa; taxa++) {
+            //finish filling out first row
+            //not completely sure this does what I want, I need to access the
+            //accession name from every alleleBLOB in bytes [52-201] but there
+            //doesn't seem to be a method to access that in Alignment
+            String sequenceID = alignment.getIdGroup().getIdentifier(taxa).getFullName().trim();
+            sb.append(sequenceID);
+            if (taxa != numTaxa - 1) {
+                sb.append(delimChar);
+            }
+        }
+        sb.append("\n");
+        return sb.toString();
+    }
+
+    /**
+     * Appends the columns of a Hapmap row before the genotypes, with the
+     * delimiter after the last one.
+     */
+    private static void appendHapmapSiteColumns(Alignment alignment, int site, char delimChar, StringBuilder sb) {
+        sb.append(alignment.getSNPID(site));
+        sb.append(delimChar);
+//        byte[] alleles = alignment.getAlleles(site); // doesn't work right for MutableVCFAlignment (always returns 3 alleles, even if no data)
+//        int numAlleles = alleles.length;
+        int[][] sortedAlleles = alignment.getAllelesSortedByFrequency(site); // which alleles are actually present among the genotypes
+        int numAlleles = sortedAlleles[0].length;
+        if (numAlleles == 0) {
+            sb.append("NA"); //if data does not exist
+        } else if (numAlleles == 1) {
+            sb.append(alignment.getBaseAsString(site, (byte) sortedAlleles[0][0]));
+        } else {
+            sb.append(alignment.getBaseAsString(site, (byte) sortedAlleles[0][0]));
+            for (int allele = 1; allele < sortedAlleles[0].length; allele++) {
+                if (sortedAlleles[0][allele] != Alignment.UNKNOWN_ALLELE) {
+                    sb.append('/');
+                    sb.append(alignment.getBaseAsString(site, (byte) sortedAlleles[0][allele]));  // will write out a third allele if it exists
+                }
             }
         }
+        sb.append(delimChar);
+        sb.append(alignment.getLocusName(site));
+        sb.append(delimChar);
+        sb.append(alignment.getPositionInLocus(site));
+        sb.append(delimChar);
+        sb.append("+"); //strand
+        sb.append(delimChar);
+        sb.append("NA"); //assembly# not supported
+        sb.append(delimChar);
+        sb.append("NA"); //center unavailable
+        sb.append(delimChar);
+        sb.append("NA"); //protLSID unavailable
+        sb.append(delimChar);
+        sb.append("NA"); //assayLSID unavailable
+        sb.append(delimChar);
+        sb.append("NA"); //panelLSID unavailable
+        sb.append(delimChar);
+        sb.append("NA"); //QCcode unavailable
+        sb.append(delimChar);
     }
 
     /**
@@ -782,366 +733,367 @@ public class ExportUtils {
      * @return
      */
     public static String writeToVCF(Alignment alignment, String filename, char delimChar) {
+        return writeToVCF(alignment, filename, delimChar, Runtime.getRuntime().availableProcessors(), false);
+    }
+
+    /**
+     * Writes given alignment to a VCF file, the rows being formatted by
+     * numThreads threads. With blockCompressed, the file is written as BGZF
+     * (and ".gz" added to its name if needed), so that tabix can index it.
+     *
+     * @param alignment
+     * @param filename
+     * @param delimChar
+     * @param numThreads number of threads formatting the rows
+     * @param blockCompressed whether to write BGZF
+     * @return
+     */
+    public static String writeToVCF(final Alignment alignment, String filename, final char delimChar, int numThreads, boolean blockCompressed) {
         try {
 
-            filename = Utils.addSuffixIfNeeded(filename, ".vcf", new String[]{".vcf", ".vcf.gz"});
-            BufferedWriter bw = Utils.getBufferedWriter(filename);
-            bw.write("##fileformat=VCFv4.0");
-            bw.newLine();
+            filename = getFileName(filename, ".vcf", new String[]{".vcf", ".vcf.gz"}, blockCompressed);
+            final String lineSeparator = System.getProperty("line.separator");
+            StringBuilder header = new StringBuilder();
+            header.append("##fileformat=VCFv4.0");
+            header.append(lineSeparator);
             if (alignment.getReferenceAllele(0) == Alignment.UNKNOWN_DIPLOID_ALLELE) {
-                bw.write("##Tassel=<ID=Alignment,Version=4,Description=\"Reference allele is not known. The major allele was used as reference allele\">");
-                bw.newLine();
-            }
-            bw.write("##FORMAT=<ID=GT,Number=1,Type=String,Description=\"Genotype\">");
-            bw.newLine();
-            bw.write("##FORMAT=<ID=AD,Number=.,Type=Integer,Description=\"Allelic depths for the reference and alternate alleles in the order listed\">");
-            bw.newLine();
-            bw.write("##FORMAT=<ID=DP,Number=1,Type=Integer,Description=\"Read Depth (only filtered reads used for calling)\">");
-            bw.newLine();
-            bw.write("##FORMAT=<ID=GQ,Number=1,Type=Float,Description=\"Genotype Quality\">");
-            bw.newLine();
-            bw.write("##FORMAT=<ID=PL,Number=3,Type=Float,Description=\"Normalized, Phred-scaled likelihoods for AA,AB,BB genotypes where A=ref and B=alt; not applicable if site is not biallelic\">");
-            bw.newLine();
-            bw.write("##INFO=<ID=NS,Number=1,Type=Integer,Description=\"Number of Samples With Data\">");
-            bw.newLine();
-            bw.write("##INFO=<ID=DP,Number=1,Type=Integer,Description=\"Total Depth\">");
-            bw.newLine();
-
-
-            bw.write("##INFO=<ID=AF,Number=.,Type=Float,Description=\"Allele Frequency\">");
-            bw.newLine();
-            bw.write("#CHROM" + delimChar + "POS" + delimChar + "ID" + delimChar + "REF" + delimChar + "ALT" + delimChar + "QUAL" + delimChar + "FILTER" + delimChar + "INFO" + delimChar + "FORMAT");
-            boolean refTaxon = false;
+                header.append("##Tassel=<ID=Alignment,Version=4,Description=\"Reference allele is not known. The major allele was used as reference allele\">");
+                header.append(lineSeparator);
+            }
+            header.append("##FORMAT=<ID=GT,Number=1,Type=String,Description=\"Genotype\">");
+            header.append(lineSeparator);
+            header.append("##FORMAT=<ID=AD,Number=.,Type=Integer,Description=\"Allelic depths for the reference and alternate alleles in the order listed\">");
+            header.append(lineSeparator);
+            header.append("##FORMAT=<ID=DP,Number=1,Type=Integer,Description=\"Read Depth (only filtered reads used for calling)\">");
+            header.append(lineSeparator);
+            header.append("##FORMAT=<ID=GQ,Number=1,Type=Float,Description=\"Genotype Quality\">");
+            header.append(lineSeparator);
+            header.append("##FORMAT=<ID=PL,Number=3,Type=Float,Description=\"Normalized, Phred-scaled likelihoods for AA,AB,BB genotypes where A=ref and B=alt; not applicable if site is not biallelic\">");
+            header.append(lineSeparator);
+            header.append("##INFO=<ID=NS,Number=1,Type=Integer,Description=\"Number of Samples With Data\">");
+            header.append(lineSeparator);
+            header.append("##INFO=<ID=DP,Number=1,Type=Integer,Description=\"Total Depth\">");
+            header.append(lineSeparator);
+
+
+            header.append("##INFO=<ID=AF,Number=.,Type=Float,Description=\"Allele Frequency\">");
+            header.append(lineSeparator);
+            header.append("#CHROM" + delimChar + "POS" + delimChar + "ID" + delimChar + "REF" + delimChar + "ALT" + delimChar + "QUAL" + delimChar + "FILTER" + delimChar + "INFO" + delimChar + "FORMAT");
+            boolean hasRefTaxon = false;
             for (int taxa = 0; taxa < alignment.getSequenceCount(); taxa++) {
                 String taxonName = alignment.getIdGroup().getIdentifier(taxa).getFullName().trim();
                 if (taxa == 0 && taxonName.contentEquals("REFERENCE_GENOME")) {
-                    refTaxon = true;
+                    hasRefTaxon = true;
                 } else {
-                    bw.write(delimChar + taxonName);;
+                    header.append(delimChar + taxonName);
                 }
             }
-            bw.newLine();
+            header.append(lineSeparator);
+
+            final boolean refTaxon = hasRefTaxon;
+            ParallelSiteWriter.SiteFormatter formatter = new ParallelSiteWriter.SiteFormatter() {
+                @Override
+                public void formatSite(int site, StringBuilder sb) {
+                    appendVCFSite(alignment, site, delimChar, refTaxon, lineSeparator, sb);
+                }
+            };
+            ParallelSiteWriter.write(filename, header.toString(), alignment, alignment.getSiteCount(), formatter, numThreads, blockCompressed, null);
+        } catch (Exception e) {
+            e.printStackTrace();;
+            throw new IllegalArgumentException("Error writing VCF file: " + filename + ": " + ExceptionUtils.getExceptionCauses(e));
+        }
+        return filename;
+    }
 
-            for (int site = 0; site < alignment.getSiteCount(); site++) {
-                int[][] sortedAlleles = alignment.getAllelesSortedByFrequency(site); // which alleles are actually present among the genotypes
+    /**
+     * Appends the VCF row of a site, unless no allele is found among its
+     * genotypes.
+     */
+    private static void appendVCFSite(Alignment alignment, int site, char delimChar, boolean refTaxon, String lineSeparator, StringBuilder sb) {
+        int[][] sortedAlleles = alignment.getAllelesSortedByFrequency(site); // which alleles are actually present among the genotypes
 
 
-                int nAlleles = sortedAlleles[0].length;
+        int nAlleles = sortedAlleles[0].length;
 
 
-                if (nAlleles == 0) {                                                  //used to be ==0
-                    System.out.println("no alleles at: " + site + " " + alignment.getPositionInLocus(site));
-                    continue;
-                }
+        if (nAlleles == 0) {                                                  //used to be ==0
+            System.out.println("no alleles at: " + site + " " + alignment.getPositionInLocus(site));
+            return;
+        }
 
-                byte refGeno = alignment.getReferenceAllele(site);
-                if (refGeno == Alignment.UNKNOWN_DIPLOID_ALLELE) {
-                    String myMajorAllele = NucleotideAlignmentConstants.NUCLEOTIDE_ALLELES[0][sortedAlleles[0][0]];
-                    String MajorGenotype = myMajorAllele + myMajorAllele;
-                    refGeno = NucleotideAlignmentConstants.getNucleotideDiploidByte(MajorGenotype);
+        byte refGeno = alignment.getReferenceAllele(site);
+        if (refGeno == Alignment.UNKNOWN_DIPLOID_ALLELE) {
+            String myMajorAllele = NucleotideAlignmentConstants.NUCLEOTIDE_ALLELES[0][sortedAlleles[0][0]];
+            String MajorGenotype = myMajorAllele + myMajorAllele;
+            refGeno = NucleotideAlignmentConstants.getNucleotideDiploidByte(MajorGenotype);
+        }
+        byte refAllele = (byte) (refGeno & 0xF);  // converts from diploid to haploid allele (2nd allele)
+        //System.out.println(alignment.getPositionInLocus(site) + " " + refAllele);
+        byte[] alleleValues = null;
+        if (alignment instanceof MutableVCFAlignment) {
+            alleleValues = alignment.getAllelesByScope(Alignment.ALLELE_SCOPE_TYPE.Depth, site); // storage order of the alleles in the alignment (myCommonAlleles & myAlleleDepth) (length always 3, EVEN IF THERE ARE ONLY 2 in the genos)
+        } else {
+            alleleValues = alignment.getAllelesByScope(Alignment.ALLELE_SCOPE_TYPE.Frequency, site);
+            if (nAlleles > alignment.getMaxNumAlleles()) {
+                nAlleles = alignment.getMaxNumAlleles();
+            }
+        }
+        int[] alleleRedirect = new int[nAlleles]; // holds the indices of alleleValues in ref, alt1, [alt2] order (max 3 alleles)
+        String refAlleleStr;
+        int refUnknownOffset = 0;
+        if (refGeno == Alignment.UNKNOWN_DIPLOID_ALLELE) {  // reference allele unknown - report the alleles in maj, min1, [min2] order
+            refUnknownOffset = 1;
+            refAlleleStr = ".";
+            int aRedirectIndex = 0;
+            for (int sortedAIndex = 0; sortedAIndex < nAlleles; sortedAIndex++) {
+                for (int aValuesIndex = 0; aValuesIndex < alleleValues.length; aValuesIndex++) {
+                    if (alleleValues[aValuesIndex] == sortedAlleles[0][sortedAIndex]) {
+                        alleleRedirect[aRedirectIndex] = aValuesIndex;
+                        ++aRedirectIndex;
+                        break;
+                    }
                 }
-                byte refAllele = (byte) (refGeno & 0xF);  // converts from diploid to haploid allele (2nd allele)
-                //System.out.println(alignment.getPositionInLocus(site) + " " + refAllele);
-                byte[] alleleValues = null;
-                if (alignment instanceof MutableVCFAlignment) {
-                    alleleValues = alignment.getAllelesByScope(Alignment.ALLELE_SCOPE_TYPE.Depth, site); // storage order of the alleles in the alignment (myCommonAlleles & myAlleleDepth) (length always 3, EVEN IF THERE ARE ONLY 2 in the genos)
-                } else {
-                    alleleValues = alignment.getAllelesByScope(Alignment.ALLELE_SCOPE_TYPE.Frequency, site);
-                    if (nAlleles > alignment.getMaxNumAlleles()) {
-                        nAlleles = alignment.getMaxNumAlleles();
+            }
+        } else {  // refAllele known
+            refAlleleStr = NucleotideAlignmentConstants.NUCLEOTIDE_IUPAC_HASH.get(refGeno);
+            //refAlleleStr = String.valueOf(refGeno);
+            if (refAlleleStr == null) {
+                throw new IllegalStateException("ExportUtils: writeToVCF: unknown reference allele: 0x" + Integer.toHexString(refGeno & 0xFF) + " at site: " + site);
+            }
+
+            // check if the reference allele is found among the genotypes
+            boolean refAlleleAmongGenos = false;
+            boolean refAlleleInAllelValues = false;
+            for (int sortedAIndex = 0; sortedAIndex < nAlleles; sortedAIndex++) {
+                if (sortedAlleles[0][sortedAIndex] == refAllele) {
+                    refAlleleAmongGenos = true;
+                    for (int aValuesIndex = 0; aValuesIndex < alleleValues.length; aValuesIndex++) {
+                        if (alleleValues[aValuesIndex] == refAllele) {
+                            refAlleleInAllelValues = true;
+                            break;
+                        }
                     }
+                    break;
                 }
-                int[] alleleRedirect = new int[nAlleles]; // holds the indices of alleleValues in ref, alt1, [alt2] order (max 3 alleles)
-                String refAlleleStr;
-                int refUnknownOffset = 0;
-                if (refGeno == Alignment.UNKNOWN_DIPLOID_ALLELE) {  // reference allele unknown - report the alleles in maj, min1, [min2] order
-                    refUnknownOffset = 1;
-                    refAlleleStr = ".";
-                    int aRedirectIndex = 0;
-                    for (int sortedAIndex = 0; sortedAIndex < nAlleles; sortedAIndex++) {
-                        for (int aValuesIndex = 0; aValuesIndex < alleleValues.length; aValuesIndex++) {
-                            if (alleleValues[aValuesIndex] == sortedAlleles[0][sortedAIndex]) {
+            }
+            if (refAlleleInAllelValues) {
+                // the refAllele index in alleleValues should be stored in alleleRedirect[0], and the remaining in desc order of freq
+                int aRedirectIndex = 1;
+                for (int sortedAIndex = 0; sortedAIndex < nAlleles; sortedAIndex++) {
+                    for (int aValuesIndex = 0; aValuesIndex < alleleValues.length; aValuesIndex++) {
+                        if (alleleValues[aValuesIndex] == sortedAlleles[0][sortedAIndex]) {
+                            if (alleleValues[aValuesIndex] == refAllele) {
+                                alleleRedirect[0] = aValuesIndex;
+                            } else {
                                 alleleRedirect[aRedirectIndex] = aValuesIndex;
                                 ++aRedirectIndex;
-                                break;
-                            }
-                        }
-                    }
-                } else {  // refAllele known
-                    refAlleleStr = NucleotideAlignmentConstants.NUCLEOTIDE_IUPAC_HASH.get(refGeno);
-                    //refAlleleStr = String.valueOf(refGeno);
-
-                    // check if the reference allele is found among the genotypes
-                    boolean refAlleleAmongGenos = false;
-                    boolean refAlleleInAllelValues = false;
-                    for (int sortedAIndex = 0; sortedAIndex < nAlleles; sortedAIndex++) {
-                        if (sortedAlleles[0][sortedAIndex] == refAllele) {
-                            refAlleleAmongGenos = true;
-                            for (int aValuesIndex = 0; aValuesIndex < alleleValues.length; aValuesIndex++) {
-                                if (alleleValues[aValuesIndex] == refAllele) {
-                                    refAlleleInAllelValues = true;
-                                    break;
-                                }
                             }
                             break;
                         }
                     }
-                    if (refAlleleInAllelValues) {
-                        // the refAllele index in alleleValues should be stored in alleleRedirect[0], and the remaining in desc order of freq
-                        int aRedirectIndex = 1;
-                        for (int sortedAIndex = 0; sortedAIndex < nAlleles; sortedAIndex++) {
-                            for (int aValuesIndex = 0; aValuesIndex < alleleValues.length; aValuesIndex++) {
-                                if (alleleValues[aValuesIndex] == sortedAlleles[0][sortedAIndex]) {
-                                    if (alleleValues[aValuesIndex] == refAllele) {
-                                        alleleRedirect[0] = aValuesIndex;
-                                    } else {
-                                        alleleRedirect[aRedirectIndex] = aValuesIndex;
-                                        ++aRedirectIndex;
-                                    }
-                                    break;
-                                }
-                            }
-                        }
-                    } else {
-                        // alleleRedirect[0] set to -1, the remaining in desc order of freq: maj, min1, [min2]
-                        if (!refAlleleAmongGenos) {
-                            alleleRedirect = new int[alleleRedirect.length + 1];
-                        }
-                        alleleRedirect[0] = -1;
-                        int aRedirectIndex = 1;
-                        for (int sortedAIndex = 0; sortedAIndex < nAlleles; sortedAIndex++) {
-                            for (int aValuesIndex = 0; aValuesIndex < alleleValues.length; aValuesIndex++) {
-                                if (alleleValues[aValuesIndex] == sortedAlleles[0][sortedAIndex]) {
-                                    alleleRedirect[aRedirectIndex] = aValuesIndex;
-                                    ++aRedirectIndex;
-                                    break;
-                                }
-                            }
-                        }
-                    }
                 }
-                bw.write(alignment.getLocusName(site)); // chromosome
-                bw.write(delimChar);
-                bw.write(alignment.getPositionInLocus(site) + ""); // position
-                bw.write(delimChar);
-                bw.write(alignment.getSNPID(site)); // site name
-                bw.write(delimChar);
-                bw.write(refAlleleStr); // ref allele
-                bw.write(delimChar);
-
-                StringBuilder altAllelesBuilder = new StringBuilder("");
-                int firstAltAllele = (refAlleleStr == ".") ? 0 : 1;  // if ref allele is unknown, ALL alleles are alt
-                for (int i = firstAltAllele; i < alleleRedirect.length; i++) {
-                    if (i != firstAltAllele) {
-                        altAllelesBuilder.append(",");
-                    }
-                    byte diploidByte = (byte) ((alleleValues[alleleRedirect[i]] << 4) | alleleValues[alleleRedirect[i]]);
-                    String AlleleStr = NucleotideAlignmentConstants.NUCLEOTIDE_IUPAC_HASH.get(diploidByte);
-                    if (AlleleStr == null) {
-                        altAllelesBuilder.append(".");
-                    } else {
-                        altAllelesBuilder.append(AlleleStr);
-                    }
+            } else {
+                // alleleRedirect[0] set to -1, the remaining in desc order of freq: maj, min1, [min2]
+                if (!refAlleleAmongGenos) {
+                    alleleRedirect = new int[alleleRedirect.length + 1];
                 }
-                String altAlleles = altAllelesBuilder.toString();
-                altAlleles = (altAlleles.equals("")) ? "." : altAlleles;
-                bw.write(altAlleles); // alt alleles
-                bw.write(delimChar);
-
-                bw.write("."); // qual score
-                bw.write(delimChar);
-
-                bw.write("PASS"); // filter
-                bw.write(delimChar);
-
-                if (alignment instanceof MutableVCFAlignment) {
-                    int totalDepth = 0;
-                    for (int i = 0; i < alignment.getSequenceCount(); i++) {
-                        short[] depth = alignment.getDepthForAlleles(i, site);
-                        for (int k = 0; k < depth.length; k++) {
-                            if (depth[k] != -1) {
-                                totalDepth += depth[k];
-                            }
+                alleleRedirect[0] = -1;
+                int aRedirectIndex = 1;
+                for (int sortedAIndex = 0; sortedAIndex < nAlleles; sortedAIndex++) {
+                    for (int aValuesIndex = 0; aValuesIndex < alleleValues.length; aValuesIndex++) {
+                        if (alleleValues[aValuesIndex] == sortedAlleles[0][sortedAIndex]) {
+                            alleleRedirect[aRedirectIndex] = aValuesIndex;
+                            ++aRedirectIndex;
+                            break;
                         }
                     }
-                    bw.write("DP=" + totalDepth); // DP
-                } else {
-                    bw.write("."); // DP
                 }
-                bw.write(delimChar);
-
-                if (alignment instanceof MutableVCFAlignment) {
-                    bw.write("GT:AD:DP:GQ:PL");
-                } else {
-                    bw.write("GT");
-                }
-                for (int taxa = 0; taxa < alignment.getSequenceCount(); taxa++) {
-                    if (taxa == 0 && refTaxon) {
-                        continue;  // don't include REFERENCE_GENOME in vcf output
+            }
+        }
+        sb.append(alignment.getLocusName(site)); // chromosome
+        sb.append(delimChar);
+        sb.append(alignment.getPositionInLocus(site)); // position
+        sb.append(delimChar);
+        sb.append(alignment.getSNPID(site)); // site name
+        sb.append(delimChar);
+        sb.append(refAlleleStr); // ref allele
+        sb.append(delimChar);
+
+        int altStart = sb.length();
+        int firstAltAllele = (refAlleleStr == ".") ? 0 : 1;  // if ref allele is unknown, ALL alleles are alt
+        for (int i = firstAltAllele; i < alleleRedirect.length; i++) {
+            if (i != firstAltAllele) {
+                sb.append(",");
+            }
+            byte diploidByte = (byte) ((alleleValues[alleleRedirect[i]] << 4) | alleleValues[alleleRedirect[i]]);
+            String AlleleStr = NucleotideAlignmentConstants.NUCLEOTIDE_IUPAC_HASH.get(diploidByte);
+            if (AlleleStr == null) {
+                sb.append(".");
+            } else {
+                sb.append(AlleleStr);
+            }
+        }
+        if (sb.length() == altStart) {
+            sb.append("."); // no alt alleles
+        }
+        sb.append(delimChar);
+
+        sb.append("."); // qual score
+        sb.append(delimChar);
+
+        sb.append("PASS"); // filter
+        sb.append(delimChar);
+
+        boolean hasDepth = alignment instanceof MutableVCFAlignment;
+        short[][] depths = null;  // [taxon][allele], read once per site
+        if (hasDepth) {
+            depths = new short[alignment.getSequenceCount()][];
+            int totalDepth = 0;
+            for (int i = 0; i < alignment.getSequenceCount(); i++) {
+                short[] depth = alignment.getDepthForAlleles(i, site);
+                depths[i] = depth;
+                for (int k = 0; k < depth.length; k++) {
+                    if (depth[k] != -1) {
+                        totalDepth += depth[k];
                     }
-                    bw.write(delimChar);
-
-                    // GT = genotype
-                    String GTstr = "";
-                    byte[] values = alignment.getBaseArray(taxa, site);
+                }
+            }
+            sb.append("DP=").append(totalDepth); // DP
+        } else {
+            sb.append("."); // DP
+        }
+        sb.append(delimChar);
 
-                    boolean genoOne = false;
-                    if (values[0] == Alignment.UNKNOWN_ALLELE) {
-                        GTstr += "./";
+        if (hasDepth) {
+            sb.append("GT:AD:DP:GQ:PL");
+        } else {
+            sb.append("GT");
+        }
+        for (int taxa = 0; taxa < alignment.getSequenceCount(); taxa++) {
+            if (taxa == 0 && refTaxon) {
+                continue;  // don't include REFERENCE_GENOME in vcf output
+            }
+            sb.append(delimChar);
+
+            // GT = genotype
+            int gtStart = sb.length();
+            byte[] values = alignment.getBaseArray(taxa, site);
+
+            boolean genoOne = false;
+            if (values[0] == Alignment.UNKNOWN_ALLELE) {
+                sb.append("./");
+                genoOne = true;
+            } else {
+                for (int i = 0; i < alleleRedirect.length; i++) { // alleleRedirect stores the alleles in ref/alt1/[alt2] order (if no alt2,length=2)
+                    if (i == 0 && alleleRedirect[i] == -1) {  // refAllele known but either not among genos or not in alleleValues
+                        if (values[0] == refAllele) {
+
+                            sb.append(i + refUnknownOffset).append('/');
+                            genoOne = true;
+                            break;
+                        }
+                    } else if (values[0] == alleleValues[alleleRedirect[i]]) {
+                        sb.append(i + refUnknownOffset).append('/');
                         genoOne = true;
-                    } else {
-                        for (int i = 0; i < alleleRedirect.length; i++) { // alleleRedirect stores the alleles in ref/alt1/[alt2] order (if no alt2,length=2)
-                            if (i == 0 && alleleRedirect[i] == -1) {  // refAllele known but either not among genos or not in alleleValues
-                                if (values[0] == refAllele) {
+                        break;
+                    }
+                }
+            }
 
-                                    GTstr += (i + refUnknownOffset) + "/";
-                                    genoOne = true;
-                                    break;
-                                }
-                            } else if (values[0] == alleleValues[alleleRedirect[i]]) {
-                                GTstr += (i + refUnknownOffset) + "/";
-                                genoOne = true;
-                                break;
-                            }
+            boolean genoTwo = false;
+            if (values[1] == Alignment.UNKNOWN_ALLELE) {
+                sb.append(".");
+                genoTwo = true;
+            } else {
+                for (int i = 0; i < alleleRedirect.length; i++) { // alleleRedirect stores the alleles in ref/alt1/alt2 order (if no alt2,length=2)
+                    if (i == 0 && alleleRedirect[i] == -1) {  // refAllele known but either not among genos or not in alleleValues
+                        if (values[1] == refAllele) {
+                            sb.append(i + refUnknownOffset);
+                            genoTwo = true;
+                            break;
                         }
-                    }
-//                    if (!genoOne) { 
-                    //bw.write("./.");
-//                        if (values[0] == NucleotideAlignmentConstants.A_ALLELE) {
-//                            bw.write("A/");
-//                        } else if (values[0] == NucleotideAlignmentConstants.C_ALLELE) {
-//                            bw.write("C/");
-//                        } else if (values[0] == NucleotideAlignmentConstants.G_ALLELE) {
-//                            bw.write("G/");
-//                        } else if (values[0] == NucleotideAlignmentConstants.T_ALLELE) {
-//                            bw.write("T/");
-//                        } else if (values[0] == NucleotideAlignmentConstants.GAP_ALLELE) {
-//                            bw.write("-/");
-//                        } else {
-//                            bw.write(values[0] + "/");
-//                            // throw new IllegalArgumentException("Unknown allele value: " + alleleValues[i]);
-//                        }
-//                    }
-
-                    boolean genoTwo = false;
-                    if (values[1] == Alignment.UNKNOWN_ALLELE) {
-                        GTstr += ".";
+                    } else if (values[1] == alleleValues[alleleRedirect[i]]) {
+                        sb.append(i + refUnknownOffset);
                         genoTwo = true;
-                    } else {
-                        for (int i = 0; i < alleleRedirect.length; i++) { // alleleRedirect stores the alleles in ref/alt1/alt2 order (if no alt2,length=2)
-                            if (i == 0 && alleleRedirect[i] == -1) {  // refAllele known but either not among genos or not in alleleValues
-                                if (values[1] == refAllele) {
-                                    GTstr += (i + refUnknownOffset) + "";
-                                    genoTwo = true;
-                                    break;
-                                }
-                            } else if (values[1] == alleleValues[alleleRedirect[i]]) {
-                                GTstr += (i + refUnknownOffset) + "";
-                                genoTwo = true;
-                                break;
-                            }
-                        }
-                    }
-//                    if (!genoTwo) {
-//                        if (values[1] == NucleotideAlignmentConstants.A_ALLELE) {
-//                            bw.write("A");
-//                        } else if (values[1] == NucleotideAlignmentConstants.C_ALLELE) {
-//                            bw.write("C");
-//                        } else if (values[1] == NucleotideAlignmentConstants.G_ALLELE) {
-//                            bw.write("G");
-//                        } else if (values[1] == NucleotideAlignmentConstants.T_ALLELE) {
-//                            bw.write("T");
-//                        } else if (values[1] == NucleotideAlignmentConstants.GAP_ALLELE) {
-//                            bw.write("-");
-//                        } else {
-//                            bw.write(values[1] + "");
-//                            // throw new IllegalArgumentException("Unknown allele value: " + alleleValues[i]);
-//                        }
-//                    }
-                    if (genoOne && genoTwo) {
-                        bw.write(GTstr);
-                    } else {
-                        bw.write("./.");
-                    }
-                    if (!(alignment instanceof MutableVCFAlignment)) {
-                        continue;
+                        break;
                     }
-                    bw.write(":");
+                }
+            }
+            if (!(genoOne && genoTwo)) {
+                sb.setLength(gtStart);
+                sb.append("./.");
+            }
+            if (!hasDepth) {
+                continue;
+            }
+            sb.append(":");
 
-                    // AD
-                    short[] siteAlleleDepths = alignment.getDepthForAlleles(taxa, site);
+            // AD
+            short[] siteAlleleDepths = depths[taxa];
 
-                    int siteTotalDepth = 0;
-                    if (siteAlleleDepths.length != 0) {
-                        for (int a = 0; a < alleleRedirect.length; a++) {
-                            if (a == 0 && alleleRedirect[a] == -1) {  // refAllele known but is not among the genotypes
-                                bw.write("0");
-                                continue;
-                            }
-                            if (a != 0) {
-                                bw.write(",");
-                            }
-                            bw.write(((int) (siteAlleleDepths[alleleRedirect[a]])) + "");
-                            siteTotalDepth += siteAlleleDepths[alleleRedirect[a]];
-                        }
-                    } else {
-                        bw.write(".,.,.");
+            int siteTotalDepth = 0;
+            if (siteAlleleDepths.length != 0) {
+                for (int a = 0; a < alleleRedirect.length; a++) {
+                    if (a == 0 && alleleRedirect[a] == -1) {  // refAllele known but is not among the genotypes
+                        sb.append("0");
+                        continue;
                     }
-                    bw.write(":");
-
-                    // DP
-                    bw.write(siteTotalDepth + "");
-                    bw.write(":");
+                    if (a != 0) {
+                        sb.append(",");
+                    }
+                    sb.append((int) (siteAlleleDepths[alleleRedirect[a]]));
+                    siteTotalDepth += siteAlleleDepths[alleleRedirect[a]];
+                }
+            } else {
+                sb.append(".,.,.");
+            }
+            sb.append(":");
 
-                    if (siteAlleleDepths.length != 0) {
-                        int[] scores;
-                        if (siteAlleleDepths.length == 1) {
-                            int dep1 = siteAlleleDepths[alleleRedirect[0]] > 32767 ? 32767 : siteAlleleDepths[alleleRedirect[0]];
-                            scores = VCFUtil.getScore(dep1, 0);
-                        } else {
-                            if (alleleRedirect[0] == -1) {
-                                int dep1 = 0;
-                                int dep2 = 0;
-                                if (alleleRedirect.length > 2) {
-                                    dep1 = siteAlleleDepths[alleleRedirect[1]] > 32767 ? 32767 : siteAlleleDepths[alleleRedirect[1]];
-                                    dep2 = siteAlleleDepths[alleleRedirect[2]] > 32767 ? 32767 : siteAlleleDepths[alleleRedirect[2]];
-                                } else if (alleleRedirect.length == 2) {
-                                    dep1 = 0;
-                                    dep2 = siteAlleleDepths[alleleRedirect[1]] > 32767 ? 32767 : siteAlleleDepths[alleleRedirect[1]];
-                                }
-                                scores = VCFUtil.getScore(dep1, dep2);
-                            } else {
-                                int dep1 = siteAlleleDepths[alleleRedirect[0]] > 32767 ? 32767 : siteAlleleDepths[alleleRedirect[0]];
-                                int dep2 = 0;
-                                if (alleleRedirect.length > 1) {
-                                    dep2 = siteAlleleDepths[alleleRedirect[1]] > 32767 ? 32767 : siteAlleleDepths[alleleRedirect[1]];
-                                }
-                                scores = VCFUtil.getScore(dep1, dep2);
-                            }
-                        }
+            // DP
+            sb.append(siteTotalDepth);
+            sb.append(":");
 
-                        // GQ
-                        if (scores == null) {
-                            scores = new int[]{-1, -1, -1, -1};
+            if (siteAlleleDepths.length != 0) {
+                int[] scores;
+                if (siteAlleleDepths.length == 1) {
+                    int dep1 = siteAlleleDepths[alleleRedirect[0]] > 32767 ? 32767 : siteAlleleDepths[alleleRedirect[0]];
+                    scores = VCFUtil.getScore(dep1, 0);
+                } else {
+                    if (alleleRedirect[0] == -1) {
+                        int dep1 = 0;
+                        int dep2 = 0;
+                        if (alleleRedirect.length > 2) {
+                            dep1 = siteAlleleDepths[alleleRedirect[1]] > 32767 ? 32767 : siteAlleleDepths[alleleRedirect[1]];
+                            dep2 = siteAlleleDepths[alleleRedirect[2]] > 32767 ? 32767 : siteAlleleDepths[alleleRedirect[2]];
+                        } else if (alleleRedirect.length == 2) {
+                            dep1 = 0;
+                            dep2 = siteAlleleDepths[alleleRedirect[1]] > 32767 ? 32767 : siteAlleleDepths[alleleRedirect[1]];
                         }
-                        bw.write(scores[3] + "");
-                        bw.write(":");
-
-                        // PL
-                        bw.write(scores[0] + "," + scores[1] + "," + scores[2]);
+                        scores = VCFUtil.getScore(dep1, dep2);
                     } else {
-                        bw.write(".:.,.");
+                        int dep1 = siteAlleleDepths[alleleRedirect[0]] > 32767 ? 32767 : siteAlleleDepths[alleleRedirect[0]];
+                        int dep2 = 0;
+                        if (alleleRedirect.length > 1) {
+                            dep2 = siteAlleleDepths[alleleRedirect[1]] > 32767 ? 32767 : siteAlleleDepths[alleleRedirect[1]];
+                        }
+                        scores = VCFUtil.getScore(dep1, dep2);
                     }
                 }
-                bw.newLine();
+
+                // GQ
+                if (scores == null) {
+                    scores = new int[]{-1, -1, -1, -1};
+                }
+                sb.append(scores[3]);
+                sb.append(":");
+
+                // PL
+                sb.append(scores[0]).append(',').append(scores[1]).append(',').append(scores[2]);
+            } else {
+                sb.append(".:.,.");
             }
-            bw.flush();
-            bw.close();
-        } catch (Exception e) {
-            e.printStackTrace();;
-            throw new IllegalArgumentException("Error writing VCF file: " + filename + ": " + ExceptionUtils.getExceptionCauses(e));
         }
-        return filename;
+        sb.append(lineSeparator);
     }
 
     /**
@@ -1048,6 +1048,29 @@ public class FilterAlignment extends AbstractAlignment {
         }
     }
 
+    @Override
+    public void setCacheSiteStatistics(boolean cache) {
+        if (myIsTaxaFilter) {
+            super.setCacheSiteStatistics(cache);
+        } else {
+            myBaseAlignment.setCacheSiteStatistics(cache);
+        }
+    }
+
+    @Override
+    boolean isDefaultSiteStatistic(String methodName) {
+        // with taxa filtered, the site statistics are those of AbstractAlignment
+        return myIsTaxaFilter;
+    }
+
+    @Override
+    int getWrappedEditCount() {
+        if (myBaseAlignment instanceof AbstractAlignment) {
+            return ((AbstractAlignment) myBaseAlignment).getEditCount();
+        }
+        return 0;
+    }
+
     @Override
     public short[] getDepthForAlleles(int taxon, int site) {
         int taxaIndex = translateTaxon(taxon);
@@ -0,0 +1,138 @@
+package net.maizegenetics.pal.alignment;
+
+import java.util.List;
+
+/**
+ * The values of a marker for the rows of a phenotype, held in primitive arrays. A discrete marker is held as a level
+ * code for each row and a dictionary of level names, where missing values ("N" or "?") are levels of their own. A
+ * continuous marker is held as a double for each row, with NaN for missing. These are the same values as those
+ * returned by MarkerPhenotypeAdapter.getMarkerValue(), without a String or Double for every row.
+ */
+public class MarkerCodes {
+
+    private final int[] myCodes;
+    private final String[] myLevelNames;
+    private final boolean[] myIsMissingLevel;
+    private final double[] myValues;
+
+    /**
+     * Constructor for a discrete marker.
+     *
+     * @param codes level code of each row
+     * @param levelNames name of each level code, all different
+     */
+    public MarkerCodes(int[] codes, String[] levelNames) {
+        myCodes = codes;
+        myLevelNames = levelNames;
+        myIsMissingLevel = new boolean[levelNames.length];
+        for (int i = 0; i < levelNames.length; i++) {
+            myIsMissingLevel[i] = MarkerPhenotypeAdapterUtils.isMissing(levelNames[i]);
+        }
+        myValues = null;
+    }
+
+    /**
+     * Constructor for a continuous marker.
+     *
+     * @param values value of each row, or NaN
+     */
+    public MarkerCodes(double[] values) {
+        myCodes = null;
+        myLevelNames = null;
+        myIsMissingLevel = null;
+        myValues = values;
+    }
+
+    public boolean isDiscrete() {
+        return myCodes != null;
+    }
+
+    public int getNumberOfRows() {
+        return isDiscrete() ? myCodes.length : myValues.length;
+    }
+
+    /**
+     * Returns the level code of each row. The array is not copied.
+     */
+    public int[] getCodes() {
+        return myCodes;
+    }
+
+    /**
+     * Returns the name of each level code. The array is not copied.
+     */
+    public String[] getLevelNames() {
+        return myLevelNames;
+    }
+
+    /**
+     * Returns the value of each row, or NaN. The array is not copied.
+     */
+    public double[] getValues() {
+        return myValues;
+    }
+
+    /**
+     * @return an array of booleans equal to true for the rows that are missing, as
+     * MarkerPhenotypeAdapterUtils.whichAreMissing() would return for getMarkerValue()
+     */
+    public boolean[] getMissing() {
+        int n = getNumberOfRows();
+        boolean[] missing = new boolean[n];
+        if (isDiscrete()) {
+            for (int i = 0; i < n; i++) {
+                missing[i] = myIsMissingLevel[myCodes[i]];
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                missing[i] = Double.isNaN(myValues[i]);
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Renumbers the levels of a discrete marker in order of first appearance in rows, as
+     * ModelEffectUtils.getIntegerLevels() does for the values of getMarkerValue().
+     *
+     * @param rows the rows to return, or null for all rows
+     * @param ids if not null, receives the level names in order of their new numbers
+     * @return the new level number of each of the rows
+     */
+    public int[] getLevels(int[] rows, List<Object> ids) {
+        int n = (rows == null) ? myCodes.length : rows.length;
+        int[] renumber = new int[myLevelNames.length];
+        for (int i = 0; i < renumber.length; i++) {
+            renumber[i] = -1;
+        }
+        int numberOfLevels = 0;
+        int[] levels = new int[n];
+        for (int i = 0; i < n; i++) {
+            int code = myCodes[(rows == null) ? i : rows[i]];
+            if (renumber[code] < 0) {
+                renumber[code] = numberOfLevels++;
+                if (ids != null) {
+                    ids.add(myLevelNames[code]);
+                }
+            }
+            levels[i] = renumber[code];
+        }
+        return levels;
+    }
+
+    /**
+     * @param rows the rows to return, or null for all rows
+     * @return the values of those rows of a continuous marker
+     */
+    public double[] getValues(int[] rows) {
+        if (rows == null) {
+            return myValues.clone();
+        }
+        int n = rows.length;
+        double[] values = new double[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = myValues[rows[i]];
+        }
+        return values;
+    }
+}
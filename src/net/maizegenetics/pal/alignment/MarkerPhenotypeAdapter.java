@@ -1,6 +1,7 @@
 package net.maizegenetics.pal.alignment;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -434,6 +435,124 @@ public class MarkerPhenotypeAdapter {
         }
     }
 
+    /**
+     * Returns the same values as getMarkerValue(), as level codes or doubles. The genotypes of alignment markers are
+     * decoded for all taxa at once, from the allele presence bits when the alignment is optimized for sites, and the
+     * name of each genotype is only formatted once.
+     */
+    public MarkerCodes getMarkerCodes(int phenotype, int marker) {
+        int nblocks = getNumberOfBlocks(phenotype);
+        int ntaxa = pheno.getNumberOfTaxa();
+        if (marker < numberOfMarkersFromAlignment) {
+            Alignment alignment = markerpheno.getAlignment();
+            int[] taxonCodes = new int[ntaxa];
+            ArrayList<String> names = new ArrayList<String>();
+            if (alignment.isSBitFriendly() && !alignment.isPhased() && (getNumberOfAlleleBits(alignment) < 16)) {
+                getCodesFromAllelePresence(alignment, marker, taxonCodes, names);
+            } else {
+                getCodesFromBases(alignment, marker, taxonCodes, names);
+            }
+            return new MarkerCodes(repeatForBlocks(taxonCodes, nblocks), names.toArray(new String[names.size()]));
+        }
+
+        int ndx = markerIndex.get(marker - numberOfMarkersFromAlignment);
+        if (isMarkerDiscrete(marker)) {
+            String[] labels = pheno.getTrait(ndx).getLevelLabels();
+            int[] labelCodes = new int[labels.length + 1];
+            ArrayList<String> names = new ArrayList<String>();
+            HashMap<String, Integer> nameMap = new HashMap<String, Integer>();
+            for (int i = 0; i < labels.length; i++) {
+                labelCodes[i] = getNameCode(labels[i], nameMap, names);
+            }
+            labelCodes[labels.length] = getNameCode(Phenotype.MISSING_STRING, nameMap, names);
+            int[] taxonCodes = new int[ntaxa];
+            for (int t = 0; t < ntaxa; t++) {
+                double val = pheno.getData(t, ndx);
+                taxonCodes[t] = Double.isNaN(val) ? labelCodes[labels.length] : labelCodes[(int) val];
+            }
+            return new MarkerCodes(repeatForBlocks(taxonCodes, nblocks), names.toArray(new String[names.size()]));
+        } else {
+            double[] values = new double[getNumberOfRows(phenotype)];
+            for (int b = 0; b < nblocks; b++) {
+                for (int t = 0; t < ntaxa; t++) {
+                    values[b * ntaxa + t] = pheno.getData(t, ndx);
+                }
+            }
+            return new MarkerCodes(values);
+        }
+    }
+
+    private static int getNumberOfAlleleBits(Alignment alignment) {
+        return alignment.retainsRareAlleles() ? alignment.getMaxNumAlleles() + 1 : alignment.getMaxNumAlleles();
+    }
+
+    /**
+     * Codes the taxa by which of the allele presence bits of the site they have. Taxa with the same bits have the
+     * same genotype, so getBaseAsString() is only called for the first taxon with each combination.
+     */
+    private static void getCodesFromAllelePresence(Alignment alignment, int site, int[] taxonCodes, ArrayList<String> names) {
+        int numAlleles = getNumberOfAlleleBits(alignment);
+        long[][] words = new long[numAlleles][];
+        for (int a = 0; a < numAlleles; a++) {
+            words[a] = alignment.getAllelePresenceForAllTaxa(site, a).getBits();
+        }
+        int[] patternCodes = new int[1 << numAlleles];
+        Arrays.fill(patternCodes, -1);
+        HashMap<String, Integer> nameMap = new HashMap<String, Integer>();
+        for (int t = 0, n = taxonCodes.length; t < n; t++) {
+            int word = t >>> 6;
+            int pattern = 0;
+            for (int a = 0; a < numAlleles; a++) {
+                if ((word < words[a].length) && ((words[a][word] & (1L << (t & 63))) != 0)) {
+                    pattern |= 1 << a;
+                }
+            }
+            if (patternCodes[pattern] < 0) {
+                patternCodes[pattern] = getNameCode(alignment.getBaseAsString(t, site), nameMap, names);
+            }
+            taxonCodes[t] = patternCodes[pattern];
+        }
+    }
+
+    /**
+     * Codes the taxa by their diploid value at the site, calling getBaseAsString() only for the first taxon with each
+     * value.
+     */
+    private static void getCodesFromBases(Alignment alignment, int site, int[] taxonCodes, ArrayList<String> names) {
+        int[] baseCodes = new int[256];
+        Arrays.fill(baseCodes, -1);
+        HashMap<String, Integer> nameMap = new HashMap<String, Integer>();
+        for (int t = 0, n = taxonCodes.length; t < n; t++) {
+            int base = alignment.getBase(t, site) & 0xFF;
+            if (baseCodes[base] < 0) {
+                baseCodes[base] = getNameCode(alignment.getBaseAsString(t, site), nameMap, names);
+            }
+            taxonCodes[t] = baseCodes[base];
+        }
+    }
+
+    private static int getNameCode(String name, HashMap<String, Integer> nameMap, ArrayList<String> names) {
+        Integer code = nameMap.get(name);
+        if (code == null) {
+            code = names.size();
+            nameMap.put(name, code);
+            names.add(name);
+        }
+        return code;
+    }
+
+    private static int[] repeatForBlocks(int[] taxonCodes, int nblocks) {
+        if (nblocks == 1) {
+            return taxonCodes;
+        }
+        int ntaxa = taxonCodes.length;
+        int[] codes = new int[ntaxa * nblocks];
+        for (int b = 0; b < nblocks; b++) {
+            System.arraycopy(taxonCodes, 0, codes, b * ntaxa, ntaxa);
+        }
+        return codes;
+    }
+
     public boolean[] getMissingMarkers(int phenotype, int marker) {
         Object[] values = getMarkerValue(phenotype, marker);
         return MarkerPhenotypeAdapterUtils.whichAreMissing(values);
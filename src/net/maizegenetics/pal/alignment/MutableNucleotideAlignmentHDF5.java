@@ -716,6 +716,7 @@ public class MutableNucleotideAlignmentHDF5 extends AbstractAlignment implements
         writeHDF5EntireArray(taxonGenoPath, newBases, newBases.length);
        myGenoCache.invalidateAll();
        myIsDirty=true;
+       alignmentChanged();
     }
     
     public synchronized void setAllDepth(int taxon, byte[][] depth) {
@@ -788,6 +789,7 @@ public class MutableNucleotideAlignmentHDF5 extends AbstractAlignment implements
        // System.out.println(getTaxaGenoPath(taxon));
         myGenoCache.invalidateAll();
         myIsDirty=true;
+        alignmentChanged();
     }
     
     private void loadSiteDescriptorsToMemory() {
@@ -819,6 +821,7 @@ public class MutableNucleotideAlignmentHDF5 extends AbstractAlignment implements
         myIsDirty = false;
         myNumSites -= myNumSitesStagedToRemove;
         myNumSitesStagedToRemove = 0;
+        alignmentChanged();
         //save the out cache to file
         //re-sort the taxa names
         //
@@ -8,6 +8,7 @@ import cern.colt.GenericSorting;
 import cern.colt.Swapper;
 import cern.colt.function.IntComparator;
 import java.util.List;
+import net.maizegenetics.pal.alignment.depth.PackedAlleleDepth;
 import net.maizegenetics.pal.ids.IdGroup;
 import net.maizegenetics.pal.ids.Identifier;
 
@@ -17,8 +18,8 @@ import net.maizegenetics.pal.ids.Identifier;
  */
 public class MutableNucleotideDepthAlignment extends MutableNucleotideAlignment implements MutableAlignment {
 
-    // allelic depth information, short[allele][taxa][site] = depth, max: 32767
-    private short[][][] myAlleleDepth;
+    // allelic depth information, (taxa, site, allele) = depth, max: 32767
+    private PackedAlleleDepth myAlleleDepth;
     private final static int MAX_NUM_ALLELES = 6;  // will hold all 6 alleles (A,C,G,T,+,-) [= (byte) 0,1,2,3,4,5] (Jeff G)
 
     private MutableNucleotideDepthAlignment(Alignment a, int maxNumTaxa, int maxNumSites) {
@@ -65,14 +66,7 @@ public class MutableNucleotideDepthAlignment extends MutableNucleotideAlignment
     }
 
     public void initAllelicDepthArrays(int numMaxTaxa, int numMaxSites) {
-        myAlleleDepth = new short[MAX_NUM_ALLELES][numMaxTaxa][numMaxSites];
-        for (int i = 0; i < myAlleleDepth.length; i++) {
-            for (int j = 0; j < myAlleleDepth[i].length; j++) {
-                for (int k = 0; k < myAlleleDepth[i][j].length; k++) {
-                    myAlleleDepth[i][j][k] = (short) 0;  // initialize depth to zero (Jeff Glaubitz)
-                }
-            }
-        }
+        myAlleleDepth = new PackedAlleleDepth(MAX_NUM_ALLELES, numMaxTaxa, numMaxSites, (short) 0);  // initialize depth to zero (Jeff Glaubitz)
     }
 
     @Override 
@@ -85,28 +79,17 @@ public class MutableNucleotideDepthAlignment extends MutableNucleotideAlignment
     }
 
     public short[][] getDepthsForAllSites(int taxon) {
-        int nSites = this.getSiteCount();
-        short[][] depthsForTaxon = new short[MAX_NUM_ALLELES][nSites];
-        for (int allele = 0; allele < myAlleleDepth.length; allele++) {
-            for (int site = 0; site < nSites; site++) {
-                depthsForTaxon[allele][site] = myAlleleDepth[allele][taxon][site];
-            }
-        }
-        return depthsForTaxon;
+        return myAlleleDepth.getDepthsForAllSites(taxon, getSiteCount());
     }
     
     // Return depth for all 6 alleles, even if they have never been set (Jeff G)
     @Override 
     public short[] getDepthForAlleles(int taxon, int site) {
-        short[] alleleDepths = new short[myAlleleDepth.length];
-        for (int i = 0; i < myAlleleDepth.length; i++) {
-            alleleDepths[i] = myAlleleDepth[i][taxon][site];
-        }
-        return alleleDepths;
+        return myAlleleDepth.getDepthForAlleles(taxon, site);
     }
 
     public short getDepthForAllele(int taxon, int site, int allele) {
-        return myAlleleDepth[allele][taxon][site];
+        return myAlleleDepth.getDepth(taxon, site, allele);
     }
     
     @Override
@@ -116,18 +99,16 @@ public class MutableNucleotideDepthAlignment extends MutableNucleotideAlignment
 
     @Override
     public void setDepthForAlleles(int taxon, int site, short[] values) {
-        for (int i = 0; i < values.length; i++) {
-            myAlleleDepth[i][taxon][site] = values[i];
-        }
+        myAlleleDepth.setDepthForAlleles(taxon, site, values);
     }
 
     public void setDepthForAllele(int taxon, int site, int allele, int value) {
         if (value < 0) {
-            myAlleleDepth[allele][taxon][site] = 0;
+            myAlleleDepth.setDepth(taxon, site, allele, (short) 0);
         } else if (value > 32767) {
-            myAlleleDepth[allele][taxon][site] = 32767;
+            myAlleleDepth.setDepth(taxon, site, allele, (short) 32767);
         } else {
-            myAlleleDepth[allele][taxon][site] = (short) value;
+            myAlleleDepth.setDepth(taxon, site, allele, (short) value);
         }
     }
     
@@ -166,14 +147,7 @@ public class MutableNucleotideDepthAlignment extends MutableNucleotideAlignment
                 myReference[a] = myReference[b];
                 myReference[b] = bt;
 
-                short dp;
-                for (int i = 0; i < MAX_NUM_ALLELES; i++) {
-                    for (int taxa = 0; taxa < getSequenceCount(); taxa++) {
-                        dp = myAlleleDepth[i][taxa][a];
-                        myAlleleDepth[i][taxa][a] = myAlleleDepth[i][taxa][b];
-                        myAlleleDepth[i][taxa][b] = dp;
-                    }
-                }
+                myAlleleDepth.swapSites(a, b);
             }
         };
         IntComparator compPos = new IntComparator() {
@@ -27,7 +27,7 @@ public class MutableSingleEncodeAlignment extends AbstractAlignment implements M
     private byte[][] myData;
     private List<Identifier> myIdentifiers = new ArrayList<Identifier>();
     private final int myMaxTaxa;
-    private final int myMaxNumSites;
+    private int myMaxNumSites;
     private int myNumSites = 0;
     private int myNumSitesStagedToRemove = 0;
     protected int[] myVariableSites;
@@ -561,6 +561,10 @@ public class MutableSingleEncodeAlignment extends AbstractAlignment implements M
 
     @Override
     public byte[] getAlleles(int site) {
+        SiteStatistics stats = getSiteStatistics(site);
+        if (stats != null) {
+            return stats.getAlleles(site, 0);
+        }
         int[][] alleles = getAllelesSortedByFrequency(site);
         int resultSize = alleles[0].length;
         byte[] result = new byte[resultSize];
@@ -573,6 +577,7 @@ public class MutableSingleEncodeAlignment extends AbstractAlignment implements M
     // Mutable Methods...
     public void setBase(int taxon, int site, byte newBase) {
         myData[taxon][site] = newBase;
+        genotypesChanged(site);
     }
 
     public void setBase(Identifier taxon, String siteName, Locus locus, int physicalPosition, byte newBase) {
@@ -592,12 +597,14 @@ public class MutableSingleEncodeAlignment extends AbstractAlignment implements M
         }
 
         myData[taxonIndex][site] = newBase;
+        genotypesChanged(site);
 
     }
 
     public void setBaseRange(int taxon, int startSite, byte[] newBases) {
         for (int i = 0; i < newBases.length; i++) {
-            myData[taxon][startSite++] = newBases[i];
+            myData[taxon][startSite] = newBases[i];
+            genotypesChanged(startSite++);
         }
     }
 
@@ -632,7 +639,43 @@ public class MutableSingleEncodeAlignment extends AbstractAlignment implements M
         myNumSites++;
 
         setDirty();
+        alignmentChanged();
+
+    }
+
+    /**
+     * Sets the number of sites, and resizes the site arrays to hold maxNumSites sites, one taxon at a time so that
+     * only one extra row is in memory while they are copied.  Sites beyond the current ones start unknown.  Used by
+     * readers that only learn the number of sites as they read them, which grow the alignment as they go and trim it
+     * at the end.  Subclasses with site arrays of their own resize them too.
+     */
+    void setSiteCount(int numSites, int maxNumSites) {
+        if ((numSites < 0) || (numSites > maxNumSites)) {
+            throw new IllegalArgumentException("MutableSingleEncodeAlignment: setSiteCount: number of sites: " + numSites + " can't be more than max number of sites: " + maxNumSites);
+        }
+        if (maxNumSites != myMaxNumSites) {
+            int oldMax = myMaxNumSites;
+            for (int t = 0; t < myData.length; t++) {
+                myData[t] = Arrays.copyOf(myData[t], maxNumSites);
+                if (maxNumSites > oldMax) {
+                    Arrays.fill(myData[t], oldMax, maxNumSites, Alignment.UNKNOWN_DIPLOID_ALLELE);
+                }
+            }
+            myLocusIndices = Arrays.copyOf(myLocusIndices, maxNumSites);
+            myVariableSites = Arrays.copyOf(myVariableSites, maxNumSites);
+            mySNPIDs = Arrays.copyOf(mySNPIDs, maxNumSites);
+            myReference = Arrays.copyOf(myReference, maxNumSites);
+            if (maxNumSites > oldMax) {
+                Arrays.fill(myLocusIndices, oldMax, maxNumSites, Integer.MAX_VALUE);
+                Arrays.fill(myVariableSites, oldMax, maxNumSites, -1);
+                Arrays.fill(myReference, oldMax, maxNumSites, Alignment.UNKNOWN_DIPLOID_ALLELE);
+            }
+            myMaxNumSites = maxNumSites;
+        }
+        myNumSites = numSites;
 
+        setDirty();
+        alignmentChanged();
     }
 
     @Override
@@ -662,6 +705,8 @@ public class MutableSingleEncodeAlignment extends AbstractAlignment implements M
         mySNPIDs[myNumSites] = null;
         myReference[myNumSites] = Alignment.UNKNOWN_DIPLOID_ALLELE;
 
+        alignmentChanged();
+
     }
 
     public void clearSiteForRemoval(int site) {
@@ -677,6 +722,8 @@ public class MutableSingleEncodeAlignment extends AbstractAlignment implements M
         mySNPIDs[site] = null;
         myReference[site] = Alignment.UNKNOWN_DIPLOID_ALLELE;
 
+        genotypesChanged(site);
+
     }
 
     public void addTaxon(Identifier id) {
@@ -684,6 +731,7 @@ public class MutableSingleEncodeAlignment extends AbstractAlignment implements M
             throw new IllegalStateException("MutableSingleEncodeAlignment: addTaxon: this exceeds max num of taxa: " + myMaxTaxa);
         }
         myIdentifiers.add(id);
+        alignmentChanged();
     }
 
     public void setTaxonName(int taxon, Identifier id) {
@@ -705,6 +753,8 @@ public class MutableSingleEncodeAlignment extends AbstractAlignment implements M
             myData[numTaxa][s] = Alignment.UNKNOWN_DIPLOID_ALLELE;
         }
 
+        alignmentChanged();
+
     }
 
     public void clean() {
@@ -713,6 +763,7 @@ public class MutableSingleEncodeAlignment extends AbstractAlignment implements M
         myIsDirty = false;
         myNumSites -= myNumSitesStagedToRemove;
         myNumSitesStagedToRemove = 0;
+        alignmentChanged();
     }
 
     public boolean isDirty() {
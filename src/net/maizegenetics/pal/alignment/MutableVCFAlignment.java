@@ -8,7 +8,9 @@ import cern.colt.GenericSorting;
 import cern.colt.Swapper;
 import cern.colt.function.IntComparator;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import net.maizegenetics.pal.alignment.depth.PackedAlleleDepth;
 import net.maizegenetics.pal.ids.IdGroup;
 import net.maizegenetics.pal.ids.Identifier;
 
@@ -18,8 +20,8 @@ import net.maizegenetics.pal.ids.Identifier;
  */
 public class MutableVCFAlignment extends MutableNucleotideAlignment implements MutableAlignment {
 
-    // allelic depth information, short[allele][taxa][site] = depth, max: 32767
-    private short[][][] myAlleleDepth;
+    // allelic depth information, (taxa, site, allele) = depth, max: 32767, -1 = not set
+    private PackedAlleleDepth myAlleleDepth;
     // possible alleles for each site
     private byte[][] myCommonAlleles;
     private static int myMaxNumAlleles = 3;
@@ -70,14 +72,9 @@ public class MutableVCFAlignment extends MutableNucleotideAlignment implements M
     }
 
     public void initAllelicDepthArrays(int numMaxTaxa, int numMaxSites) {
-        myAlleleDepth = new short[myMaxNumAlleles][numMaxTaxa][numMaxSites];
+        myAlleleDepth = new PackedAlleleDepth(myMaxNumAlleles, numMaxTaxa, numMaxSites, (short) -1);
         myCommonAlleles = new byte[myMaxNumAlleles][numMaxSites];
-        for (int i = 0; i < myAlleleDepth.length; i++) {
-            for (int j = 0; j < myAlleleDepth[i].length; j++) {
-                for (int k = 0; k < myAlleleDepth[i][j].length; k++) {
-                    myAlleleDepth[i][j][k] = (short) -1;
-                }
-            }
+        for (int i = 0; i < myCommonAlleles.length; i++) {
             for (int j = 0; j < myCommonAlleles[i].length; j++) {
                 myCommonAlleles[i][j] = (byte) -1;
             }
@@ -107,19 +104,12 @@ public class MutableVCFAlignment extends MutableNucleotideAlignment implements M
 
     @Override
     public short[] getDepthForAlleles(int taxon, int site) {
-        ArrayList<Short> outArray = new ArrayList<Short>();
-        for (int i = 0; i < myAlleleDepth.length; i++) {
-            if (myAlleleDepth[i][taxon][site] != (short) -1) {
-                outArray.add(myAlleleDepth[i][taxon][site]);
-            } else {
-                break;
-            }
-        }
-        short[] out = new short[outArray.size()];
-        for (int i = 0; i < outArray.size(); i++) {
-            out[i] = outArray.get(i).shortValue();
+        short[] depths = myAlleleDepth.getDepthForAlleles(taxon, site);
+        int numSet = 0;
+        while ((numSet < depths.length) && (depths[numSet] != (short) -1)) {
+            numSet++;
         }
-        return out;
+        return (numSet == depths.length) ? depths : Arrays.copyOf(depths, numSet);
     }
 
     @Override
@@ -131,8 +121,31 @@ public class MutableVCFAlignment extends MutableNucleotideAlignment implements M
 
     @Override
     public void setDepthForAlleles(int taxon, int site, short[] values) {
-        for (int i = 0; i < values.length; i++) {
-            myAlleleDepth[i][taxon][site] = values[i];
+        myAlleleDepth.setDepthForAlleles(taxon, site, values);
+    }
+
+    /**
+     * Sets the depths of the sites from firstSite on to the depths of all the sites of depths, which must keep
+     * as many alleles as this alignment.
+     */
+    void setDepthsForSites(int firstSite, PackedAlleleDepth depths) {
+        myAlleleDepth.setDepthsForSites(firstSite, depths);
+    }
+
+    @Override
+    void setSiteCount(int numSites, int maxNumSites) {
+        super.setSiteCount(numSites, maxNumSites);
+        for (int i = 0; i < myCommonAlleles.length; i++) {
+            int oldMax = myCommonAlleles[i].length;
+            if (oldMax != maxNumSites) {
+                myCommonAlleles[i] = Arrays.copyOf(myCommonAlleles[i], maxNumSites);
+                if (maxNumSites > oldMax) {
+                    Arrays.fill(myCommonAlleles[i], oldMax, maxNumSites, (byte) -1);
+                }
+            }
+        }
+        if (myAlleleDepth.getNumSites() != maxNumSites) {
+            myAlleleDepth.setNumSites(maxNumSites);
         }
     }
 
@@ -172,14 +185,7 @@ public class MutableVCFAlignment extends MutableNucleotideAlignment implements M
                 myReference[a] = myReference[b];
                 myReference[b] = bt;
 
-                short dp;
-                for (int i = 0; i < myMaxNumAlleles; i++) {
-                    for (int taxa = 0; taxa < getSequenceCount(); taxa++) {
-                        dp = myAlleleDepth[i][taxa][a];
-                        myAlleleDepth[i][taxa][a] = myAlleleDepth[i][taxa][b];
-                        myAlleleDepth[i][taxa][b] = dp;
-                    }
-                }
+                myAlleleDepth.swapSites(a, b);
             }
         };
         IntComparator compPos = new IntComparator() {
@@ -0,0 +1,150 @@
+/*
+ * ParallelSiteWriter
+ */
+package net.maizegenetics.pal.alignment;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+import net.maizegenetics.util.BlockCompressedOutputStream;
+import net.maizegenetics.util.ProgressListener;
+
+/**
+ * Writes the site rows of a text export (Hapmap, VCF) for ExportUtils.  Blocks of SITES_PER_BLOCK sites are
+ * formatted into byte arrays by a pool of threads, and compressed there too for BGZF output, while the calling
+ * thread writes the finished blocks in site order.  At most MAX_BLOCKS_PER_THREAD blocks per thread are formatted
+ * ahead of the one being written.
+ * <p>
+ * The bytes written are those of the formatter, in order, whatever the number of threads.  Alignments that fill a
+ * cache as they are read (HDF5 backed, projections) are not safe to read from several threads, so they are always
+ * formatted by the calling thread.
+ */
+class ParallelSiteWriter {
+
+    private static final int SITES_PER_BLOCK = 256;
+    private static final int MAX_BLOCKS_PER_THREAD = 4;
+
+    /**
+     * Formats the rows of the sites.  Must be safe to call from several threads for different sites.
+     */
+    interface SiteFormatter {
+
+        /**
+         * Appends the row(s) of a site, with their line separators, to sb.
+         */
+        void formatSite(int site, StringBuilder sb);
+    }
+
+    private ParallelSiteWriter() {
+    }
+
+    /**
+     * Writes header then the rows of sites 0 to numSites - 1.  With blockCompressed the file is written as BGZF,
+     * otherwise it is gzipped if filename ends with ".gz".
+     */
+    static void write(String filename, String header, Alignment alignment, int numSites, final SiteFormatter formatter,
+            int numThreads, boolean blockCompressed, ProgressListener listener) throws IOException, InterruptedException {
+        if (!isSafeForConcurrentReads(alignment)) {
+            numThreads = 1;
+        }
+        BlockCompressedOutputStream bgzf = null;
+        OutputStream output;
+        if (blockCompressed) {
+            bgzf = new BlockCompressedOutputStream(new BufferedOutputStream(new FileOutputStream(filename), 1 << 16));
+            output = bgzf;
+        } else if (filename.endsWith(".gz")) {
+            output = new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(filename), 1 << 16), 1 << 16);
+        } else {
+            output = new BufferedOutputStream(new FileOutputStream(filename), 1 << 16);
+        }
+        ExecutorService pool = (numThreads > 1) ? Executors.newFixedThreadPool(numThreads) : null;
+        try {
+            output.write(header.getBytes());
+            int numBlocks = (numSites + SITES_PER_BLOCK - 1) / SITES_PER_BLOCK;
+            List<Future<byte[]>> blocks = new ArrayList<Future<byte[]>>();
+            int numSubmitted = 0;
+            for (int b = 0; b < numBlocks; b++) {
+                byte[] bytes;
+                if (pool == null) {
+                    bytes = formatBlock(formatter, b, numSites, blockCompressed);
+                } else {
+                    while ((numSubmitted < numBlocks) && (numSubmitted - b <= MAX_BLOCKS_PER_THREAD * numThreads)) {
+                        final int block = numSubmitted++;
+                        final int sites = numSites;
+                        final boolean compress = blockCompressed;
+                        blocks.add(pool.submit(new Callable<byte[]>() {
+                            @Override
+                            public byte[] call() {
+                                return formatBlock(formatter, block, sites, compress);
+                            }
+                        }));
+                    }
+                    bytes = getResult(blocks.get(b));
+                    blocks.set(b, null);
+                }
+                if (bgzf != null) {
+                    bgzf.writeBlocks(bytes);
+                } else {
+                    output.write(bytes);
+                }
+                if (listener != null) {
+                    int lastSite = Math.min(numSites, (b + 1) * SITES_PER_BLOCK);
+                    listener.progress((int) (((double) lastSite / (double) numSites) * 100.0), null);
+                }
+            }
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+            output.close();
+        }
+    }
+
+    private static byte[] formatBlock(SiteFormatter formatter, int block, int numSites, boolean compress) {
+        StringBuilder sb = new StringBuilder();
+        for (int site = block * SITES_PER_BLOCK, end = Math.min(numSites, site + SITES_PER_BLOCK); site < end; site++) {
+            formatter.formatSite(site, sb);
+        }
+        byte[] bytes = sb.toString().getBytes();
+        return compress ? BlockCompressedOutputStream.compress(bytes, 0, bytes.length) : bytes;
+    }
+
+    private static byte[] getResult(Future<byte[]> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("ParallelSiteWriter: " + e.getCause(), e.getCause());
+        }
+    }
+
+    /**
+     * Returns false if reading the alignment changes its state, as the caches of HDF5 backed alignments.
+     */
+    static boolean isSafeForConcurrentReads(Alignment alignment) {
+        if ((alignment instanceof BitAlignmentHDF5) || (alignment instanceof MutableNucleotideAlignmentHDF5) || (alignment instanceof ProjectionAlignment)) {
+            return false;
+        } else if (alignment instanceof FilterAlignment) {
+            return isSafeForConcurrentReads(((FilterAlignment) alignment).getBaseAlignment());
+        } else if (alignment instanceof CombineAlignment) {
+            for (Alignment current : alignment.getAlignments()) {
+                if (!isSafeForConcurrentReads(current)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,646 @@
+/*
+ * ParallelVCFReader
+ */
+package net.maizegenetics.pal.alignment;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import net.maizegenetics.pal.alignment.depth.PackedAlleleDepth;
+import net.maizegenetics.pal.ids.IdGroup;
+import net.maizegenetics.pal.ids.SimpleIdGroup;
+import net.maizegenetics.util.VCFUtil;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Reads a VCF file into a MutableVCFAlignment in a single pass, for ImportUtils.readFromVCF().
+ * <p>
+ * The calling thread reads the file as bytes and cuts it into chunks of SITES_PER_CHUNK lines, which a pool of
+ * threads parses with a byte level tokenizer (no String per field) into genotypes and packed allele depths.  The
+ * parsed chunks are copied in order into the alignment as soon as they are ready and then dropped, and at most
+ * MAX_CHUNKS_PER_THREAD chunks per thread are waiting, so neither the raw text nor the parsed chunks are ever all in
+ * memory.  As the number of sites is only known at the end of the file, the alignment grows by half its size when
+ * it is full, one taxon at a time, and is trimmed to the number of sites at the end.
+ * <p>
+ * Fields are split the way Pattern.split() splits them in the previous line by line reader (one whitespace
+ * character between fields, trailing empty fields ignored), so files are read the same way.
+ */
+class ParallelVCFReader {
+
+    private static final Logger myLogger = Logger.getLogger(ParallelVCFReader.class);
+    private static final Pattern WHITESPACE_PATTERN = Pattern.compile("\\s");
+    private static final int SITES_PER_CHUNK = 1024;  // multiple of 32, so that the depths of a chunk are copied a long at a time
+    private static final int MAX_CHUNKS_PER_THREAD = 4;
+    private static final long LOG_INTERVAL_MILLIS = 60000;
+    private static final byte[] MISSING_GENOTYPE = {'.', '/', '.'};
+
+    private ParallelVCFReader() {
+    }
+
+    static MutableVCFAlignment read(String filename, int maxKeptAlleles, int numThreads) throws IOException, InterruptedException {
+        long startTime = System.currentTimeMillis();
+        LineSource lines = new LineSource(openInputStream(filename));
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, numThreads));
+        try {
+            // header rows, the last one holds the taxa names
+            Chunk first = new Chunk(0);
+            String headerLine = null;
+            int numHeader = 0;
+            while (lines.readLine(first) && (first.myBytes[first.myLineStarts[0]] == '#')) {
+                headerLine = new String(first.myBytes, 0, first.myLineStarts[1]);
+                numHeader++;
+                first.clear();
+            }
+            if (headerLine == null) {
+                throw new IllegalStateException("ImportUtils: readFromVCF: no header found in this VCF file: " + filename);
+            }
+            myLogger.info("readFromVCF: Number of Header Rows: " + numHeader);
+            String[] header = WHITESPACE_PATTERN.split(headerLine);
+            final int numTaxa = header.length - ImportUtils.NUM_VCF_NON_TAXA_COLUMNS;
+            String[] taxaNames = new String[numTaxa];
+            System.arraycopy(header, ImportUtils.NUM_VCF_NON_TAXA_COLUMNS, taxaNames, 0, numTaxa);
+            IdGroup idGroup = new SimpleIdGroup(taxaNames);
+
+            final int maxAlleles = maxKeptAlleles;
+            AlignmentBuilder builder = new AlignmentBuilder(idGroup, maxKeptAlleles);
+            List<Future<ParsedChunk>> parsed = new ArrayList<Future<ParsedChunk>>();
+            int numSites = 0;
+            long lastLog = startTime;
+            Chunk chunk = first;
+            while (true) {
+                while ((chunk.myNumLines < SITES_PER_CHUNK) && lines.readLine(chunk)) {
+                }
+                if (chunk.myNumLines == 0) {
+                    break;
+                }
+                final Chunk toParse = chunk;
+                parsed.add(pool.submit(new Callable<ParsedChunk>() {
+                    @Override
+                    public ParsedChunk call() {
+                        return new ParsedChunk(toParse, numTaxa, maxAlleles);
+                    }
+                }));
+                numSites += chunk.myNumLines;
+                while (parsed.size() > MAX_CHUNKS_PER_THREAD * numThreads) {
+                    builder.add(getResult(parsed.remove(0)));
+                }
+                if (System.currentTimeMillis() - lastLog > LOG_INTERVAL_MILLIS) {
+                    lastLog = System.currentTimeMillis();
+                    myLogger.info("readFromVCF: " + numSites + " sites read (" + numSites * 1000L / (lastLog - startTime) + " sites/s)");
+                }
+                if (chunk.myNumLines < SITES_PER_CHUNK) {
+                    break;
+                }
+                chunk = new Chunk(numSites);
+            }
+            lines.close();
+            myLogger.info("readFromVCF: Number of Sites: " + numSites);
+
+            while (!parsed.isEmpty()) {
+                builder.add(getResult(parsed.remove(0)));
+            }
+            MutableVCFAlignment result = builder.finish(numSites);
+            result.clean();
+            long millis = Math.max(1, System.currentTimeMillis() - startTime);
+            myLogger.info("readFromVCF: " + numSites + " sites of " + numTaxa + " taxa read in " + millis / 1000 + " s (" + numSites * 1000L / millis
+                    + " sites/s) with " + numThreads + " threads");
+            return result;
+        } finally {
+            pool.shutdownNow();
+            lines.close();
+        }
+    }
+
+    /**
+     * Copies the parsed chunks, in order, into a MutableVCFAlignment that grows as needed, and sets the locus of each
+     * site.
+     */
+    private static class AlignmentBuilder {
+
+        private final MutableVCFAlignment myResult;
+        private int myMaxNumSites = SITES_PER_CHUNK;
+        private String myCurrLocus = null;
+        private int myLocusStart = 0;
+        private int myMinPosition = Integer.MAX_VALUE;
+        private int myPrevPos = -1;
+
+        AlignmentBuilder(IdGroup idGroup, int maxKeptAlleles) {
+            myResult = MutableVCFAlignment.getInstance(idGroup, 0, idGroup.getIdCount(), myMaxNumSites, maxKeptAlleles);
+        }
+
+        void add(ParsedChunk sites) {
+            int firstSite = sites.myFirstSite;
+            int numSites = firstSite + sites.myNumSites;
+            if (numSites > myMaxNumSites) {
+                myMaxNumSites = Math.max(numSites, myMaxNumSites + myMaxNumSites / 2);
+            }
+            myResult.setSiteCount(numSites, myMaxNumSites);
+            for (int s = 0; s < sites.myNumSites; s++) {
+                int site = firstSite + s;
+                int currPos = sites.myPositions[s];
+                myResult.setCommonAlleles(site, sites.myAlleles[s]);
+                myResult.setPositionOfSite(site, currPos);
+                if (sites.myHasReference[s]) {
+                    myResult.setReferenceAllele(site, sites.myReference[s]);
+                }
+                String temp = sites.myChromosomes[s];
+                if (myCurrLocus == null) {
+                    myCurrLocus = temp;
+                    myMinPosition = currPos;
+                } else if (!temp.equals(myCurrLocus)) {
+                    Locus newLocus = new Locus(myCurrLocus, myCurrLocus, myMinPosition, myPrevPos, null, null);
+                    for (int i = myLocusStart; i < site; i++) {
+                        myResult.setLocusOfSite(i, newLocus);
+                    }
+                    myCurrLocus = temp;
+                    myMinPosition = currPos;
+                    myLocusStart = site;
+                    myPrevPos = -1;
+                }
+                if (currPos < myPrevPos) {
+                    throw new IllegalStateException("ImportUtils: readFromVCF: Sites are not properly sorted for chromosome: " + myCurrLocus + " at " + currPos + " and " + myPrevPos);
+                }
+                myPrevPos = currPos;
+            }
+            for (int taxon = 0; taxon < sites.myGenotypes.length; taxon++) {
+                myResult.setBaseRange(taxon, firstSite, sites.myGenotypes[taxon]);
+            }
+            myResult.setDepthsForSites(firstSite, sites.myDepths);
+        }
+
+        /**
+         * Sets the locus of the last sites and trims the alignment to numSites sites.
+         */
+        MutableVCFAlignment finish(int numSites) {
+            myResult.setSiteCount(numSites, numSites);
+            if (myCurrLocus != null) {
+                Locus newLocus = new Locus(myCurrLocus, myCurrLocus, myMinPosition, myPrevPos, null, null);
+                for (int i = myLocusStart; i < numSites; i++) {
+                    myResult.setLocusOfSite(i, newLocus);
+                }
+            }
+            return myResult;
+        }
+    }
+
+    private static ParsedChunk getResult(Future<ParsedChunk> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("ImportUtils: readFromVCF: " + e.getCause(), e.getCause());
+        }
+    }
+
+    private static InputStream openInputStream(String filename) throws IOException {
+        InputStream input = filename.startsWith("http") ? new URL(filename).openStream() : new FileInputStream(filename);
+        if (filename.endsWith(".gz")) {
+            return new GZIPInputStream(input, 1 << 16);
+        }
+        return input;
+    }
+
+    /**
+     * Lines of the file, as bytes without the end of line characters.
+     */
+    private static class Chunk {
+
+        private final int myFirstSite;
+        private byte[] myBytes = new byte[1 << 16];
+        private final int[] myLineStarts = new int[SITES_PER_CHUNK + 1];  // line i is from myLineStarts[i] to myLineStarts[i+1]
+        private final int[] myLineNumbers = new int[SITES_PER_CHUNK];  // in the file, from 1
+        private int myNumLines = 0;
+
+        Chunk(int firstSite) {
+            myFirstSite = firstSite;
+        }
+
+        void clear() {
+            myNumLines = 0;
+        }
+
+        void append(byte[] bytes, int start, int length) {
+            int end = myLineStarts[myNumLines + 1];
+            if (end + length > myBytes.length) {
+                myBytes = Arrays.copyOf(myBytes, Math.max(2 * myBytes.length, end + length));
+            }
+            System.arraycopy(bytes, start, myBytes, end, length);
+            myLineStarts[myNumLines + 1] = end + length;
+        }
+    }
+
+    private static class LineSource {
+
+        private final InputStream myInput;
+        private final byte[] myBuffer = new byte[1 << 20];
+        private int myPosition = 0;
+        private int myLimit = 0;
+        private int myLineNumber = 0;
+
+        LineSource(InputStream input) {
+            myInput = input;
+        }
+
+        /**
+         * Adds the next line that isn't empty to chunk.  Returns false at the end of the file.
+         */
+        boolean readLine(Chunk chunk) throws IOException {
+            while (true) {
+                int start = chunk.myLineStarts[chunk.myNumLines];
+                chunk.myLineStarts[chunk.myNumLines + 1] = start;
+                boolean endOfLine = false;
+                boolean any = false;
+                while (!endOfLine) {
+                    if (myPosition == myLimit) {
+                        myLimit = myInput.read(myBuffer, 0, myBuffer.length);
+                        myPosition = 0;
+                        if (myLimit <= 0) {
+                            myLimit = 0;
+                            break;
+                        }
+                    }
+                    any = true;
+                    int end = myPosition;
+                    while ((end < myLimit) && (myBuffer[end] != '\n')) {
+                        end++;
+                    }
+                    chunk.append(myBuffer, myPosition, end - myPosition);
+                    endOfLine = end < myLimit;
+                    myPosition = endOfLine ? end + 1 : end;
+                }
+                if (!any) {
+                    return false;
+                }
+                myLineNumber++;
+                int end = chunk.myLineStarts[chunk.myNumLines + 1];
+                while ((end > start) && (chunk.myBytes[end - 1] == '\r')) {
+                    end--;
+                }
+                if (end > start) {
+                    chunk.myLineStarts[chunk.myNumLines + 1] = end;
+                    chunk.myLineNumbers[chunk.myNumLines] = myLineNumber;
+                    chunk.myNumLines++;
+                    return true;
+                }
+            }
+        }
+
+        void close() {
+            try {
+                myInput.close();
+            } catch (IOException e) {
+                // do nothing
+            }
+        }
+    }
+
+    /**
+     * The sites of a chunk, parsed.
+     */
+    private static class ParsedChunk {
+
+        private final int myFirstSite;
+        private final int myNumSites;
+        private final String[] myChromosomes;
+        private final int[] myPositions;
+        private final byte[][] myAlleles;
+        private final byte[] myReference;
+        private final boolean[] myHasReference;
+        private final byte[][] myGenotypes;  // [taxon][site]
+        private final PackedAlleleDepth myDepths;
+        // field boundaries of the current line, and of the sub fields of the current field
+        private final int[] myFieldStarts;
+        private final int[] myFieldEnds;
+        private int[] mySubStarts = new int[16];
+        private int[] mySubEnds = new int[16];
+        private byte[] myBytes;
+        private int myLineNumber;
+
+        ParsedChunk(Chunk chunk, int numTaxa, int maxKeptAlleles) {
+            myFirstSite = chunk.myFirstSite;
+            myNumSites = chunk.myNumLines;
+            myChromosomes = new String[myNumSites];
+            myPositions = new int[myNumSites];
+            myAlleles = new byte[myNumSites][];
+            myReference = new byte[myNumSites];
+            myHasReference = new boolean[myNumSites];
+            myGenotypes = new byte[numTaxa][myNumSites];
+            for (int t = 0; t < numTaxa; t++) {
+                Arrays.fill(myGenotypes[t], Alignment.UNKNOWN_DIPLOID_ALLELE);
+            }
+            myDepths = new PackedAlleleDepth(maxKeptAlleles, numTaxa, myNumSites, (short) -1);
+            myFieldStarts = new int[ImportUtils.NUM_VCF_NON_TAXA_COLUMNS + numTaxa];
+            myFieldEnds = new int[myFieldStarts.length];
+            myBytes = chunk.myBytes;
+            for (int s = 0; s < myNumSites; s++) {
+                myLineNumber = chunk.myLineNumbers[s];
+                parseSite(s, chunk.myLineStarts[s], chunk.myLineStarts[s + 1], numTaxa, maxKeptAlleles);
+            }
+            myBytes = null;
+        }
+
+        private void parseSite(int s, int lineStart, int lineEnd, int numTaxa, int maxKeptAlleles) {
+            // 1	6407	S1000_6407	.	A,C	20	PASS	NS=929;DP=2210;AF=0.01,0.01	GT:AD:DP:GQ:PL	./.	0/0:2,0,0:2:79:0,6,72	1/2:0,1,1:2:54:0,5,34
+            int numFields = splitLine(lineStart, lineEnd);
+            if (numFields < myFieldStarts.length) {
+                throw new IllegalStateException("ImportUtils: readFromVCF: " + numFields + " columns found, " + myFieldStarts.length + " expected in line: " + myLineNumber);
+            }
+            String chromosome = (s > 0) ? myChromosomes[s - 1] : null;
+            if ((chromosome == null) || !fieldEquals(ImportUtils.VCF_CHROMOSOME_COLUMN_INDEX, chromosome)) {
+                chromosome = fieldString(ImportUtils.VCF_CHROMOSOME_COLUMN_INDEX);
+            }
+            myChromosomes[s] = chromosome;
+            int currPos = parseInt(myFieldStarts[ImportUtils.VCF_POSITION_COLUMN_INDEX], myFieldEnds[ImportUtils.VCF_POSITION_COLUMN_INDEX]);
+            myPositions[s] = currPos;
+
+            //Currently this code can only support alleles that are encoded in single charactor,
+            //Indels need to be encoded as "+" or "-", multi-charactor indels are not supported
+            int refStart = myFieldStarts[ImportUtils.VCF_REF_COLUMN_INDEX];
+            int refLength = myFieldEnds[ImportUtils.VCF_REF_COLUMN_INDEX] - refStart;
+            if (refLength > 1) {
+                throw new IllegalStateException("ImportUtils: readFromVCF: the reference allele must be in single charactor. Multi-character indels need to be converted to '+' or '-'. At position " + currPos + ", the ref allele '" + fieldString(ImportUtils.VCF_REF_COLUMN_INDEX) + "' is not supported.");
+            }
+            int numAlt = splitField(myFieldStarts[ImportUtils.VCF_ALT_COLUMN_INDEX], myFieldEnds[ImportUtils.VCF_ALT_COLUMN_INDEX], ',', ',');
+            byte[] alleleString = new byte[refLength + numAlt];
+            if (refLength == 1) {
+                alleleString[0] = myBytes[refStart];
+            }
+            for (int i = 0; i < numAlt; i++) {
+                if (mySubEnds[i] - mySubStarts[i] != 1) {
+                    throw new IllegalStateException("ImportUtils: readFromVCF: the alternative allele must be in single charactor. Multi-character indels need to be converted to '+' or '-'. At position " + currPos + ", the alternative allele '" + new String(myBytes, mySubStarts[i], mySubEnds[i] - mySubStarts[i]) + "' is not supported.");
+                }
+                alleleString[refLength + i] = myBytes[mySubStarts[i]];
+            }
+
+            // find alleles for current site, check to see if number of alleles is supported
+            int numAlleles = numAlt + 1;
+            int oriNumAlleles = numAlleles;
+            if (numAlleles > maxKeptAlleles) {
+                System.out.println("read VCF position " + currPos + ": extra allele(s) removed.");
+                numAlleles = maxKeptAlleles;
+            }
+            if (alleleString.length < numAlleles) {
+                throw new IllegalStateException("ImportUtils: readFromVCF: no reference allele in line " + myLineNumber);
+            }
+            byte[] alleles = new byte[numAlleles];
+            for (int allele = 0; allele < numAlleles; allele++) {
+                byte currAllele = alleleString[allele];
+                if (currAllele == '.') {
+                    alleles[allele] = (byte) -1;
+                } else {
+                    alleles[allele] = alleleValue(currAllele);
+                }
+            }
+            myAlleles[s] = alleles;
+            if ((refLength != 1) || (myBytes[refStart] != '.')) {
+                myReference[s] = NucleotideAlignmentConstants.getNucleotideDiploidByte(fieldString(ImportUtils.VCF_REF_COLUMN_INDEX));
+                myHasReference[s] = true;
+            }
+
+            // figure out order of format
+            int genoIndex = -1;
+            int alleleDepthIndex = -1;
+            int numDataFields = splitField(myFieldStarts[ImportUtils.VCF_FORMAT_COLUMN_INDEX], myFieldEnds[ImportUtils.VCF_FORMAT_COLUMN_INDEX], ':', ':');
+            for (int i = 0; i < numDataFields; i++) {
+                if (subEqualsIgnoreCase(i, 'G', 'T')) {
+                    genoIndex = i;
+                } else if (subEqualsIgnoreCase(i, 'A', 'D')) {
+                    alleleDepthIndex = i;
+                }
+            }
+            if (genoIndex == -1) {
+                throw new IllegalStateException("ImportUtils: readFromVCF: no genotype data found in this VCF file at line: " + myLineNumber);
+            }
+
+            short[] depths = new short[numAlleles];
+            int[] intDepths = new int[numAlleles];
+            for (int taxa = 0; taxa < numTaxa; taxa++) {
+                int fieldStart = myFieldStarts[ImportUtils.NUM_VCF_NON_TAXA_COLUMNS + taxa];
+                int fieldEnd = myFieldEnds[ImportUtils.NUM_VCF_NON_TAXA_COLUMNS + taxa];
+                int numSubFields = splitField(fieldStart, fieldEnd, ':', ':');
+                if (numSubFields == 0) {
+                    throw new IllegalStateException("ImportUtils: readFromVCF: no data for taxa number " + taxa + " in line: " + myLineNumber);
+                }
+                if (startsWith(mySubStarts[0], mySubEnds[0], MISSING_GENOTYPE)) {
+                    Arrays.fill(depths, (short) 0);
+                    myDepths.setDepthForAlleles(taxa, s, depths);
+                    continue;
+                }
+                // for whatever reason if the actual data fields do not match up with the format column
+                // assume the data is unknown
+                if (numSubFields != numDataFields) {
+                    continue;
+                }
+                int genoStart = mySubStarts[genoIndex];
+                int genoEnd = mySubEnds[genoIndex];
+                int adStart = (alleleDepthIndex >= 0) ? mySubStarts[alleleDepthIndex] : -1;
+                int adEnd = (alleleDepthIndex >= 0) ? mySubEnds[alleleDepthIndex] : -1;
+                int numGenotypes = splitField(genoStart, genoEnd, '/', '|');
+                if (numGenotypes > 2) {
+                    throw new IllegalStateException("ImportUtils: readFromVCF: number of genotypes larger than supported by TASSEL at line: " + myLineNumber);
+                }
+                byte calledGenotypeValue = (byte) 0xFF;
+                boolean recallgenotypeflag = false; //this flag  indicate whethere to recall genotypes, this happens when some alleles are removed
+                for (int i = 0; i < numGenotypes; i++) {
+                    calledGenotypeValue <<= 4;
+                    if ((mySubEnds[i] - mySubStarts[i] == 1) && (myBytes[mySubStarts[i]] == '.')) {
+                        calledGenotypeValue |= 0x0F;
+                    } else {
+                        int currGenoInt = parseInt(mySubStarts[i], mySubEnds[i]);
+                        if (currGenoInt == 14) {
+                            calledGenotypeValue |= 0x0E;
+                        } else if (currGenoInt > (numAlleles - 1)) {
+                            recallgenotypeflag = true;
+                            break;
+                        } else if (currGenoInt < 0) {
+                            throw new IllegalStateException("ImportUtils: readFromVCF: negative genotype " + currGenoInt + " in line " + myLineNumber);
+                        } else {
+                            calledGenotypeValue |= alleleValue(alleleString[currGenoInt]);
+                        }
+                    }
+                }
+
+                //the called genotype will be set later, incase the genotype needs to be recalled
+                if (alleleDepthIndex >= 0) {
+                    int numDepths = splitField(adStart, adEnd, ',', ',');
+                    if (numDepths != oriNumAlleles) {
+                        throw new IllegalStateException("ImportUtils: readFromVCF: number of allele depth values does not match number of alleles in line: " + myLineNumber + " taxa number: " + taxa);
+                    }
+                    for (int i = 0; i < numAlleles; i++) {
+                        int depth = parseInt(mySubStarts[i], mySubEnds[i]);
+                        intDepths[i] = depth;
+                        if (depth > 32767) {
+                            myLogger.info("Depth value for genotype " + i + " had an original value of " + depth + ". Converted to the maximum of 32767. In line: " + myLineNumber + " taxa number: " + taxa);
+                            depth = 32767;
+                        }
+                        depths[i] = (short) depth;
+                    }
+                    if (recallgenotypeflag == true) {
+                        //recall genotype now
+                        calledGenotypeValue = VCFUtil.resolveVCFGeno(alleles, intDepths);
+                    }
+                    myDepths.setDepthForAlleles(taxa, s, depths);
+                }
+                myGenotypes[taxa][s] = calledGenotypeValue;
+            }
+        }
+
+        /**
+         * Allele code of an allele character other than '.'.
+         */
+        private byte alleleValue(byte currAllele) {
+            switch (currAllele) {
+                case 'A':
+                case 'a':
+                    return NucleotideAlignmentConstants.A_ALLELE;
+                case 'C':
+                case 'c':
+                    return NucleotideAlignmentConstants.C_ALLELE;
+                case 'G':
+                case 'g':
+                    return NucleotideAlignmentConstants.G_ALLELE;
+                case 'T':
+                case 't':
+                    return NucleotideAlignmentConstants.T_ALLELE;
+                case '+':
+                    return NucleotideAlignmentConstants.INSERT_ALLELE;
+                case '-':
+                    return NucleotideAlignmentConstants.GAP_ALLELE;
+                default:
+                    throw new IllegalStateException("ImportUtils: readFromVCF: a unsupported allele detected in this VCF file: " + (char) currAllele + " in line " + myLineNumber);
+            }
+        }
+
+        /**
+         * Finds the fields of a line separated by single whitespace characters, up to the number needed.  Returns
+         * the number of fields found, not counting empty fields at the end of the line.
+         */
+        private int splitLine(int start, int end) {
+            int numFields = 0;
+            int fieldStart = start;
+            for (int i = start; (i <= end) && (numFields < myFieldStarts.length); i++) {
+                if ((i == end) || isWhitespace(myBytes[i])) {
+                    myFieldStarts[numFields] = fieldStart;
+                    myFieldEnds[numFields] = i;
+                    numFields++;
+                    fieldStart = i + 1;
+                }
+            }
+            if (numFields == myFieldStarts.length) {
+                return numFields;
+            }
+            while ((numFields > 1) && (myFieldEnds[numFields - 1] == myFieldStarts[numFields - 1])) {
+                numFields--;
+            }
+            return numFields;
+        }
+
+        /**
+         * Splits bytes start to end at the separator characters, into mySubStarts and mySubEnds.  Returns the number of
+         * parts, not counting empty parts at the end, unless there is no separator (then 1, even if empty).
+         */
+        private int splitField(int start, int end, char separator1, char separator2) {
+            int numParts = 0;
+            int partStart = start;
+            boolean separatorFound = false;
+            for (int i = start; i <= end; i++) {
+                if ((i == end) || (myBytes[i] == separator1) || (myBytes[i] == separator2)) {
+                    if (numParts == mySubStarts.length) {
+                        mySubStarts = Arrays.copyOf(mySubStarts, 2 * numParts);
+                        mySubEnds = Arrays.copyOf(mySubEnds, 2 * numParts);
+                    }
+                    mySubStarts[numParts] = partStart;
+                    mySubEnds[numParts] = i;
+                    numParts++;
+                    partStart = i + 1;
+                    separatorFound |= (i != end);
+                }
+            }
+            if (separatorFound) {
+                while ((numParts > 0) && (mySubEnds[numParts - 1] == mySubStarts[numParts - 1])) {
+                    numParts--;
+                }
+            }
+            return numParts;
+        }
+
+        private int parseInt(int start, int end) {
+            int i = start;
+            boolean negative = false;
+            if ((i < end) && ((myBytes[i] == '-') || (myBytes[i] == '+'))) {
+                negative = myBytes[i] == '-';
+                i++;
+            }
+            if (i == end) {
+                throw new NumberFormatException("For input string: \"" + new String(myBytes, start, end - start) + "\" in line " + myLineNumber);
+            }
+            long value = 0;
+            for (; i < end; i++) {
+                int digit = myBytes[i] - '0';
+                if ((digit < 0) || (digit > 9) || (value > Integer.MAX_VALUE)) {
+                    throw new NumberFormatException("For input string: \"" + new String(myBytes, start, end - start) + "\" in line " + myLineNumber);
+                }
+                value = 10 * value + digit;
+            }
+            value = negative ? -value : value;
+            if ((value > Integer.MAX_VALUE) || (value < Integer.MIN_VALUE)) {
+                throw new NumberFormatException("For input string: \"" + new String(myBytes, start, end - start) + "\" in line " + myLineNumber);
+            }
+            return (int) value;
+        }
+
+        private String fieldString(int field) {
+            return new String(myBytes, myFieldStarts[field], myFieldEnds[field] - myFieldStarts[field]);
+        }
+
+        private boolean fieldEquals(int field, String value) {
+            int start = myFieldStarts[field];
+            if (myFieldEnds[field] - start != value.length()) {
+                return false;
+            }
+            for (int i = 0; i < value.length(); i++) {
+                if (myBytes[start + i] != value.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean subEqualsIgnoreCase(int sub, char upper1, char upper2) {
+            int start = mySubStarts[sub];
+            return (mySubEnds[sub] - start == 2) && (Character.toUpperCase((char) myBytes[start]) == upper1)
+                    && (Character.toUpperCase((char) myBytes[start + 1]) == upper2);
+        }
+
+        private boolean startsWith(int start, int end, byte[] prefix) {
+            if (end - start < prefix.length) {
+                return false;
+            }
+            for (int i = 0; i < prefix.length; i++) {
+                if (myBytes[start + i] != prefix[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean isWhitespace(byte b) {
+            return (b == ' ') || (b == '\t') || (b == '\n') || (b == 0x0B) || (b == '\f') || (b == '\r');
+        }
+    }
+}
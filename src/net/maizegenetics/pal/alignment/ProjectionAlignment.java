@@ -182,6 +182,7 @@ public class ProjectionAlignment extends AbstractAlignment implements MutableAli
             }
             this.mySiteBreaks[taxon][i] = site;
         }
+        alignmentChanged();
     }
     
     public void setCompositionOfTaxon(int taxon, TreeMap<Integer,int[]> breakPoints) {
@@ -201,6 +202,7 @@ public class ProjectionAlignment extends AbstractAlignment implements MutableAli
             this.mySiteBreaks[taxon][cnt] = site;
             cnt++;
         }
+        alignmentChanged();
     }
     
     private TreeMap<Integer,int[]> removeBreakPointReduncdancy(TreeMap<Integer,int[]> breakPoints) {
@@ -0,0 +1,423 @@
+/*
+ * SiteStatistics
+ */
+package net.maizegenetics.pal.alignment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.maizegenetics.util.OpenBitSet;
+
+/**
+ * Per site allele statistics of an alignment (alleles sorted by frequency with their counts, heterozygous count,
+ * taxa and gametes not missing, major / minor allele counts and frequencies), computed once for all sites and kept
+ * in primitive arrays.  Used by AbstractAlignment when caching of site statistics is turned on.
+ * <p>
+ * The values are those the uncached methods of the alignment return.  Statistics the alignment takes from
+ * AbstractAlignment are all computed from one read of each genotype, the others are computed by calling the
+ * alignment's own method.  Sites are processed by a pool of threads, unless reading the alignment changes its
+ * state (HDF5 backed alignments).
+ * <p>
+ * Sites whose genotypes change afterwards are marked by {@link #siteChanged(int)} and are no longer current.
+ */
+class SiteStatistics {
+
+    private static final int SITES_PER_CHUNK = 1024;
+    private static final int MAX_CHANGED_DIVISOR = 4;
+    private final int myNumSites;
+    private final int myWrappedEditCount;
+    private final int[] myAlleleOffsets;  // alleles of site s are at myAlleleOffsets[s] to myAlleleOffsets[s + 1] - 1
+    private final byte[] myAlleles;
+    private final int[] myAlleleCounts;
+    private final int[] myHeterozygousCounts;
+    private final int[] myTotalNotMissing;
+    private final int[] myTotalGametesNotMissing;
+    // null when the alignment uses the AbstractAlignment implementation, derived from the sorted alleles
+    private final int[] myMajorAlleleCounts;
+    private final int[] myMinorAlleleCounts;
+    private final double[] myMajorAlleleFrequencies;
+    private final double[] myMinorAlleleFrequencies;
+    private final OpenBitSet myChangedSites;
+    private int myNumChangedSites = 0;
+
+    /**
+     * Computes the statistics of all sites of alignment.
+     *
+     * @param alignment alignment
+     * @param wrappedEditCount edit count of the alignments wrapped by alignment at this time
+     */
+    SiteStatistics(final AbstractAlignment alignment, int wrappedEditCount) {
+        myNumSites = alignment.getSiteCount();
+        myWrappedEditCount = wrappedEditCount;
+        myHeterozygousCounts = new int[myNumSites];
+        myTotalNotMissing = new int[myNumSites];
+        myTotalGametesNotMissing = new int[myNumSites];
+        myMajorAlleleCounts = alignment.isDefaultSiteStatistic("getMajorAlleleCount") ? null : new int[myNumSites];
+        myMinorAlleleCounts = alignment.isDefaultSiteStatistic("getMinorAlleleCount") ? null : new int[myNumSites];
+        myMajorAlleleFrequencies = alignment.isDefaultSiteStatistic("getMajorAlleleFrequency") ? null : new double[myNumSites];
+        myMinorAlleleFrequencies = alignment.isDefaultSiteStatistic("getMinorAlleleFrequency") ? null : new double[myNumSites];
+        myChangedSites = new OpenBitSet(myNumSites);
+
+        final Calculator calculator = new Calculator(alignment);
+        int numChunks = (myNumSites + SITES_PER_CHUNK - 1) / SITES_PER_CHUNK;
+        int numThreads = Math.min(numChunks, Runtime.getRuntime().availableProcessors());
+        if (!ParallelSiteWriter.isSafeForConcurrentReads(alignment)) {
+            numThreads = 1;
+        }
+        List<SortedAlleles> chunks = new ArrayList<SortedAlleles>(numChunks);
+        if (numThreads <= 1) {
+            for (int c = 0; c < numChunks; c++) {
+                chunks.add(calculator.calculate(c * SITES_PER_CHUNK, Math.min(myNumSites, (c + 1) * SITES_PER_CHUNK)));
+            }
+        } else {
+            ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+            try {
+                List<Future<SortedAlleles>> futures = new ArrayList<Future<SortedAlleles>>(numChunks);
+                for (int c = 0; c < numChunks; c++) {
+                    final int start = c * SITES_PER_CHUNK;
+                    final int end = Math.min(myNumSites, start + SITES_PER_CHUNK);
+                    futures.add(pool.submit(new Callable<SortedAlleles>() {
+                        @Override
+                        public SortedAlleles call() {
+                            return calculator.calculate(start, end);
+                        }
+                    }));
+                }
+                for (Future<SortedAlleles> future : futures) {
+                    chunks.add(getResult(future));
+                }
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+
+        int numAlleles = 0;
+        for (SortedAlleles chunk : chunks) {
+            numAlleles += chunk.myNumAlleles;
+        }
+        myAlleleOffsets = new int[myNumSites + 1];
+        myAlleles = new byte[numAlleles];
+        myAlleleCounts = new int[numAlleles];
+        int site = 0;
+        int offset = 0;
+        for (SortedAlleles chunk : chunks) {
+            for (int s = 0; s < chunk.myOffsets.length - 1; s++) {
+                myAlleleOffsets[site++] = offset + chunk.myOffsets[s];
+            }
+            System.arraycopy(chunk.myAlleles, 0, myAlleles, offset, chunk.myNumAlleles);
+            System.arraycopy(chunk.myCounts, 0, myAlleleCounts, offset, chunk.myNumAlleles);
+            offset += chunk.myNumAlleles;
+        }
+        myAlleleOffsets[myNumSites] = offset;
+    }
+
+    private static SortedAlleles getResult(Future<SortedAlleles> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("SiteStatistics: interrupted while computing site statistics");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("SiteStatistics: " + e.getCause(), e.getCause());
+        }
+    }
+
+    /**
+     * Returns whether the statistics of site are up to date.
+     */
+    boolean isCurrent(int site) {
+        return (site < myNumSites) && ((myNumChangedSites == 0) || !myChangedSites.fastGet(site));
+    }
+
+    /**
+     * Marks the genotypes of site as changed.  Returns false when so many sites have changed that the statistics
+     * should be computed again.
+     */
+    boolean siteChanged(int site) {
+        if (site >= myNumSites) {
+            return false;
+        }
+        if (!myChangedSites.getAndSet(site)) {
+            myNumChangedSites++;
+        }
+        return myNumChangedSites <= myNumSites / MAX_CHANGED_DIVISOR;
+    }
+
+    int getWrappedEditCount() {
+        return myWrappedEditCount;
+    }
+
+    int[][] getAllelesSortedByFrequency(int site) {
+        int start = myAlleleOffsets[site];
+        int numAlleles = myAlleleOffsets[site + 1] - start;
+        int[][] result = new int[2][numAlleles];
+        for (int i = 0; i < numAlleles; i++) {
+            result[0][i] = myAlleles[start + i];
+            result[1][i] = myAlleleCounts[start + i];
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of alleles found at site.
+     */
+    int getNumAlleles(int site) {
+        return myAlleleOffsets[site + 1] - myAlleleOffsets[site];
+    }
+
+    /**
+     * Returns the allele of given rank (0 for major) at site, or UNKNOWN_ALLELE if the site has fewer alleles.
+     */
+    byte getAllele(int site, int rank) {
+        if (rank < getNumAlleles(site)) {
+            return myAlleles[myAlleleOffsets[site] + rank];
+        }
+        return Alignment.UNKNOWN_ALLELE;
+    }
+
+    /**
+     * Returns the count of the allele of given rank (0 for major) at site, or 0 if the site has fewer alleles.
+     */
+    int getAlleleCount(int site, int rank) {
+        if (rank < getNumAlleles(site)) {
+            return myAlleleCounts[myAlleleOffsets[site] + rank];
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the alleles of site from given rank on, most frequent first.
+     */
+    byte[] getAlleles(int site, int fromRank) {
+        int numAlleles = Math.max(0, getNumAlleles(site) - fromRank);
+        byte[] result = new byte[numAlleles];
+        System.arraycopy(myAlleles, myAlleleOffsets[site] + fromRank, result, 0, numAlleles);
+        return result;
+    }
+
+    int getHeterozygousCount(int site) {
+        return myHeterozygousCounts[site];
+    }
+
+    int getTotalNotMissing(int site) {
+        return myTotalNotMissing[site];
+    }
+
+    int getTotalGametesNotMissing(int site) {
+        return myTotalGametesNotMissing[site];
+    }
+
+    int getMajorAlleleCount(int site) {
+        if (myMajorAlleleCounts != null) {
+            return myMajorAlleleCounts[site];
+        }
+        return getAlleleCount(site, 0);
+    }
+
+    int getMinorAlleleCount(int site) {
+        if (myMinorAlleleCounts != null) {
+            return myMinorAlleleCounts[site];
+        }
+        return getAlleleCount(site, 1);
+    }
+
+    double getMajorAlleleFrequency(int site) {
+        if (myMajorAlleleFrequencies != null) {
+            return myMajorAlleleFrequencies[site];
+        }
+        return (getNumAlleles(site) >= 1) ? (double) getAlleleCount(site, 0) / (double) getTotalAlleleCount(site) : 0.0;
+    }
+
+    double getMinorAlleleFrequency(int site) {
+        if (myMinorAlleleFrequencies != null) {
+            return myMinorAlleleFrequencies[site];
+        }
+        return (getNumAlleles(site) >= 2) ? (double) getAlleleCount(site, 1) / (double) getTotalAlleleCount(site) : 0.0;
+    }
+
+    private int getTotalAlleleCount(int site) {
+        int result = 0;
+        for (int i = myAlleleOffsets[site], end = myAlleleOffsets[site + 1]; i < end; i++) {
+            result += myAlleleCounts[i];
+        }
+        return result;
+    }
+
+    /**
+     * Sorted alleles of a chunk of sites.
+     */
+    private static class SortedAlleles {
+
+        private final int[] myOffsets;
+        private byte[] myAlleles;
+        private int[] myCounts;
+        private int myNumAlleles = 0;
+
+        SortedAlleles(int numSites) {
+            myOffsets = new int[numSites + 1];
+            myAlleles = new byte[numSites * 4];
+            myCounts = new int[numSites * 4];
+        }
+    }
+
+    /**
+     * Computes the statistics of ranges of sites.  Can be used by several threads for different sites.
+     */
+    private class Calculator {
+
+        private final AbstractAlignment myAlignment;
+        private final int myNumTaxa;
+        private final boolean myDefaultSortedAlleles;
+        private final boolean myDefaultHeterozygousCount;
+        private final boolean myDefaultTotalNotMissing;
+        private final boolean myDefaultTotalGametesNotMissing;
+        private final boolean myDefaultBaseArray;
+        private final boolean myDefaultIsHeterozygous;
+
+        Calculator(AbstractAlignment alignment) {
+            myAlignment = alignment;
+            myNumTaxa = alignment.getSequenceCount();
+            myDefaultSortedAlleles = alignment.isDefaultSiteStatistic("getAllelesSortedByFrequency");
+            myDefaultHeterozygousCount = alignment.isDefaultSiteStatistic("getHeterozygousCount");
+            myDefaultTotalNotMissing = alignment.isDefaultSiteStatistic("getTotalNotMissing");
+            myDefaultTotalGametesNotMissing = alignment.isDefaultSiteStatistic("getTotalGametesNotMissing");
+            myDefaultBaseArray = isDeclaredByAbstractAlignment("getBaseArray");
+            myDefaultIsHeterozygous = isDeclaredByAbstractAlignment("isHeterozygous");
+        }
+
+        private boolean isDeclaredByAbstractAlignment(String methodName) {
+            try {
+                return myAlignment.getClass().getMethod(methodName, int.class, int.class).getDeclaringClass() == AbstractAlignment.class;
+            } catch (NoSuchMethodException e) {
+                return false;
+            }
+        }
+
+        SortedAlleles calculate(int startSite, int endSite) {
+            SortedAlleles result = new SortedAlleles(endSite - startSite);
+            int[] stateCnt = new int[16];
+            for (int site = startSite; site < endSite; site++) {
+                countSite(site, stateCnt);
+                int[][] sorted = myDefaultSortedAlleles ? sortAlleles(stateCnt) : myAlignment.getAllelesSortedByFrequency(site);
+                addAlleles(result, site - startSite, sorted);
+                if (myMajorAlleleCounts != null) {
+                    myMajorAlleleCounts[site] = myAlignment.getMajorAlleleCount(site);
+                }
+                if (myMinorAlleleCounts != null) {
+                    myMinorAlleleCounts[site] = myAlignment.getMinorAlleleCount(site);
+                }
+                if (myMajorAlleleFrequencies != null) {
+                    myMajorAlleleFrequencies[site] = myAlignment.getMajorAlleleFrequency(site);
+                }
+                if (myMinorAlleleFrequencies != null) {
+                    myMinorAlleleFrequencies[site] = myAlignment.getMinorAlleleFrequency(site);
+                }
+            }
+            result.myOffsets[endSite - startSite] = result.myNumAlleles;
+            return result;
+        }
+
+        /**
+         * Counts the alleles of site in stateCnt, and sets the heterozygous and not missing counts, reading each
+         * genotype once for the statistics the alignment takes from AbstractAlignment.
+         */
+        private void countSite(int site, int[] stateCnt) {
+            boolean count = myDefaultSortedAlleles || myDefaultHeterozygousCount || myDefaultTotalNotMissing || myDefaultTotalGametesNotMissing;
+            int heterozygous = 0;
+            int notMissing = 0;
+            int gametesNotMissing = 0;
+            if (count) {
+                Arrays.fill(stateCnt, 0);
+                for (int taxon = 0; taxon < myNumTaxa; taxon++) {
+                    byte base = myAlignment.getBase(taxon, site);
+                    byte first;
+                    byte second;
+                    if (myDefaultBaseArray) {
+                        first = (byte) ((base >>> 4) & 0xf);
+                        second = (byte) (base & 0xf);
+                    } else {
+                        byte[] dipB = myAlignment.getBaseArray(taxon, site);
+                        first = dipB[0];
+                        second = dipB[1];
+                    }
+                    if (first != Alignment.UNKNOWN_ALLELE) {
+                        stateCnt[first]++;
+                        gametesNotMissing++;
+                    }
+                    if (second != Alignment.UNKNOWN_ALLELE) {
+                        stateCnt[second]++;
+                        gametesNotMissing++;
+                    }
+                    if (base != Alignment.UNKNOWN_DIPLOID_ALLELE) {
+                        notMissing++;
+                    }
+                    if (myDefaultHeterozygousCount && (myDefaultIsHeterozygous ? (first != second) : myAlignment.isHeterozygous(taxon, site))) {
+                        heterozygous++;
+                    }
+                }
+            }
+            myHeterozygousCounts[site] = myDefaultHeterozygousCount ? heterozygous : myAlignment.getHeterozygousCount(site);
+            myTotalNotMissing[site] = myDefaultTotalNotMissing ? notMissing : myAlignment.getTotalNotMissing(site);
+            myTotalGametesNotMissing[site] = myDefaultTotalGametesNotMissing ? gametesNotMissing : myAlignment.getTotalGametesNotMissing(site);
+        }
+
+        private void addAlleles(SortedAlleles chunk, int index, int[][] sorted) {
+            int numAlleles = sorted[0].length;
+            chunk.myOffsets[index] = chunk.myNumAlleles;
+            if (chunk.myNumAlleles + numAlleles > chunk.myAlleles.length) {
+                int capacity = Math.max(2 * chunk.myAlleles.length, chunk.myNumAlleles + numAlleles);
+                chunk.myAlleles = Arrays.copyOf(chunk.myAlleles, capacity);
+                chunk.myCounts = Arrays.copyOf(chunk.myCounts, capacity);
+            }
+            for (int i = 0; i < numAlleles; i++) {
+                chunk.myAlleles[chunk.myNumAlleles] = (byte) sorted[0][i];
+                chunk.myCounts[chunk.myNumAlleles++] = sorted[1][i];
+            }
+        }
+    }
+
+    /**
+     * Returns the alleles with a count in stateCnt and their counts, sorted as
+     * AbstractAlignment.getAllelesSortedByFrequency() does: by decreasing count, ties by increasing allele.
+     */
+    private static int[][] sortAlleles(int[] stateCnt) {
+        int count = 0;
+        for (int j = 0; j < 16; j++) {
+            if (stateCnt[j] != 0) {
+                count++;
+            }
+        }
+        int[][] result = new int[2][count];
+        int index = 0;
+        for (int k = 0; k < 16; k++) {
+            if (stateCnt[k] != 0) {
+                result[0][index] = k;
+                result[1][index] = stateCnt[k];
+                index++;
+            }
+        }
+        // insertion sort, stable as the bubble sort of AbstractAlignment
+        for (int k = 1; k < count; k++) {
+            int allele = result[0][k];
+            int alleleCount = result[1][k];
+            int j = k - 1;
+            while ((j >= 0) && (result[1][j] < alleleCount)) {
+                result[0][j + 1] = result[0][j];
+                result[1][j + 1] = result[1][j];
+                j--;
+            }
+            result[0][j + 1] = allele;
+            result[1][j + 1] = alleleCount;
+        }
+        return result;
+    }
+}
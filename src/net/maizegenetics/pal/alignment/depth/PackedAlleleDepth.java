@@ -0,0 +1,335 @@
+/*
+ *  PackedAlleleDepth
+ */
+package net.maizegenetics.pal.alignment.depth;
+
+import java.util.Arrays;
+
+/**
+ * Mutable allele depths for a taxa by sites matrix that takes 2 bits per allele for the common depths instead of
+ * the 16 bits of a short[allele][taxon][site] array.
+ * <p>
+ * The depths of a taxon are stored site after site, with the alleles of a site next to each other, as 2 bit codes
+ * packed 32 to a long.  Codes 0, 1 and 2 are the default depth (given to the constructor: 0, or -1 for "not set"),
+ * the default + 1 and the default + 2.  Code 3 means that the depth is kept in an overflow hash table of the taxon,
+ * with the full short precision (any short value, so up to 32767).  With sequencing depths most cells are 0, 1 or 2,
+ * so a 5,000 taxa by 1M sites by 6 alleles matrix takes about 7.5 GB plus the deeper cells, against 60 GB as
+ * shorts.
+ * <p>
+ * Reads can be done by several threads.  Writes to different taxa can be done by different threads at the same
+ * time, but writes to the same taxon must be synchronized by the caller.
+ */
+public class PackedAlleleDepth implements AlleleDepth {
+
+    private static final int CODES_PER_LONG = 32;
+    private static final int ESCAPE = 3;
+    private final int myNumAlleles;
+    private int myNumSites;
+    private final short myDefaultDepth;
+    private final long[][] myCodes;  // [taxon][cell / 32], cell = site * numAlleles + allele
+    private final Overflow[] myOverflow;  // [taxon], null until the taxon has a depth that doesn't fit in a code
+
+    /**
+     * @param numAlleles number of alleles kept per site
+     * @param numTaxa number of taxa
+     * @param numSites number of sites
+     * @param defaultDepth depth of every allele until it is set
+     */
+    public PackedAlleleDepth(int numAlleles, int numTaxa, int numSites, short defaultDepth) {
+        if ((long) numAlleles * numSites > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("PackedAlleleDepth: too many sites: " + numSites + " with " + numAlleles + " alleles per site");
+        }
+        myNumAlleles = numAlleles;
+        myNumSites = numSites;
+        myDefaultDepth = defaultDepth;
+        int numLongs = (int) (((long) numAlleles * numSites + CODES_PER_LONG - 1) / CODES_PER_LONG);
+        myCodes = new long[numTaxa][numLongs];
+        myOverflow = new Overflow[numTaxa];
+    }
+
+    public int getNumAlleles() {
+        return myNumAlleles;
+    }
+
+    public int getNumSites() {
+        return myNumSites;
+    }
+
+    public int getNumTaxa() {
+        return myCodes.length;
+    }
+
+    public short getDepth(int taxon, int site, int allele) {
+        int cell = site * myNumAlleles + allele;
+        int code = (int) (myCodes[taxon][cell >>> 5] >>> ((cell & 31) << 1)) & 3;
+        if (code != ESCAPE) {
+            return (short) (myDefaultDepth + code);
+        }
+        return myOverflow[taxon].get(cell);
+    }
+
+    public void setDepth(int taxon, int site, int allele, short depth) {
+        int cell = site * myNumAlleles + allele;
+        int shift = (cell & 31) << 1;
+        long[] codes = myCodes[taxon];
+        int oldCode = (int) (codes[cell >>> 5] >>> shift) & 3;
+        int code = depth - myDefaultDepth;
+        if ((code < 0) || (code >= ESCAPE)) {
+            code = ESCAPE;
+            if (myOverflow[taxon] == null) {
+                myOverflow[taxon] = new Overflow();
+            }
+            myOverflow[taxon].put(cell, depth);
+        } else if (oldCode == ESCAPE) {
+            myOverflow[taxon].remove(cell);
+        }
+        codes[cell >>> 5] = (codes[cell >>> 5] & ~(3L << shift)) | ((long) code << shift);
+    }
+
+    /**
+     * Returns the depths of all the alleles kept for a taxon and site.
+     */
+    @Override
+    public short[] getDepthForAlleles(int taxon, int site) {
+        short[] result = new short[myNumAlleles];
+        for (int allele = 0; allele < myNumAlleles; allele++) {
+            result[allele] = getDepth(taxon, site, allele);
+        }
+        return result;
+    }
+
+    /**
+     * Sets the depths of the first values.length alleles of a taxon and site.
+     */
+    public void setDepthForAlleles(int taxon, int site, short[] values) {
+        for (int allele = 0; allele < values.length; allele++) {
+            setDepth(taxon, site, allele, values[allele]);
+        }
+    }
+
+    /**
+     * Returns the depths of a taxon at the first numSites sites, as short[allele][site].
+     */
+    public short[][] getDepthsForAllSites(int taxon, int numSites) {
+        short[][] result = new short[myNumAlleles][numSites];
+        long[] codes = myCodes[taxon];
+        Overflow overflow = myOverflow[taxon];
+        int cell = 0;
+        for (int site = 0; site < numSites; site++) {
+            for (int allele = 0; allele < myNumAlleles; allele++, cell++) {
+                int code = (int) (codes[cell >>> 5] >>> ((cell & 31) << 1)) & 3;
+                result[allele][site] = (code != ESCAPE) ? (short) (myDefaultDepth + code) : overflow.get(cell);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Copies the depths of all the sites of source to this, from site firstSite on.  Source must keep as many
+     * alleles, and no more taxa.  When firstSite * numAlleles is a multiple of 32 and both have the same default
+     * depth, the codes are copied a long at a time.
+     */
+    public void setDepthsForSites(int firstSite, PackedAlleleDepth source) {
+        if ((source.myNumAlleles != myNumAlleles) || (source.getNumTaxa() > getNumTaxa()) || (firstSite + source.myNumSites > myNumSites)) {
+            throw new IllegalArgumentException("PackedAlleleDepth: setDepthsForSites: " + source.getNumTaxa() + " taxa by " + source.myNumSites + " sites by "
+                    + source.myNumAlleles + " alleles don't fit at site " + firstSite + " of " + getNumTaxa() + " taxa by " + myNumSites + " sites by " + myNumAlleles + " alleles");
+        }
+        int firstCell = firstSite * myNumAlleles;
+        int numCells = source.myNumSites * myNumAlleles;
+        boolean byLong = ((firstCell & 31) == 0) && (source.myDefaultDepth == myDefaultDepth);
+        for (int taxon = 0, n = source.getNumTaxa(); taxon < n; taxon++) {
+            if (!byLong) {
+                for (int site = 0; site < source.myNumSites; site++) {
+                    for (int allele = 0; allele < myNumAlleles; allele++) {
+                        setDepth(taxon, firstSite + site, allele, source.getDepth(taxon, site, allele));
+                    }
+                }
+                continue;
+            }
+            long[] codes = myCodes[taxon];
+            int firstWord = firstCell >>> 5;
+            int numWords = (numCells + CODES_PER_LONG - 1) >>> 5;
+            if (myOverflow[taxon] != null) {  // drop the overflow depths of the cells that are replaced
+                for (int w = 0; w < numWords; w++) {
+                    long escapes = codes[firstWord + w] & (codes[firstWord + w] >>> 1) & 0x5555555555555555L;
+                    for (; escapes != 0; escapes &= escapes - 1) {
+                        int cell = (w << 5) + (Long.numberOfTrailingZeros(escapes) >>> 1);
+                        if (cell < numCells) {
+                            myOverflow[taxon].remove(firstCell + cell);
+                        }
+                    }
+                }
+            }
+            long[] sourceCodes = source.myCodes[taxon];
+            int fullWords = numCells >>> 5;
+            System.arraycopy(sourceCodes, 0, codes, firstWord, fullWords);
+            int rest = numCells & 31;
+            if (rest != 0) {
+                long mask = (1L << (2 * rest)) - 1;
+                codes[firstWord + fullWords] = (codes[firstWord + fullWords] & ~mask) | (sourceCodes[fullWords] & mask);
+            }
+            Overflow sourceOverflow = source.myOverflow[taxon];
+            if (sourceOverflow != null) {
+                if (myOverflow[taxon] == null) {
+                    myOverflow[taxon] = new Overflow();
+                }
+                for (int i = 0; i < sourceOverflow.myCells.length; i++) {
+                    if (sourceOverflow.myCells[i] != Overflow.EMPTY) {
+                        myOverflow[taxon].put(firstCell + sourceOverflow.myCells[i], sourceOverflow.myDepths[i]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Changes the number of sites, one taxon at a time.  Sites added have the default depth, and the depths of the
+     * sites dropped are forgotten.
+     */
+    public void setNumSites(int numSites) {
+        if ((long) myNumAlleles * numSites > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("PackedAlleleDepth: setNumSites: too many sites: " + numSites + " with " + myNumAlleles + " alleles per site");
+        }
+        int numCells = numSites * myNumAlleles;
+        int numLongs = (int) (((long) numCells + CODES_PER_LONG - 1) / CODES_PER_LONG);
+        for (int taxon = 0; taxon < myCodes.length; taxon++) {
+            if (numSites < myNumSites) {
+                Overflow overflow = myOverflow[taxon];
+                if (overflow != null) {
+                    for (int i = 0; i < overflow.myCells.length;) {
+                        if (overflow.myCells[i] >= numCells) {
+                            // remove() may move a later entry into slot i
+                            overflow.remove(overflow.myCells[i]);
+                        } else {
+                            i++;
+                        }
+                    }
+                }
+                // so that the cells after the last one read as the default depth if the sites grow again
+                int rest = numCells & 31;
+                if (rest != 0) {
+                    myCodes[taxon][numLongs - 1] &= (1L << (2 * rest)) - 1;
+                }
+            }
+            myCodes[taxon] = Arrays.copyOf(myCodes[taxon], numLongs);
+        }
+        myNumSites = numSites;
+    }
+
+    /**
+     * Exchanges the depths of two sites, in every taxon.
+     */
+    public void swapSites(int siteA, int siteB) {
+        for (int taxon = 0; taxon < myCodes.length; taxon++) {
+            for (int allele = 0; allele < myNumAlleles; allele++) {
+                short depthA = getDepth(taxon, siteA, allele);
+                setDepth(taxon, siteA, allele, getDepth(taxon, siteB, allele));
+                setDepth(taxon, siteB, allele, depthA);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes taken by the depths, not counting the object headers.
+     */
+    public long getBytesUsed() {
+        long result = 0;
+        for (int taxon = 0; taxon < myCodes.length; taxon++) {
+            result += 8L * myCodes[taxon].length;
+            if (myOverflow[taxon] != null) {
+                result += 6L * myOverflow[taxon].myCells.length;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Open addressing hash table (linear probing) from a cell to its depth, for the depths of a taxon that do not
+     * fit in a 2 bit code.
+     */
+    private static class Overflow {
+
+        private static final int EMPTY = -1;
+        private int[] myCells = newCells(16);
+        private short[] myDepths = new short[16];
+        private int mySize = 0;
+
+        short get(int cell) {
+            int mask = myCells.length - 1;
+            for (int i = hash(cell) & mask;; i = (i + 1) & mask) {
+                if (myCells[i] == cell) {
+                    return myDepths[i];
+                }
+                if (myCells[i] == EMPTY) {
+                    throw new IllegalStateException("PackedAlleleDepth: no overflow depth for cell " + cell);
+                }
+            }
+        }
+
+        void put(int cell, short depth) {
+            int mask = myCells.length - 1;
+            int i = hash(cell) & mask;
+            while ((myCells[i] != EMPTY) && (myCells[i] != cell)) {
+                i = (i + 1) & mask;
+            }
+            myDepths[i] = depth;
+            if (myCells[i] == EMPTY) {
+                myCells[i] = cell;
+                if (++mySize > myCells.length / 4 * 3) {
+                    rehash(2 * myCells.length);
+                }
+            }
+        }
+
+        void remove(int cell) {
+            int mask = myCells.length - 1;
+            int i = hash(cell) & mask;
+            while (myCells[i] != cell) {
+                if (myCells[i] == EMPTY) {
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            // shift back the following entries of the probe sequence, so that no lookup stops at the hole
+            for (int j = (i + 1) & mask; myCells[j] != EMPTY; j = (j + 1) & mask) {
+                int home = hash(myCells[j]) & mask;
+                if (((j - home) & mask) >= ((j - i) & mask)) {
+                    myCells[i] = myCells[j];
+                    myDepths[i] = myDepths[j];
+                    i = j;
+                }
+            }
+            myCells[i] = EMPTY;
+            mySize--;
+        }
+
+        private void rehash(int capacity) {
+            int[] oldCells = myCells;
+            short[] oldDepths = myDepths;
+            myCells = newCells(capacity);
+            myDepths = new short[capacity];
+            int mask = capacity - 1;
+            for (int k = 0; k < oldCells.length; k++) {
+                if (oldCells[k] != EMPTY) {
+                    int i = hash(oldCells[k]) & mask;
+                    while (myCells[i] != EMPTY) {
+                        i = (i + 1) & mask;
+                    }
+                    myCells[i] = oldCells[k];
+                    myDepths[i] = oldDepths[k];
+                }
+            }
+        }
+
+        private static int[] newCells(int capacity) {
+            int[] result = new int[capacity];
+            Arrays.fill(result, EMPTY);
+            return result;
+        }
+
+        private static int hash(int cell) {
+            int h = cell * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -24,6 +24,8 @@ import java.io.StringWriter;
  * - printing in in PHYLIP format,
  * - computation of (weighted) squared distance to other distance matrix
  * - Fills in all of array...
+ * - or keeps the distances in a DistanceStore, such as a packed upper triangle
+ *   of floats or a memory mapped file, instead of a double[][]
  *
  * @version $Id: DistanceMatrix.java,v 1.8 2009/07/07 16:19:37 tcasstevens Exp $
  *
@@ -39,13 +41,15 @@ public class DistanceMatrix implements IdGroupMatrix, TableReport {
     private IdGroup idGroup;
     /** distances [seq1][seq2] */
     private double[][] distance = null;
+    /** distances, if not in distance */
+    private transient DistanceStore store = null;
     static final long serialVersionUID = 4725925229860707633L;
 
     /** I like doing things my self! */
     private void writeObject(java.io.ObjectOutputStream out) throws java.io.IOException {
         out.writeByte(1); //Version number
         out.writeObject(idGroup);
-        out.writeObject(distance);
+        out.writeObject((distance != null) ? distance : getClonedDistances());
     }
 
     private void readObject(java.io.ObjectInputStream in) throws IOException, ClassNotFoundException {
@@ -69,12 +73,27 @@ public class DistanceMatrix implements IdGroupMatrix, TableReport {
         this.idGroup = idGroup;
     }
 
+    /**
+     * constructor taking a store of the distances and IdGroup.  The distances
+     * stay in the store, which is changed by setDistance() and addDistance().
+     */
+    public DistanceMatrix(DistanceStore store, IdGroup idGroup) {
+        super();
+        this.store = store;
+        this.idGroup = idGroup;
+    }
+
     /**
      * constructor that takes a distance matrix and clones the distances
-     * and IdGroup
+     * and IdGroup.  The distances of a matrix with a store are copied into
+     * a packed store on the heap, of the same precision.
      */
     public DistanceMatrix(DistanceMatrix dm) {
-        distance = net.maizegenetics.pal.util.Utils.getCopy(dm.distance);
+        if (dm.distance != null) {
+            distance = net.maizegenetics.pal.util.Utils.getCopy(dm.distance);
+        } else {
+            store = PackedDistanceStore.getInstance(dm, dm.store.isFloat());
+        }
         idGroup = SimpleIdGroup.getInstance(dm.idGroup);
     }
 
@@ -89,10 +108,10 @@ public class DistanceMatrix implements IdGroupMatrix, TableReport {
         distance = new double[subset.getIdCount()][subset.getIdCount()];
         for (int i = 0; i < distance.length; i++) {
             index1 = dm.whichIdNumber(subset.getIdentifier(i).getName());
-            distance[i][i] = dm.distance[index1][index1];
+            distance[i][i] = dm.getDistance(index1, index1);
             for (int j = 0; j < i; j++) {
                 index2 = dm.whichIdNumber(subset.getIdentifier(j).getName());
-                distance[i][j] = dm.distance[index1][index2];
+                distance[i][j] = dm.getDistance(index1, index2);
                 distance[j][i] = distance[i][j];
             }
         }
@@ -102,15 +121,16 @@ public class DistanceMatrix implements IdGroupMatrix, TableReport {
     /** print alignment (PHYLIP format) */
     public void printPHYLIP(PrintWriter out) {
         // PHYLIP header line
-        out.println("  " + distance.length);
+        int size = getSize();
+        out.println("  " + size);
         FormattedOutput format = FormattedOutput.getInstance();
 
-        for (int i = 0; i < distance.length; i++) {
+        for (int i = 0; i < size; i++) {
             format.displayLabel(out,
                     idGroup.getIdentifier(i).getName(), 10);
             out.print("      ");
 
-            for (int j = 0; j < distance.length; j++) {
+            for (int j = 0; j < size; j++) {
                 // Chunks of 6 blocks each
                 if (j % 6 == 0 && j != 0) {
                     out.println();
@@ -118,7 +138,7 @@ public class DistanceMatrix implements IdGroupMatrix, TableReport {
                 }
 
                 out.print("  ");
-                format.displayDecimal(out, distance[i][j], 5);
+                format.displayDecimal(out, getDistance(i, j), 5);
             }
             out.println();
         }
@@ -136,14 +156,16 @@ public class DistanceMatrix implements IdGroupMatrix, TableReport {
     /** compute squared distance to second distance matrix */
     public double squaredDistance(DistanceMatrix mat, boolean weighted) {
         double sum = 0;
-        for (int i = 0; i < distance.length - 1; i++) {
-            for (int j = i + 1; j < distance.length; j++) {
-                double diff = distance[i][j] - mat.distance[i][j];
+        int size = getSize();
+        for (int i = 0; i < size - 1; i++) {
+            for (int j = i + 1; j < size; j++) {
+                double dij = getDistance(i, j);
+                double diff = dij - mat.getDistance(i, j);
                 double weight;
                 if (weighted) {
                     // Fitch-Margoliash weight
                     // (variances proportional to distances)
-                    weight = 1.0 / (distance[i][j] * distance[i][j]);
+                    weight = 1.0 / (dij * dij);
                 } else {
                     // Cavalli-Sforza-Edwards weight
                     // (homogeneity of variances)
@@ -159,10 +181,11 @@ public class DistanceMatrix implements IdGroupMatrix, TableReport {
     /** compute absolute distance to second distance matrix */
     public double absoluteDistance(DistanceMatrix mat) {
         double sum = 0;
-        for (int i = 0; i < distance.length - 1; i++) {
-            for (int j = i + 1; j < distance.length; j++) {
+        int size = getSize();
+        for (int i = 0; i < size - 1; i++) {
+            for (int j = i + 1; j < size; j++) {
                 double diff =
-                        Math.abs(distance[i][j] - mat.distance[i][j]);
+                        Math.abs(getDistance(i, j) - mat.getDistance(i, j));
 
                 sum += diff;
             }
@@ -175,40 +198,73 @@ public class DistanceMatrix implements IdGroupMatrix, TableReport {
      * Returns the number of rows and columns that the distance matrix has.
      */
     public int getSize() {
-        return distance.length;
+        if (distance != null) {
+            return distance.length;
+        }
+        return store.getSize();
     }
 
     /**
      * Returns the distances as a 2-dimensional array of doubles. Matrix is cloned first so it can be altered freely.
      */
     public final double[][] getClonedDistances() {
-        return net.maizegenetics.pal.util.Utils.getCopy(distance);
+        if (distance != null) {
+            return net.maizegenetics.pal.util.Utils.getCopy(distance);
+        }
+        int size = store.getSize();
+        double[][] result = new double[size][size];
+        for (int i = 0; i < size; i++) {
+            for (int j = i; j < size; j++) {
+                result[i][j] = result[j][i] = store.getDistance(i, j);
+            }
+        }
+        return result;
     }
 
     /**
      * Returns the distances as a 2-dimensional array of doubles (in the actual array used to store the distances)
      */
     protected final double[][] getDistances() {
-        return net.maizegenetics.pal.util.Utils.getCopy(distance);
+        return getClonedDistances();
+    }
+
+    /**
+     * Returns the store of the distances, or null if they are kept in a
+     * double[][].
+     */
+    public final DistanceStore getDistanceStore() {
+        return store;
     }
 
     public final double getDistance(final int row, final int col) {
-        return distance[row][col];
+        if (distance != null) {
+            return distance[row][col];
+        }
+        return store.getDistance(row, col);
     }
 
     /**
      * Sets both upper and lower triangles.
      */
     public void setDistance(int i, int j, double dist) {
-        distance[i][j] = distance[j][i] = dist;
+        if (distance != null) {
+            distance[i][j] = distance[j][i] = dist;
+        } else {
+            store.setDistance(i, j, dist);
+        }
     }
 
     /**
      * Adds a delta to both upper and lower triangle distances.
      */
     public void addDistance(int i, int j, double delta) {
-        distance[i][j] += delta;
-        distance[j][i] += delta;
+        if (distance != null) {
+            distance[i][j] += delta;
+            distance[j][i] += delta;
+        } else {
+            // the diagonal gets delta twice, as in the array
+            store.setDistance(i, j, store.getDistance(i, j) + ((i == j) ? 2 * delta : delta));
+        }
     }
 
     /**
@@ -217,10 +273,12 @@ public class DistanceMatrix implements IdGroupMatrix, TableReport {
     public double meanDistance() {
         double dist = 0.0;
         int count = 0;
-        for (int i = 0; i < distance.length; i++) {
-            for (int j = 0; j < distance[i].length; j++) {
-                if ((i != j)&&(!Double.isNaN(distance[i][j]))) {
-                    dist += distance[i][j];
+        int size = getSize();
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
+                double dij = getDistance(i, j);
+                if ((i != j)&&(!Double.isNaN(dij))) {
+                    dist += dij;
                     count += 1;
                 }
             }
@@ -262,11 +320,16 @@ public class DistanceMatrix implements IdGroupMatrix, TableReport {
      *
      */
     public boolean isSymmetric() {
-        for (int i = 0; i < distance.length; i++) {
-            if (distance[i][i] != 0) {
+        int size = getSize();
+        for (int i = 0; i < size; i++) {
+            if (getDistance(i, i) != 0) {
                 return false;
             }
         }
+        if (distance == null) {
+            // a store is symmetric by construction
+            return true;
+        }
         for (int i = 0; i < distance.length - 1; i++) {
             for (int j = i + 1; j < distance.length; j++) {
                 if (distance[i][j] != distance[j][i]) {
@@ -320,9 +383,10 @@ public class DistanceMatrix implements IdGroupMatrix, TableReport {
     public int getClosestIndex(int fromIndex, int[] exclusion) {
         double min = Double.POSITIVE_INFINITY;
         int index = -1;
-        for (int i = 0; i < distance.length; i++) {
+        int size = getSize();
+        for (int i = 0; i < size; i++) {
             if (i != fromIndex && !isIn(i, exclusion)) {
-                double d = distance[fromIndex][i];
+                double d = getDistance(fromIndex, i);
                 if (d < min) {
                     min = d;
                     index = i;
@@ -338,12 +402,13 @@ public class DistanceMatrix implements IdGroupMatrix, TableReport {
 
     protected final void setDistances(double[][] matrix) {
         this.distance = matrix;
+        this.store = null;
     }
 
     public Object[] getTableColumnNames() {
         String[] colNames = new String[getSize() + 1];
         colNames[0] = "Taxa";
-        for (int i = 0; i < distance[0].length; i++) {
+        for (int i = 0; i < getSize(); i++) {
             colNames[i + 1] = getIdentifier(i).toString();
         }
         return colNames;
@@ -358,10 +423,16 @@ public class DistanceMatrix implements IdGroupMatrix, TableReport {
      */
     public Object[] getRow(int row) {
 
-        Object[] result = new Object[distance[row].length + 1];
+        int size = getSize();
+        Object[] result = new Object[size + 1];
         result[0] = getIdentifier(row);
-        for (int j = 1; j <= distance[row].length; j++) {
-            result[j] = "" + distance[row][j - 1];
+        boolean isFloat = (store != null) && store.isFloat();
+        for (int j = 1; j <= size; j++) {
+            if (isFloat) {
+                result[j] = "" + (float) getDistance(row, j - 1);
+            } else {
+                result[j] = "" + getDistance(row, j - 1);
+            }
         }
 
         return result;
@@ -375,6 +446,8 @@ public class DistanceMatrix implements IdGroupMatrix, TableReport {
     public int getRowCount() {
         if (distance != null) {
             return distance.length;
+        } else if (store != null) {
+            return store.getSize();
         } else {
             return 0;
         }
@@ -387,6 +460,8 @@ public class DistanceMatrix implements IdGroupMatrix, TableReport {
     public int getColumnCount() {
         if ((distance != null) && distance[0] != null) {
             return distance[0].length + 1;
+        } else if (store != null) {
+            return store.getSize() + 1;
         } else {
             return 0;
         }
@@ -407,7 +482,7 @@ public class DistanceMatrix implements IdGroupMatrix, TableReport {
 	@Override
 	public Object getValueAt(int rowIndex, int columnIndex) {
 		if (columnIndex == 0) return getIdentifier(rowIndex);
-		return new Double(distance[rowIndex][columnIndex - 1]);
+		return new Double(getDistance(rowIndex, columnIndex - 1));
 	}
 
     public String getColumnName(int col) {
@@ -0,0 +1,25 @@
+/*
+ * DistanceStore
+ */
+package net.maizegenetics.pal.distance;
+
+/**
+ * Backing store of the distances of a symmetric DistanceMatrix, as an alternative to a full double[n][n].
+ * Setting the distance (i, j) also sets (j, i).
+ */
+public interface DistanceStore {
+
+    /**
+     * Returns the number of rows and columns of the matrix.
+     */
+    int getSize();
+
+    double getDistance(int row, int col);
+
+    void setDistance(int row, int col, double dist);
+
+    /**
+     * Returns whether the distances are kept as floats, and so should be written as floats.
+     */
+    boolean isFloat();
+}
@@ -0,0 +1,299 @@
+/*
+ * IBSDistanceEngine
+ */
+package net.maizegenetics.pal.distance;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.maizegenetics.pal.alignment.Alignment;
+import net.maizegenetics.pal.alignment.AlignmentUtils;
+import net.maizegenetics.util.ProgressListener;
+
+/**
+ * Computes the IBS distances of all pairs of taxa for IBSDistanceMatrix and Kinship.  The major and minor allele
+ * words of every taxon are taken from the TBit alignment once.  The matrix is split in tiles of TAXA_PER_TILE by
+ * TAXA_PER_TILE taxa, computed by a pool of threads.  Within a tile the words are read in chunks of WORDS_PER_CHUNK,
+ * so that the words of the taxa of the tile stay in cache, and the same, different and heterozygous counts of the
+ * pairs are accumulated in int arrays.
+ * <p>
+ * The distances are those of IBSDistanceMatrix.computeHetBitDistances().  For Kinship, the conversion to similarity
+ * and the statistics are done as each tile is finished, leaving one pass to rescale.
+ */
+class IBSDistanceEngine {
+
+    private static final int TAXA_PER_TILE = 32;
+    private static final int WORDS_PER_CHUNK = 512;
+    private final long[][] myMajor;
+    private final long[][] myMinor;
+    private final int myNumTaxa;
+    private final int myNumWords;
+    private final int myMinSitesComp;
+    private final boolean myIsTrueIBS;
+    private long mySumSites;
+    private long myNumSitesCounted;
+
+    /**
+     * @param alignment alignment, which is optimized for taxa if needed
+     * @param minSitesComp minimum number of sites needed to estimate distance
+     * @param trueIBS estimate diagonal distance based IBS (otherwise i=i=0.0)
+     * @param listener listener of the optimization for taxa
+     */
+    IBSDistanceEngine(Alignment alignment, int minSitesComp, boolean trueIBS, ProgressListener listener) {
+        Alignment tba = AlignmentUtils.optimizeForTaxa(alignment, listener);
+        myNumTaxa = tba.getSequenceCount();
+        myMajor = new long[myNumTaxa][];
+        myMinor = new long[myNumTaxa][];
+        int numWords = Integer.MAX_VALUE;
+        for (int t = 0; t < myNumTaxa; t++) {
+            myMajor[t] = tba.getAllelePresenceForAllSites(t, 0).getBits();
+            myMinor[t] = tba.getAllelePresenceForAllSites(t, 1).getBits();
+            numWords = Math.min(numWords, Math.min(myMajor[t].length, myMinor[t].length));
+        }
+        myNumWords = (myNumTaxa == 0) ? 0 : numWords;
+        myMinSitesComp = minSitesComp;
+        myIsTrueIBS = trueIBS;
+    }
+
+    /**
+     * Returns the IBS distance matrix.
+     */
+    double[][] getDistances(int numThreads, ProgressListener listener) {
+        final double[][] distance = new double[myNumTaxa][myNumTaxa];
+        TileHandler handler = new TileHandler() {
+            @Override
+            public void pair(int i, int j, double dist) {
+                distance[i][j] = distance[j][i] = dist;
+            }
+        };
+        computeTiles(numThreads, listener, Arrays.asList(handler));
+        return distance;
+    }
+
+    /**
+     * Returns the kinship matrix, computed as Kinship.toSimilarity(), getKStatistics() and rescale() would from the
+     * IBS distances.
+     *
+     * @param cutOff value the distances are subtracted from, and maximum of the rescaled kinship
+     * @param stats receives the {minimum, maximum, average, standard deviation} of the off diagonal similarities
+     */
+    double[][] getKinship(final double cutOff, int numThreads, ProgressListener listener, double[] stats) {
+        final double[][] kinship = new double[myNumTaxa][myNumTaxa];
+        List<KinshipHandler> handlers = new ArrayList<KinshipHandler>();
+        for (int i = 0, n = Math.max(1, numThreads); i < n; i++) {
+            handlers.add(new KinshipHandler(kinship, cutOff));
+        }
+        computeTiles(numThreads, listener, handlers);
+        double total = 0, totalsq = 0;
+        double kMin = 99999, kMax = -99999;
+        for (KinshipHandler handler : handlers) {
+            total += handler.total;
+            totalsq += handler.totalsq;
+            if (handler.kMin < kMin) {
+                kMin = handler.kMin;
+            }
+            if (handler.kMax > kMax) {
+                kMax = handler.kMax;
+            }
+        }
+        double nk = (double) myNumTaxa * (myNumTaxa - 1) / 2;
+        double kAvg = total / nk;
+        stats[0] = kMin;
+        stats[1] = kMax;
+        stats[2] = kAvg;
+        stats[3] = Math.sqrt((totalsq - nk * kAvg * kAvg) / (nk - 1));
+
+        final double min = kMin;
+        final AtomicInteger nextRow = new AtomicInteger(0);
+        runWorkers(numThreads, new Runnable() {
+            @Override
+            public void run() {
+                for (int i = nextRow.getAndIncrement(); i < myNumTaxa; i = nextRow.getAndIncrement()) {
+                    double[] row = kinship[i];
+                    for (int j = i; j < myNumTaxa; j++) {
+                        row[j] = kinship[j][i] = (row[j] - min) * cutOff / (cutOff - min);
+                    }
+                }
+            }
+        });
+        return kinship;
+    }
+
+    /**
+     * Average number of sites used in the last distances computed.
+     */
+    double getAverageTotalSites() {
+        return mySumSites / (double) myNumSitesCounted;
+    }
+
+    /**
+     * Receives the distances of the pairs of taxa (i <= j).
+     */
+    private interface TileHandler {
+
+        void pair(int i, int j, double dist);
+    }
+
+    /**
+     * Stores the similarities and accumulates their statistics, as Kinship.getKStatistics().
+     */
+    private static class KinshipHandler implements TileHandler {
+
+        private final double[][] myKinship;
+        private final double myCutOff;
+        double total = 0, totalsq = 0;
+        double kMin = 99999, kMax = -99999;
+
+        KinshipHandler(double[][] kinship, double cutOff) {
+            myKinship = kinship;
+            myCutOff = cutOff;
+        }
+
+        @Override
+        public void pair(int i, int j, double dist) {
+            double s = myCutOff - dist;
+            myKinship[i][j] = myKinship[j][i] = s;
+            if (i != j) {
+                total += s;
+                totalsq += s * s;
+                if (s < kMin) {
+                    kMin = s;
+                }
+                if (s > kMax) {
+                    kMax = s;
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes all tiles with numThreads threads.  Thread k hands its pairs to handlers[k % number of handlers], so
+     * handlers that aren't thread safe must be given once per thread.
+     */
+    private void computeTiles(int numThreads, final ProgressListener listener, final List<? extends TileHandler> handlers) {
+        int numBlocks = (myNumTaxa + TAXA_PER_TILE - 1) / TAXA_PER_TILE;
+        final List<int[]> tiles = new ArrayList<int[]>();
+        for (int bi = 0; bi < numBlocks; bi++) {
+            for (int bj = bi; bj < numBlocks; bj++) {
+                tiles.add(new int[]{bi * TAXA_PER_TILE, bj * TAXA_PER_TILE});
+            }
+        }
+        final long[] sumSites = new long[1];
+        final long[] numSitesCounted = new long[1];
+        final AtomicInteger nextWorker = new AtomicInteger(0);
+        final AtomicInteger nextTile = new AtomicInteger(0);
+        final AtomicInteger numFinished = new AtomicInteger(0);
+        runWorkers(numThreads, new Runnable() {
+            @Override
+            public void run() {
+                TileHandler current = handlers.get(nextWorker.getAndIncrement() % handlers.size());
+                int[] counts = new int[3 * TAXA_PER_TILE * TAXA_PER_TILE];
+                long sites = 0;
+                long count = 0;
+                for (int t = nextTile.getAndIncrement(); t < tiles.size(); t = nextTile.getAndIncrement()) {
+                    int[] tile = tiles.get(t);
+                    long[] result = computeTile(tile[0], tile[1], counts, current);
+                    sites += result[0];
+                    count += result[1];
+                    int finished = numFinished.incrementAndGet();
+                    if (listener != null) {
+                        listener.progress((int) (((double) finished / (double) tiles.size()) * 100.0), null);
+                    }
+                }
+                synchronized (sumSites) {
+                    sumSites[0] += sites;
+                    numSitesCounted[0] += count;
+                }
+            }
+        });
+        mySumSites = sumSites[0];
+        myNumSitesCounted = numSitesCounted[0];
+    }
+
+    /**
+     * Computes the pairs of taxa iStart to iStart + TAXA_PER_TILE - 1 and jStart to jStart + TAXA_PER_TILE - 1,
+     * with i <= j.
+     *
+     * @return {sum of the number of sites compared, number of pairs compared}
+     */
+    private long[] computeTile(int iStart, int jStart, int[] counts, TileHandler handler) {
+        int iEnd = Math.min(myNumTaxa, iStart + TAXA_PER_TILE);
+        int jEnd = Math.min(myNumTaxa, jStart + TAXA_PER_TILE);
+        Arrays.fill(counts, 0);
+        for (int w0 = 0; w0 < myNumWords; w0 += WORDS_PER_CHUNK) {
+            int w1 = Math.min(myNumWords, w0 + WORDS_PER_CHUNK);
+            for (int i = iStart; i < iEnd; i++) {
+                long[] iMj = myMajor[i];
+                long[] iMn = myMinor[i];
+                for (int j = Math.max(i, jStart); j < jEnd; j++) {
+                    long[] jMj = myMajor[j];
+                    long[] jMn = myMinor[j];
+                    int sameCnt = 0, diffCnt = 0, hetCnt = 0;
+                    for (int x = w0; x < w1; x++) {
+                        long same = (iMj[x] & jMj[x]) | (iMn[x] & jMn[x]);
+                        long diff = (iMj[x] & jMn[x]) | (iMn[x] & jMj[x]);
+                        sameCnt += Long.bitCount(same);
+                        diffCnt += Long.bitCount(diff);
+                        hetCnt += Long.bitCount(same & diff);
+                    }
+                    int index = 3 * ((i - iStart) * TAXA_PER_TILE + (j - jStart));
+                    counts[index] += sameCnt;
+                    counts[index + 1] += diffCnt;
+                    counts[index + 2] += hetCnt;
+                }
+            }
+        }
+        long sumSites = 0, numPairs = 0;
+        for (int i = iStart; i < iEnd; i++) {
+            for (int j = Math.max(i, jStart); j < jEnd; j++) {
+                if ((i == j) && !myIsTrueIBS) {
+                    handler.pair(i, i, 0);
+                    continue;
+                }
+                int index = 3 * ((i - iStart) * TAXA_PER_TILE + (j - jStart));
+                int sameCnt = counts[index], diffCnt = counts[index + 1], hetCnt = counts[index + 2];
+                int sites = sameCnt + diffCnt - hetCnt;
+                double identity = ((double) (sameCnt) - 0.5 * hetCnt) / (double) (sites);
+                handler.pair(i, j, (sites > myMinSitesComp) ? 1 - identity : Double.NaN);
+                sumSites += sites;
+                numPairs++;
+            }
+        }
+        return new long[]{sumSites, numPairs};
+    }
+
+    private static void runWorkers(int numThreads, Runnable worker) {
+        if (numThreads <= 1) {
+            worker.run();
+            return;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i = 0; i < numThreads; i++) {
+                futures.add(pool.submit(worker));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
+                    }
+                    throw new IllegalStateException("IBSDistanceEngine: " + e.getCause(), e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("IBSDistanceEngine: interrupted");
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
@@ -40,8 +40,6 @@ import net.maizegenetics.util.ProgressListener;
 public class IBSDistanceMatrix extends DistanceMatrix {
 
     private ProgressListener myListener = null;
-    private int numSeqs;
-    private Alignment theTBA = null;
     /**
      * Holds the average numbers of sites in the comparisons
      */
@@ -88,43 +86,36 @@ public class IBSDistanceMatrix extends DistanceMatrix {
      * @param listener Listener to track progress in calculations
      */
     public IBSDistanceMatrix(Alignment theAlignment, int minSiteComp, boolean trueIBS, ProgressListener listener) {
+        this(theAlignment, minSiteComp, trueIBS, listener, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Compute observed distances for all taxa. Missing sites are ignored.
+     * 
+     * @param theAlignment Alignment used to computed distances
+     * @param minSiteComp Minimum number of sites needed to estimate distance
+     * @param trueIBS estimate diagonal distance based IBS (default = false, i=i=0.0)
+     * @param listener Listener to track progress in calculations
+     * @param numThreads number of threads used to compute the distances
+     */
+    public IBSDistanceMatrix(Alignment theAlignment, int minSiteComp, boolean trueIBS, ProgressListener listener, int numThreads) {
         super();
         this.minSitesComp = minSiteComp;
         isTrueIBS = trueIBS;
         myListener = listener;
-        numSeqs = theAlignment.getSequenceCount();
-        theTBA = AlignmentUtils.optimizeForTaxa(theAlignment, listener);
         //  this should have an option to only use the 2 or 3 most common alleles
         setIdGroup(theAlignment.getIdGroup());
-        computeHetBitDistances();
+        computeHetBitDistances(theAlignment, numThreads);
     }
 
     /**
-     * This is a cleanest, fastest and most accurate way to calculate distance.
+     * This is a cleanest, fastest and most accurate way to calculate distance.  The pairs of taxa are computed in
+     * tiles by IBSDistanceEngine.
      */
-    private void computeHetBitDistances() {
-        avgTotalSites = 0;
-        int count = 0;
-        double[][] distance = new double[numSeqs][numSeqs];
-        for (int i = 0; i < numSeqs; i++) {
-            long[] iMj = theTBA.getAllelePresenceForAllSites(i, 0).getBits();
-            long[] iMn = theTBA.getAllelePresenceForAllSites(i, 1).getBits();
-            for (int j = i; j < numSeqs; j++) {
-                if (j == i && !isTrueIBS) {
-                    distance[i][i] = 0;
-                } else {
-                    long[] jMj = theTBA.getAllelePresenceForAllSites(j, 0).getBits();
-                    long[] jMn = theTBA.getAllelePresenceForAllSites(j, 1).getBits();
-                    double[] result=computeHetBitDistances(iMj, iMn, jMj, jMn, minSitesComp);
-                    distance[i][j] = distance[j][i] = result[0];
-                    avgTotalSites += result[1];  //this assumes not hets
-                    count++;
-                }
-            }
-            fireProgress((int) (((double) (i + 1) / (double) numSeqs) * 100.0));
-        }
-        setDistances(distance);
-        avgTotalSites /= (double) count;
+    private void computeHetBitDistances(Alignment theAlignment, int numThreads) {
+        IBSDistanceEngine engine = new IBSDistanceEngine(theAlignment, minSitesComp, isTrueIBS, myListener);
+        setDistances(engine.getDistances(numThreads, myListener));
+        avgTotalSites = engine.getAverageTotalSites();
     }
 
     /**
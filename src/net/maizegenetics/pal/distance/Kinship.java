@@ -50,14 +50,26 @@ public class Kinship extends DistanceMatrix {
     }
 
     public void buildFromMarker() {
+        buildFromMarker(Runtime.getRuntime().availableProcessors());
+    }
 
-    	IBSDistanceMatrix adm = new IBSDistanceMatrix(mar, 0, true, null);
-    	dm = new DistanceMatrix(adm.getDistances(), mar.getIdGroup());
-    	toSimilarity();
-    	getKStatistics();
+    /**
+     * Builds the kinship from the IBS of the markers.  The distances, toSimilarity() and getKStatistics() are
+     * computed in one multi-threaded pass by IBSDistanceEngine, followed by rescale().
+     */
+    public void buildFromMarker(int numThreads) {
+
+    	IBSDistanceEngine engine = new IBSDistanceEngine(mar, 0, true, null);
+    	double[] stats = new double[4];
+    	dm = new DistanceMatrix(engine.getKinship(cutOff, numThreads, null, stats), mar.getIdGroup());
+    	kMin = stats[0];
+    	kMax = stats[1];
+    	kAvg = stats[2];
+    	kSD = stats[3];
+    	System.out.println(kAvg);
 //    	pullBackExtrem();
     	//cutOff();
-    	rescale();
+    	System.out.println("K rescaled");
     	System.out.println("Kinship was built from markers");
     }
 
@@ -0,0 +1,127 @@
+/*
+ * MappedDistanceStore
+ */
+package net.maizegenetics.pal.distance;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Distances of a symmetric matrix held in a file mapped into memory, for matrices larger than the heap.  The file
+ * holds the upper triangle, diagonal included, packed by rows as floats or doubles in the native byte order, and is
+ * mapped in segments of 1 GB, since one MappedByteBuffer can't exceed 2 GB.  The operating system pages the
+ * distances in and out as they are used, so the rows of the upper triangle are best visited in order.
+ * <p>
+ * The file is a working file rather than an exchange format: if it already has the length of the matrix, its
+ * distances are kept, so a matrix can be reopened on the same machine.
+ */
+public class MappedDistanceStore implements DistanceStore {
+
+    private static final int SEGMENT_SHIFT = 30;
+    private final int mySize;
+    private final boolean myIsFloat;
+    private final int myElementShift;
+    private final long myElementMask;
+    private final MappedByteBuffer[] mySegments;
+    private final FloatBuffer[] myFloats;
+    private final DoubleBuffer[] myDoubles;
+
+    /**
+     * @param file file holding the distances, created or resized if needed
+     * @param size number of rows and columns
+     * @param useFloat whether to keep the distances as floats rather than doubles
+     */
+    public MappedDistanceStore(File file, int size, boolean useFloat) throws IOException {
+        mySize = size;
+        myIsFloat = useFloat;
+        int bytesPerElement = useFloat ? 4 : 8;
+        myElementShift = SEGMENT_SHIFT - (useFloat ? 2 : 3);
+        myElementMask = (1L << myElementShift) - 1;
+        long length = PackedDistanceStore.getNumberOfElements(size) * bytesPerElement;
+        int numSegments = (int) ((length + (1L << SEGMENT_SHIFT) - 1) >>> SEGMENT_SHIFT);
+        mySegments = new MappedByteBuffer[numSegments];
+        myFloats = useFloat ? new FloatBuffer[numSegments] : null;
+        myDoubles = useFloat ? null : new DoubleBuffer[numSegments];
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() != length) {
+                raf.setLength(length);
+            }
+            FileChannel channel = raf.getChannel();
+            for (int s = 0; s < numSegments; s++) {
+                long start = (long) s << SEGMENT_SHIFT;
+                long segmentLength = Math.min(1L << SEGMENT_SHIFT, length - start);
+                mySegments[s] = channel.map(FileChannel.MapMode.READ_WRITE, start, segmentLength);
+                mySegments[s].order(ByteOrder.nativeOrder());
+                if (useFloat) {
+                    myFloats[s] = mySegments[s].asFloatBuffer();
+                } else {
+                    myDoubles[s] = mySegments[s].asDoubleBuffer();
+                }
+            }
+        } finally {
+            // the mappings stay valid after the file is closed
+            raf.close();
+        }
+    }
+
+    /**
+     * Returns a store in file with the distances of the upper triangle of matrix.
+     */
+    public static MappedDistanceStore getInstance(IdGroupMatrix matrix, File file, boolean useFloat) throws IOException {
+        int size = matrix.getSize();
+        MappedDistanceStore result = new MappedDistanceStore(file, size, useFloat);
+        for (int i = 0; i < size; i++) {
+            for (int j = i; j < size; j++) {
+                result.setDistance(i, j, matrix.getDistance(i, j));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public boolean isFloat() {
+        return myIsFloat;
+    }
+
+    @Override
+    public int getSize() {
+        return mySize;
+    }
+
+    @Override
+    public double getDistance(int row, int col) {
+        long index = PackedDistanceStore.index(mySize, row, col);
+        int segment = (int) (index >>> myElementShift);
+        int position = (int) (index & myElementMask);
+        return myIsFloat ? myFloats[segment].get(position) : myDoubles[segment].get(position);
+    }
+
+    @Override
+    public void setDistance(int row, int col, double dist) {
+        long index = PackedDistanceStore.index(mySize, row, col);
+        int segment = (int) (index >>> myElementShift);
+        int position = (int) (index & myElementMask);
+        if (myIsFloat) {
+            myFloats[segment].put(position, (float) dist);
+        } else {
+            myDoubles[segment].put(position, dist);
+        }
+    }
+
+    /**
+     * Writes the distances changed so far to the file.
+     */
+    public void flush() {
+        for (MappedByteBuffer segment : mySegments) {
+            segment.force();
+        }
+    }
+}
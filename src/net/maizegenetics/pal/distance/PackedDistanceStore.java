@@ -0,0 +1,94 @@
+/*
+ * PackedDistanceStore
+ */
+package net.maizegenetics.pal.distance;
+
+/**
+ * Distances of a symmetric matrix held on the heap as the upper triangle, diagonal included, packed by rows in one
+ * float or double array.  In double this takes half the memory of a double[n][n], in float a quarter, with the
+ * distances rounded to float.  The largest size is 65535.
+ */
+public class PackedDistanceStore implements DistanceStore {
+
+    private final int mySize;
+    private final double[] myDoubles;
+    private final float[] myFloats;
+
+    /**
+     * @param size number of rows and columns
+     * @param useFloat whether to keep the distances as floats rather than doubles
+     */
+    public PackedDistanceStore(int size, boolean useFloat) {
+        long numElements = getNumberOfElements(size);
+        if (numElements > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("PackedDistanceStore: init: too many rows for one array: " + size);
+        }
+        mySize = size;
+        if (useFloat) {
+            myFloats = new float[(int) numElements];
+            myDoubles = null;
+        } else {
+            myDoubles = new double[(int) numElements];
+            myFloats = null;
+        }
+    }
+
+    /**
+     * Returns a store with the distances of the upper triangle of matrix.
+     */
+    public static PackedDistanceStore getInstance(IdGroupMatrix matrix, boolean useFloat) {
+        int size = matrix.getSize();
+        PackedDistanceStore result = new PackedDistanceStore(size, useFloat);
+        for (int i = 0; i < size; i++) {
+            for (int j = i; j < size; j++) {
+                result.setDistance(i, j, matrix.getDistance(i, j));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of distances in the upper triangle of a matrix, diagonal included.
+     */
+    public static long getNumberOfElements(int size) {
+        return (long) size * (size + 1) / 2;
+    }
+
+    /**
+     * Returns the position of (row, col) in the upper triangle packed by rows.
+     */
+    static long index(int size, int row, int col) {
+        if (row > col) {
+            int temp = row;
+            row = col;
+            col = temp;
+        }
+        return (long) row * size - (long) row * (row - 1) / 2 + (col - row);
+    }
+
+    @Override
+    public boolean isFloat() {
+        return myFloats != null;
+    }
+
+    @Override
+    public int getSize() {
+        return mySize;
+    }
+
+    @Override
+    public double getDistance(int row, int col) {
+        int index = (int) index(mySize, row, col);
+        return (myFloats != null) ? myFloats[index] : myDoubles[index];
+    }
+
+    @Override
+    public void setDistance(int row, int col, double dist) {
+        int index = (int) index(mySize, row, col);
+        if (myFloats != null) {
+            myFloats[index] = (float) dist;
+        } else {
+            myDoubles[index] = dist;
+        }
+    }
+}
@@ -11,13 +11,21 @@ import net.maizegenetics.pal.ids.Identifier;
 import net.maizegenetics.pal.ids.SimpleIdGroup;
 import net.maizegenetics.pal.io.FormattedInput;
 import net.maizegenetics.pal.io.InputSource;
+import net.maizegenetics.util.Utils;
 
+import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.PushbackReader;
 
 /**
  * reads pairwise distance matrices in PHYLIP format
- *  (full matrix)
+ *  (full matrix), which includes the TASSEL kinship format
+ *  written by WriteDistanceMatrix.saveDelimitedDistanceMatrix().
+ *
+ * The matrix can be read into a double[][], or streamed into a
+ * DistanceStore, keeping only the upper triangle, packed on the heap
+ * or in a memory mapped file.
  *
  * @version $Id: ReadDistanceMatrix.java,v 1.4 2009/07/02 20:26:13 pjbradbury Exp $
  *
@@ -47,6 +55,101 @@ public class ReadDistanceMatrix {
         }
     }
 
+    /**
+     * read from file into a packed upper triangle on the heap
+     *
+     * @param file file name, gzipped if it ends with .gz
+     * @param useFloat whether to keep the distances as floats
+     */
+    public static DistanceMatrix readDistanceMatrix(String file, boolean useFloat)
+            throws DistanceParseException, IOException {
+        return readDistanceMatrix(file, useFloat, null);
+    }
+
+    /**
+     * read from file into a packed upper triangle, on the heap or in a
+     * memory mapped file.  The distances below the diagonal are skipped.
+     *
+     * @param file file name, gzipped if it ends with .gz
+     * @param useFloat whether to keep the distances as floats
+     * @param mappedFile file holding the distances, or null to keep them
+     *     on the heap
+     */
+    public static DistanceMatrix readDistanceMatrix(String file, boolean useFloat, File mappedFile)
+            throws DistanceParseException, IOException {
+        BufferedReader reader = Utils.getBufferedReader(file, 1 << 16);
+        if (reader == null) {
+            throw new IOException("ReadDistanceMatrix: readDistanceMatrix: can't open: " + file);
+        }
+        try {
+            WordReader in = new WordReader(reader);
+            int numSeqs = Integer.parseInt(in.next());
+            DistanceStore store;
+            if (mappedFile == null) {
+                store = new PackedDistanceStore(numSeqs, useFloat);
+            } else {
+                store = new MappedDistanceStore(mappedFile, numSeqs, useFloat);
+            }
+            Identifier[] ids = new Identifier[numSeqs];
+            for (int i = 0; i < numSeqs; i++) {
+                ids[i] = new Identifier(in.next());
+                for (int j = 0; j < i; j++) {
+                    in.skip();
+                }
+                for (int j = i; j < numSeqs; j++) {
+                    store.setDistance(i, j, Double.parseDouble(in.next()));
+                }
+            }
+            return new DistanceMatrix(store, new SimpleIdGroup(ids));
+        } catch (NumberFormatException e) {
+            throw new DistanceParseException("Number format error");
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * words separated by white space, read one character at a time from a
+     * buffered reader, whatever lines they are on
+     */
+    private static class WordReader {
+
+        private final BufferedReader myReader;
+        private final StringBuilder myBuilder = new StringBuilder();
+
+        WordReader(BufferedReader reader) {
+            myReader = reader;
+        }
+
+        String next() throws IOException, DistanceParseException {
+            int c = skipWhiteSpace();
+            myBuilder.setLength(0);
+            while ((c != -1) && !Character.isWhitespace(c)) {
+                myBuilder.append((char) c);
+                c = myReader.read();
+            }
+            return myBuilder.toString();
+        }
+
+        void skip() throws IOException, DistanceParseException {
+            int c = skipWhiteSpace();
+            while ((c != -1) && !Character.isWhitespace(c)) {
+                c = myReader.read();
+            }
+        }
+
+        private int skipWhiteSpace() throws IOException, DistanceParseException {
+            int c = myReader.read();
+            while ((c != -1) && Character.isWhitespace(c)) {
+                c = myReader.read();
+            }
+            if (c == -1) {
+                throw new DistanceParseException("Unexpected end of file");
+            }
+            return c;
+        }
+    }
+
     // Read square matrix
     private static DistanceMatrix readSquare(PushbackReader in)
             throws DistanceParseException {
@@ -3,9 +3,14 @@ package net.maizegenetics.pal.distance;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
+import java.io.PrintWriter;
 
 
 /**
+ * Writes distance matrices a row at a time, reading the distances through
+ * getDistance(), so that a matrix held in a DistanceStore is never copied
+ * into a double[][].
+ *
  * @author Terry
  */
 public class WriteDistanceMatrix {
@@ -27,18 +32,24 @@ public class WriteDistanceMatrix {
         try {
 
             fw = new FileWriter(saveFile);
-            bw = new BufferedWriter(fw);
+            bw = new BufferedWriter(fw, 1 << 16);
 
-            bw.write(String.valueOf(matrix.getRowCount()));
+            int n = matrix.getRowCount();
+            bw.write(String.valueOf(n));
             bw.write("\n");
 
-            for (int r = 0, n = matrix.getRowCount(); r < n; r++) {
-                Object[] theRow = matrix.getRow(r);
-                for (int i = 0; i < theRow.length; i++) {
-                    if (i != 0) {
-                        bw.write("\t");
+            // same values as DistanceMatrix.getRow()
+            DistanceStore store = matrix.getDistanceStore();
+            boolean isFloat = (store != null) && store.isFloat();
+            for (int r = 0; r < n; r++) {
+                bw.write(matrix.getIdentifier(r).toString());
+                for (int c = 0; c < n; c++) {
+                    bw.write("\t");
+                    if (isFloat) {
+                        bw.write(Float.toString((float) matrix.getDistance(r, c)));
+                    } else {
+                        bw.write(Double.toString(matrix.getDistance(r, c)));
                     }
-                    bw.write(theRow[i].toString());
                 }
                 bw.write("\n");
             }
@@ -55,4 +66,33 @@ public class WriteDistanceMatrix {
         }
 
     }
+
+    public static void savePHYLIPDistanceMatrix(DistanceMatrix matrix, String saveFile) {
+        savePHYLIPDistanceMatrix(matrix, new File(saveFile));
+    }
+
+    /**
+     * Writes the matrix in the PHYLIP format of DistanceMatrix.printPHYLIP().
+     */
+    public static void savePHYLIPDistanceMatrix(DistanceMatrix matrix, File saveFile) {
+
+        if (saveFile == null) {
+            return;
+        }
+        PrintWriter pw = null;
+        try {
+            pw = new PrintWriter(new BufferedWriter(new FileWriter(saveFile), 1 << 16));
+            matrix.printPHYLIP(pw);
+            if (pw.checkError()) {
+                System.out.println("WriteDistanceMatrix: savePHYLIPDistanceMatrix: problem writing file: " + saveFile);
+            }
+        } catch (Exception e) {
+            System.out.println("WriteDistanceMatrix: savePHYLIPDistanceMatrix: problem writing file: " + e.getMessage());
+        } finally {
+            if (pw != null) {
+                pw.close();
+            }
+        }
+
+    }
 }
@@ -6,7 +6,8 @@
 // terms of the Lesser GNU General Public License (LGPL)
 package net.maizegenetics.pal.popgen;
 
-import cern.colt.map.OpenLongObjectHashMap;
+import java.io.BufferedWriter;
+import java.io.IOException;
 import java.io.Serializable;
 import java.io.StringWriter;
 import java.util.Arrays;
@@ -16,8 +17,10 @@ import net.maizegenetics.pal.alignment.BitAlignment;
 import net.maizegenetics.pal.report.TableReport;
 import net.maizegenetics.pal.statistics.FisherExact;
 import net.maizegenetics.util.BitSet;
+import net.maizegenetics.util.DoubleFormat;
 import net.maizegenetics.util.OpenBitSet;
 import net.maizegenetics.util.ProgressListener;
+import net.maizegenetics.util.Utils;
 import org.apache.log4j.Logger;
 
 /**
@@ -45,6 +48,11 @@ import org.apache.log4j.Logger;
  * from SSR to SNPs these methods are less relevant. Researchers should convert
  * to biallelic - either by ignoring rarer classes or collapsing rarer states.
  *<p>
+ * The site pairs are computed in tiles by {@link LinkageDisequilibriumEngine} with
+ * {@link #setNumThreads(int)} threads.  The results are kept in float arrays indexed
+ * by test, or with {@link #setOutputFile(String)} written to a file as they are
+ * computed, so that large designs need not fit in memory.
+ *<p>
  * TODO: Add 3x3 (genotype) mode.
  *
  * @version $Id: LinkageDisequilibrium.java,v 2
@@ -80,9 +88,18 @@ public class LinkageDisequilibrium extends Thread implements Serializable, Table
     private long myTotalTests = 0;
     private testDesign myCurrDesign = testDesign.SlidingWindow;
     /**
-     * HashMap of results Key = (site1*siteNum + site2), Value = float[rsqr,d', pvalue, sampleSize]
+     * Results indexed by test (row of the report).  Null when accumulating or writing to a file.
+     */
+    private float[] myRSqr;
+    private float[] myDPrime;
+    private float[] myPValue;
+    private int[] mySampleSize;
+    /**
+     * Test index of the pairs of the site list design, [index in site list][other site].  Built when first needed.
      */
-    private OpenLongObjectHashMap  myMapResults;
+    private int[][] mySiteListTests;
+    private int myNumThreads = Runtime.getRuntime().availableProcessors();
+    private String myOutputFile = null;
     private ProgressListener myListener = null;
     private FisherExact myFisherExact;
     private boolean myIsAccumulativeReport = false;
@@ -127,6 +144,21 @@ public class LinkageDisequilibrium extends Thread implements Serializable, Table
         myHetTreatment = hetTreatment;
     }
 
+    /**
+     * Sets the number of threads used to compute the site pairs.  Defaults to the number of processors.
+     */
+    public void setNumThreads(int numThreads) {
+        myNumThreads = Math.max(1, numThreads);
+    }
+
+    /**
+     * Writes the results to this file (tab delimited, gzipped if it ends with .gz) as they are computed, instead of
+     * keeping them in memory.  The accessors then return NaN.  Ignored for accumulative reports.
+     */
+    public void setOutputFile(String filename) {
+        myOutputFile = filename;
+    }
+
     /**
      * starts the thread to calculate LD
      */
@@ -164,16 +196,19 @@ public class LinkageDisequilibrium extends Thread implements Serializable, Table
         if (myIsAccumulativeReport) {
             myAccumulativeInterval = 1.0f / (float) myNumAccumulativeBins;
             myAccumulativeRValueBins = new int[myNumAccumulativeBins + 1];
-        } else {
-           myMapResults=new OpenLongObjectHashMap(numSites); 
+        } else if (myOutputFile == null) {
+            if (myTotalTests > Integer.MAX_VALUE - 8) {
+                throw new IllegalStateException("LinkageDisequilibrium: initMatrices: too many tests to keep in memory: " + myTotalTests + ".  Use an output file.");
+            }
+            int numTests = (int) myTotalTests;
+            myRSqr = new float[numTests];
+            myDPrime = new float[numTests];
+            myPValue = new float[numTests];
+            mySampleSize = new int[numTests];
         }
 
     }
     
-    private long getMapKey(int r, int c) {
-        return (c<r)?(((long)c*mySBitAlignment.getSiteCount())+r):(((long)r*mySBitAlignment.getSiteCount())+c);
-    }
-
     private void calculateBitLDForHaplotype(boolean ignoreHets) {
         //It will ignore hets, make a new Alignment and set all het calls to missing. Otherwise set the pointer to the old alignment
         Alignment workingAlignment;
@@ -182,35 +217,160 @@ public class LinkageDisequilibrium extends Thread implements Serializable, Table
         } else {
             workingAlignment = mySBitAlignment;
         }
-        for (long currTest = 0; currTest < myTotalTests; currTest++) {
-            int r = getRowFromIndex(currTest);
-            int c = getColFromIndex(currTest);
-            int currentProgress = (int) ((double) 100.0 * ((double) currTest / (double) myTotalTests));
-            fireProgress(currentProgress);
-            BitSet rMj = workingAlignment.getAllelePresenceForAllTaxa(r, 0);
-            BitSet rMn = workingAlignment.getAllelePresenceForAllTaxa(r, 1);
-            BitSet cMj = workingAlignment.getAllelePresenceForAllTaxa(c, 0);
-            BitSet cMn = workingAlignment.getAllelePresenceForAllTaxa(c, 1);
-            LDResult ldr=getLDForSitePair(rMj, rMn, cMj, cMn, 2, myMinTaxaForEstimate, -1.0f, myFisherExact);
-            if (myIsAccumulativeReport) {
-                if (ldr.r2 == Float.NaN) {
-                    myAccumulativeRValueBins[myNumAccumulativeBins]++;
-                } else if (ldr.r2 == 1.0f) {
-                    myAccumulativeRValueBins[myNumAccumulativeBins - 1]++;
+        LinkageDisequilibriumEngine engine = new LinkageDisequilibriumEngine(workingAlignment, 2, myMinTaxaForEstimate, -1.0f, myFisherExact);
+        LinkageDisequilibriumEngine.PairEnumerator pairs = new LinkageDisequilibriumEngine.PairEnumerator() {
+            @Override
+            public void fillPairs(long firstTest, int numTests, int[] site1, int[] site2) {
+                getSitesFromIndex(firstTest, numTests, site1, site2);
+            }
+        };
+        if (myIsAccumulativeReport) {
+            engine.compute(myTotalTests, pairs, new AccumulativeHandler(), myNumThreads, myListener);
+        } else if (myOutputFile != null) {
+            BufferedWriter writer = Utils.getBufferedWriter(myOutputFile);
+            if (writer == null) {
+                throw new IllegalStateException("LinkageDisequilibrium: calculateBitLDForHaplotype: unable to open: " + myOutputFile);
+            }
+            try {
+                Object[] colNames = getTableColumnNames();
+                for (int j = 0; j < colNames.length; j++) {
+                    if (j != 0) {
+                        writer.write("\t");
+                    }
+                    writer.write(colNames[j].toString());
+                }
+                writer.write("\n");
+                engine.compute(myTotalTests, pairs, new WriterHandler(writer), myNumThreads, myListener);
+            } catch (IOException e) {
+                throw new IllegalStateException("LinkageDisequilibrium: calculateBitLDForHaplotype: problem writing: " + myOutputFile + ": " + e.getMessage());
+            } finally {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    // do nothing
+                }
+            }
+        } else {
+            engine.compute(myTotalTests, pairs, new MatrixHandler(), myNumThreads, myListener);
+        }
+    }
+
+    /**
+     * Copies the results of each tile to the result arrays.  Tiles don't overlap, so the threads write different
+     * elements.
+     */
+    private class MatrixHandler implements LinkageDisequilibriumEngine.TileHandler {
+
+        @Override
+        public Object process(LinkageDisequilibriumEngine.Tile tile) {
+            int first = (int) tile.firstTest;
+            System.arraycopy(tile.r2, 0, myRSqr, first, tile.numTests);
+            System.arraycopy(tile.dprime, 0, myDPrime, first, tile.numTests);
+            System.arraycopy(tile.p, 0, myPValue, first, tile.numTests);
+            System.arraycopy(tile.n, 0, mySampleSize, first, tile.numTests);
+            return null;
+        }
+
+        @Override
+        public void consume(Object processed) {
+            // nothing left to do
+        }
+    }
+
+    /**
+     * Bins the r^2 of each tile on the worker thread, then adds the bins of the tiles.
+     */
+    private class AccumulativeHandler implements LinkageDisequilibriumEngine.TileHandler {
+
+        @Override
+        public Object process(LinkageDisequilibriumEngine.Tile tile) {
+            int[] bins = new int[myNumAccumulativeBins + 1];
+            for (int i = 0; i < tile.numTests; i++) {
+                float r2 = tile.r2[i];
+                if (Float.isNaN(r2)) {
+                    bins[myNumAccumulativeBins]++;
+                } else if (r2 == 1.0f) {
+                    bins[myNumAccumulativeBins - 1]++;
                 } else {
-                    int index = (int) Math.floor(ldr.r2 / myAccumulativeInterval);
-                    myAccumulativeRValueBins[index]++;
+                    int index = (int) Math.floor(r2 / myAccumulativeInterval);
+                    bins[index]++;
                 }
-            } else {           
-                long key=getMapKey(r,c);
-                myMapResults.put(key, ldr);               
             }
+            return bins;
+        }
 
-        } //end of currTest
-        myMapResults.trimToSize();
+        @Override
+        public void consume(Object processed) {
+            int[] bins = (int[]) processed;
+            for (int i = 0; i < bins.length; i++) {
+                myAccumulativeRValueBins[i] += bins[i];
+            }
+        }
     }
-    
 
+    /**
+     * Formats the rows of each tile on the worker thread, as TableReportUtils would, then writes them in order.
+     */
+    private class WriterHandler implements LinkageDisequilibriumEngine.TileHandler {
+
+        private final BufferedWriter myWriter;
+        private final String[] myLocusNames;
+        private final int[] myPositions;
+        private final String[] myStates;
+
+        WriterHandler(BufferedWriter writer) {
+            myWriter = writer;
+            int numSites = myAlignment.getSiteCount();
+            myLocusNames = new String[numSites];
+            myPositions = new int[numSites];
+            myStates = new String[numSites];
+            for (int s = 0; s < numSites; s++) {
+                myLocusNames[s] = myAlignment.getLocusName(s);
+                myPositions[s] = myAlignment.getPositionInLocus(s);
+                myStates[s] = myAlignment.getMajorAlleleAsString(s) + ":" + myAlignment.getMinorAlleleAsString(s);
+            }
+        }
+
+        @Override
+        public Object process(LinkageDisequilibriumEngine.Tile tile) {
+            StringBuilder sb = new StringBuilder(tile.numTests * 100);
+            for (int i = 0; i < tile.numTests; i++) {
+                int r = tile.site1[i];
+                int c = tile.site2[i];
+                appendSite(sb, r);
+                appendSite(sb, c);
+                if (myLocusNames[r].equals(myLocusNames[c])) {
+                    sb.append(Math.abs(myPositions[r] - myPositions[c])).append('\t');
+                } else {
+                    sb.append(NA).append('\t');
+                }
+                sb.append(tile.r2[i]).append('\t');
+                sb.append(tile.dprime[i]).append('\t');
+                sb.append(DoubleFormat.format(tile.p[i])).append('\t');
+                sb.append(tile.n[i]).append('\n');
+            }
+            return sb.toString();
+        }
+
+        private void appendSite(StringBuilder sb, int site) {
+            sb.append(myLocusNames[site]).append('\t');
+            sb.append(myPositions[site]).append('\t');
+            sb.append(site).append('\t');
+            sb.append(IntegerTwo).append('\t');
+            sb.append(myStates[site]).append('\t');
+            sb.append(NotImplemented).append('\t');
+        }
+
+        @Override
+        public void consume(Object processed) {
+            try {
+                myWriter.write((String) processed);
+            } catch (IOException e) {
+                throw new IllegalStateException("LinkageDisequilibrium: problem writing: " + myOutputFile + ": " + e.getMessage());
+            }
+        }
+    }
+    
     private void calculateBitLDWithHets() {
         //Do nothing; not implemented yet
         myLogger.error("Calculating LD with hets as a third state is not implemented yet; skipping");
@@ -296,14 +456,149 @@ public class LinkageDisequilibrium extends Thread implements Serializable, Table
         return results;
     }
 
+    /**
+     * Fills site1 (rows) and site2 (columns) with the sites of tests firstTest to firstTest + numTests - 1.  The all
+     * by all and sliding window designs step from pair to pair, as their tests are ordered by row then column.
+     */
+    private void getSitesFromIndex(long firstTest, int numTests, int[] site1, int[] site2) {
+        if ((myCurrDesign == testDesign.All) || (myCurrDesign == testDesign.SlidingWindow)) {
+            boolean isWindow = (myCurrDesign == testDesign.SlidingWindow);
+            int r = getLowerTriangleRow(firstTest);
+            int c = getLowerTriangleCol(firstTest, r);
+            for (int i = 0; i < numTests; i++) {
+                site1[i] = r;
+                site2[i] = c;
+                c++;
+                if (c == r) {
+                    r++;
+                    c = isWindow ? Math.max(0, r - myWindowSize) : 0;
+                }
+            }
+        } else {
+            for (int i = 0; i < numTests; i++) {
+                site1[i] = getRowFromIndex(firstTest + i);
+                site2[i] = getColFromIndex(firstTest + i);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of tests of the rows of a sliding window that have fewer than window size columns, or -1
+     * when all rows do.
+     */
+    private long getFullWindowStart() {
+        int n = myAlignment.getSiteCount();
+        long w = myWindowSize;
+        if ((myCurrDesign == testDesign.SlidingWindow) && (n > w + 1)) {
+            return w * (w + 1) / 2;
+        }
+        return -1;
+    }
+
+    /**
+     * Row of a test of the all by all or sliding window designs.
+     */
+    private int getLowerTriangleRow(long index) {
+        long fullWindowStart = getFullWindowStart();
+        if ((fullWindowStart >= 0) && (index >= fullWindowStart)) {
+            return myWindowSize + 1 + (int) ((index - fullWindowStart) / myWindowSize);
+        }
+        // row r holds tests r(r-1)/2 to r(r+1)/2 - 1
+        long row = (long) ((1.0 + Math.sqrt(1.0 + 8.0 * (double) index)) / 2.0);
+        while (row * (row - 1) / 2 > index) {
+            row--;
+        }
+        while (row * (row + 1) / 2 <= index) {
+            row++;
+        }
+        return (int) row;
+    }
+
+    /**
+     * Column of a test of the all by all or sliding window designs.
+     */
+    private int getLowerTriangleCol(long index, int row) {
+        long fullWindowStart = getFullWindowStart();
+        if ((fullWindowStart >= 0) && (index >= fullWindowStart)) {
+            return row - myWindowSize + (int) ((index - fullWindowStart) % myWindowSize);
+        }
+        return (int) (index - (long) row * (row - 1) / 2);
+    }
+
+    /**
+     * Returns the test (row of the report) of a pair of sites, or -1 if the pair isn't tested.
+     */
+    private long getTestIndex(int r, int c) {
+        if (r == c) {
+            return -1;
+        }
+        int row = Math.max(r, c);
+        int col = Math.min(r, c);
+        switch (myCurrDesign) {
+            case All:
+                return (long) row * (row - 1) / 2 + col;
+            case SlidingWindow:
+                if (row - col > myWindowSize) {
+                    return -1;
+                }
+                long fullWindowStart = getFullWindowStart();
+                if ((fullWindowStart >= 0) && (row > myWindowSize)) {
+                    return fullWindowStart + (long) (row - myWindowSize - 1) * myWindowSize + (col - row + myWindowSize);
+                }
+                return (long) row * (row - 1) / 2 + col;
+            case SiteByAll:
+                if (r == myTestSite) {
+                    return (c < myTestSite) ? c : c - 1;
+                } else if (c == myTestSite) {
+                    return (r < myTestSite) ? r : r - 1;
+                }
+                return -1;
+            case SiteList:
+                int[][] tests = getSiteListTests();
+                int k = Arrays.binarySearch(mySiteList, r);
+                if (k >= 0) {
+                    return tests[k][c];
+                }
+                k = Arrays.binarySearch(mySiteList, c);
+                if (k >= 0) {
+                    return tests[k][r];
+                }
+                return -1;
+            default:
+                return -1;
+        }
+    }
+
+    private synchronized int[][] getSiteListTests() {
+        if (mySiteListTests == null) {
+            int[][] tests = new int[mySiteList.length][getSiteCount()];
+            for (int k = 0; k < tests.length; k++) {
+                Arrays.fill(tests[k], -1);
+            }
+            for (int t = 0; t < myTotalTests; t++) {
+                int r = getRowFromIndex(t);
+                int c = getColFromIndex(t);
+                int k = Arrays.binarySearch(mySiteList, r);
+                if (k >= 0) {
+                    tests[k][c] = t;
+                }
+                k = Arrays.binarySearch(mySiteList, c);
+                if (k >= 0) {
+                    tests[k][r] = t;
+                }
+            }
+            mySiteListTests = tests;
+        }
+        return mySiteListTests;
+    }
+
     private int getRowFromIndex(long index) {
 
         int row = 0;
         int n = myAlignment.getSiteCount();
-        int w = myWindowSize;
 
-        if (myCurrDesign == testDesign.SlidingWindow && n > w + 1 && index >= w * (w + 1) / (double) 2) {
-            row = (int) Math.ceil(((double) index + 1 - w * (w + 1) / 2 + w * w) / w);
+        if ((myCurrDesign == testDesign.All) || (myCurrDesign == testDesign.SlidingWindow)) {
+            row = getLowerTriangleRow(index);
         } else if (myCurrDesign == testDesign.SiteByAll) {
             if (index < myTestSite) {
                 row = myTestSite;
@@ -320,8 +615,6 @@ public class LinkageDisequilibrium extends Thread implements Serializable, Table
             } else {
                 row = n - 1 - m + (int) index;
             }
-        } else {
-            row = (int) Math.ceil((Math.sqrt(8 * (index + 1) + 1) - 1) / 2);
         }
 
         return row;
@@ -332,10 +625,9 @@ public class LinkageDisequilibrium extends Thread implements Serializable, Table
         int row = getRowFromIndex(index);
         int col = 0;
         int n = myAlignment.getSiteCount();
-        int w = myWindowSize;
 
-        if (myCurrDesign == testDesign.SlidingWindow && n > w + 1 && index >= w * (w + 1) / (double) 2) {
-            col = (int) ((row - 1 - (double) w * (w + 1) / 2 - w * (row - w) + 1 + index));
+        if ((myCurrDesign == testDesign.All) || (myCurrDesign == testDesign.SlidingWindow)) {
+            col = getLowerTriangleCol(index, row);
         } else if (myCurrDesign == testDesign.SiteByAll) {
             if (index < myTestSite) {
                 col = (int) index;
@@ -363,8 +655,6 @@ public class LinkageDisequilibrium extends Thread implements Serializable, Table
 
                 }
             }
-        } else {
-            col = row - (row * (row + 1) / 2 - (int) index);
         }
 
         return col;
@@ -380,10 +670,11 @@ public class LinkageDisequilibrium extends Thread implements Serializable, Table
      * @return P-value
      */
     public double getPVal(int r, int c) {
-        long key=getMapKey(r, c);
-        LDResult result=(LDResult)myMapResults.get(key);
-        if(result==null) return Float.NaN;
-        return result.p;
+        long test = getTestIndex(r, c);
+        if ((test < 0) || (myPValue == null)) {
+            return Float.NaN;
+        }
+        return myPValue[(int) test];
     }
 
     /**
@@ -395,10 +686,11 @@ public class LinkageDisequilibrium extends Thread implements Serializable, Table
      * @return number of gametes
      */
     public int getSampleSize(int r, int c) {
-        long key=getMapKey(r, c);
-        LDResult result=(LDResult)myMapResults.get(key);
-        if(result==null) return 0;
-        return result.n;
+        long test = getTestIndex(r, c);
+        if ((test < 0) || (mySampleSize == null)) {
+            return 0;
+        }
+        return mySampleSize[(int) test];
     }
 
     /**
@@ -409,10 +701,11 @@ public class LinkageDisequilibrium extends Thread implements Serializable, Table
      * @return D'
      */
     public float getDPrime(int r, int c) {
-        long key=getMapKey(r, c);
-        LDResult result=(LDResult)myMapResults.get(key);
-        if(result==null) return Float.NaN;
-        return result.dprime;
+        long test = getTestIndex(r, c);
+        if ((test < 0) || (myDPrime == null)) {
+            return Float.NaN;
+        }
+        return myDPrime[(int) test];
     }
 
     /**
@@ -423,10 +716,11 @@ public class LinkageDisequilibrium extends Thread implements Serializable, Table
      * @return r^2
      */
     public float getRSqr(int r, int c) {
-        long key=getMapKey(r, c);
-        LDResult result=(LDResult)myMapResults.get(key);
-        if(result==null) return Float.NaN;
-        return result.r2;
+        long test = getTestIndex(r, c);
+        if ((test < 0) || (myRSqr == null)) {
+            return Float.NaN;
+        }
+        return myRSqr[(int) test];
     }
 
     public int getX(int row) {
@@ -0,0 +1,226 @@
+/*
+ * LinkageDisequilibriumEngine
+ */
+package net.maizegenetics.pal.popgen;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import net.maizegenetics.pal.alignment.Alignment;
+import net.maizegenetics.pal.statistics.FisherExact;
+import net.maizegenetics.util.BitSet;
+import net.maizegenetics.util.ProgressListener;
+
+/**
+ * Computes the LD of many site pairs for LinkageDisequilibrium.  The major and minor allele presence words of every
+ * site are taken from the alignment once, and the pairs are processed in tiles of TESTS_PER_TILE consecutive tests
+ * by a pool of threads.  The four allele intersections of a pair are counted in one pass over the words with
+ * Long.bitCount.  The results of a tile are handed to a TileHandler, first on the worker thread (to store, bin or
+ * format them) and then on the calling thread in test order (to write them).
+ * <p>
+ * The counts, thresholds and statistics are those of LinkageDisequilibrium.getLDForSitePair(), so the results are
+ * identical whatever the number of threads.
+ */
+class LinkageDisequilibriumEngine {
+
+    static final int TESTS_PER_TILE = 1 << 14;
+    private static final int MAX_TILES_PER_THREAD = 4;
+    private final long[][] myMajor;
+    private final long[][] myMinor;
+    private final int myNumWords;
+    private final int myMinMinorCnt;
+    private final int myMinCnt;
+    private final float myMinR2;
+    private final FisherExact myFisherExact;
+
+    /**
+     * Gives the sites of the tests of a tile.
+     */
+    interface PairEnumerator {
+
+        /**
+         * Fills site1 and site2 with the sites of tests firstTest to firstTest + numTests - 1.
+         */
+        void fillPairs(long firstTest, int numTests, int[] site1, int[] site2);
+    }
+
+    /**
+     * Receives the results of the tiles.
+     */
+    interface TileHandler {
+
+        /**
+         * Called on a worker thread for each tile.  The tile is reused after this returns, so anything kept must be
+         * copied.  Must be safe to call from several threads for different tiles.
+         *
+         * @return what is passed to consume()
+         */
+        Object process(Tile tile);
+
+        /**
+         * Called on the calling thread, in tile order, with the values returned by process().
+         */
+        void consume(Object processed);
+    }
+
+    /**
+     * The sites and results of the tests of one tile.  Results with too few gametes or minor alleles are NaN, as
+     * in LDResult.
+     */
+    static class Tile {
+
+        long firstTest;
+        int numTests;
+        final int[] site1 = new int[TESTS_PER_TILE];
+        final int[] site2 = new int[TESTS_PER_TILE];
+        final float[] r2 = new float[TESTS_PER_TILE];
+        final float[] dprime = new float[TESTS_PER_TILE];
+        final float[] p = new float[TESTS_PER_TILE];
+        final int[] n = new int[TESTS_PER_TILE];
+    }
+
+    /**
+     * @param alignment alignment with the major allele as allele 0 and the minor as allele 1, best optimized for sites
+     * @param minMinorCnt minimum count of the minor allele of each site among the gametes of a pair
+     * @param minCnt minimum number of gametes of a pair
+     * @param minR2 minimum r^2 for the p-value to be computed
+     * @param fisherExact Fisher exact test, large enough for the number of gametes
+     */
+    LinkageDisequilibriumEngine(Alignment alignment, int minMinorCnt, int minCnt, float minR2, FisherExact fisherExact) {
+        int numSites = alignment.getSiteCount();
+        myNumWords = (alignment.getSequenceCount() + 63) >>> 6;
+        myMajor = new long[numSites][];
+        myMinor = new long[numSites][];
+        for (int s = 0; s < numSites; s++) {
+            myMajor[s] = getWords(alignment.getAllelePresenceForAllTaxa(s, 0));
+            myMinor[s] = getWords(alignment.getAllelePresenceForAllTaxa(s, 1));
+        }
+        myMinMinorCnt = minMinorCnt;
+        myMinCnt = minCnt;
+        myMinR2 = minR2;
+        myFisherExact = fisherExact;
+    }
+
+    private long[] getWords(BitSet bits) {
+        long[] words = bits.getBits();
+        if (words.length >= myNumWords) {
+            return words;
+        }
+        return Arrays.copyOf(words, myNumWords);
+    }
+
+    /**
+     * Computes tests 0 to totalTests - 1 with numThreads threads.
+     */
+    void compute(final long totalTests, final PairEnumerator pairs, final TileHandler handler, int numThreads, ProgressListener listener) {
+        final long numTiles = (totalTests + TESTS_PER_TILE - 1) / TESTS_PER_TILE;
+        if (numThreads <= 1 || numTiles <= 1) {
+            Tile tile = new Tile();
+            for (long t = 0; t < numTiles; t++) {
+                handler.consume(handler.process(computeTile(t, totalTests, pairs, tile)));
+                fireProgress(listener, t, numTiles);
+            }
+            return;
+        }
+
+        final ThreadLocal<Tile> tiles = new ThreadLocal<Tile>() {
+            @Override
+            protected Tile initialValue() {
+                return new Tile();
+            }
+        };
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<Object>> results = new ArrayList<Future<Object>>();
+            long numSubmitted = 0;
+            for (long t = 0; t < numTiles; t++) {
+                while ((numSubmitted < numTiles) && (numSubmitted - t <= MAX_TILES_PER_THREAD * numThreads)) {
+                    final long tileIndex = numSubmitted++;
+                    results.add(pool.submit(new Callable<Object>() {
+                        @Override
+                        public Object call() {
+                            return handler.process(computeTile(tileIndex, totalTests, pairs, tiles.get()));
+                        }
+                    }));
+                }
+                // results are removed as they are consumed, so the next one is always first
+                handler.consume(getResult(results.remove(0)));
+                fireProgress(listener, t, numTiles);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private Tile computeTile(long tileIndex, long totalTests, PairEnumerator pairs, Tile tile) {
+        tile.firstTest = tileIndex * TESTS_PER_TILE;
+        tile.numTests = (int) Math.min(TESTS_PER_TILE, totalTests - tile.firstTest);
+        pairs.fillPairs(tile.firstTest, tile.numTests, tile.site1, tile.site2);
+        for (int i = 0; i < tile.numTests; i++) {
+            computePair(tile, i);
+        }
+        return tile;
+    }
+
+    private void computePair(Tile tile, int i) {
+        tile.r2[i] = Float.NaN;
+        tile.dprime[i] = Float.NaN;
+        tile.p[i] = Float.NaN;
+        tile.n[i] = 0;
+        long[] rMj = myMajor[tile.site1[i]];
+        long[] rMn = myMinor[tile.site1[i]];
+        long[] cMj = myMajor[tile.site2[i]];
+        long[] cMn = myMinor[tile.site2[i]];
+        int count00 = 0, count01 = 0, count10 = 0, count11 = 0;
+        for (int w = 0; w < myNumWords; w++) {
+            long rj = rMj[w], rn = rMn[w], cj = cMj[w], cn = cMn[w];
+            count00 += Long.bitCount(rj & cj);
+            count01 += Long.bitCount(rj & cn);
+            count10 += Long.bitCount(rn & cj);
+            count11 += Long.bitCount(rn & cn);
+        }
+        if ((count10 + count11 < myMinMinorCnt) || (count01 + count11 < myMinMinorCnt)) {
+            return;
+        }
+        int n = count00 + count01 + count10 + count11;
+        tile.n[i] = n;
+        if (n < myMinCnt) {
+            return;
+        }
+        double rValue = LinkageDisequilibrium.calculateRSqr(count00, count10, count01, count11, myMinCnt);
+        tile.r2[i] = (float) rValue;
+        if (Double.isNaN(rValue)) {
+            return;
+        }
+        tile.dprime[i] = (float) LinkageDisequilibrium.calculateDPrime(count00, count10, count01, count11, myMinCnt);
+        if (rValue < myMinR2) {
+            return;
+        }
+        tile.p[i] = (float) myFisherExact.getTwoTailedP(count00, count10, count01, count11);
+    }
+
+    private static Object getResult(Future<Object> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("LinkageDisequilibriumEngine: " + e.getCause(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("LinkageDisequilibriumEngine: interrupted");
+        }
+    }
+
+    private static void fireProgress(ProgressListener listener, long tile, long numTiles) {
+        if (listener != null) {
+            listener.progress((int) (100.0 * (double) (tile + 1) / (double) numTiles), null);
+        }
+    }
+}
@@ -0,0 +1,495 @@
+// FastNeighborJoiningTree.java
+//
+// This package may be distributed under the
+// terms of the Lesser GNU General Public License (LGPL)
+
+
+package net.maizegenetics.pal.tree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.maizegenetics.pal.distance.DistanceMatrix;
+
+
+/**
+ * constructs a neighbor-joining tree from pairwise distances, joining the
+ * same pairs as NeighborJoiningTree without rescanning the whole matrix
+ * for every join.
+ * <br><br>
+ * The search for the pair to join follows RapidNJ: the other clusters of
+ * each row are kept sorted by distance, and a row is only scanned until
+ * its distances are too large for any pair of the row to beat the best
+ * pair found, using the largest row sum as bound. Rows are scanned by a
+ * pool of threads when there are many clusters. The row sums are updated
+ * with each join rather than recomputed, and the distances are kept in a
+ * packed lower triangle, with a joined cluster taking the place of the
+ * first of its two clusters.
+ * <br><br>
+ * Pairs with the same criterion are chosen in the order of
+ * NeighborJoiningTree, so the topology is the same, unless two pairs
+ * differ only by the rounding of the updated row sums.
+ * <br><br>
+ * Simonsen, M., Mailund, T., and Pedersen, C.N.S., (2008) Rapid Neighbour-Joining. <i>Algorithms in Bioinformatics</i>, LNCS 5251:113-122
+ */
+public class FastNeighborJoiningTree extends SimpleTree
+{
+	//
+	// Serialization Stuff
+	//
+
+	static final long serialVersionUID=7026500685526893291L;
+
+	//
+	// Public stuff
+	//
+
+	/**
+	 * construct NJ tree, using all available processors
+	 *
+	 * @param m distance matrix
+	 */
+	public FastNeighborJoiningTree(DistanceMatrix m)
+	{
+		this(m, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * construct NJ tree
+	 *
+	 * @param m distance matrix
+	 * @param numThreads number of threads searching for the pair to join
+	 */
+	public FastNeighborJoiningTree(DistanceMatrix m, int numThreads)
+	{
+		if (m.getSize() < 3)
+		{
+			throw new IllegalArgumentException("LESS THAN 3 TAXA IN DISTANCE MATRIX");
+		}
+		if (!m.isSymmetric())
+		{
+			throw new IllegalArgumentException("UNSYMMETRIC DISTANCE MATRIX");
+		}
+
+		ExecutorService pool = (numThreads > 1) ? Executors.newFixedThreadPool(numThreads) : null;
+		try
+		{
+			init(m, pool);
+
+			while (true)
+			{
+				findNextPair(pool, numThreads);
+				newBranchLengths();
+				if (numClusters == 3)
+				{
+					break;
+				}
+				newCluster();
+			}
+		}
+		finally
+		{
+			if (pool != null)
+			{
+				pool.shutdownNow();
+			}
+		}
+
+		finish();
+	}
+
+
+	//
+	// Private stuff
+	//
+
+	private static final int MIN_CLUSTERS_PER_TASK = 256;
+
+	private int numClusters;
+	private int besti;
+	private int bestj;
+	private int numJoins;
+	private PackedDistances distance;
+	private Node[] nodes;
+	private int[] active;
+	private boolean[] isActive;
+	private int[] created;
+	private int[][] rows;
+	private int[] rowStart;
+	private int[] rowEnd;
+	private double[] r;
+	private double scale;
+
+	/**
+	 * a pair of clusters (i < j) and its criterion
+	 */
+	private static class Pair
+	{
+		double s;
+		int i;
+		int j;
+
+		Pair(double s, int i, int j)
+		{
+			this.s = s;
+			this.i = i;
+			this.j = j;
+		}
+
+		/**
+		 * replaces this pair by the other if NeighborJoiningTree would choose it
+		 */
+		void offer(double os, int oi, int oj)
+		{
+			if ((os > s) || ((os == s) && ((oi < i) || ((oi == i) && (oj < j)))))
+			{
+				s = os;
+				i = oi;
+				j = oj;
+			}
+		}
+	}
+
+	private void init(DistanceMatrix m, ExecutorService pool)
+	{
+		numClusters = m.getSize();
+
+		distance = new PackedDistances(m);
+
+		nodes = new Node[numClusters];
+		active = new int[numClusters];
+		isActive = new boolean[numClusters];
+		created = new int[numClusters];
+		r = new double[numClusters];
+		for (int i = 0; i < numClusters; i++)
+		{
+			nodes[i] = NodeFactory.createNode();
+			nodes[i].setIdentifier(m.getIdentifier(i));
+			active[i] = i;
+			isActive[i] = true;
+			for (int j = 0; j < numClusters; j++)
+			{
+				r[i] += m.getDistance(i, j);
+			}
+		}
+
+		rows = new int[numClusters][];
+		rowStart = new int[numClusters];
+		rowEnd = new int[numClusters];
+		if (pool == null)
+		{
+			for (int i = 0; i < numClusters; i++)
+			{
+				sortRow(i);
+			}
+		}
+		else
+		{
+			List<Future<Object>> futures = new ArrayList<Future<Object>>();
+			for (int start = 0; start < numClusters; start += MIN_CLUSTERS_PER_TASK)
+			{
+				final int first = start;
+				final int last = Math.min(numClusters, start + MIN_CLUSTERS_PER_TASK);
+				futures.add(pool.submit(new Callable<Object>()
+				{
+					public Object call()
+					{
+						for (int i = first; i < last; i++)
+						{
+							sortRow(i);
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Object> future : futures)
+			{
+				getResult(future);
+			}
+		}
+	}
+
+	private void finish()
+	{
+		for (int p = 0; p < numClusters; p++)
+		{
+			int k = active[p];
+			if (k != besti && k != bestj)
+			{
+				nodes[k].setBranchLength(updatedDistance(besti, bestj, k));
+			}
+		}
+		for (int p = 0; p < numClusters; p++)
+		{
+			getRoot().addChild(nodes[active[p]]);
+		}
+		distance = null;
+		rows = null;
+
+		// make node heights available also
+		NodeUtils.lengths2Heights(getRoot());
+	}
+
+	private void findNextPair(ExecutorService pool, int numThreads)
+	{
+		double rmax = Double.NEGATIVE_INFINITY;
+		for (int p = 0; p < numClusters; p++)
+		{
+			rmax = Math.max(rmax, r[active[p]]);
+		}
+		scale = 1.0/(numClusters-2);
+
+		Pair best;
+		int numTasks = Math.min(4 * numThreads, numClusters / MIN_CLUSTERS_PER_TASK);
+		if (pool == null || numTasks < 2)
+		{
+			best = scanRows(0, numClusters, rmax);
+		}
+		else
+		{
+			List<Future<Pair>> futures = new ArrayList<Future<Pair>>();
+			for (int t = 0; t < numTasks; t++)
+			{
+				final int first = (int) ((long) numClusters * t / numTasks);
+				final int last = (int) ((long) numClusters * (t + 1) / numTasks);
+				final double bound = rmax;
+				futures.add(pool.submit(new Callable<Pair>()
+				{
+					public Pair call()
+					{
+						return scanRows(first, last, bound);
+					}
+				}));
+			}
+			best = getResult(futures.get(0));
+			for (int t = 1; t < numTasks; t++)
+			{
+				Pair pair = getResult(futures.get(t));
+				best.offer(pair.s, pair.i, pair.j);
+			}
+		}
+		besti = best.i;
+		bestj = best.j;
+	}
+
+	/**
+	 * finds the best pair of the rows of the clusters at positions first
+	 * to last - 1, starting from the first two clusters, which
+	 * NeighborJoiningTree joins if no pair has a criterion above -1
+	 */
+	private Pair scanRows(int first, int last, double rmax)
+	{
+		Pair best = new Pair(-1.0, active[0], active[1]);
+		for (int p = first; p < last; p++)
+		{
+			scanRow(active[p], rmax, best);
+		}
+		return best;
+	}
+
+	private void scanRow(int i, double rmax, Pair best)
+	{
+		int[] row = rows[i];
+		int start = rowStart[i];
+		int end = rowEnd[i];
+		double ri = r[i];
+		double rimax = ri + rmax;
+		int x = start;
+		for (; x < end; x++)
+		{
+			int j = row[x];
+			if (!isActive[j] || created[j] > created[i])
+			{
+				continue;
+			}
+			double d = distance.get(i, j);
+			if (rimax * scale - d < best.s)
+			{
+				break;
+			}
+			double sij = (ri + r[j]) * scale - d;
+			if (i < j)
+			{
+				best.offer(sij, i, j);
+			}
+			else
+			{
+				best.offer(sij, j, i);
+			}
+		}
+
+		// drop the clusters joined since the row was sorted from the scanned part
+		int w = x;
+		for (int y = x - 1; y >= start; y--)
+		{
+			int j = row[y];
+			if (isActive[j] && created[j] <= created[i])
+			{
+				row[--w] = j;
+			}
+		}
+		rowStart[i] = w;
+	}
+
+	private void newBranchLengths()
+	{
+		double dij = distance.get(besti, bestj);
+		double li = (dij + (r[besti]-r[bestj])*scale)*0.5;
+		double lj = dij - li; // = (dij + (r[bestj]-r[besti])*scale)*0.5
+
+		nodes[besti].setBranchLength(li);
+		nodes[bestj].setBranchLength(lj);
+	}
+
+	private void newCluster()
+	{
+		// Update distances and row sums, the new cluster replacing besti
+		double dij = distance.get(besti, bestj);
+		for (int p = 0; p < numClusters; p++)
+		{
+			int k = active[p];
+			if (k != besti && k != bestj)
+			{
+				double dki = distance.get(k, besti);
+				double dkj = distance.get(k, bestj);
+				double dk = (dki + dkj - dij)*0.5;
+				r[k] += dk - dki - dkj;
+				distance.set(k, besti, dk);
+			}
+		}
+
+		Node newNode = NodeFactory.createNode();
+		newNode.addChild(nodes[besti]);
+		newNode.addChild(nodes[bestj]);
+		nodes[besti] = newNode;
+		nodes[bestj] = null;
+
+		int p = 0;
+		while (active[p] != bestj)
+		{
+			p++;
+		}
+		System.arraycopy(active, p + 1, active, p, numClusters - p - 1);
+		isActive[bestj] = false;
+		rows[bestj] = null;
+		numClusters--;
+
+		double ri = 0;
+		for (p = 0; p < numClusters; p++)
+		{
+			ri += distance.get(besti, active[p]);
+		}
+		r[besti] = ri;
+		created[besti] = ++numJoins;
+		sortRow(besti);
+	}
+
+	/**
+	 * compute updated distance between the new cluster (i,j)
+	 * to any other cluster k
+	 */
+	private double updatedDistance(int i, int j, int k)
+	{
+		return (distance.get(k, i) + distance.get(k, j) - distance.get(i, j))*0.5;
+	}
+
+	/**
+	 * sets the row of cluster i to the other clusters, sorted by distance
+	 */
+	private void sortRow(int i)
+	{
+		int n = numClusters - 1;
+		int[] row = new int[n];
+		double[] d = new double[n];
+		int x = 0;
+		for (int p = 0; p < numClusters; p++)
+		{
+			int j = active[p];
+			if (j != i)
+			{
+				row[x] = j;
+				d[x] = distance.get(i, j);
+				x++;
+			}
+		}
+		sort(row, d, new int[n], new double[n], 0, n);
+		rows[i] = row;
+		rowStart[i] = 0;
+		rowEnd[i] = n;
+	}
+
+	/**
+	 * merge sort of columns from to to - 1 of row by d
+	 */
+	private static void sort(int[] row, double[] d, int[] tmpRow, double[] tmpD, int from, int to)
+	{
+		if (to - from < 16)
+		{
+			for (int x = from + 1; x < to; x++)
+			{
+				int j = row[x];
+				double dj = d[x];
+				int y = x - 1;
+				while (y >= from && d[y] > dj)
+				{
+					row[y + 1] = row[y];
+					d[y + 1] = d[y];
+					y--;
+				}
+				row[y + 1] = j;
+				d[y + 1] = dj;
+			}
+			return;
+		}
+		int mid = (from + to) >>> 1;
+		sort(row, d, tmpRow, tmpD, from, mid);
+		sort(row, d, tmpRow, tmpD, mid, to);
+		if (!(d[mid - 1] > d[mid]))
+		{
+			return;
+		}
+		System.arraycopy(row, from, tmpRow, from, to - from);
+		System.arraycopy(d, from, tmpD, from, to - from);
+		int a = from;
+		int b = mid;
+		for (int x = from; x < to; x++)
+		{
+			if (b >= to || (a < mid && !(tmpD[a] > tmpD[b])))
+			{
+				row[x] = tmpRow[a];
+				d[x] = tmpD[a++];
+			}
+			else
+			{
+				row[x] = tmpRow[b];
+				d[x] = tmpD[b++];
+			}
+		}
+	}
+
+	private static <T> T getResult(Future<T> future)
+	{
+		try
+		{
+			return future.get();
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof RuntimeException)
+			{
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException("FastNeighborJoiningTree: " + e.getCause(), e.getCause());
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("FastNeighborJoiningTree: interrupted");
+		}
+	}
+}
@@ -0,0 +1,266 @@
+// FastUPGMATree.java
+//
+// This package may be distributed under the
+// terms of the Lesser GNU General Public License (LGPL)
+
+
+package net.maizegenetics.pal.tree;
+
+import net.maizegenetics.pal.distance.DistanceMatrix;
+
+
+/**
+ * constructs a UPGMA tree from pairwise distances, joining the same pairs
+ * with the same distances as UPGMATree without rescanning the whole matrix
+ * for every join.
+ * <br><br>
+ * The nearest later cluster of each cluster is kept, so the closest pair is
+ * found by a scan of the clusters. After a join, only the clusters whose
+ * nearest cluster was one of the joined pair, and got further, are
+ * rescanned. The distances are kept in a packed lower triangle, with a
+ * joined cluster taking the place of the first of its two clusters.
+ */
+public class FastUPGMATree extends SimpleTree
+{
+	//
+	// Serialization Stuff
+	//
+
+	static final long serialVersionUID=9010201785260368399L;
+
+	//
+	// Public stuff
+	//
+
+	/**
+	 * constructor UPGMA tree
+	 *
+	 * @param m distance matrix
+	 */
+	public FastUPGMATree(DistanceMatrix m)
+	{
+		if (m.getSize() < 2)
+		{
+			throw new IllegalArgumentException("LESS THAN 2 TAXA IN DISTANCE MATRIX");
+		}
+		if (!m.isSymmetric())
+		{
+			throw new IllegalArgumentException("UNSYMMETRIC DISTANCE MATRIX");
+		}
+
+		init(m);
+
+		while (true)
+		{
+			findNextPair();
+			newBranchLengths();
+
+			if (numClusters == 2)
+			{
+				break;
+			}
+
+			newCluster();
+		}
+
+		finish();
+		createNodeList();
+	}
+
+
+	//
+	// Private stuff
+	//
+
+	private int numClusters;
+	private int besti;
+	private int bestj;
+	private PackedDistances distance;
+	private Node[] nodes;
+	private int[] active;
+
+	private double[] height;
+	private int[] oc;
+
+	// nearest later cluster of each cluster, -1 if none, and its distance
+	private int[] nearest;
+	private double[] nearestDist;
+
+	private void init(DistanceMatrix m)
+	{
+		numClusters = m.getSize();
+
+		distance = new PackedDistances(m);
+
+		nodes = new Node[numClusters];
+		active = new int[numClusters];
+		height = new double[numClusters];
+		oc = new int[numClusters];
+		for (int i = 0; i < numClusters; i++)
+		{
+			nodes[i] = NodeFactory.createNode();
+			nodes[i].setIdentifier(m.getIdentifier(i));
+			active[i] = i;
+			height[i] = 0.0;
+			oc[i] = 1;
+		}
+
+		nearest = new int[numClusters];
+		nearestDist = new double[numClusters];
+		for (int p = 0; p < numClusters; p++)
+		{
+			findNearest(p);
+		}
+	}
+
+	private void finish()
+	{
+		for (int p = 0; p < numClusters; p++)
+		{
+			getRoot().addChild(nodes[active[p]]);
+		}
+		distance = null;
+	}
+
+	/**
+	 * the pair with the smallest distance, the first one in the order of
+	 * UPGMATree if several are equal
+	 */
+	private void findNextPair()
+	{
+		besti = active[0];
+		bestj = active[1];
+		double dmin = distance.get(besti, bestj);
+		for (int p = 0; p < numClusters-1; p++)
+		{
+			int i = active[p];
+			if (nearest[i] >= 0 && nearestDist[i] < dmin)
+			{
+				dmin = nearestDist[i];
+				besti = i;
+				bestj = nearest[i];
+			}
+		}
+	}
+
+	private void newBranchLengths()
+	{
+		double dij = distance.get(besti, bestj);
+
+		nodes[besti].setBranchLength(dij/2.0-height[besti]);
+		nodes[bestj].setBranchLength(dij/2.0-height[bestj]);
+	}
+
+	private void newCluster()
+	{
+		// Update distances
+		for (int p = 0; p < numClusters; p++)
+		{
+			int k = active[p];
+			if (k != besti && k != bestj)
+			{
+				distance.set(k, besti, updatedDistance(besti, bestj, k));
+			}
+		}
+
+		// Update UPGMA variables
+		height[besti] = distance.get(besti, bestj)/2.0;
+		oc[besti] += oc[bestj];
+
+		// besti now represents the new cluster
+		Node newNode = NodeFactory.createNode();
+		newNode.addChild(nodes[besti]);
+		newNode.addChild(nodes[bestj]);
+		nodes[besti] = newNode;
+		nodes[bestj] = null;
+
+		int pj = 0;
+		while (active[pj] != bestj)
+		{
+			pj++;
+		}
+		System.arraycopy(active, pj + 1, active, pj, numClusters - pj - 1);
+		numClusters--;
+
+		// Update the nearest later clusters
+		for (int p = 0; p < numClusters; p++)
+		{
+			int k = active[p];
+			if (k < besti)
+			{
+				double dk = distance.get(k, besti);
+				if (nearest[k] == besti)
+				{
+					if (!(dk <= nearestDist[k]))
+					{
+						findNearest(p);
+					}
+					else
+					{
+						nearestDist[k] = dk;
+					}
+				}
+				else if (nearest[k] == bestj)
+				{
+					findNearest(p);
+				}
+				else if (dk < nearestDist[k] || (dk == nearestDist[k] && besti < nearest[k]))
+				{
+					nearest[k] = besti;
+					nearestDist[k] = dk;
+				}
+			}
+			else if (k == besti)
+			{
+				findNearest(p);
+			}
+			else if (k < bestj)
+			{
+				if (nearest[k] == bestj)
+				{
+					findNearest(p);
+				}
+			}
+			else
+			{
+				break;
+			}
+		}
+	}
+
+	/**
+	 * finds the nearest of the clusters after position p, the first one if
+	 * several are equal
+	 */
+	private void findNearest(int p)
+	{
+		int i = active[p];
+		int best = -1;
+		double dmin = Double.POSITIVE_INFINITY;
+		for (int q = p + 1; q < numClusters; q++)
+		{
+			int j = active[q];
+			double d = distance.get(i, j);
+			if (d < dmin)
+			{
+				dmin = d;
+				best = j;
+			}
+		}
+		nearest[i] = best;
+		nearestDist[i] = dmin;
+	}
+
+	/**
+	 * compute updated distance between the new cluster (i,j)
+	 * to any other cluster k
+	 */
+	private double updatedDistance(int i, int j, int k)
+	{
+		double ocsum = (double) (oc[i]+oc[j]);
+
+		return 	(oc[i]/ocsum)*distance.get(k, i) +
+			(oc[j]/ocsum)*distance.get(k, j);
+	}
+
+}
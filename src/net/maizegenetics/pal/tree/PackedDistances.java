@@ -0,0 +1,81 @@
+// PackedDistances.java
+//
+// This package may be distributed under the
+// terms of the Lesser GNU General Public License (LGPL)
+
+
+package net.maizegenetics.pal.tree;
+
+import net.maizegenetics.pal.distance.DistanceMatrix;
+
+
+/**
+ * the distances of a symmetric distance matrix, without the diagonal,
+ * packed by rows of the lower triangle in one array. Used by the fast
+ * tree builders, which overwrite the distances of a cluster in place
+ * when it is joined, instead of keeping a full double[][] copy.
+ */
+class PackedDistances
+{
+	private final double[] values;
+
+	/**
+	 * copies the lower triangle of a distance matrix
+	 *
+	 * @param m distance matrix
+	 */
+	PackedDistances(DistanceMatrix m)
+	{
+		int n = m.getSize();
+		long size = (long) n * (n - 1) / 2;
+		if (size > Integer.MAX_VALUE)
+		{
+			throw new IllegalArgumentException("PackedDistances: too many taxa: " + n);
+		}
+		values = new double[(int) size];
+		int index = 0;
+		for (int i = 1; i < n; i++)
+		{
+			for (int j = 0; j < i; j++)
+			{
+				values[index++] = m.getDistance(i, j);
+			}
+		}
+	}
+
+	/**
+	 * @return distance between i and j, 0 if they are the same
+	 */
+	double get(int i, int j)
+	{
+		if (i > j)
+		{
+			return values[offset(i) + j];
+		}
+		else if (i < j)
+		{
+			return values[offset(j) + i];
+		}
+		return 0.0;
+	}
+
+	/**
+	 * sets the distance between i and j, which must be different
+	 */
+	void set(int i, int j, double dist)
+	{
+		if (i > j)
+		{
+			values[offset(i) + j] = dist;
+		}
+		else
+		{
+			values[offset(j) + i] = dist;
+		}
+	}
+
+	private static int offset(int i)
+	{
+		return (int) ((long) i * (i - 1) / 2);
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * TreeBuilderBenchmark
+ */
+package net.maizegenetics.pal.tree;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Random;
+
+import net.maizegenetics.pal.distance.DistanceMatrix;
+import net.maizegenetics.pal.ids.SimpleIdGroup;
+
+/**
+ * Reports the time NeighborJoiningTree, UPGMATree, FastNeighborJoiningTree and FastUPGMATree take against the
+ * number of taxa, and checks that the fast trees have the same topology as the others: the same splits for the
+ * unrooted NJ trees, where pairs that are equal in exact arithmetic (as the two pairs of the last four clusters
+ * always are) may be joined in either order, and the same New Hampshire string without branch lengths for UPGMA.
+ * <p>
+ * Usage: TreeBuilderBenchmark [numberOfTaxa,...] [numThreads] [largestNumberOfTaxaForTheOriginalTrees]
+ * <p>
+ * The distances are those of taxa descending from a random coalescent-like tree, with noise, so that the trees
+ * are not trivial.
+ */
+public class TreeBuilderBenchmark {
+
+    private TreeBuilderBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        String[] sizes = ((args.length > 0) ? args[0] : "250,500,1000,2000,4000,8000").split(",");
+        int numThreads = (args.length > 1) ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        int maxOriginal = (args.length > 2) ? Integer.parseInt(args[2]) : 2000;
+
+        System.out.println("Taxa\tNJ s\tFastNJ s\tUPGMA s\tFastUPGMA s\tSame topology");
+        for (String size : sizes) {
+            int numTaxa = Integer.parseInt(size.trim());
+            DistanceMatrix matrix = randomDistances(numTaxa, new Random(numTaxa));
+
+            long time = System.nanoTime();
+            Tree fastNJ = new FastNeighborJoiningTree(matrix, numThreads);
+            double fastNJSeconds = (System.nanoTime() - time) / 1e9;
+            time = System.nanoTime();
+            Tree fastUPGMA = new FastUPGMATree(matrix);
+            double fastUPGMASeconds = (System.nanoTime() - time) / 1e9;
+
+            String nj = "-";
+            String upgma = "-";
+            String same = "not checked";
+            if (numTaxa <= maxOriginal) {
+                time = System.nanoTime();
+                Tree originalNJ = new NeighborJoiningTree(matrix);
+                nj = String.format("%.3f", (System.nanoTime() - time) / 1e9);
+                time = System.nanoTime();
+                Tree originalUPGMA = new UPGMATree(matrix);
+                upgma = String.format("%.3f", (System.nanoTime() - time) / 1e9);
+                boolean sameNJ = TreeUtils.getRobinsonFouldsDistance(originalNJ, fastNJ) == 0.0;
+                boolean sameUPGMA = topology(originalUPGMA).equals(topology(fastUPGMA));
+                same = "NJ " + sameNJ + ", UPGMA " + sameUPGMA;
+            }
+            System.out.printf("%d\t%s\t%.3f\t%s\t%.3f\t%s%n", numTaxa, nj, fastNJSeconds, upgma, fastUPGMASeconds, same);
+        }
+    }
+
+    /**
+     * Returns the tree in New Hampshire format without branch lengths, which includes the order of the children and
+     * the position of the root.
+     */
+    private static String topology(Tree tree) {
+        StringWriter writer = new StringWriter();
+        TreeUtils.printNH(tree, new PrintWriter(writer), false, false);
+        return writer.toString();
+    }
+
+    /**
+     * Distances between taxa whose ancestors were joined at random, each join adding a random branch length, plus
+     * a little noise.
+     */
+    private static DistanceMatrix randomDistances(int numTaxa, Random random) {
+        double[][] distance = new double[numTaxa][numTaxa];
+        int[] cluster = new int[numTaxa];
+        int[][] members = new int[numTaxa][];
+        for (int i = 0; i < numTaxa; i++) {
+            cluster[i] = i;
+            members[i] = new int[]{i};
+        }
+        int numClusters = numTaxa;
+        double time = 0.0;
+        while (numClusters > 1) {
+            time += random.nextDouble() / numClusters;
+            int a = cluster[random.nextInt(numClusters)];
+            int b;
+            do {
+                b = cluster[random.nextInt(numClusters)];
+            } while (b == a);
+            for (int i : members[a]) {
+                for (int j : members[b]) {
+                    distance[i][j] = distance[j][i] = 2.0 * time + 0.01 * random.nextDouble();
+                }
+            }
+            int[] joined = new int[members[a].length + members[b].length];
+            System.arraycopy(members[a], 0, joined, 0, members[a].length);
+            System.arraycopy(members[b], 0, joined, members[a].length, members[b].length);
+            members[a] = joined;
+            members[b] = null;
+            for (int c = 0; c < numClusters; c++) {
+                if (cluster[c] == b) {
+                    cluster[c] = cluster[--numClusters];
+                    break;
+                }
+            }
+        }
+        String[] names = new String[numTaxa];
+        for (int i = 0; i < numTaxa; i++) {
+            names[i] = "T" + i;
+        }
+        return new DistanceMatrix(distance, new SimpleIdGroup(names));
+    }
+}
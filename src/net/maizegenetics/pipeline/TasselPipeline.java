@@ -518,6 +518,19 @@ public class TasselPipeline implements PluginListener {
                         throw new IllegalArgumentException("TasselPipeline: parseArgs: Problem parsing max P: " + temp);
                     }
                     plugin.setMaxp(maxP);
+                } else if (current.equalsIgnoreCase("-mlmThreads")) {
+                    MLMPlugin plugin = (MLMPlugin) findLastPluginFromCurrentPipe(new Class[]{MLMPlugin.class});
+                    if (plugin == null) {
+                        throw new IllegalArgumentException("TasselPipeline: parseArgs: No MLM step defined: " + current);
+                    }
+                    String temp = args[index++].trim();
+                    int numThreads = 0;
+                    try {
+                        numThreads = Integer.parseInt(temp);
+                    } catch (Exception e) {
+                        throw new IllegalArgumentException("TasselPipeline: parseArgs: Problem parsing number of threads: " + temp);
+                    }
+                    plugin.setNumThreads(numThreads);
                 } else if (current.equalsIgnoreCase("-glm")) {
                     FixedEffectLMPlugin plugin = new FixedEffectLMPlugin(myMainFrame, false);
                     integratePlugin(plugin, true);
@@ -555,6 +568,19 @@ public class TasselPipeline implements PluginListener {
                     }
                     plugin.setPermute(true);
                     plugin.setNumberOfPermutations(permutations);
+                } else if (current.equalsIgnoreCase("-glmThreads")) {
+                    FixedEffectLMPlugin plugin = (FixedEffectLMPlugin) findLastPluginFromCurrentPipe(new Class[]{FixedEffectLMPlugin.class});
+                    if (plugin == null) {
+                        throw new IllegalArgumentException("TasselPipeline: parseArgs: No GLM step defined: " + current);
+                    }
+                    String temp = args[index++].trim();
+                    int numThreads = 0;
+                    try {
+                        numThreads = Integer.parseInt(temp);
+                    } catch (Exception e) {
+                        throw new IllegalArgumentException("TasselPipeline: parseArgs: Problem parsing number of threads: " + temp);
+                    }
+                    plugin.setNumThreads(numThreads);
                 } else if (current.equalsIgnoreCase("-td_csv")) {
                     String csvFile = args[index++].trim();
                     getTableDisplayPlugin(csvFile, current);
@@ -802,6 +828,40 @@ public class TasselPipeline implements PluginListener {
                         throw new IllegalArgumentException("TasselPipeline: parseArgs: LD Het Treatment parameter must be Haplotype, Homozygous, or Genotype.");
                     }
 
+                } else if (current.equalsIgnoreCase("-ldThreads")) {
+
+                    LinkageDisequilibriumPlugin plugin = null;
+                    try {
+                        plugin = (LinkageDisequilibriumPlugin) myCurrentPipe.get(myCurrentPipe.size() - 1);
+                    } catch (Exception e) {
+                        throw new IllegalArgumentException("TasselPipeline: parseArgs: No LinkageDisequilibriumPlugin step defined: " + current);
+                    }
+
+                    String str = args[index++].trim();
+                    int numThreads = -1;
+                    try {
+                        numThreads = Integer.parseInt(str);
+                    } catch (Exception e) {
+                        throw new IllegalArgumentException("TasselPipeline: parseArgs: Problem with LD number of threads: " + str);
+                    }
+                    if (numThreads < 1) {
+                        throw new IllegalArgumentException("TasselPipeline: parseArgs: LD number of threads can't be less than 1.");
+                    }
+
+                    plugin.setNumThreads(numThreads);
+
+                } else if (current.equalsIgnoreCase("-ldOutputFile")) {
+
+                    LinkageDisequilibriumPlugin plugin = null;
+                    try {
+                        plugin = (LinkageDisequilibriumPlugin) myCurrentPipe.get(myCurrentPipe.size() - 1);
+                    } catch (Exception e) {
+                        throw new IllegalArgumentException("TasselPipeline: parseArgs: No LinkageDisequilibriumPlugin step defined: " + current);
+                    }
+
+                    String filename = args[index++].trim();
+                    plugin.setOutputFile(filename);
+
                 } else if (current.equalsIgnoreCase("-ldd")) {
                     String outputType = args[index++].trim();
                     getLinkageDiseqDisplayPlugin(outputType);
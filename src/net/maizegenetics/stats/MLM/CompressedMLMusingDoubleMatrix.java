@@ -8,6 +8,11 @@ import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.swing.JOptionPane;
 
@@ -17,12 +22,12 @@ import org.apache.log4j.Logger;
 import net.maizegenetics.baseplugins.MLMPlugin;
 import net.maizegenetics.jGLiM.LinearModelUtils;
 import net.maizegenetics.jGLiM.dm.FactorModelEffect;
-import net.maizegenetics.jGLiM.dm.ModelEffectUtils;
 import net.maizegenetics.jGLiM.dm.SweepFast;
 import net.maizegenetics.jGLiM.SymmetricMatrixInverterDM;
 import net.maizegenetics.matrixalgebra.Matrix.DoubleMatrix;
 import net.maizegenetics.matrixalgebra.Matrix.DoubleMatrixFactory;
 import net.maizegenetics.pal.alignment.GeneticMap;
+import net.maizegenetics.pal.alignment.MarkerCodes;
 import net.maizegenetics.pal.alignment.MarkerPhenotype;
 import net.maizegenetics.pal.alignment.MarkerPhenotypeAdapter;
 import net.maizegenetics.pal.alignment.MarkerPhenotypeAdapterUtils;
@@ -39,6 +44,8 @@ import net.maizegenetics.stats.EMMA.EMMAforDoubleMatrix;
 public class CompressedMLMusingDoubleMatrix {
 
     private static final Logger myLogger = Logger.getLogger(CompressedMLMusingDoubleMatrix.class);
+    private static final int MARKERS_PER_BLOCK = 64;
+    private static final int MAX_BLOCKS_PER_THREAD = 4;
     private final boolean useCompression;
     private final boolean useP3D;
     private final double compression;
@@ -244,241 +251,28 @@ public class CompressedMLMusingDoubleMatrix {
 
             //iterate markers
             if (testMarkers) {
-                for (int m = 0; m < numberOfMarkers; m++) {
-                    Object[] markerData = theAdapter.getMarkerValue(ph, m);
-                    boolean[] missingMarkers = theAdapter.getMissingMarkers(ph, m);
-                    boolean[] finalMissing = new boolean[missing.length];
-                    System.arraycopy(missing, 0, finalMissing, 0, missing.length);
-                    MarkerPhenotypeAdapterUtils.updateMissing(finalMissing, missingMarkers);
-                    boolean[] additionalMissing = new boolean[nonMissingObs];
-
-                    //only data for which missing=false are in the Z matrix
-                    //the block below finds the rows of Z that have no marker data.
-                    //Those rows/columns will need to be removed from ZKZ or from V, depending on the analysis method.
-                    int missingCount = 0;
-                    for (int i = 0; i < totalObs; i++) {
-                        if (!missing[i]) {
-                            if (finalMissing[i]) {
-                                additionalMissing[missingCount] = true;
-                            } else {
-                                additionalMissing[missingCount] = false;
-                            }
-                            missingCount++;
-                        }
-                    }
-
-                    //adjust y for missing data
-                    int numberOfRowsKept = 0;
-                    for (boolean miss : additionalMissing) {
-                        if (!miss) {
-                            numberOfRowsKept++;
-                        }
-                    }
-                    int[] keepIndex = new int[numberOfRowsKept];
-                    count = 0;
-                    for (int i = 0; i < nonMissingObs; i++) {
-                        if (!additionalMissing[i]) {
-                            keepIndex[count++] = i;
-                        }
-                    }
-
-                    DoubleMatrix ymarker = y.getSelection(keepIndex, null);
-                    count = 0;
-                    for (int i = 0; i < totalObs; i++) {
-                        if (!finalMissing[i]) {
-                            ymarker.set(count++, 0, phenotypeData[i]);
-                        }
-                    }
-
-                    //adjust the fixed effects
-                    DoubleMatrix fixed2 = fixed.getSelection(keepIndex, null);
-
-                    //add marker data to fixed effects
-                    ArrayList<Object> markerIds = new ArrayList<Object>();
-                    boolean markerIsDiscrete = theAdapter.isMarkerDiscrete(m);
-                    int nAlleles;
-                    int markerdf;
-                    DoubleMatrix X;
-                    int[] alleleCounts = null;
-
-                    if (markerIsDiscrete) {
-                        Object[] finalMarkerData = new Object[numberOfRowsKept];
-                        count = 0;
-                        int n = markerData.length;
-                        for (int i = 0; i < n; i++) {
-                            if (!finalMissing[i]) {
-                                finalMarkerData[count++] = markerData[i];
-                            }
-                        }
-                        FactorModelEffect markerEffect = new FactorModelEffect(ModelEffectUtils.getIntegerLevels(finalMarkerData, markerIds), true);
-                        X = fixed2.concatenate(markerEffect.getX(), false);
-                        nAlleles = markerEffect.getNumberOfLevels();
-                        alleleCounts = markerEffect.getLevelCounts();
-                        markerdf = nAlleles - 1;
-                    } else {
-                        double[] finalMarkerValues = new double[numberOfRowsKept];
-                        count = 0;
-                        int n = markerData.length;
-                        for (int i = 0; i < n; i++) {
-                            if (!finalMissing[i]) {
-                                finalMarkerValues[count++] = (Double) markerData[i];
-                            }
-                        }
-                        X = fixed2.concatenate(DoubleMatrixFactory.DEFAULT.make(numberOfRowsKept, 1, finalMarkerValues), false);
-                        nAlleles = 1;
-                        alleleCounts = new int[]{numberOfRowsKept};
-                        markerdf = 1;
-                    }
-
-                    CompressedMLMResult result = new CompressedMLMResult();
-                    //need to add marker information to result once Alignment is stable
-
-                    if (useP3D) {
-                        testMarkerUsingP3D(result, ymarker, X, Vminus.getInverse(additionalMissing), markerdf);
-                    } else {
-                    	DoubleMatrix Zsel = zk[0].getSelection(keepIndex, null);
-                        testMarkerUsingEMMA(result, ymarker, X, zk[1], Zsel, nAlleles);
-                        markerdf = result.modeldf - baseModeldf;
-                    }
-
-                    //if the results are to be filtered on pmax check for that condition
-                    boolean recordTheseResults = true;
-                    if (parentPlugin.isFilterOutput() && result.p > parentPlugin.getMaxp()) {
-                        recordTheseResults = false;
+                PhenotypeModel phenotypeModel = new PhenotypeModel(ph, phenotypeData, missing, nonMissingObs, y, fixed, zk, baseModeldf);
+                if (useP3D) {
+                    //the inverse of V for markers with no additional missing data is the same for all of them
+                    phenotypeModel.invV = Vminus.getInverse(new boolean[nonMissingObs]);
+                }
+                int numThreads = parentPlugin.getNumThreads();
+                if (useP3D && numThreads > 1) {
+                    //with P3D the variance components are fixed, so the markers are independent
+                    if (!testMarkersInParallel(phenotypeModel, numThreads, iterationsSofar, expectedIterations, mainOutputWriter, alleleOutputWriter)) {
+                        return null;
                     }
-
-                    if (recordTheseResults) {
-                        //add result to main
-                        //{"Trait","Marker","Chr","Pos","Locus","Site","df","F","p","errordf","MarkerR2","Genetic Var","Residual Var", "-2LnLikelihood"};
-                        String markername = theAdapter.getMarkerName(m);
-                        String chr = "";
-                        String pos = "";
-                        String locus = theAdapter.getLocusName(m);
-                        String site = Integer.toString(theAdapter.getLocusPosition(m));
-                        if (myGeneticMap != null) {
-                            int ndx = myGeneticMap.getMarkerIndex(markername);
-                            if (ndx >= 0) {
-                                chr = myGeneticMap.getChromosome(ndx);
-                                pos = Double.toString(myGeneticMap.getGeneticPosition(ndx));
-                            }
-                        }
-                        double errordf = (double) (ymarker.numberOfRows() - result.modeldf);
-
-                        if (myGeneticMap != null) {
-                            tableRow = new Object[]{theAdapter.getPhenotypeName(ph),
-                                        markername,
-                                        chr,
-                                        pos,
-                                        locus,
-                                        site,
-                                        new Integer(markerdf),
-                                        new Double(result.F),
-                                        new Double(result.p),
-                                        new Double(errordf),
-                                        new Double(result.r2),
-                                        new Double(genvar),
-                                        new Double(resvar),
-                                        new Double(-2 * lnlk)};
-                        } else {
-                            tableRow = new Object[]{theAdapter.getPhenotypeName(ph),
-                                        markername,
-                                        locus,
-                                        site,
-                                        new Integer(markerdf),
-                                        new Double(result.F),
-                                        new Double(result.p),
-                                        new Double(errordf),
-                                        new Double(result.r2),
-                                        new Double(genvar),
-                                        new Double(resvar),
-                                        new Double(-2 * lnlk)};
-                        }
-                        if (parentPlugin.isWriteOutputToFile()) {
-                            if (!writeObjectToFile(mainOutputWriter, tableRow)) {
-                                return null;
-                            }
-                        } else {
-                            resultsMain.add(tableRow);
-                        }
-
-                        //add result to alleles
-                        //"Trait","Marker","Chr","Pos","Locus","Site","Allele","Effect"
-
-                        if (!markerIsDiscrete) {
-                            if (myGeneticMap != null) {
-                                tableRow = new Object[]{theAdapter.getPhenotypeName(ph),
-                                            markername,
-                                            chr,
-                                            pos,
-                                            locus,
-                                            site,
-                                            "",
-                                            result.beta.get(result.beta.numberOfRows() - 1, 0),
-                                            numberOfRowsKept
-                                        };
-                            } else {
-                                tableRow = new Object[]{theAdapter.getPhenotypeName(ph),
-                                            markername,
-                                            locus,
-                                            site,
-                                            "",
-                                            result.beta.get(result.beta.numberOfRows() - 1, 0),
-                                            numberOfRowsKept
-                                        };
-                            }
-                            //record the results
-                            if (parentPlugin.isWriteOutputToFile()) {
-                                if (!writeObjectToFile(alleleOutputWriter, tableRow)) {
-                                    return null;
-                                }
-                            } else {
-                                resultsAlleles.add(tableRow);
-                            }
-
-                        } else if (nAlleles > 1) {
-                            for (int a = 0; a < nAlleles; a++) {
-                                Double estimate;
-                                if (a < nAlleles - 1) {
-                                    estimate = result.beta.get(result.beta.numberOfRows() - nAlleles + 1 + a, 0);
-                                } else {
-                                    estimate = 0.0;
-                                }
-                                if (myGeneticMap != null) {
-                                    tableRow = new Object[]{theAdapter.getPhenotypeName(ph),
-                                                markername,
-                                                chr,
-                                                pos,
-                                                locus,
-                                                site,
-                                                markerIds.get(a),
-                                                estimate,
-                                                alleleCounts[a]
-                                            };
-                                } else {
-                                    tableRow = new Object[]{theAdapter.getPhenotypeName(ph),
-                                                markername,
-                                                locus,
-                                                site,
-                                                markerIds.get(a),
-                                                estimate,
-                                                alleleCounts[a]
-                                            };
-                                }
-                                //record the results
-                                if (parentPlugin.isWriteOutputToFile()) {
-                                    if (!writeObjectToFile(alleleOutputWriter, tableRow)) {
-                                        return null;
-                                    }
-                                } else {
-                                    resultsAlleles.add(tableRow);
-                                }
-                            }
+                    iterationsSofar += numberOfMarkers;
+                } else {
+                    for (int m = 0; m < numberOfMarkers; m++) {
+                        MarkerTestResult markerResult = testMarker(phenotypeModel, getMarkerInput(ph, m));
+                        if (!recordMarkerResult(markerResult, mainOutputWriter, alleleOutputWriter)) {
+                            return null;
                         }
-
+                        iterationsSofar++;
+                        int progress = (int) ((double) iterationsSofar / (double) expectedIterations * 100);
+                        parentPlugin.updateProgress(progress);
                     }
-                    iterationsSofar++;
-                    int progress = (int) ((double) iterationsSofar / (double) expectedIterations * 100);
-                    parentPlugin.updateProgress(progress);
                 }
             }
 
@@ -503,6 +297,317 @@ public class CompressedMLMusingDoubleMatrix {
         return formatResults();
     }
 
+    /**
+     * Tests the markers of a phenotype on numThreads threads, for P3D.  Blocks of MARKERS_PER_BLOCK markers are
+     * tested by a pool of threads, while the calling thread reads the marker values ahead of them (alignments are not
+     * all safe to read from several threads) and records the results in marker order.
+     * @return false if the results could not be written
+     */
+    private boolean testMarkersInParallel(final PhenotypeModel phenotypeModel, int numThreads, int iterationsSofar, int expectedIterations,
+            BufferedWriter mainOutputWriter, BufferedWriter alleleOutputWriter) {
+        int numberOfMarkers = theAdapter.getNumberOfMarkers();
+        int numBlocks = (numberOfMarkers + MARKERS_PER_BLOCK - 1) / MARKERS_PER_BLOCK;
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<MarkerTestResult[]>> blocks = new LinkedList<Future<MarkerTestResult[]>>();
+            int numSubmitted = 0;
+            for (int b = 0; b < numBlocks; b++) {
+                while ((numSubmitted < numBlocks) && (numSubmitted - b <= MAX_BLOCKS_PER_THREAD * numThreads)) {
+                    int first = numSubmitted * MARKERS_PER_BLOCK;
+                    int last = Math.min(numberOfMarkers, first + MARKERS_PER_BLOCK);
+                    final MarkerInput[] inputs = new MarkerInput[last - first];
+                    for (int m = first; m < last; m++) {
+                        inputs[m - first] = getMarkerInput(phenotypeModel.ph, m);
+                    }
+                    numSubmitted++;
+                    blocks.add(pool.submit(new Callable<MarkerTestResult[]>() {
+                        @Override
+                        public MarkerTestResult[] call() {
+                            MarkerTestResult[] results = new MarkerTestResult[inputs.length];
+                            for (int i = 0; i < inputs.length; i++) {
+                                results[i] = testMarker(phenotypeModel, inputs[i]);
+                            }
+                            return results;
+                        }
+                    }));
+                }
+                MarkerTestResult[] results;
+                try {
+                    results = blocks.remove(0).get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
+                    }
+                    throw new IllegalStateException("CompressedMLMusingDoubleMatrix: testMarkersInParallel: " + e.getCause(), e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("CompressedMLMusingDoubleMatrix: testMarkersInParallel: interrupted");
+                }
+                for (MarkerTestResult markerResult : results) {
+                    if (!recordMarkerResult(markerResult, mainOutputWriter, alleleOutputWriter)) {
+                        return false;
+                    }
+                }
+                iterationsSofar += results.length;
+                int progress = (int) ((double) iterationsSofar / (double) expectedIterations * 100);
+                parentPlugin.updateProgress(progress);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return true;
+    }
+
+    private MarkerInput getMarkerInput(int ph, int m) {
+        MarkerInput input = new MarkerInput();
+        input.marker = m;
+        input.codes = theAdapter.getMarkerCodes(ph, m);
+        input.name = theAdapter.getMarkerName(m);
+        input.locus = theAdapter.getLocusName(m);
+        input.site = Integer.toString(theAdapter.getLocusPosition(m));
+        return input;
+    }
+
+    /**
+     * Tests one marker.  With P3D this only reads the state of this class, so markers can be tested concurrently.
+     * @return the rows of the marker, with a null main row if they are filtered out
+     */
+    private MarkerTestResult testMarker(PhenotypeModel phenotypeModel, MarkerInput marker) {
+        boolean[] missing = phenotypeModel.missing;
+        int totalObs = missing.length;
+        int nonMissingObs = phenotypeModel.nonMissingObs;
+        MarkerCodes markerCodes = marker.codes;
+        boolean[] missingMarkers = markerCodes.getMissing();
+        boolean[] finalMissing = new boolean[missing.length];
+        System.arraycopy(missing, 0, finalMissing, 0, missing.length);
+        MarkerPhenotypeAdapterUtils.updateMissing(finalMissing, missingMarkers);
+        boolean[] additionalMissing = new boolean[nonMissingObs];
+
+        //only data for which missing=false are in the Z matrix
+        //the block below finds the rows of Z that have no marker data.
+        //Those rows/columns will need to be removed from ZKZ or from V, depending on the analysis method.
+        int missingCount = 0;
+        for (int i = 0; i < totalObs; i++) {
+            if (!missing[i]) {
+                if (finalMissing[i]) {
+                    additionalMissing[missingCount] = true;
+                } else {
+                    additionalMissing[missingCount] = false;
+                }
+                missingCount++;
+            }
+        }
+
+        //adjust y for missing data
+        int numberOfRowsKept = 0;
+        for (boolean miss : additionalMissing) {
+            if (!miss) {
+                numberOfRowsKept++;
+            }
+        }
+
+        DoubleMatrix ymarker;
+        DoubleMatrix fixed2;
+        int[] keepIndex = null;
+        if (numberOfRowsKept == nonMissingObs) {
+            //no additional missing data, so y and the fixed effects are used as they are
+            ymarker = phenotypeModel.y;
+            fixed2 = phenotypeModel.fixed;
+        } else {
+            keepIndex = new int[numberOfRowsKept];
+            int count = 0;
+            for (int i = 0; i < nonMissingObs; i++) {
+                if (!additionalMissing[i]) {
+                    keepIndex[count++] = i;
+                }
+            }
+
+            ymarker = phenotypeModel.y.getSelection(keepIndex, null);
+            count = 0;
+            for (int i = 0; i < totalObs; i++) {
+                if (!finalMissing[i]) {
+                    ymarker.set(count++, 0, phenotypeModel.phenotypeData[i]);
+                }
+            }
+
+            //adjust the fixed effects
+            fixed2 = phenotypeModel.fixed.getSelection(keepIndex, null);
+        }
+
+        //add marker data to fixed effects
+        ArrayList<Object> markerIds = new ArrayList<Object>();
+        boolean markerIsDiscrete = markerCodes.isDiscrete();
+        int nAlleles;
+        int markerdf;
+        DoubleMatrix X;
+        int[] alleleCounts = null;
+        int[] markerRows = MarkerPhenotypeAdapterUtils.getNonMissingIndex(finalMissing);
+
+        if (markerIsDiscrete) {
+            FactorModelEffect markerEffect = new FactorModelEffect(markerCodes.getLevels(markerRows, markerIds), true);
+            X = fixed2.concatenate(markerEffect.getX(), false);
+            nAlleles = markerEffect.getNumberOfLevels();
+            alleleCounts = markerEffect.getLevelCounts();
+            markerdf = nAlleles - 1;
+        } else {
+            double[] finalMarkerValues = markerCodes.getValues(markerRows);
+            X = fixed2.concatenate(DoubleMatrixFactory.DEFAULT.make(numberOfRowsKept, 1, finalMarkerValues), false);
+            nAlleles = 1;
+            alleleCounts = new int[]{numberOfRowsKept};
+            markerdf = 1;
+        }
+
+        CompressedMLMResult result = new CompressedMLMResult();
+        //need to add marker information to result once Alignment is stable
+
+        if (useP3D) {
+            DoubleMatrix invV = (keepIndex == null) ? phenotypeModel.invV : Vminus.getInverse(additionalMissing);
+            testMarkerUsingP3D(result, ymarker, X, invV, markerdf);
+        } else {
+            DoubleMatrix Zsel = (keepIndex == null) ? phenotypeModel.zk[0] : phenotypeModel.zk[0].getSelection(keepIndex, null);
+            testMarkerUsingEMMA(result, ymarker, X, phenotypeModel.zk[1], Zsel, nAlleles);
+            markerdf = result.modeldf - phenotypeModel.baseModeldf;
+        }
+
+        MarkerTestResult markerResult = new MarkerTestResult();
+
+        //if the results are to be filtered on pmax check for that condition
+        if (parentPlugin.isFilterOutput() && result.p > parentPlugin.getMaxp()) {
+            return markerResult;
+        }
+
+        //add result to main
+        //{"Trait","Marker","Chr","Pos","Locus","Site","df","F","p","errordf","MarkerR2","Genetic Var","Residual Var", "-2LnLikelihood"};
+        String traitname = phenotypeModel.name;
+        String markername = marker.name;
+        String chr = "";
+        String pos = "";
+        String locus = marker.locus;
+        String site = marker.site;
+        if (myGeneticMap != null) {
+            int ndx = myGeneticMap.getMarkerIndex(markername);
+            if (ndx >= 0) {
+                chr = myGeneticMap.getChromosome(ndx);
+                pos = Double.toString(myGeneticMap.getGeneticPosition(ndx));
+            }
+        }
+        double errordf = (double) (ymarker.numberOfRows() - result.modeldf);
+
+        if (myGeneticMap != null) {
+            markerResult.main = new Object[]{traitname,
+                        markername,
+                        chr,
+                        pos,
+                        locus,
+                        site,
+                        new Integer(markerdf),
+                        new Double(result.F),
+                        new Double(result.p),
+                        new Double(errordf),
+                        new Double(result.r2),
+                        new Double(genvar),
+                        new Double(resvar),
+                        new Double(-2 * lnlk)};
+        } else {
+            markerResult.main = new Object[]{traitname,
+                        markername,
+                        locus,
+                        site,
+                        new Integer(markerdf),
+                        new Double(result.F),
+                        new Double(result.p),
+                        new Double(errordf),
+                        new Double(result.r2),
+                        new Double(genvar),
+                        new Double(resvar),
+                        new Double(-2 * lnlk)};
+        }
+
+        //add result to alleles
+        //"Trait","Marker","Chr","Pos","Locus","Site","Allele","Effect"
+
+        if (!markerIsDiscrete) {
+            if (myGeneticMap != null) {
+                markerResult.alleles.add(new Object[]{traitname,
+                            markername,
+                            chr,
+                            pos,
+                            locus,
+                            site,
+                            "",
+                            result.beta.get(result.beta.numberOfRows() - 1, 0),
+                            numberOfRowsKept
+                        });
+            } else {
+                markerResult.alleles.add(new Object[]{traitname,
+                            markername,
+                            locus,
+                            site,
+                            "",
+                            result.beta.get(result.beta.numberOfRows() - 1, 0),
+                            numberOfRowsKept
+                        });
+            }
+
+        } else if (nAlleles > 1) {
+            for (int a = 0; a < nAlleles; a++) {
+                Double estimate;
+                if (a < nAlleles - 1) {
+                    estimate = result.beta.get(result.beta.numberOfRows() - nAlleles + 1 + a, 0);
+                } else {
+                    estimate = 0.0;
+                }
+                if (myGeneticMap != null) {
+                    markerResult.alleles.add(new Object[]{traitname,
+                                markername,
+                                chr,
+                                pos,
+                                locus,
+                                site,
+                                markerIds.get(a),
+                                estimate,
+                                alleleCounts[a]
+                            });
+                } else {
+                    markerResult.alleles.add(new Object[]{traitname,
+                                markername,
+                                locus,
+                                site,
+                                markerIds.get(a),
+                                estimate,
+                                alleleCounts[a]
+                            });
+                }
+            }
+        }
+
+        return markerResult;
+    }
+
+    /**
+     * Writes the rows of a marker to the output files, or adds them to the results.
+     * @return false if they could not be written
+     */
+    private boolean recordMarkerResult(MarkerTestResult markerResult, BufferedWriter mainOutputWriter, BufferedWriter alleleOutputWriter) {
+        if (markerResult.main == null) {
+            return true;
+        }
+        if (parentPlugin.isWriteOutputToFile()) {
+            if (!writeObjectToFile(mainOutputWriter, markerResult.main)) {
+                return false;
+            }
+            for (Object[] row : markerResult.alleles) {
+                if (!writeObjectToFile(alleleOutputWriter, row)) {
+                    return false;
+                }
+            }
+        } else {
+            resultsMain.add(markerResult.main);
+            resultsAlleles.addAll(markerResult.alleles);
+        }
+        return true;
+    }
+
     private String getTabbedStringFromArray(Object[] array) {
         StringBuffer sb = new StringBuffer();
         sb.append(array[0]);
@@ -920,6 +1025,56 @@ public class CompressedMLMusingDoubleMatrix {
         return new SimpleIdGroup(taxa);
     }
 
+    /**
+     * The data of a phenotype that are the same for all of its markers.
+     */
+    class PhenotypeModel {
+
+        final int ph;
+        final String name;
+        final double[] phenotypeData;
+        final boolean[] missing;
+        final int nonMissingObs;
+        final DoubleMatrix y;
+        final DoubleMatrix fixed;
+        final DoubleMatrix[] zk;
+        final int baseModeldf;
+        DoubleMatrix invV = null;
+
+        PhenotypeModel(int ph, double[] phenotypeData, boolean[] missing, int nonMissingObs, DoubleMatrix y, DoubleMatrix fixed, DoubleMatrix[] zk, int baseModeldf) {
+            this.ph = ph;
+            this.name = theAdapter.getPhenotypeName(ph);
+            this.phenotypeData = phenotypeData;
+            this.missing = missing;
+            this.nonMissingObs = nonMissingObs;
+            this.y = y;
+            this.fixed = fixed;
+            this.zk = zk;
+            this.baseModeldf = baseModeldf;
+        }
+    }
+
+    /**
+     * The values and names of a marker, read from the adapter.
+     */
+    class MarkerInput {
+
+        int marker;
+        MarkerCodes codes;
+        String name;
+        String locus;
+        String site;
+    }
+
+    /**
+     * The rows of the main and allele reports for a marker.
+     */
+    class MarkerTestResult {
+
+        Object[] main = null;
+        ArrayList<Object[]> alleles = new ArrayList<Object[]>();
+    }
+
     class CompressedMLMResult {
 
         DoubleMatrix beta = null;
@@ -0,0 +1,179 @@
+/*
+ * BlockCompressedOutputStream
+ */
+package net.maizegenetics.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes BGZF (block gzip) files: a series of gzip members of at most 64 KB each, with the size of the member in
+ * a "BC" extra field, ended by an empty member.  These are valid .gz files, that tabix can index and htslib based
+ * tools can seek in.
+ * <p>
+ * Blocks can also be compressed separately with {@link #compress(byte[], int, int)}, for example by several
+ * threads, and then written in order with {@link #writeBlocks(byte[])}.
+ */
+public class BlockCompressedOutputStream extends OutputStream {
+
+    /**
+     * Maximum number of uncompressed bytes in a block, so that the block stays under 64 KB even if the data does
+     * not compress.
+     */
+    public static final int MAX_BLOCK_DATA = 65280;
+    private static final int HEADER_LENGTH = 18;
+    private static final int FOOTER_LENGTH = 8;
+    private static final byte[] END_OF_FILE_BLOCK = {
+        0x1f, (byte) 0x8b, 0x08, 0x04, 0x00, 0x00, 0x00, 0x00, 0x00, (byte) 0xff, 0x06, 0x00, 0x42, 0x43, 0x02, 0x00,
+        0x1b, 0x00, 0x03, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00};
+    private final OutputStream myOutput;
+    private final byte[] myBuffer = new byte[MAX_BLOCK_DATA];
+    private int myBufferLength = 0;
+    private final BlockCompressor myCompressor = new BlockCompressor();
+    private boolean myClosed = false;
+
+    public BlockCompressedOutputStream(OutputStream output) {
+        myOutput = output;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (myBufferLength == MAX_BLOCK_DATA) {
+            writeBufferedBlock();
+        }
+        myBuffer[myBufferLength++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (myBufferLength == MAX_BLOCK_DATA) {
+                writeBufferedBlock();
+            }
+            int n = Math.min(len, MAX_BLOCK_DATA - myBufferLength);
+            System.arraycopy(b, off, myBuffer, myBufferLength, n);
+            myBufferLength += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Ends the current block (if it has any data), then writes blocks made by {@link #compress(byte[], int, int)}
+     * as they are.
+     */
+    public void writeBlocks(byte[] blocks) throws IOException {
+        writeBufferedBlock();
+        myOutput.write(blocks);
+    }
+
+    /**
+     * Ends the current block and flushes the underlying stream.
+     */
+    @Override
+    public void flush() throws IOException {
+        writeBufferedBlock();
+        myOutput.flush();
+    }
+
+    /**
+     * Writes the last block and the empty end of file block, then closes the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (myClosed) {
+            return;
+        }
+        myClosed = true;
+        try {
+            writeBufferedBlock();
+            myOutput.write(END_OF_FILE_BLOCK);
+        } finally {
+            myCompressor.end();
+            myOutput.close();
+        }
+    }
+
+    private void writeBufferedBlock() throws IOException {
+        if (myBufferLength != 0) {
+            myCompressor.writeBlock(myBuffer, 0, myBufferLength, myOutput);
+            myBufferLength = 0;
+        }
+    }
+
+    /**
+     * Returns length bytes of data compressed as BGZF blocks, without the end of file block.
+     */
+    public static byte[] compress(byte[] data, int offset, int length) {
+        ByteArrayOutputStream result = new ByteArrayOutputStream(length / 3 + 64);
+        BlockCompressor compressor = new BlockCompressor();
+        try {
+            for (int start = offset, end = offset + length; start < end; start += MAX_BLOCK_DATA) {
+                compressor.writeBlock(data, start, Math.min(MAX_BLOCK_DATA, end - start), result);
+            }
+        } catch (IOException e) {
+            // ByteArrayOutputStream doesn't throw
+            throw new IllegalStateException("BlockCompressedOutputStream: compress: " + e.getMessage());
+        } finally {
+            compressor.end();
+        }
+        return result.toByteArray();
+    }
+
+    private static class BlockCompressor {
+
+        private final Deflater myDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        private final CRC32 myCRC = new CRC32();
+        private final byte[] myBlock = new byte[65536 + 1024];
+
+        void writeBlock(byte[] data, int offset, int length, OutputStream output) throws IOException {
+            myDeflater.reset();
+            myDeflater.setInput(data, offset, length);
+            myDeflater.finish();
+            int compressedLength = 0;
+            while (!myDeflater.finished()) {
+                compressedLength += myDeflater.deflate(myBlock, HEADER_LENGTH + compressedLength, myBlock.length - HEADER_LENGTH - FOOTER_LENGTH - compressedLength);
+                if (HEADER_LENGTH + compressedLength + FOOTER_LENGTH > 65536) {
+                    throw new IllegalStateException("BlockCompressedOutputStream: block of " + length + " bytes does not fit in 64 KB once compressed");
+                }
+            }
+            int blockLength = HEADER_LENGTH + compressedLength + FOOTER_LENGTH;
+            myCRC.reset();
+            myCRC.update(data, offset, length);
+            byte[] b = myBlock;
+            b[0] = 0x1f;  // gzip magic
+            b[1] = (byte) 0x8b;
+            b[2] = 8;  // deflate
+            b[3] = 4;  // extra field present
+            b[4] = b[5] = b[6] = b[7] = 0;  // modification time
+            b[8] = 0;
+            b[9] = (byte) 0xff;  // unknown OS
+            b[10] = 6;  // extra field length
+            b[11] = 0;
+            b[12] = 'B';
+            b[13] = 'C';
+            b[14] = 2;
+            b[15] = 0;
+            b[16] = (byte) (blockLength - 1);
+            b[17] = (byte) ((blockLength - 1) >>> 8);
+            int footer = HEADER_LENGTH + compressedLength;
+            writeIntLE(b, footer, (int) myCRC.getValue());
+            writeIntLE(b, footer + 4, length);
+            output.write(b, 0, blockLength);
+        }
+
+        void end() {
+            myDeflater.end();
+        }
+
+        private static void writeIntLE(byte[] b, int offset, int value) {
+            b[offset] = (byte) value;
+            b[offset + 1] = (byte) (value >>> 8);
+            b[offset + 2] = (byte) (value >>> 16);
+            b[offset + 3] = (byte) (value >>> 24);
+        }
+    }
+}
@@ -5,10 +5,29 @@ import java.text.NumberFormat;
 
 public class DoubleFormat {
 
-    private static NumberFormat nfe = null;
-    private static NumberFormat nf = null;
+    // NumberFormat isn't thread safe, so each thread has its own formats.
+    private static final ThreadLocal<NumberFormat> nfe = new ThreadLocal<NumberFormat>() {
+        @Override
+        protected NumberFormat initialValue() {
+            return getNumberFormat("0.0###E0");
+        }
+    };
+    private static final ThreadLocal<NumberFormat> nf = new ThreadLocal<NumberFormat>() {
+        @Override
+        protected NumberFormat initialValue() {
+            return getNumberFormat("0.#####");
+        }
+    };
     private static String NAN_STRING = "NaN";
 
+    private static NumberFormat getNumberFormat(String pattern) {
+        NumberFormat result = NumberFormat.getInstance();
+        if (result instanceof DecimalFormat) {
+            ((DecimalFormat) result).applyPattern(pattern);
+        }
+        return result;
+    }
+
     public static String format(double value) {
         if (Double.isNaN(value)) {
             return NAN_STRING;
@@ -16,18 +35,8 @@ public class DoubleFormat {
         if (Double.isInfinite(value)) {
             return "Infinity";
         }
-        if (nfe == null) {
-            nfe = NumberFormat.getInstance();
-            if (nfe instanceof DecimalFormat) {
-                ((DecimalFormat) nfe).applyPattern("0.0###E0");
-            }
-        }
-        if (nf == null) {
-            nf = NumberFormat.getInstance();
-            if (nf instanceof DecimalFormat) {
-                ((DecimalFormat) nf).applyPattern("0.#####");
-            }
-        }
+        NumberFormat nfe = DoubleFormat.nfe.get();
+        NumberFormat nf = DoubleFormat.nf.get();
         if (value == 0) {
             return nf.format(value);
         }
@@ -17,7 +17,7 @@ public class VCFUtil {
     private static double v1;
     private static double v2;
     private static double v3;
-    private static int[][][] myGenoScoreMap;
+    private static volatile int[][][] myGenoScoreMap;  // set once filled, as the exporters read it from several threads
     public static final int VCF_DEFAULT_MAX_NUM_ALLELES = 3;
         
     private VCFUtil ()
@@ -25,17 +25,21 @@ public class VCFUtil {
         
     }
     
-    private static void initVCFScoreMap() {
+    private static synchronized void initVCFScoreMap() {
+        if (myGenoScoreMap != null) {
+            return;
+        }
         error = 0.001;
         v1 = Math.log10(1.0 - error * 3.0 /4.0);
         v2 = Math.log10(error/4);
         v3 = Math.log10(0.5 - (error/4.0));
-        myGenoScoreMap = new int[501][501][];
+        int[][][] scoreMap = new int[501][501][];
         for (int i = 0; i < 501; i++) {
             for (int j = 0; j < 501; j++) {
-                myGenoScoreMap[i][j]= calcScore(i, j);
+                scoreMap[i][j]= calcScore(i, j);
             }
         }
+        myGenoScoreMap = scoreMap;
     }
     
     public static int[] getScore(int i, int j) {